@@ -0,0 +1,84 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.component.AccessTokenIssuer;
+import com.github.klefstad_teaching.cs122b.idm.component.KeyRing;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMServiceConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issuing the access token of /login and /refresh, as IDMJwtManager did
+ * through a JWTClaimsSet and SignedJWT against {@link AccessTokenIssuer}.
+ * Both sign with the same key, so the difference is everything around
+ * the ECDSA signature. Run with -prof gc to compare gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class AccessTokenIssueBenchmark
+{
+    private KeyRing.SigningKey signingKey;
+    private AccessTokenIssuer  issuer;
+    private Duration           accessTokenExpire;
+    private User               user;
+
+    @Setup
+    public void setup()
+    {
+        IDMServiceConfig serviceConfig = BenchmarkConfig.serviceConfig();
+        JWTManager       jwtManager    = BenchmarkConfig.jwtManager(serviceConfig);
+
+        this.accessTokenExpire = serviceConfig.accessTokenExpire();
+        this.signingKey = new KeyRing(jwtManager.getEcKey(), accessTokenExpire).signingKey();
+        this.issuer = new AccessTokenIssuer(accessTokenExpire);
+        this.user = BenchmarkConfig.user();
+    }
+
+    @Benchmark
+    public String claimsSet()
+        throws Exception
+    {
+        Instant now = Instant.now();
+
+        JWTClaimsSet claimsSet = new JWTClaimsSet.Builder()
+                .subject(user.getEmail())
+                .expirationTime(Date.from(now.plus(accessTokenExpire)))
+                .issueTime(Date.from(now))
+                .claim(JWTManager.CLAIM_ID, user.getId())
+                .claim(JWTManager.CLAIM_ROLES, user.getRoles())
+                .build();
+
+        SignedJWT signedJWT = new SignedJWT(signingKey.getHeader(), claimsSet);
+        signedJWT.sign(signingKey.getSigner());
+        return signedJWT.serialize();
+    }
+
+    @Benchmark
+    public String issuer()
+        throws Exception
+    {
+        return issuer.issue(signingKey, user);
+    }
+}
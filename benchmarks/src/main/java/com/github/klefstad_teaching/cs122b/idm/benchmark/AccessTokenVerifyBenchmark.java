@@ -0,0 +1,76 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.component.AccessTokenVerification;
+import com.github.klefstad_teaching.cs122b.idm.component.AccessTokenVerifier;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMServiceConfig;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies per second on a single thread, i.e. per core, for the old
+ * double signature check against the single pass {@link AccessTokenVerifier}.
+ * Neither path goes through the verified token cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class AccessTokenVerifyBenchmark
+{
+    private JWTManager          jwtManager;
+    private AccessTokenVerifier accessTokenVerifier;
+    private String              accessToken;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        IDMServiceConfig serviceConfig = BenchmarkConfig.serviceConfig();
+
+        this.jwtManager = BenchmarkConfig.jwtManager(serviceConfig);
+        this.accessTokenVerifier = new AccessTokenVerifier(jwtManager.getEcKey());
+        this.accessToken =
+            BenchmarkConfig.idmJwtManager(serviceConfig)
+                           .buildAccessToken(BenchmarkConfig.user());
+    }
+
+    @Benchmark
+    public JWTClaimsSet doubleVerify()
+        throws Exception
+    {
+        SignedJWT rebuiltSignedJwt = SignedJWT.parse(accessToken);
+
+        rebuiltSignedJwt.verify(jwtManager.getVerifier());
+        jwtManager.getJwtProcessor().process(rebuiltSignedJwt, null);
+
+        if (Instant.now().isAfter(rebuiltSignedJwt.getJWTClaimsSet().getExpirationTime().toInstant())) {
+            throw new IllegalStateException("Expired");
+        }
+
+        return rebuiltSignedJwt.getJWTClaimsSet();
+    }
+
+    @Benchmark
+    public AccessTokenVerification singlePassVerify()
+    {
+        return accessTokenVerifier.verify(accessToken, Instant.now());
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMJwtManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics;
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordHasher;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMAccessTokenCacheConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMJwksConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMKeysConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMServiceConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Mirrors the settings in the service's application.yml so the
+ * benchmarks run against the same key and token lifetimes.
+ */
+final class BenchmarkConfig
+{
+    static final String KEY_FILE_NAME = "ec-key.json";
+
+    private BenchmarkConfig()
+    {
+    }
+
+    static IDMServiceConfig serviceConfig()
+    {
+        return new IDMServiceConfig(KEY_FILE_NAME,
+                                    Duration.ofMinutes(30),
+                                    Duration.ofHours(12),
+                                    Duration.ofDays(30));
+    }
+
+    static JWTManager jwtManager(IDMServiceConfig serviceConfig)
+    {
+        return new JWTManager.Builder()
+            .keyFileName(serviceConfig.keyFileName())
+            .accessTokenExpire(serviceConfig.accessTokenExpire())
+            .maxRefreshTokenLifeTime(serviceConfig.maxRefreshTokenLifeTime())
+            .refreshTokenExpire(serviceConfig.refreshTokenExpire())
+            .build();
+    }
+
+    static IDMJwtManager idmJwtManager(IDMServiceConfig serviceConfig)
+        throws IOException
+    {
+        return new IDMJwtManager(serviceConfig,
+                                 new IDMAccessTokenCacheConfig(1),
+                                 new IDMKeysConfig(null),
+                                 new IDMJwksConfig(Duration.ofMinutes(5)),
+                                 metrics());
+    }
+
+    // Version 1, the parameters every hash had before they were versioned
+    static PasswordHasher passwordHasher()
+    {
+        return new PasswordHasher(1, 10000, 4);
+    }
+
+    // Recorded like in the service, so the benchmarks include the cost of the meters
+    static IDMMetrics metrics()
+    {
+        return new IDMMetrics(new SimpleMeterRegistry());
+    }
+
+    static User user()
+    {
+        return new User()
+            .setId(1)
+            .setEmail("Benchmark@example.com")
+            .setUserStatus(UserStatus.ACTIVE)
+            .setRole(Role.PREMIUM);
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.idm.model.login.LoginModel;
+import com.github.klefstad_teaching.cs122b.idm.model.login.LoginRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request and response (de)serialization for /login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark
+{
+    private static final byte[] LOGIN_REQUEST =
+        ("{\"email\":\"Benchmark@example.com\"," +
+         "\"password\":[\"B\",\"e\",\"n\",\"c\",\"h\",\"m\",\"a\",\"r\",\"k\",\"P\",\"a\",\"s\",\"s\",\"0\"]}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private ObjectReader loginRequestReader;
+    private ObjectWriter loginModelWriter;
+    private LoginModel   loginModel;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        this.loginRequestReader = objectMapper.readerFor(LoginRequest.class);
+        this.loginModelWriter = objectMapper.writerFor(LoginModel.class);
+
+        this.loginModel = new LoginModel();
+        loginModel.setResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY);
+        loginModel.setAccessToken(BenchmarkConfig.idmJwtManager(BenchmarkConfig.serviceConfig())
+                                                 .buildAccessToken(BenchmarkConfig.user()));
+        loginModel.setRefreshToken("c46fc3c2-9791-44d6-a86e-2922ad655284");
+    }
+
+    @Benchmark
+    public LoginRequest readLoginRequest()
+        throws Exception
+    {
+        return loginRequestReader.readValue(LOGIN_REQUEST);
+    }
+
+    @Benchmark
+    public byte[] writeLoginModel()
+        throws Exception
+    {
+        return loginModelWriter.writeValueAsBytes(loginModel);
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PBKDF2 cost of /register (new salt + hash) and /login (hash + compare).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordHashBenchmark
+{
+    private static final char[] PASSWORD = "BenchmarkPassWord0".toCharArray();
+
+    private IDMAuthenticationManager authManager;
+    private User                     user;
+
+    @Setup
+    public void setup()
+    {
+        // Hashing never touches the repo or the token store, and a current hash is never rehashed
+        this.authManager = new IDMAuthenticationManager(null, null, null, BenchmarkConfig.passwordHasher(), null,
+                                                        BenchmarkConfig.metrics());
+        this.user = authManager.createUser("Benchmark@example.com", PASSWORD);
+    }
+
+    @Benchmark
+    public User createUser()
+    {
+        return authManager.createUser("Benchmark@example.com", PASSWORD);
+    }
+
+    @Benchmark
+    public boolean passwordMatches()
+    {
+        return authManager.passwordMatches(user, PASSWORD);
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.idm.component.Pbkdf2HmacSha512;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes per second on a single thread, i.e. logins per core, for the
+ * JDK's PBKDF2WithHmacSHA512 against {@link Pbkdf2HmacSha512}, with the
+ * parameters of hash version 1. Run with -prof gc to see the engine
+ * allocate nothing per iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class Pbkdf2Benchmark
+{
+    private static final char[] PASSWORD = "BenchmarkPassWord0".toCharArray();
+
+    @Param({"10000"})
+    private int iterations;
+
+    @Param({"4", "16"})
+    private int saltLength;
+
+    private byte[]           salt;
+    private Pbkdf2HmacSha512 engine;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        this.salt = new byte[saltLength];
+        Arrays.fill(salt, (byte) 0x5a);
+        this.engine = new Pbkdf2HmacSha512();
+
+        // Only worth comparing if they agree
+        if (!Arrays.equals(jdk(), engine())) {
+            throw new IllegalStateException("Pbkdf2HmacSha512 does not match the JDK");
+        }
+    }
+
+    @Benchmark
+    public byte[] jdk()
+        throws Exception
+    {
+        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        return skf.generateSecret(new PBEKeySpec(PASSWORD, salt, iterations, 512)).getEncoded();
+    }
+
+    @Benchmark
+    public byte[] engine()
+    {
+        return engine.derive(PASSWORD, salt, iterations, 64);
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.idm.IDMService;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Platform request threads (Tomcat's default of 200) against one virtual
+ * thread per request, for bursts of concurrent /login and /refresh
+ * requests against the real service: Tomcat, Hikari, Connector/J and
+ * MySQL, PBKDF2 on the hashing executor for /login, and the refresh token
+ * store under test for both, whose off-heap variant journals every write.
+ * <p>
+ * Each trial starts the service on a random port with the given thread
+ * model, pool size and store, registers one user and logs it in once for
+ * the refresh token the /refresh bursts reuse. The login throttle and
+ * the hashing queue are opened up so the burst measures waiting rather
+ * than rejections. Needs the database of db.sql on localhost:3306 with
+ * DB_USERNAME and DB_PASSWORD set, ec-key.json in the working directory
+ * like the other benchmarks, and Java 21 or newer for the virtual variant.
+ * <p>
+ * One operation is a whole burst. Throughput is bursts per second, the
+ * sample mode percentiles are how long the slowest request of a burst
+ * waited, i.e. the tail latency at that concurrency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RequestThreadModelBenchmark
+{
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(1);
+
+    @Param({"platform", "virtual"})
+    private String threadModel;
+
+    @Param({"500"})
+    private int concurrency;
+
+    @Param({"10", "50"})
+    private int poolSize;
+
+    @Param({"mysql", "off-heap"})
+    private String refreshTokenStore;
+
+    private ConfigurableApplicationContext service;
+    private ExecutorService                clientExecutor;
+    private HttpClient                     client;
+    private URI                            loginUri;
+    private URI                            refreshUri;
+    private String                         loginBody;
+    private String                         refreshBody;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        this.service =
+            new SpringApplicationBuilder(IDMService.class)
+                .properties("server.port=0",
+                            "management.server.port=0",
+                            "idm.virtual-threads.enabled=" + "virtual".equals(threadModel),
+                            "spring.datasource.hikari.maximum-pool-size=" + poolSize,
+                            "idm.refresh-token-store.type=" + refreshTokenStore,
+                            "idm.refresh-token-store.directory=" + Files.createTempDirectory("idm-bench-tokens"),
+                            "idm.login-throttle.email-capacity=" + Integer.MAX_VALUE,
+                            "idm.hashing.queue-capacity=" + concurrency)
+                .run();
+
+        int    port = ((WebServerApplicationContext) service).getWebServer().getPort();
+        String base = "http://localhost:" + port;
+
+        this.loginUri = URI.create(base + "/login");
+        this.refreshUri = URI.create(base + "/refresh");
+
+        // The client is not what is measured, it gets its own threads
+        this.clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.client = HttpClient.newBuilder()
+                                .version(HttpClient.Version.HTTP_1_1)
+                                .executor(clientExecutor)
+                                .build();
+
+        this.loginBody = credentials("Bench" + UUID.randomUUID().toString().substring(0, 8) + "@example.com",
+                                     "BenchPassWord0");
+
+        post(URI.create(base + "/register"), loginBody).join();
+
+        JSONObject login = (JSONObject) JSONValue.parse(post(loginUri, loginBody).join().body());
+
+        JSONObject refresh = new JSONObject();
+        refresh.put("refreshToken", login.getAsString("refreshToken"));
+        this.refreshBody = refresh.toJSONString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        service.close();
+        clientExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public int login()
+    {
+        return burst(loginUri, loginBody);
+    }
+
+    @Benchmark
+    public int refresh()
+    {
+        return burst(refreshUri, refreshBody);
+    }
+
+    private int burst(URI uri, String body)
+    {
+        List<CompletableFuture<HttpResponse<String>>> requests = new ArrayList<>(concurrency);
+
+        for (int i = 0; i < concurrency; i++) {
+            requests.add(post(uri, body));
+        }
+
+        for (CompletableFuture<HttpResponse<String>> request : requests) {
+            HttpResponse<String> response = request.join();
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException(uri + " answered " + response.statusCode() + ": " + response.body());
+            }
+        }
+
+        return requests.size();
+    }
+
+    private CompletableFuture<HttpResponse<String>> post(URI uri, String body)
+    {
+        HttpRequest request =
+            HttpRequest.newBuilder(uri)
+                       .timeout(REQUEST_TIMEOUT)
+                       .header("Content-Type", "application/json")
+                       .POST(HttpRequest.BodyPublishers.ofString(body))
+                       .build();
+
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String credentials(String email, String password)
+    {
+        JSONArray passwordChars = new JSONArray();
+        password.chars().forEach(c -> passwordChars.add(String.valueOf((char) c)));
+
+        JSONObject credentials = new JSONObject();
+        credentials.put("email", email);
+        credentials.put("password", passwordChars);
+        return credentials.toJSONString();
+    }
+}
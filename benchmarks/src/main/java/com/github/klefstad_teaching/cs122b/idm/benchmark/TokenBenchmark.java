@@ -0,0 +1,64 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.idm.component.AccessTokenVerification;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMJwtManager;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token work done by /login, /refresh and /authenticate through
+ * IDMJwtManager. verifyAccessToken hits the verified token cache after
+ * the first call, AccessTokenVerifyBenchmark covers the uncached path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenBenchmark
+{
+    private IDMJwtManager jwtManager;
+    private User          user;
+    private String        accessToken;
+
+    @Setup
+    public void setup()
+        throws Exception
+    {
+        this.jwtManager = BenchmarkConfig.idmJwtManager(BenchmarkConfig.serviceConfig());
+        this.user = BenchmarkConfig.user();
+        this.accessToken = jwtManager.buildAccessToken(user);
+    }
+
+    @Benchmark
+    public String buildAccessToken()
+        throws Exception
+    {
+        return jwtManager.buildAccessToken(user);
+    }
+
+    @Benchmark
+    public AccessTokenVerification verifyAccessToken()
+    {
+        return jwtManager.verifyAccessToken(accessToken);
+    }
+
+    @Benchmark
+    public RefreshToken buildRefreshToken()
+    {
+        return jwtManager.buildRefreshToken(user);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.klefstad_teaching.cs122b.idm.benchmark;
+
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.util.Validate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Request validation, the regexes IDMController used to compile and match
+ * per request against the Validate scanners. Run with -prof gc to compare
+ * allocation, the scanners should show zero bytes per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark
+{
+    private final String email        = "Benchmark@example.com";
+    private final char[] password     = "BenchmarkPassWord0".toCharArray();
+    private final String refreshToken = "c46fc3c2-9791-44d6-a86e-2922ad655284";
+
+    private final Validate validate = new Validate();
+
+    @Benchmark
+    public boolean controllerEmailRegex()
+    {
+        return Pattern.compile("^([a-zA-Z0-9]+)@([a-zA-Z0-9]+).([a-zA-Z0-9]+)$")
+                      .matcher(email)
+                      .matches();
+    }
+
+    @Benchmark
+    public boolean controllerPasswordRegex()
+    {
+        String p = new String(password);
+        return Pattern.compile("^(?=.*?[A-Z])(?=.*?[a-z])(?=.*?[0-9]).{10,20}$")
+                      .matcher(p)
+                      .matches();
+    }
+
+    @Benchmark
+    public boolean controllerRefreshTokenRegex()
+    {
+        return Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$")
+                      .matcher(refreshToken)
+                      .matches();
+    }
+
+    @Benchmark
+    public Result validateEmail()
+    {
+        return validate.email(email);
+    }
+
+    @Benchmark
+    public Result validatePassword()
+    {
+        return validate.password(password);
+    }
+
+    @Benchmark
+    public Result validateRefreshToken()
+    {
+        return validate.refreshToken(refreshToken);
+    }
+}
@@ -17,19 +17,34 @@ create table idm.role(
     precedence int not null
 );
 
+-- Password hash parameters, every version any instance has hashed with
+create table idm.hash_parameters(
+    id int not null primary key AUTO_INCREMENT,
+    algorithm varchar(32) not null,
+    iterations int not null,
+    salt_length int not null,
+    key_bit_length int not null,
+    unique (algorithm, iterations, salt_length, key_bit_length)
+);
+
 create table idm.user(
     id int not null primary key AUTO_INCREMENT,
     email varchar(32) not null unique,
     user_status_id int not null,
-    salt char(8) not null,
-    hashed_password char(88) not null,
+    salt varbinary(16) not null,
+    hashed_password binary(64) not null,
+    -- The idm.hash_parameters the hash was made with
+    hash_version int not null default 1,
+    -- CRC32 of the lower cased email, the bucket ShardRouter shards users by
+    email_bucket smallint as (crc32(lower(email)) % 1024) stored,
+    index (email_bucket, id),
     foreign key (user_status_id) references idm.user_status(id)
         on update cascade on delete  restrict
 );
 
 create table idm.refresh_token(
     id int NOT NULL PRIMARY KEY AUTO_INCREMENT,
-    token	CHAR(36)	NOT NULL UNIQUE,
+    token	BINARY(16)	NOT NULL UNIQUE,
     user_id	INT	NOT NULL,
     token_status_id	INT	NOT NULL,
     expire_time	TIMESTAMP	NOT NULL,
@@ -40,6 +55,17 @@ create table idm.refresh_token(
         ON UPDATE CASCADE ON DELETE RESTRICT
 );
 
+-- Written by the refresh token reaper when idm.refresh-token-reaper.archive is on
+create table idm.refresh_token_archive(
+    id int NOT NULL PRIMARY KEY,
+    token	BINARY(16)	NOT NULL,
+    user_id	INT	NOT NULL,
+    token_status_id	INT	NOT NULL,
+    expire_time	TIMESTAMP	NOT NULL,
+    max_life_time	TIMESTAMP	NOT NULL,
+    archived_at	TIMESTAMP	NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
 create table idm.user_role(
     user_id	INT	NOT NULL,
     role_id	INT	NOT NULL,
@@ -49,4 +75,16 @@ create table idm.user_role(
     FOREIGN KEY (role_id) REFERENCES idm.role (id)
         ON UPDATE CASCADE ON DELETE RESTRICT
 
-);
\ No newline at end of file
+);
+
+-- Written to the primary and read back from each replica to measure replication lag
+create table idm.replica_heartbeat(
+    id	INT	NOT NULL PRIMARY KEY,
+    beat	BIGINT	NOT NULL
+);
+
+-- Which shard holds each bucket of users, read from the first shard. Buckets without a row are on the first shard
+create table idm.shard_bucket(
+    bucket	SMALLINT	NOT NULL PRIMARY KEY,
+    shard	INT	NOT NULL
+);
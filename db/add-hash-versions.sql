@@ -0,0 +1,27 @@
+-- Adds password hash versions to a database created from an older db.sql.
+-- Run on every shard. Version 1 is the PBKDF2WithHmacSHA512, 10000
+-- iterations, 4 byte salt hash every existing row has, and the default
+-- for hash_version; new versions are added by the service at startup.
+
+CREATE TABLE idm.hash_parameters(
+    id int NOT NULL PRIMARY KEY AUTO_INCREMENT,
+    algorithm varchar(32) NOT NULL,
+    iterations int NOT NULL,
+    salt_length int NOT NULL,
+    key_bit_length int NOT NULL,
+    UNIQUE (algorithm, iterations, salt_length, key_bit_length)
+);
+
+INSERT INTO idm.hash_parameters(id, algorithm, iterations, salt_length, key_bit_length)
+VALUES (1, 'PBKDF2WithHmacSHA512', 10000, 4, 512);
+
+ALTER TABLE idm.user
+    MODIFY salt varbinary(16) NOT NULL,
+    ADD COLUMN hash_version int NOT NULL DEFAULT 1 AFTER hashed_password;
+
+-- While db/migrate-binary-credentials.sql is rolled out, with
+-- idm.credential-storage.mode: dual, its salt columns are already wide
+-- enough, only add the version:
+--
+-- ALTER TABLE idm.user
+--     ADD COLUMN hash_version int NOT NULL DEFAULT 1 AFTER hashed_password;
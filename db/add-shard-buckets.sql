@@ -0,0 +1,14 @@
+-- Adds what idm.sharding needs to a database created from an older db.sql.
+-- Run on every shard before listing it in idm.sharding.urls. Adding the
+-- stored column rebuilds idm.user, so run it off peak. Refresh tokens issued
+-- before sharding do not carry their user's bucket and are left as they are,
+-- clients hold them; /refresh looks for them on every shard.
+
+ALTER TABLE idm.user
+    ADD COLUMN email_bucket SMALLINT AS (CRC32(LOWER(email)) % 1024) STORED AFTER hashed_password,
+    ADD INDEX (email_bucket, id);
+
+CREATE TABLE idm.shard_bucket(
+    bucket	SMALLINT	NOT NULL PRIMARY KEY,
+    shard	INT	NOT NULL
+);
@@ -11,4 +11,7 @@ VALUES (1, 'Active'),
 INSERT INTO idm.user_status(id, value)
 VALUES (1, 'Active'),
        (2, 'Locked'),
-       (3, 'Banned');
\ No newline at end of file
+       (3, 'Banned');
+
+INSERT INTO idm.hash_parameters(id, algorithm, iterations, salt_length, key_bit_length)
+VALUES (1, 'PBKDF2WithHmacSHA512', 10000, 4, 512);
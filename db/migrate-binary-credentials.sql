@@ -0,0 +1,62 @@
+-- Moves idm.user.salt, idm.user.hashed_password and idm.refresh_token.token
+-- from Base64 and UUID text to the raw binary columns in db.sql. The salt
+-- columns are wide enough for the 16 byte salts of newer hash versions.
+--
+-- Run one phase at a time, in order. Between phases 1 and 3 every instance
+-- runs with idm.credential-storage.mode: dual, which reads the binary
+-- columns and falls back to decoding the text ones, and writes both.
+
+-- Phase 1: add the binary columns, then deploy with mode dual
+
+ALTER TABLE idm.user
+    ADD COLUMN salt_bin varbinary(16) NULL AFTER salt,
+    ADD COLUMN hashed_password_bin binary(64) NULL AFTER hashed_password,
+    MODIFY salt varchar(24) NULL,
+    MODIFY hashed_password char(88) NULL;
+
+ALTER TABLE idm.refresh_token
+    ADD COLUMN token_bin BINARY(16) NULL UNIQUE AFTER token,
+    MODIFY token CHAR(36) NULL;
+
+ALTER TABLE idm.refresh_token_archive
+    MODIFY token VARBINARY(36) NOT NULL;
+
+-- Phase 2: backfill, once nothing runs in the old mode any more. Repeat
+-- each statement until it reports 0 rows, so no batch holds locks for long
+
+UPDATE idm.user
+SET salt_bin            = FROM_BASE64(salt),
+    hashed_password_bin = FROM_BASE64(hashed_password)
+WHERE salt_bin IS NULL
+LIMIT 10000;
+
+UPDATE idm.refresh_token
+SET token_bin = UNHEX(REPLACE(token, '-', ''))
+WHERE token_bin IS NULL
+LIMIT 10000;
+
+UPDATE idm.refresh_token_archive
+SET token = UNHEX(REPLACE(token, '-', ''))
+WHERE LENGTH(token) = 36
+LIMIT 10000;
+
+-- Phase 3: swap the columns and redeploy with mode binary together, an
+-- instance still in dual mode can no longer write once the text columns are
+-- gone, one in binary mode cannot read before the rename
+
+ALTER TABLE idm.user
+    DROP COLUMN salt,
+    DROP COLUMN hashed_password;
+
+ALTER TABLE idm.user
+    CHANGE COLUMN salt_bin salt varbinary(16) NOT NULL,
+    CHANGE COLUMN hashed_password_bin hashed_password binary(64) NOT NULL;
+
+ALTER TABLE idm.refresh_token
+    DROP COLUMN token;
+
+ALTER TABLE idm.refresh_token
+    CHANGE COLUMN token_bin token BINARY(16) NOT NULL;
+
+ALTER TABLE idm.refresh_token_archive
+    MODIFY token BINARY(16) NOT NULL;
@@ -1,7 +1,23 @@
 package com.github.klefstad_teaching.cs122b.idm;
 
 import com.github.klefstad_teaching.cs122b.core.spring.StackService;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMAccessTokenCacheConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMAuthenticateConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMCredentialStorageConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMEmailFilterConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMHashingConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMImportConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMJwksConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMKeysConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMLoginThrottleConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMPasswordHashConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMReadReplicasConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenReaperConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenStoreConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenWriteBehindConfig;
 import com.github.klefstad_teaching.cs122b.idm.config.IDMServiceConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMShardingConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMVirtualThreadsConfig;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -9,7 +25,23 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 @SpringBootApplication
 @StackService
 @EnableConfigurationProperties({
-    IDMServiceConfig.class
+    IDMServiceConfig.class,
+    IDMHashingConfig.class,
+    IDMAccessTokenCacheConfig.class,
+    IDMAuthenticateConfig.class,
+    IDMJwksConfig.class,
+    IDMKeysConfig.class,
+    IDMRefreshTokenWriteBehindConfig.class,
+    IDMLoginThrottleConfig.class,
+    IDMEmailFilterConfig.class,
+    IDMImportConfig.class,
+    IDMRefreshTokenReaperConfig.class,
+    IDMCredentialStorageConfig.class,
+    IDMVirtualThreadsConfig.class,
+    IDMRefreshTokenStoreConfig.class,
+    IDMReadReplicasConfig.class,
+    IDMShardingConfig.class,
+    IDMPasswordHashConfig.class
 })
 public class IDMService
 {
@@ -0,0 +1,338 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.nimbusds.jose.JOSEException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Issues access tokens with the one claim layout this service uses: sub,
+ * exp, iat, {@link JWTManager#CLAIM_ID} and {@link JWTManager#CLAIM_ROLES}.
+ * <p>
+ * Rather than building a JWTClaimsSet, serializing its map to JSON and
+ * encoding the result, the claims are written as JSON straight into a
+ * pooled buffer, Base64URL encoded behind the signing key's pre encoded
+ * header, signed, and the DER signature transcoded to its JWS form in
+ * place. Apart from what the JCA signature allocates internally, the
+ * token String is the only object a token costs. The buffers come from
+ * an {@link ObjectPool} rather than a ThreadLocal, which a virtual thread
+ * per request would never reuse.
+ * <p>
+ * The claims read back the same as those nimbus writes: times in seconds
+ * since the epoch, roles by enum name.
+ */
+public class AccessTokenIssuer
+{
+    private static final byte[] BASE64URL =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // ES256 signatures are R || S, each a 32 byte unsigned big endian integer
+    private static final int SIGNATURE_PART_LENGTH = 32;
+    private static final int SIGNATURE_LENGTH      = 2 * SIGNATURE_PART_LENGTH;
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // A long in decimal, sign included
+    private static final int MAX_LONG_LENGTH = 20;
+
+    // The worst case of a char in a JSON string, an escape such as \u001f
+    private static final int MAX_CHAR_LENGTH = 6;
+
+    private static final byte[] SUBJECT_PREFIX    = ascii("{\"sub\":\"");
+    private static final byte[] EXPIRATION_PREFIX = ascii("\",\"exp\":");
+    private static final byte[] ISSUE_TIME_PREFIX = ascii(",\"iat\":");
+    private static final byte[] ID_PREFIX         = ascii(",\"" + JWTManager.CLAIM_ID + "\":");
+    private static final byte[] ROLES_PREFIX      = ascii(",\"" + JWTManager.CLAIM_ROLES + "\":[");
+    private static final byte[] CLAIMS_SUFFIX     = ascii("]}");
+
+    // Quoted enum names, indexed by ordinal
+    private static final byte[][] ROLE_NAMES = roleNames();
+
+    private static final int MAX_ROLE_LENGTH = Arrays.stream(ROLE_NAMES).mapToInt(name -> name.length + 1).max().orElse(0);
+
+    private static final int FIXED_CLAIMS_LENGTH =
+        SUBJECT_PREFIX.length + EXPIRATION_PREFIX.length + ISSUE_TIME_PREFIX.length + ID_PREFIX.length +
+        ROLES_PREFIX.length + CLAIMS_SUFFIX.length + 3 * MAX_LONG_LENGTH;
+
+    private static final ObjectPool<Buffers> BUFFERS = new ObjectPool<>(Buffers::new);
+
+    private static final class Buffers
+    {
+        private byte[]       claims    = new byte[INITIAL_CAPACITY];
+        private byte[]       token     = new byte[INITIAL_CAPACITY];
+        private final byte[] signature = new byte[SIGNATURE_LENGTH];
+    }
+
+    private final long accessTokenExpireMillis;
+
+    public AccessTokenIssuer(Duration accessTokenExpire)
+    {
+        this.accessTokenExpireMillis = accessTokenExpire.toMillis();
+    }
+
+    public String issue(KeyRing.SigningKey signingKey, User user)
+        throws JOSEException
+    {
+        Buffers buffers = BUFFERS.take();
+
+        long now          = System.currentTimeMillis();
+        int  claimsLength = writeClaims(buffers, user, now / 1000, (now + accessTokenExpireMillis) / 1000);
+
+        byte[] header = signingKey.encodedHeader();
+        int    length = header.length + 1 + base64Length(claimsLength) + 1 + base64Length(SIGNATURE_LENGTH);
+
+        if (buffers.token.length < length) {
+            buffers.token = new byte[Math.max(length, 2 * buffers.token.length)];
+        }
+
+        byte[] token = buffers.token;
+
+        System.arraycopy(header, 0, token, 0, header.length);
+        int position = header.length;
+        token[position++] = '.';
+        position = base64(buffers.claims, claimsLength, token, position);
+
+        try {
+            Signature signature = signingKey.takeSignature();
+            signature.update(token, 0, position);
+            derToConcat(signature.sign(), buffers.signature);
+            signingKey.giveSignature(signature);
+        } catch (SignatureException e) {
+            throw new JOSEException(e.getMessage(), e);
+        }
+
+        token[position++] = '.';
+        position = base64(buffers.signature, SIGNATURE_LENGTH, token, position);
+
+        String issued = new String(token, 0, position, StandardCharsets.US_ASCII);
+        BUFFERS.give(buffers);
+        return issued;
+    }
+
+    private static int writeClaims(Buffers buffers, User user, long issueTime, long expirationTime)
+    {
+        String     subject = user.getEmail();
+        List<Role> roles   = user.getRoles();
+
+        int maximum = FIXED_CLAIMS_LENGTH + MAX_CHAR_LENGTH * subject.length() + MAX_ROLE_LENGTH * roles.size();
+
+        if (buffers.claims.length < maximum) {
+            buffers.claims = new byte[Math.max(maximum, 2 * buffers.claims.length)];
+        }
+
+        byte[] claims   = buffers.claims;
+        int    position = 0;
+
+        position = append(SUBJECT_PREFIX, claims, position);
+        position = appendJsonString(subject, claims, position);
+        position = append(EXPIRATION_PREFIX, claims, position);
+        position = appendLong(expirationTime, claims, position);
+        position = append(ISSUE_TIME_PREFIX, claims, position);
+        position = appendLong(issueTime, claims, position);
+        position = append(ID_PREFIX, claims, position);
+        position = appendLong(user.getId(), claims, position);
+        position = append(ROLES_PREFIX, claims, position);
+
+        for (int i = 0; i < roles.size(); i++) {
+            if (i > 0) {
+                claims[position++] = ',';
+            }
+            position = append(ROLE_NAMES[roles.get(i).ordinal()], claims, position);
+        }
+
+        return append(CLAIMS_SUFFIX, claims, position);
+    }
+
+    private static int append(byte[] bytes, byte[] to, int position)
+    {
+        System.arraycopy(bytes, 0, to, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    // The contents of a JSON string, in UTF-8
+    private static int appendJsonString(String value, byte[] to, int position)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                to[position++] = '\\';
+                to[position++] = (byte) c;
+            } else if (c < 0x20) {
+                position = appendUnicodeEscape(c, to, position);
+            } else if (c < 0x80) {
+                to[position++] = (byte) c;
+            } else if (c < 0x800) {
+                to[position++] = (byte) (0xc0 | (c >>> 6));
+                to[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) &&
+                       i + 1 < value.length() &&
+                       Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                to[position++] = (byte) (0xf0 | (codePoint >>> 18));
+                to[position++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+                to[position++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+                to[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // A lone surrogate has no UTF-8 form, JSON can still carry it escaped
+                position = appendUnicodeEscape(c, to, position);
+            } else {
+                to[position++] = (byte) (0xe0 | (c >>> 12));
+                to[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+                to[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return position;
+    }
+
+    private static int appendUnicodeEscape(char c, byte[] to, int position)
+    {
+        to[position++] = '\\';
+        to[position++] = 'u';
+        to[position++] = HEX[(c >>> 12) & 0xf];
+        to[position++] = HEX[(c >>> 8) & 0xf];
+        to[position++] = HEX[(c >>> 4) & 0xf];
+        to[position++] = HEX[c & 0xf];
+        return position;
+    }
+
+    private static int appendLong(long value, byte[] to, int position)
+    {
+        if (value == 0) {
+            to[position++] = '0';
+            return position;
+        }
+
+        if (value < 0) {
+            to[position++] = '-';
+        }
+
+        int end = position + digits(value);
+
+        // Digits are taken off as negatives, which also covers Long.MIN_VALUE
+        long remaining = value < 0 ? value : -value;
+        for (int i = end - 1; i >= position; i--) {
+            to[i] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        }
+
+        return end;
+    }
+
+    private static int digits(long value)
+    {
+        int digits = 0;
+        for (long remaining = value; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int base64Length(int length)
+    {
+        return (length * 4 + 2) / 3;
+    }
+
+    // Base64URL without padding, as JWS uses
+    private static int base64(byte[] from, int length, byte[] to, int position)
+    {
+        int i = 0;
+
+        for (; i + 3 <= length; i += 3) {
+            int bits = (from[i] & 0xff) << 16 | (from[i + 1] & 0xff) << 8 | (from[i + 2] & 0xff);
+            to[position++] = BASE64URL[bits >>> 18];
+            to[position++] = BASE64URL[(bits >>> 12) & 0x3f];
+            to[position++] = BASE64URL[(bits >>> 6) & 0x3f];
+            to[position++] = BASE64URL[bits & 0x3f];
+        }
+
+        if (length - i == 1) {
+            int bits = (from[i] & 0xff) << 16;
+            to[position++] = BASE64URL[bits >>> 18];
+            to[position++] = BASE64URL[(bits >>> 12) & 0x3f];
+        } else if (length - i == 2) {
+            int bits = (from[i] & 0xff) << 16 | (from[i + 1] & 0xff) << 8;
+            to[position++] = BASE64URL[bits >>> 18];
+            to[position++] = BASE64URL[(bits >>> 12) & 0x3f];
+            to[position++] = BASE64URL[(bits >>> 6) & 0x3f];
+        }
+
+        return position;
+    }
+
+    // SEQUENCE { INTEGER r, INTEGER s } as the JCA signs, to R || S as JWS expects
+    private static void derToConcat(byte[] der, byte[] concat)
+        throws JOSEException
+    {
+        if (der.length < 8 || der[0] != 0x30) {
+            throw new JOSEException("Invalid ECDSA signature format");
+        }
+
+        // P-256 signatures never need the long length form, other curves' do
+        int offset = der[1] == (byte) 0x81 ? 3 : 2;
+
+        offset = copyInteger(der, offset, concat, 0);
+        copyInteger(der, offset, concat, SIGNATURE_PART_LENGTH);
+    }
+
+    private static int copyInteger(byte[] der, int offset, byte[] concat, int at)
+        throws JOSEException
+    {
+        if (offset + 2 > der.length || der[offset] != 0x02) {
+            throw new JOSEException("Invalid ECDSA signature format");
+        }
+
+        int length = der[offset + 1];
+        int start  = offset + 2;
+
+        if (length < 0 || start + length > der.length) {
+            throw new JOSEException("Invalid ECDSA signature format");
+        }
+
+        int end = start + length;
+
+        // DER adds a zero byte to keep the integer positive, JWS pads to a fixed length instead
+        while (start < end && der[start] == 0) {
+            start++;
+        }
+
+        int significant = end - start;
+
+        if (significant > SIGNATURE_PART_LENGTH) {
+            throw new JOSEException("Invalid ECDSA signature format");
+        }
+
+        int padding = SIGNATURE_PART_LENGTH - significant;
+        Arrays.fill(concat, at, at + padding, (byte) 0);
+        System.arraycopy(der, start, concat, at + padding, significant);
+
+        return end;
+    }
+
+    private static byte[] ascii(String value)
+    {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[][] roleNames()
+    {
+        Role[]   roles = Role.values();
+        byte[][] names = new byte[roles.length][];
+
+        for (Role role : roles) {
+            names[role.ordinal()] = ascii("\"" + role.name() + "\"");
+        }
+
+        return names;
+    }
+}
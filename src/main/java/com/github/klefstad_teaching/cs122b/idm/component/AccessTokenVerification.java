@@ -0,0 +1,55 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+
+/**
+ * Outcome of verifying an access token, carries the IDMResults code to
+ * answer with and, when valid, the verified token.
+ */
+public final class AccessTokenVerification
+{
+    private static final AccessTokenVerification INVALID =
+        new AccessTokenVerification(IDMResults.ACCESS_TOKEN_IS_INVALID, null);
+    private static final AccessTokenVerification EXPIRED =
+        new AccessTokenVerification(IDMResults.ACCESS_TOKEN_IS_EXPIRED, null);
+
+    private final Result              result;
+    private final VerifiedAccessToken token;
+
+    private AccessTokenVerification(Result result, VerifiedAccessToken token)
+    {
+        this.result = result;
+        this.token = token;
+    }
+
+    public static AccessTokenVerification valid(VerifiedAccessToken token)
+    {
+        return new AccessTokenVerification(IDMResults.ACCESS_TOKEN_IS_VALID, token);
+    }
+
+    public static AccessTokenVerification invalid()
+    {
+        return INVALID;
+    }
+
+    public static AccessTokenVerification expired()
+    {
+        return EXPIRED;
+    }
+
+    public boolean isValid()
+    {
+        return token != null;
+    }
+
+    public Result getResult()
+    {
+        return result;
+    }
+
+    public VerifiedAccessToken getToken()
+    {
+        return token;
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.impl.ECDSA;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Verifies access tokens in a single pass: the header is checked, the
+ * ECDSA signature is checked exactly once with a pooled {@link Signature},
+ * see {@link ObjectPool}, and the claims are checked in one walk over the
+ * parsed claims set.
+ * <p>
+ * This replaces running both {@code SignedJWT.verify} and the
+ * {@code JWTProcessor}, which each verified the signature.
+ */
+public class AccessTokenVerifier
+{
+    private static final String   SIGNATURE_ALGORITHM = "SHA256withECDSA";
+    private static final Duration MAX_CLOCK_SKEW      = Duration.ofSeconds(60);
+    private static final int      SIGNATURE_LENGTH    = 64;
+
+    private final ECPublicKey            publicKey;
+    private final BigInteger             curveOrder;
+    private final ObjectPool<Signature>  signatures;
+
+    public AccessTokenVerifier(ECKey ecKey)
+    {
+        try {
+            this.publicKey = ecKey.toECPublicKey();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+
+        this.curveOrder = publicKey.getParams().getOrder();
+        this.signatures = new ObjectPool<>(this::newSignature);
+    }
+
+    private Signature newSignature()
+    {
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initVerify(publicKey);
+            return signature;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public AccessTokenVerification verify(String jws, Instant now)
+    {
+        if (jws == null) {
+            return AccessTokenVerification.invalid();
+        }
+
+        try {
+            return verify(SignedJWT.parse(jws), now);
+        } catch (ParseException e) {
+            return AccessTokenVerification.invalid();
+        }
+    }
+
+    public AccessTokenVerification verify(SignedJWT signedJWT, Instant now)
+    {
+        try {
+            if (!hasValidHeader(signedJWT.getHeader()) || !hasValidSignature(signedJWT)) {
+                return AccessTokenVerification.invalid();
+            }
+
+            return checkClaims(signedJWT.getJWTClaimsSet(), now);
+
+        } catch (ParseException | JOSEException | GeneralSecurityException e) {
+            return AccessTokenVerification.invalid();
+        }
+    }
+
+    private static boolean hasValidHeader(JWSHeader header)
+    {
+        return JWTManager.JWS_ALGORITHM.equals(header.getAlgorithm()) &&
+               (header.getType() == null || JWTManager.JWS_TYPE.equals(header.getType())) &&
+               header.getCriticalParams() == null;
+    }
+
+    private boolean hasValidSignature(SignedJWT signedJWT)
+        throws JOSEException, GeneralSecurityException
+    {
+        byte[] jwsSignature = signedJWT.getSignature().decode();
+
+        if (jwsSignature.length != SIGNATURE_LENGTH || !inCurveOrder(jwsSignature)) {
+            return false;
+        }
+
+        Signature signature = signatures.take();
+        signature.update(signedJWT.getSigningInput());
+
+        boolean valid = signature.verify(ECDSA.transcodeSignatureToDER(jwsSignature));
+        signatures.give(signature);
+        return valid;
+    }
+
+    // Guards against r or s being zero (or out of range), which some JDKs accepted
+    private boolean inCurveOrder(byte[] jwsSignature)
+    {
+        int        half = jwsSignature.length / 2;
+        BigInteger r    = new BigInteger(1, Arrays.copyOfRange(jwsSignature, 0, half));
+        BigInteger s    = new BigInteger(1, Arrays.copyOfRange(jwsSignature, half, jwsSignature.length));
+
+        return r.signum() > 0 && s.signum() > 0 &&
+               r.compareTo(curveOrder) < 0 && s.compareTo(curveOrder) < 0;
+    }
+
+    private static AccessTokenVerification checkClaims(JWTClaimsSet claimsSet, Instant now)
+    {
+        Date expirationTime = claimsSet.getExpirationTime();
+        Date issueTime      = claimsSet.getIssueTime();
+
+        if (claimsSet.getSubject() == null ||
+            expirationTime == null ||
+            issueTime == null ||
+            !(claimsSet.getClaim(JWTManager.CLAIM_ID) instanceof Number) ||
+            !(claimsSet.getClaim(JWTManager.CLAIM_ROLES) instanceof List)) {
+            return AccessTokenVerification.invalid();
+        }
+
+        if (issueTime.toInstant().isAfter(now.plus(MAX_CLOCK_SKEW))) {
+            return AccessTokenVerification.invalid();
+        }
+
+        Instant expireTime = expirationTime.toInstant();
+
+        if (now.isAfter(expireTime)) {
+            return AccessTokenVerification.expired();
+        }
+
+        return AccessTokenVerification.valid(new VerifiedAccessToken(claimsSet, expireTime));
+    }
+}
@@ -0,0 +1,331 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMEmailFilterConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the emails in idm.user, so /register can tell an email
+ * is definitely not taken without asking MySQL before it hashes.
+ * <p>
+ * The filter is strictly advisory: a negative only skips work whose
+ * outcome something else decides, here the unique key on idm.user.email.
+ * It can miss emails for a while. Rows written by other instances are
+ * picked up by scanning past the highest id seen every refresh interval,
+ * and a row whose id was allocated before that scan but committed after
+ * it is skipped until the next full rebuild, every rebuild interval. Each
+ * shard is scanned on its own, with its own highest id; a user the
+ * {@link ShardRebalancer} moves is already in the filter from the shard
+ * it came from.
+ * <p>
+ * Emails are lowercased because MySQL compares them case insensitively.
+ * Emails with anything but ASCII in them are always reported as maybe
+ * present, the collation may match them to a different spelling.
+ * When disabled, or when the build failed, everything is maybe present.
+ * Size, count and estimated false positive rate are published as gauges.
+ */
+@Component
+public class EmailBloomFilter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(EmailBloomFilter.class);
+
+    private static final String SCAN_SQL =
+        "select id, email from idm.user where id > ? order by id";
+
+    private final List<JdbcTemplate>       scanTemplates = new ArrayList<>();
+    private final boolean                  enabled;
+    private final int                      expectedInsertions;
+    private final double                   falsePositiveRate;
+    private final long                     seed = new SecureRandom().nextLong();
+    private final ScheduledExecutorService refresher;
+
+    private volatile Bits bits;
+
+    @Autowired
+    public EmailBloomFilter(IDMRepo repo,
+                            MeterRegistry meterRegistry,
+                            IDMEmailFilterConfig config)
+    {
+        this.enabled = config.enabled();
+        this.expectedInsertions = config.expectedInsertions();
+        this.falsePositiveRate = config.falsePositiveRate();
+
+        // Integer.MIN_VALUE makes Connector/J stream rows instead of buffering the table
+        for (ShardRouter.Shard shard : repo.shards()) {
+            JdbcTemplate scanTemplate = new JdbcTemplate(shard.template().getJdbcTemplate().getDataSource());
+            scanTemplate.setFetchSize(Integer.MIN_VALUE);
+            scanTemplates.add(scanTemplate);
+        }
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-email-filter-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("idm.email.filter.size", this, EmailBloomFilter::bitSize)
+             .description("Bits in the email filter")
+             .baseUnit("bits")
+             .register(meterRegistry);
+        Gauge.builder("idm.email.filter.count", this, EmailBloomFilter::count)
+             .description("Distinct emails in the email filter, approximately")
+             .register(meterRegistry);
+        Gauge.builder("idm.email.filter.false.positive.rate", this, EmailBloomFilter::estimatedFalsePositiveRate)
+             .description("False positive rate expected at the current count")
+             .register(meterRegistry);
+
+        if (enabled) {
+            rebuild();
+
+            long intervalMillis = config.refreshInterval().toMillis();
+            refresher.scheduleWithFixedDelay(this::refreshQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+            // Only a full scan finds rows that committed behind the highest id seen
+            long rebuildMillis = config.rebuildInterval().toMillis();
+            refresher.scheduleWithFixedDelay(this::rebuild, rebuildMillis, rebuildMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return false only if the email is definitely not registered
+     */
+    public boolean mightContain(String email)
+    {
+        Bits current = bits;
+
+        if (current == null || !isAscii(email)) {
+            return true;
+        }
+
+        return current.mightContain(hash(email));
+    }
+
+    public void add(String email)
+    {
+        Bits current = bits;
+
+        if (current != null && isAscii(email)) {
+            current.add(hash(email));
+        }
+    }
+
+    /**
+     * Replaces the filter with one built from a full scan of idm.user,
+     * then catches up on rows inserted while the scan ran.
+     */
+    public void rebuild()
+    {
+        if (!enabled) {
+            return;
+        }
+
+        try {
+            Bits fresh = new Bits(expectedInsertions, falsePositiveRate, scanTemplates.size());
+            scan(fresh);
+            bits = fresh;
+            scan(fresh);
+
+            LOG.info("Email filter built: {} emails, {} bits, {} hash functions, estimated false positive rate {}",
+                     fresh.count(), fresh.bitSize(), fresh.hashFunctions, fresh.estimatedFalsePositiveRate());
+        } catch (RuntimeException e) {
+            // Without a filter every email is maybe present, which is always correct
+            LOG.warn("Could not build the email filter, every lookup goes to MySQL", e);
+        }
+    }
+
+    private void refreshQuietly()
+    {
+        try {
+            Bits current = bits;
+
+            if (current == null) {
+                rebuild();
+            } else {
+                scan(current);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to refresh the email filter", e);
+        }
+    }
+
+    private void scan(Bits target)
+    {
+        for (int shard = 0; shard < scanTemplates.size(); shard++) {
+            int scanned = shard;
+
+            RowCallbackHandler handler = rs -> {
+                target.add(hash(rs.getString("email")));
+                target.seen(scanned, rs.getLong("id"));
+            };
+
+            scanTemplates.get(shard).query(SCAN_SQL, handler, target.maxId(shard));
+        }
+    }
+
+    /**
+     * @return bits in the filter, 0 while there is none
+     */
+    public long bitSize()
+    {
+        Bits current = bits;
+        return current == null ? 0 : current.bitSize();
+    }
+
+    /**
+     * @return distinct emails added to the filter, approximately, 0 while there is none
+     */
+    public long count()
+    {
+        Bits current = bits;
+        return current == null ? 0 : current.count();
+    }
+
+    /**
+     * @return the false positive rate expected at the current count, 1 while there is no filter
+     */
+    public double estimatedFalsePositiveRate()
+    {
+        Bits current = bits;
+        return current == null ? 1 : current.estimatedFalsePositiveRate();
+    }
+
+    private long hash(String email)
+    {
+        long hash = seed;
+        for (int i = 0; i < email.length(); i++) {
+            hash = (hash ^ Character.toLowerCase(email.charAt(i))) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static boolean isAscii(String email)
+    {
+        for (int i = 0; i < email.length(); i++) {
+            if (email.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * The bit array, k probes by double hashing (h1 + i * h2) of one
+     * 64 bit hash. Bits are only ever set, with CAS, so readers need no lock.
+     */
+    private static final class Bits
+    {
+        private final AtomicLongArray words;
+        private final long            bitSize;
+        private final int             hashFunctions;
+        private final AtomicLong      count = new AtomicLong();
+        private final AtomicLongArray maxIds;
+
+        private Bits(int expectedInsertions, double falsePositiveRate, int shards)
+        {
+            long n = Math.max(1, expectedInsertions);
+            long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+
+            this.words = new AtomicLongArray((int) ((m + 63) >>> 6));
+            this.bitSize = (long) words.length() << 6;
+            this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+            this.maxIds = new AtomicLongArray(shards);
+        }
+
+        private void add(long hash)
+        {
+            long h1 = mix(hash);
+            long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+
+            boolean changed = false;
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit  = Long.remainderUnsigned(h1 + i * h2, bitSize);
+                long mask = 1L << bit;
+                int  word = (int) (bit >>> 6);
+
+                if ((words.get(word) & mask) == 0) {
+                    words.accumulateAndGet(word, mask, (current, set) -> current | set);
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                count.incrementAndGet();
+            }
+        }
+
+        private boolean mightContain(long hash)
+        {
+            long h1 = mix(hash);
+            long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+
+            for (int i = 0; i < hashFunctions; i++) {
+                long bit = Long.remainderUnsigned(h1 + i * h2, bitSize);
+
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void seen(int shard, long id)
+        {
+            maxIds.accumulateAndGet(shard, id, Math::max);
+        }
+
+        private long maxId(int shard)
+        {
+            return maxIds.get(shard);
+        }
+
+        private long bitSize()
+        {
+            return bitSize;
+        }
+
+        private long count()
+        {
+            return count.get();
+        }
+
+        // (1 - e^(-kn/m))^k
+        private double estimatedFalsePositiveRate()
+        {
+            return Math.pow(1 - Math.exp(-(double) hashFunctions * count.get() / bitSize), hashFunctions);
+        }
+    }
+}
@@ -1,257 +1,240 @@
 package com.github.klefstad_teaching.cs122b.idm.component;
 
 import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics.Stage;
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordHasher.Parameters;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
 import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Component;
 
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
+import java.security.MessageDigest;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.sql.Types;
-import java.time.Instant;
-import java.util.Base64;
-import java.util.List;
 
 @Component
 public class IDMAuthenticationManager
 {
-    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
-    private static final String       HASH_FUNCTION = "PBKDF2WithHmacSHA512";
-
-    private static final int ITERATIONS     = 10000;
-    private static final int KEY_BIT_LENGTH = 512;
-
-    private static final int SALT_BYTE_LENGTH = 4;
-
     public final IDMRepo repo;
 
+    private final CredentialStorage storage;
+    private final RefreshTokenStore refreshTokenStore;
+    private final PasswordHasher    hasher;
+    private final PasswordRehasher  rehasher;
+    private final IDMMetrics        metrics;
+    private final byte[]            timingSalt;
 
     @Autowired
-    public IDMAuthenticationManager(IDMRepo repo)
+    public IDMAuthenticationManager(IDMRepo repo,
+                                    CredentialStorage storage,
+                                    RefreshTokenStore refreshTokenStore,
+                                    PasswordHasher hasher,
+                                    PasswordRehasher rehasher,
+                                    IDMMetrics metrics)
     {
         this.repo = repo;
+        this.storage = storage;
+        this.refreshTokenStore = refreshTokenStore;
+        this.hasher = hasher;
+        this.rehasher = rehasher;
+        this.metrics = metrics;
+        this.timingSalt = new byte[hasher.current().saltLength()];
     }
 
-    private static byte[] hashPassword(final char[] password, String salt)
+    private byte[] timedHashPassword(final char[] password, final byte[] salt, final Parameters parameters)
     {
-        return hashPassword(password, Base64.getDecoder().decode(salt));
+        long start = System.nanoTime();
+        try {
+            return hasher.hash(password, salt, parameters);
+        } finally {
+            metrics.record(Stage.PASSWORD_HASH, start);
+        }
     }
 
-    private static byte[] hashPassword(final char[] password, final byte[] salt)
+    /**
+     * Loads the user and their roles in one query, so the access token
+     * built at login carries CLAIM_ROLES without another round trip.
+     */
+    public User selectUser(String email)
+            throws IllegalAccessException
     {
-        try {
-            SecretKeyFactory skf = SecretKeyFactory.getInstance(HASH_FUNCTION);
+        String sql = storage.selectUser();
+        MapSqlParameterSource source =
+                new MapSqlParameterSource()
+                        .addValue("email", email, Types.VARCHAR);
 
-            PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_BIT_LENGTH);
+        // One row per role, or a single row with a null role_id
+        ResultSetExtractor<User> extractor = rs -> {
+            User found = null;
+            while (rs.next()) {
+                if (found == null) {
+                    found = new User()
+                            .setId(rs.getInt("id"))
+                            .setEmail(rs.getString("email"))
+                            .setUserStatus(UserStatus.fromId(rs.getInt("user_status_id")))
+                            .setSalt(rs.getBytes("salt"))
+                            .setHashedPassword(rs.getBytes("hashed_password"))
+                            .setHashVersion(rs.getInt("hash_version"));
+                }
+                int roleId = rs.getInt("role_id");
+                if (!rs.wasNull()) {
+                    found.setRole(Role.fromId(roleId));
+                }
+            }
+            return found;
+        };
+
+        long start = System.nanoTime();
+        int bucket = ShardRouter.bucketForEmail(email);
+        User user = repo.read(bucket, email, sql, source, extractor);
+
+        // Tokens are only issued to active users, and a replica may not have seen a lock or ban yet
+        if (user != null && repo.readsReplica(email)) {
+            UserStatus status = repo.primaryUserStatus(bucket, user.getId());
+            user = status == null ? null : user.setUserStatus(status);
+        }
+        metrics.record(Stage.USER_SELECT, start);
 
-            SecretKey key = skf.generateSecret(spec);
+        if (user == null){
+            throw new IllegalAccessException("Not found");
+        }
+        return user;
+    }
+
+    /**
+     * Hashes with the parameters of the user's hash version. An outdated
+     * version is followed by a hash with the current parameters, so no
+     * answer costs less than {@link #hashForTiming}, and on a match the
+     * {@link PasswordRehasher} stores that hash.
+     */
+    // CPU heavy, callers should run this on the IDMHashingExecutor
+    public boolean passwordMatches(User user, char[] password)
+    {
+        Parameters parameters = hasher.version(user.getHashVersion());
+        byte[] encodedPassword = timedHashPassword(password, user.getSalt(), parameters);
 
-            return key.getEncoded();
+        // Constant time, how much of the hash matched must not show in the response time
+        boolean matches = MessageDigest.isEqual(encodedPassword, user.getHashedPassword());
 
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new RuntimeException(e);
+        // Hashed on a match or not, a wrong password must not answer sooner than a right one
+        if (hasher.isOutdated(parameters)) {
+            Parameters current = hasher.current();
+            byte[] salt = hasher.newSalt(current);
+            byte[] rehashedPassword = timedHashPassword(password, salt, current);
+
+            if (matches) {
+                rehasher.store(user, salt, rehashedPassword, current);
+            }
         }
+        return matches;
     }
 
-    private static byte[] genSalt()
+    /**
+     * Hashes the password like passwordMatches does and throws the result
+     * away, so answering for a user that does not exist costs the same as
+     * answering for a wrong password.
+     */
+    // CPU heavy, callers should run this on the IDMHashingExecutor
+    public void hashForTiming(char[] password)
     {
-        byte[] salt = new byte[SALT_BYTE_LENGTH];
-        SECURE_RANDOM.nextBytes(salt);
-        return salt;
+        timedHashPassword(password, timingSalt, hasher.current());
     }
 
-    public User selectAndAuthenticateUser(String email, char[] password)
-            throws IllegalAccessException
+    // CPU heavy, callers should run this on the IDMHashingExecutor
+    public User createUser(String email, char[] password)
+    {
+        Parameters parameters = hasher.current();
+        byte[] salt = hasher.newSalt(parameters);
+        byte[] encodedPassword = timedHashPassword(password, salt, parameters);
+
+        return new User()
+                .setEmail(email)
+                .setUserStatus(UserStatus.ACTIVE)
+                .setSalt(salt)
+                .setHashedPassword(encodedPassword)
+                .setHashVersion(parameters.version());
+    }
 
+    public boolean emailExists(String email)
     {
-        String sql = "select id, email, user_status_id, salt, hashed_password " +
-                "from idm.user " +
-                "where email = :email";
+        String sql = "select exists(select 1 from idm.user where email = :email)";
         MapSqlParameterSource source =
                 new MapSqlParameterSource()
                         .addValue("email", email, Types.VARCHAR);
-        List<User> users = repo.getTemplate().query(
-                sql,
-                source,
-                (rs, rowNum) ->
-                        new User()
-                                .setId(rs.getInt("id"))
-                                .setEmail(rs.getString("email"))
-                                .setUserStatus(UserStatus.fromId(rs.getInt("user_status_id")))
-                                .setSalt(rs.getString("salt"))
-                                .setHashedPassword(rs.getString("hashed_password"))
-        );
-        if (users.isEmpty()){
-            throw new IllegalAccessException("Not found");
-        }
-        User user = users.get(0);
-        SecretKeyFactory skf = null;
-        try {
-            skf = SecretKeyFactory.getInstance (HASH_FUNCTION);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        byte[] salt = Base64.getDecoder().decode(user.getSalt());
-        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_BIT_LENGTH);
-        SecretKey key = null;
-        try {
-            key = skf.generateSecret(spec);
-        } catch (InvalidKeySpecException e) {
-            e.printStackTrace();
-        }
-        byte[] encodedPassword = key.getEncoded();
-        String base64EncodedHashedPassword = Base64.getEncoder().encodeToString(encodedPassword);
-
-        if (user.getHashedPassword().equals(base64EncodedHashedPassword)){
-            return user;
-        }
 
-        return null;
+        return Boolean.TRUE.equals(repo.forBucket(ShardRouter.bucketForEmail(email))
+                                       .queryForObject(sql, source, Boolean.class));
     }
 
-    public void createAndInsertUser(String email, char[] password)
+    public void insertUser(User user)
             throws DuplicateKeyException
     {
-        SecretKeyFactory skf = null;
+        long start = System.nanoTime();
         try {
-            skf = SecretKeyFactory.getInstance (HASH_FUNCTION);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            // The email decides the shard, so its unique index still keeps emails unique
+            repo.forBucket(ShardRouter.bucketForEmail(user.getEmail()))
+                .update(storage.insertUser(false), storage.userParameters(user));
+            repo.wrote(user.getEmail());
+        } finally {
+            metrics.record(Stage.USER_INSERT, start);
         }
-        byte[] salt = genSalt();
-        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_BIT_LENGTH);
-        SecretKey key = null;
-        try {
-            key = skf.generateSecret(spec);
-        } catch (InvalidKeySpecException e) {
-            e.printStackTrace();
-        }
-        byte[] encodedPassword = key.getEncoded();
-        String base64EncodedHashedPassword = Base64.getEncoder().encodeToString(encodedPassword);
-        String base64EncodedHashedSalt = Base64.getEncoder().encodeToString(salt);
-
-        String sql = "insert into idm.user(email, user_status_id,salt, hashed_password)" +
-                "values (:email, :user_status_id,:salt, :hashed_password)";
-
-        MapSqlParameterSource source = new MapSqlParameterSource()
-                .addValue("email", email, Types.VARCHAR)
-                .addValue("user_status_id", UserStatus.ACTIVE.id(), Types.INTEGER)
-                .addValue("salt", base64EncodedHashedSalt, Types.CHAR)
-                .addValue("hashed_password", base64EncodedHashedPassword, Types.CHAR);
-        repo.getTemplate().update(sql, source);
-
     }
 
     public void insertRefreshToken(RefreshToken refreshToken)
     {
-        String sql = "INSERT into idm.refresh_token(token, user_id, token_status_id, expire_time, max_life_time)" +
-                "values (:token, :user_id, :token_status_id, :expire_time, :max_life_time)";
-        MapSqlParameterSource source = new MapSqlParameterSource()
-                .addValue("token", refreshToken.getToken(), Types.CHAR)
-                .addValue("user_id", refreshToken.getUserId(), Types.INTEGER)
-                .addValue("token_status_id", refreshToken.getTokenStatus().id(), Types.INTEGER)
-                .addValue("expire_time", Timestamp.from(refreshToken.getExpireTime()), Types.TIMESTAMP)
-                .addValue("max_life_time",Timestamp.from(refreshToken.getMaxLifeTime()), Types.TIMESTAMP);
-
-        repo.getTemplate().update(sql, source);
+        long start = System.nanoTime();
+        try {
+            refreshTokenStore.insert(refreshToken);
+        } finally {
+            metrics.record(Stage.REFRESH_TOKEN_INSERT, start);
+        }
     }
 
+    /**
+     * @return the token with its user and the user's roles, see {@link RefreshTokenStore#find}
+     */
     public RefreshToken verifyRefreshToken(String token) throws IllegalAccessException {
 
-        String sql = "select id, token, user_id, token_status_id, expire_time, max_life_time " +
-                "from idm.refresh_token " +
-                "where token = :token";
-        MapSqlParameterSource source =
-                new MapSqlParameterSource()
-                        .addValue("token", token, Types.VARCHAR);
-        List<RefreshToken> tokens = repo.getTemplate().query(
-                sql,
-                source,
-                (rs, rowNum) ->
-                        new RefreshToken()
-                                .setId(rs.getInt("id"))
-                                .setToken(rs.getString("token"))
-                                .setUserId(rs.getInt("user_id"))
-                                .setTokenStatus(TokenStatus.fromId(rs.getInt("token_status_id")))
-                                .setExpireTime(rs.getTimestamp("expire_time").toInstant())
-                                .setMaxLifeTime(rs.getTimestamp("max_life_time").toInstant())
-        );
-        if (tokens.isEmpty()){
+        long start = System.nanoTime();
+        RefreshToken retoken = refreshTokenStore.find(token);
+        metrics.record(Stage.REFRESH_TOKEN_SELECT, start);
+
+        if (retoken == null){
             throw new IllegalAccessException("Refresh token not found");
         }
-        RefreshToken retoken = tokens.get(0);
         return retoken;
     }
 
     public void updateRefreshTokenExpireTime(RefreshToken token)
     {
-        String sql = "update idm.refresh_token " +
-                "set expire_time =:expire_time " +
-                "where token = :token";
-        MapSqlParameterSource source =
-                new MapSqlParameterSource()
-                        .addValue("expire_time", Timestamp.from(token.getExpireTime()), Types.TIMESTAMP)
-                        .addValue("token", token.getToken(), Types.CHAR);
-        repo.getTemplate().update(sql, source);
-    }
-
-    public void expireRefreshToken(RefreshToken token)
-    {
-        String sql = "update idm.refresh_token " +
-                "set token_status_id = :token_status " +
-                "where token = :token";
-        MapSqlParameterSource source =
-                new MapSqlParameterSource()
-                        .addValue("token_status", TokenStatus.EXPIRED.id(), Types.INTEGER)
-                        .addValue("token", token.getToken(), Types.CHAR);
-        repo.getTemplate().update(sql, source);
+        refreshTokenStore.extendExpireTime(token);
     }
 
-    public void revokeRefreshToken(RefreshToken token)
+    /**
+     * @return false if the token was no longer active, e.g. a concurrent
+     * /refresh already changed its status
+     */
+    public boolean expireRefreshToken(RefreshToken token)
     {
-        String sql = "update idm.refresh_token " +
-                "set token_status_id = :token_status " +
-                "where token = :token";
-        MapSqlParameterSource source =
-                new MapSqlParameterSource()
-                        .addValue("token_status", TokenStatus.REVOKED.id(), Types.INTEGER)
-                        .addValue("token", token.getToken(), Types.CHAR);
-        repo.getTemplate().update(sql, source);
+        return refreshTokenStore.updateActiveStatus(token, TokenStatus.EXPIRED);
     }
 
-    public User getUserFromRefreshToken(RefreshToken refreshToken)
+    /**
+     * @return false if the token was no longer active, e.g. a concurrent
+     * /refresh already rotated it
+     */
+    public boolean revokeRefreshToken(RefreshToken token)
     {
-        String sql = "select `user`.id, email, user_status_id, salt, hashed_password " +
-                "from idm.user, idm.refresh_token " +
-                "where `user`.id = :refreshid";
-        MapSqlParameterSource source =
-                new MapSqlParameterSource()
-                        .addValue("refreshid", refreshToken.getUserId(), Types.VARCHAR);
-        List<User> users = repo.getTemplate().query(
-                sql,
-                source,
-                (rs, rowNum) ->
-                        new User()
-                                .setId(rs.getInt("id"))
-                                .setEmail(rs.getString("email"))
-                                .setUserStatus(UserStatus.fromId(rs.getInt("user_status_id")))
-                                .setSalt(rs.getString("salt"))
-                                .setHashedPassword(rs.getString("hashed_password"))
-        );
-        return users.get(0);
+        return refreshTokenStore.updateActiveStatus(token, TokenStatus.REVOKED);
     }
 }
@@ -0,0 +1,57 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMHashingConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs PBKDF2 work on a fixed, core sized pool so that a burst of
+ * /login or /register calls can not tie up every request thread.
+ * The queue is bounded, once it is full new work is rejected instead
+ * of waiting.
+ */
+@Component
+public class IDMHashingExecutor
+{
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public IDMHashingExecutor(IDMHashingConfig config)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+
+        this.executor = new ThreadPoolExecutor(
+            config.threads(),
+            config.threads(),
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(config.queueCapacity()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "idm-hashing-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+
+    public <T> CompletableFuture<T> supply(Supplier<T> task)
+        throws RejectedExecutionException
+    {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+}
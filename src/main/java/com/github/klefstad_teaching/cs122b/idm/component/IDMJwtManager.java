@@ -1,33 +1,60 @@
 package com.github.klefstad_teaching.cs122b.idm.component;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics.Stage;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMAccessTokenCacheConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMJwksConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMKeysConfig;
 import com.github.klefstad_teaching.cs122b.idm.config.IDMServiceConfig;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.JWSHeader;
-import com.nimbusds.jose.proc.BadJOSEException;
-import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jwt.SignedJWT;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
 @Component
 public class IDMJwtManager
 {
-    private final JWTManager jwtManager;
+    private static final ObjectPool<MessageDigest> TOKEN_DIGEST =
+        new ObjectPool<>(IDMJwtManager::newTokenDigest);
+
+    private final JWTManager        jwtManager;
+    private final KeyRing           keyRing;
+    private final AccessTokenIssuer accessTokenIssuer;
+    private final IDMMetrics        metrics;
+
+    // Keyed by the SHA-256 of the serialized token, entries leave when the token expires
+    private final Cache<ByteBuffer, VerifiedAccessToken> verifiedAccessTokens;
 
     @Autowired
-    public IDMJwtManager(IDMServiceConfig serviceConfig)
+    public IDMJwtManager(IDMServiceConfig serviceConfig,
+                         IDMAccessTokenCacheConfig cacheConfig,
+                         IDMKeysConfig keysConfig,
+                         IDMJwksConfig jwksConfig,
+                         IDMMetrics metrics)
+        throws IOException
     {
+        this.metrics = metrics;
         this.jwtManager =
             new JWTManager.Builder()
                 .keyFileName(serviceConfig.keyFileName())
@@ -35,20 +62,59 @@ public class IDMJwtManager
                 .maxRefreshTokenLifeTime(serviceConfig.maxRefreshTokenLifeTime())
                 .refreshTokenExpire(serviceConfig.refreshTokenExpire())
                 .build();
+
+        // Once a key stops signing, tokens it signed live at most accessTokenExpire. A new key
+        // signs only once every cached copy of /.well-known/jwks.json can have it
+        this.keyRing = new KeyRing(jwtManager.getEcKey(), jwtManager.getAccessTokenExpire(), jwksConfig.maxAge());
+        this.accessTokenIssuer = new AccessTokenIssuer(jwtManager.getAccessTokenExpire());
+
+        if (keysConfig.directory() != null) {
+            keyRing.watch(Paths.get(keysConfig.directory()));
+        }
+
+        this.verifiedAccessTokens =
+            Caffeine.newBuilder()
+                    .maximumSize(cacheConfig.maximumSize())
+                    .expireAfter(new Expiry<ByteBuffer, VerifiedAccessToken>()
+                    {
+                        @Override
+                        public long expireAfterCreate(ByteBuffer key, VerifiedAccessToken value, long currentTime)
+                        {
+                            return Math.max(0, Duration.between(Instant.now(), value.getExpireTime()).toNanos());
+                        }
+
+                        @Override
+                        public long expireAfterUpdate(ByteBuffer key, VerifiedAccessToken value,
+                                                      long currentTime, long currentDuration)
+                        {
+                            return currentDuration;
+                        }
+
+                        @Override
+                        public long expireAfterRead(ByteBuffer key, VerifiedAccessToken value,
+                                                    long currentTime, long currentDuration)
+                        {
+                            return currentDuration;
+                        }
+                    })
+                    .build();
     }
 
-    private SignedJWT buildAndSignJWT(JWTClaimsSet claimsSet)
-        throws JOSEException
+    private static MessageDigest newTokenDigest()
     {
-        JWSHeader header = new JWSHeader.Builder(JWTManager.JWS_ALGORITHM)
-                .keyID(jwtManager.getEcKey().getKeyID())
-                .type(JWTManager.JWS_TYPE)
-                .build();
-
-        SignedJWT signedJWT = new SignedJWT(header, claimsSet);
-        signedJWT.sign(jwtManager.getSigner());
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        return signedJWT;
+    private static ByteBuffer digestToken(String jws)
+    {
+        MessageDigest digest = TOKEN_DIGEST.take();
+        byte[]        hash   = digest.digest(jws.getBytes(StandardCharsets.US_ASCII));
+        TOKEN_DIGEST.give(digest);
+        return ByteBuffer.wrap(hash);
     }
 
 //    private void verifyJWT(SignedJWT jwt)
@@ -58,37 +124,86 @@ public class IDMJwtManager
 //
 //    }
 
+    // Claims are written by AccessTokenIssuer, not through a JWTClaimsSet
     public String buildAccessToken(User user) throws JOSEException {
-        JWTClaimsSet claimsSet = new JWTClaimsSet.Builder()
-                .subject(user.getEmail())
-                .expirationTime(Date.from(Instant.now().plus(jwtManager.getAccessTokenExpire())))
-                .issueTime(Date.from(Instant.now()))
-                .claim(JWTManager.CLAIM_ID, user.getId())
-                .claim(JWTManager.CLAIM_ROLES, user.getRoles())
-                .build();
+        long start = System.nanoTime();
+
+        String accessToken = accessTokenIssuer.issue(keyRing.signingKey(), user);
+
+        metrics.record(Stage.ACCESS_TOKEN_SIGN, start);
+        return accessToken;
+    }
+
+    public AccessTokenVerification verifyAccessToken(String jws)
+    {
+        if (jws == null) {
+            return AccessTokenVerification.invalid();
+        }
+
+        Instant             now      = Instant.now();
+        ByteBuffer          key      = digestToken(jws);
+        VerifiedAccessToken verified = verifiedAccessTokens.getIfPresent(key);
+
+        if (verified == null) {
+            AccessTokenVerification verification = verifyWithKeyRing(jws, now);
 
-        return this.buildAndSignJWT(claimsSet).serialize();
+            if (verification.isValid()) {
+                verifiedAccessTokens.put(key, verification.getToken());
+            }
+
+            return verification;
+        }
 
+        return verified.hasExpired(now) ?
+               AccessTokenVerification.expired() :
+               AccessTokenVerification.valid(verified);
     }
 
-    public void verifyAccessToken(String jws)
-            throws IllegalStateException, ParseException, JOSEException, BadJOSEException,RuntimeException
+    private AccessTokenVerification verifyWithKeyRing(String jws, Instant now)
     {
-        SignedJWT rebuiltSignedJwt = SignedJWT.parse(jws);
+        long start = System.nanoTime();
+        try {
+            return parseAndVerify(jws, now);
+        } finally {
+            metrics.record(Stage.ACCESS_TOKEN_VERIFY, start);
+        }
+    }
 
-        rebuiltSignedJwt.verify(jwtManager.getVerifier());
-        jwtManager.getJwtProcessor().process(rebuiltSignedJwt, null);
+    private AccessTokenVerification parseAndVerify(String jws, Instant now)
+    {
+        SignedJWT signedJWT;
+        try {
+            signedJWT = SignedJWT.parse(jws);
+        } catch (ParseException e) {
+            return AccessTokenVerification.invalid();
+        }
 
-        // Do logic to check if expired manually
-        if(Instant.now().isAfter(rebuiltSignedJwt.getJWTClaimsSet().getExpirationTime().toInstant())){
-            throw new RuntimeException("Expired");
+        AccessTokenVerifier verifier = keyRing.verifierFor(signedJWT.getHeader().getKeyID());
+
+        if (verifier == null) {
+            return AccessTokenVerification.invalid();
         }
+
+        return verifier.verify(signedJWT, now);
+    }
+
+    // Public halves of every key in the ring, as served from /.well-known/jwks.json
+    public JWKSet getPublicJWKSet()
+    {
+        return keyRing.publicJWKSet();
+    }
+
+    @PreDestroy
+    public void close()
+        throws IOException
+    {
+        keyRing.close();
     }
 
     public RefreshToken buildRefreshToken(User user)
     {
         return new RefreshToken()
-                .setToken(UUID.randomUUID().toString())
+                .setToken(ShardRouter.newToken(ShardRouter.bucketForEmail(user.getEmail())))
                 .setUserId(user.getId())
                 .setTokenStatus(TokenStatus.ACTIVE)
                 .setExpireTime(Instant.now().plus(jwtManager.getRefreshTokenExpire()))
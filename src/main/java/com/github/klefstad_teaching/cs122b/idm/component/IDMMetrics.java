@@ -0,0 +1,112 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters for the request path, all registered up front so recording is a
+ * map lookup and an add, with nothing allocated per request.
+ * <p>
+ * idm.stage is a latency histogram per stage of /login, /register and
+ * /refresh, tagged with the stage. idm.results counts every result the
+ * controller answers with, tagged with the IDMResults constant and its
+ * code. Hikari pool gauges (hikaricp.connections.*) come from Spring
+ * Boot's own DataSource metrics.
+ */
+@Component
+public class IDMMetrics
+{
+    public enum Stage
+    {
+        PASSWORD_HASH(Duration.ofMillis(1), Duration.ofSeconds(5)),
+        USER_SELECT(Duration.ofNanos(100_000), Duration.ofSeconds(5)),
+        USER_INSERT(Duration.ofNanos(100_000), Duration.ofSeconds(5)),
+        REFRESH_TOKEN_SELECT(Duration.ofNanos(100_000), Duration.ofSeconds(5)),
+        REFRESH_TOKEN_INSERT(Duration.ofNanos(100_000), Duration.ofSeconds(5)),
+        ACCESS_TOKEN_SIGN(Duration.ofNanos(10_000), Duration.ofSeconds(1)),
+        // Only tokens that miss the verified token cache
+        ACCESS_TOKEN_VERIFY(Duration.ofNanos(10_000), Duration.ofSeconds(1));
+
+        private final Duration minimumExpected;
+        private final Duration maximumExpected;
+
+        Stage(Duration minimumExpected, Duration maximumExpected)
+        {
+            this.minimumExpected = minimumExpected;
+            this.maximumExpected = maximumExpected;
+        }
+    }
+
+    private final MeterRegistry        registry;
+    private final Map<Stage, Timer>    stages  = new EnumMap<>(Stage.class);
+    private final Map<Result, Counter> results = new IdentityHashMap<>();
+
+    @Autowired
+    public IDMMetrics(MeterRegistry registry)
+    {
+        this.registry = registry;
+
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, Timer.builder("idm.stage")
+                                   .description("Time spent in one stage of a request")
+                                   .tag("stage", stage.name().toLowerCase(Locale.ROOT))
+                                   .publishPercentileHistogram()
+                                   .minimumExpectedValue(stage.minimumExpected)
+                                   .maximumExpectedValue(stage.maximumExpected)
+                                   .register(registry));
+        }
+
+        // Every IDMResults constant, so a result that never happened still reads 0
+        for (Field field : IDMResults.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == Result.class) {
+                try {
+                    Result result = (Result) field.get(null);
+                    results.put(result, resultCounter(field.getName(), result));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    private Counter resultCounter(String name, Result result)
+    {
+        return Counter.builder("idm.results")
+                      .description("Results answered by the IDM controller")
+                      .tag("result", name.toLowerCase(Locale.ROOT))
+                      .tag("code", Integer.toString(result.code()))
+                      .register(registry);
+    }
+
+    public void record(Stage stage, long startNanos)
+    {
+        stages.get(stage).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public Result count(Result result)
+    {
+        Counter counter = results.get(result);
+
+        if (counter == null) {
+            // Not an IDMResults constant, registering again just looks the counter up
+            counter = resultCounter("other", result);
+        }
+
+        counter.increment();
+        return result;
+    }
+}
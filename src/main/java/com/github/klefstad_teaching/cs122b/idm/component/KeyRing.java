@@ -0,0 +1,532 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * One active signing key plus any number of verify-only keys, looked up
+ * by the kid header.
+ * <p>
+ * When a key directory is configured every *.json JWK file in it is
+ * loaded, and the directory is watched afterwards:
+ * <ul>
+ *     <li>a file holding a private key is published at once and becomes
+ *     the active signing key after the activation delay, the key it
+ *     replaces is retired</li>
+ *     <li>a file holding only a public key is kept as verify-only</li>
+ *     <li>deleting a file retires its key, unless it is the active one</li>
+ * </ul>
+ * The activation delay is at least how long verifiers may cache
+ * /.well-known/jwks.json, so none of them sees a token signed with a key
+ * it has not fetched yet. Files already in the directory at startup count
+ * as published since they were last modified.
+ * <p>
+ * Retired keys still verify tokens until the longest access token
+ * lifetime has passed, after which they are dropped. A retired key never
+ * comes back, files with its kid are ignored.
+ * <p>
+ * Readers only ever see an immutable snapshot, changes are made by the
+ * watcher thread and swap the snapshot as a whole.
+ */
+public class KeyRing
+    implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(KeyRing.class);
+
+    private static final long PRUNE_INTERVAL_SECONDS = 5;
+
+    private final Duration    retiredKeyLifetime;
+    private final Duration    activationDelay;
+    private final Object      lock          = new Object();
+    private final Set<String> retiredKeyIDs = new HashSet<>();
+
+    private volatile Keys keys;
+
+    private Thread       watcher;
+    private WatchService watchService;
+
+    public KeyRing(ECKey initialKey, Duration retiredKeyLifetime)
+    {
+        this(initialKey, retiredKeyLifetime, Duration.ZERO);
+    }
+
+    /**
+     * @param activationDelay how long a new private key is only published
+     *                        before it signs
+     */
+    public KeyRing(ECKey initialKey, Duration retiredKeyLifetime, Duration activationDelay)
+    {
+        this.retiredKeyLifetime = retiredKeyLifetime;
+        this.activationDelay = activationDelay;
+        this.keys = Keys.of(entryOf(initialKey, null), null, null, Collections.emptyMap());
+    }
+
+    /**
+     * Loads the keys already in the directory and starts watching it.
+     */
+    public void watch(Path directory)
+        throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(KeyRing::isKeyFile)
+                          .sorted(Comparator.comparing(KeyRing::lastModified))
+                          .collect(Collectors.toList());
+        }
+
+        for (Path file : files) {
+            load(file, lastModified(file).plus(activationDelay));
+        }
+
+        this.watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService,
+                           StandardWatchEventKinds.ENTRY_CREATE,
+                           StandardWatchEventKinds.ENTRY_MODIFY,
+                           StandardWatchEventKinds.ENTRY_DELETE);
+
+        this.watcher = new Thread(() -> watchLoop(directory), "idm-key-ring-watcher");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    public SigningKey signingKey()
+    {
+        return keys.active.signingKey;
+    }
+
+    /**
+     * @return the verifier for the kid, or null when the kid is unknown or dropped
+     */
+    public AccessTokenVerifier verifierFor(String keyID)
+    {
+        if (keyID == null) {
+            return null;
+        }
+
+        KeyEntry entry = keys.byKeyID.get(keyID);
+        return entry == null ? null : entry.verifier;
+    }
+
+    public JWKSet publicJWKSet()
+    {
+        return keys.publicJWKSet;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (watcher != null) {
+            watcher.interrupt();
+            watchService.close();
+        }
+    }
+
+    private void watchLoop(Path directory)
+    {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey watchKey = watchService.poll(PRUNE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+                if (watchKey != null) {
+                    for (WatchEvent<?> event : watchKey.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            continue;
+                        }
+
+                        Path file = directory.resolve((Path) event.context());
+
+                        if (!isKeyFile(file)) {
+                            continue;
+                        }
+
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            retire(file);
+                        } else {
+                            load(file, Instant.now().plus(activationDelay));
+                        }
+                    }
+                    watchKey.reset();
+                }
+
+                advance(Instant.now());
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void load(Path file, Instant activatesAt)
+    {
+        ECKey ecKey;
+        try {
+            JWK jwk = JWK.parse(Files.readString(file));
+
+            if (!(jwk instanceof ECKey) ||
+                !Curve.P_256.equals(((ECKey) jwk).getCurve()) ||
+                jwk.getKeyID() == null) {
+                LOG.warn("Ignoring key file {}, expected a P-256 EC key with a kid", file);
+                return;
+            }
+
+            ecKey = (ECKey) jwk;
+
+        } catch (IOException | ParseException e) {
+            // Files can be seen half written, the next modify event picks it up again
+            LOG.warn("Could not read key file {}: {}", file, e.getMessage());
+            return;
+        }
+
+        synchronized (lock) {
+            if (retiredKeyIDs.contains(ecKey.getKeyID())) {
+                LOG.warn("Ignoring key file {}, key {} was retired", file, ecKey.getKeyID());
+                return;
+            }
+
+            Instant               now        = Instant.now();
+            Keys                  current    = keys;
+            Map<String, KeyEntry> verifyOnly = current.verifyOnly();
+            KeyEntry              loaded     = entryOf(ecKey, file);
+            KeyEntry              active     = current.active;
+            KeyEntry              pending    = current.pending;
+            Instant               pendingAt  = current.pendingActivatesAt;
+
+            if (!ecKey.isPrivate()) {
+                if (!loaded.keyID.equals(active.keyID) && !isPending(current, loaded.keyID)) {
+                    verifyOnly.put(loaded.keyID, loaded);
+                    LOG.info("Key {} loaded for verification only", loaded.keyID);
+                }
+            } else if (loaded.keyID.equals(active.keyID)) {
+                active = loaded;
+            } else {
+                if (isPending(current, loaded.keyID)) {
+                    // Rewritten while pending, it has been published since the first time
+                    activatesAt = pendingAt;
+                } else if (pending != null) {
+                    verifyOnly.put(pending.keyID, retire(pending, now));
+                    LOG.info("Key {} replaces {} before it signed, retiring {}", loaded.keyID, pending.keyID, pending.keyID);
+                }
+
+                verifyOnly.remove(loaded.keyID);
+                pending = loaded;
+                pendingAt = activatesAt;
+                LOG.info("Key {} is published and becomes the active signing key at {}", loaded.keyID, activatesAt);
+            }
+
+            keys = Keys.of(active, pending, pendingAt, verifyOnly);
+        }
+
+        advance(Instant.now());
+    }
+
+    private static boolean isPending(Keys keys, String keyID)
+    {
+        return keys.pending != null && keys.pending.keyID.equals(keyID);
+    }
+
+    // Under lock, once retired a kid is never loaded again
+    private KeyEntry retire(KeyEntry entry, Instant now)
+    {
+        retiredKeyIDs.add(entry.keyID);
+        return entry.retire(now);
+    }
+
+    private void retire(Path file)
+    {
+        synchronized (lock) {
+            Keys current = keys;
+
+            if (file.equals(current.active.source)) {
+                LOG.warn("Active signing key file {} was deleted, it stays active until replaced", file);
+                return;
+            }
+
+            Instant               now        = Instant.now();
+            Map<String, KeyEntry> verifyOnly = current.verifyOnly();
+            KeyEntry              pending    = current.pending;
+            Instant               pendingAt  = current.pendingActivatesAt;
+
+            if (pending != null && file.equals(pending.source)) {
+                verifyOnly.put(pending.keyID, retire(pending, now));
+                LOG.info("Key {} retired before it signed", pending.keyID);
+                pending = null;
+                pendingAt = null;
+            }
+
+            for (KeyEntry entry : current.byKeyID.values()) {
+                if (file.equals(entry.source) && entry.retiredAt == null && verifyOnly.containsKey(entry.keyID)) {
+                    verifyOnly.put(entry.keyID, retire(entry, now));
+                    LOG.info("Key {} retired", entry.keyID);
+                }
+            }
+
+            keys = Keys.of(current.active, pending, pendingAt, verifyOnly);
+        }
+    }
+
+    /**
+     * Makes a pending key active once its activation time has passed and
+     * drops retired keys that have outlived every token they signed. Run
+     * by the watcher thread every few seconds.
+     */
+    void advance(Instant now)
+    {
+        synchronized (lock) {
+            Keys                  current    = keys;
+            Map<String, KeyEntry> verifyOnly = current.verifyOnly();
+            KeyEntry              active     = current.active;
+            KeyEntry              pending    = current.pending;
+            Instant               pendingAt  = current.pendingActivatesAt;
+            boolean               changed    = false;
+
+            if (pending != null && !now.isBefore(pendingAt)) {
+                verifyOnly.put(active.keyID, retire(active, now));
+                LOG.info("Key {} is now the active signing key, retiring {}", pending.keyID, active.keyID);
+
+                active = pending;
+                pending = null;
+                pendingAt = null;
+                changed = true;
+            }
+
+            changed |= verifyOnly.values().removeIf(
+                entry -> entry.retiredAt != null && now.isAfter(entry.retiredAt.plus(retiredKeyLifetime))
+            );
+
+            if (changed) {
+                keys = Keys.of(active, pending, pendingAt, verifyOnly);
+            }
+        }
+    }
+
+    private static boolean isKeyFile(Path file)
+    {
+        return file.getFileName().toString().endsWith(".json");
+    }
+
+    private static Instant lastModified(Path file)
+    {
+        try {
+            return Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            return Instant.EPOCH;
+        }
+    }
+
+    private static KeyEntry entryOf(ECKey ecKey, Path source)
+    {
+        return new KeyEntry(ecKey, source, null);
+    }
+
+    /**
+     * What the {@link AccessTokenIssuer} needs from the active key: the
+     * header, built and encoded once per key instead of once per token, and
+     * a pool of Signatures initialised with the private key, which goes
+     * away with the key when it rotates.
+     */
+    public static final class SigningKey
+    {
+        private static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+        private final ECKey                  ecKey;
+        private final JWSHeader              header;
+        private final JWSSigner              signer;
+        private final ECPrivateKey           privateKey;
+        private final byte[]                 encodedHeader;
+        private final ObjectPool<Signature>  signatures;
+
+        private SigningKey(ECKey ecKey)
+        {
+            try {
+                this.ecKey = ecKey;
+                this.header = new JWSHeader.Builder(JWTManager.JWS_ALGORITHM)
+                    .keyID(ecKey.getKeyID())
+                    .type(JWTManager.JWS_TYPE)
+                    .build();
+                this.signer = new ECDSASigner(ecKey);
+                this.privateKey = ecKey.toECPrivateKey();
+            } catch (JOSEException e) {
+                throw new IllegalStateException(e);
+            }
+
+            this.encodedHeader = header.toBase64URL().toString().getBytes(StandardCharsets.US_ASCII);
+            this.signatures = new ObjectPool<>(this::newSignature);
+        }
+
+        private Signature newSignature()
+        {
+            try {
+                Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+                signature.initSign(privateKey);
+                return signature;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public ECKey getEcKey()
+        {
+            return ecKey;
+        }
+
+        public JWSHeader getHeader()
+        {
+            return header;
+        }
+
+        public JWSSigner getSigner()
+        {
+            return signer;
+        }
+
+        // The protected header as it appears in every token, Base64URL encoded once
+        byte[] encodedHeader()
+        {
+            return encodedHeader;
+        }
+
+        // Initialised for signing with this key, give it back once signed
+        Signature takeSignature()
+        {
+            return signatures.take();
+        }
+
+        void giveSignature(Signature signature)
+        {
+            signatures.give(signature);
+        }
+    }
+
+    private static final class KeyEntry
+    {
+        private final String              keyID;
+        private final ECKey               ecKey;
+        private final Path                source;
+        private final Instant             retiredAt;
+        private final AccessTokenVerifier verifier;
+        private final SigningKey          signingKey;
+
+        private KeyEntry(ECKey ecKey, Path source, Instant retiredAt)
+        {
+            this(ecKey, source, retiredAt, new AccessTokenVerifier(ecKey));
+        }
+
+        private KeyEntry(ECKey ecKey, Path source, Instant retiredAt, AccessTokenVerifier verifier)
+        {
+            this.keyID = ecKey.getKeyID();
+            this.ecKey = ecKey;
+            this.source = source;
+            this.retiredAt = retiredAt;
+            this.verifier = verifier;
+            this.signingKey = ecKey.isPrivate() && retiredAt == null ? new SigningKey(ecKey) : null;
+        }
+
+        private KeyEntry retire(Instant now)
+        {
+            return new KeyEntry(ecKey, source, now, verifier);
+        }
+    }
+
+    private static final class Keys
+    {
+        private final KeyEntry              active;
+        private final KeyEntry              pending;
+        private final Instant               pendingActivatesAt;
+        private final Map<String, KeyEntry> byKeyID;
+        private final JWKSet                publicJWKSet;
+
+        private Keys(KeyEntry active,
+                     KeyEntry pending,
+                     Instant pendingActivatesAt,
+                     Map<String, KeyEntry> byKeyID,
+                     JWKSet publicJWKSet)
+        {
+            this.active = active;
+            this.pending = pending;
+            this.pendingActivatesAt = pendingActivatesAt;
+            this.byKeyID = byKeyID;
+            this.publicJWKSet = publicJWKSet;
+        }
+
+        // The pending key verifies and is published, it only does not sign yet
+        private static Keys of(KeyEntry active,
+                               KeyEntry pending,
+                               Instant pendingActivatesAt,
+                               Map<String, KeyEntry> verifyOnly)
+        {
+            Map<String, KeyEntry> byKeyID = new HashMap<>(verifyOnly);
+            byKeyID.put(active.keyID, active);
+
+            List<JWK> publicKeys = new ArrayList<>();
+            publicKeys.add(publicJWK(active.ecKey));
+
+            if (pending != null) {
+                byKeyID.put(pending.keyID, pending);
+                publicKeys.add(publicJWK(pending.ecKey));
+            }
+
+            for (KeyEntry entry : verifyOnly.values()) {
+                publicKeys.add(publicJWK(entry.ecKey));
+            }
+
+            return new Keys(active, pending, pendingActivatesAt,
+                            Collections.unmodifiableMap(byKeyID), new JWKSet(publicKeys));
+        }
+
+        // A mutable copy of the keys that neither sign nor are about to
+        private Map<String, KeyEntry> verifyOnly()
+        {
+            Map<String, KeyEntry> verifyOnly = new HashMap<>(byKeyID);
+            verifyOnly.remove(active.keyID);
+
+            if (pending != null) {
+                verifyOnly.remove(pending.keyID);
+            }
+
+            return verifyOnly;
+        }
+
+        private static ECKey publicJWK(ECKey ecKey)
+        {
+            return new ECKey.Builder(ecKey.toPublicJWK())
+                .algorithm(JWTManager.JWS_ALGORITHM)
+                .build();
+        }
+    }
+}
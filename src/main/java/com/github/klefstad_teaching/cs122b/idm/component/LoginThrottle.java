@@ -0,0 +1,195 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMLoginThrottleConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.security.SecureRandom;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throttles /login attempts per email and per client address, and locks
+ * accounts that keep failing.
+ * <p>
+ * Both throttles are token buckets in a {@link TokenBucketTable}, checked
+ * before the user is looked up or any password is hashed. Emails and
+ * addresses are hashed with a per-process seed so nobody can pick keys that
+ * collide on purpose. The address throttle is off unless enabled: behind
+ * a proxy that is not trusted for X-Forwarded-For every client has the
+ * proxy's address and would share one budget.
+ * <p>
+ * Failed passwords drain a third bucket per user, sized to the lockout
+ * threshold and refilled over the failure window. The user that empties
+ * it is locked: the status update is batched and written every flush
+ * interval, until then {@link #isLockPending(User)} answers for it.
+ */
+@Component
+public class LoginThrottle
+{
+    private static final Logger LOG = LoggerFactory.getLogger(LoginThrottle.class);
+
+    // Never unlocks or overrides a ban, only active users are locked
+    private static final String LOCK_SQL =
+        "update idm.user " +
+        "set user_status_id = :locked_status " +
+        "where id = :id and user_status_id = :active_status";
+
+    private final IDMRepo                  repo;
+    private final long                     seed         = new SecureRandom().nextLong();
+    private final TokenBucketTable         emailBuckets;
+    private final TokenBucketTable         addressBuckets;
+    private final TokenBucketTable         failureBuckets;
+    private final Set<Integer>             pendingLocks = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+
+    @Autowired
+    public LoginThrottle(IDMRepo repo,
+                         IDMLoginThrottleConfig config)
+    {
+        this.repo = repo;
+        this.emailBuckets = new TokenBucketTable(config.tableSize(),
+                                                 config.emailCapacity(),
+                                                 config.emailRefillInterval(),
+                                                 true);
+        this.addressBuckets = config.addressEnabled() ?
+            new TokenBucketTable(config.tableSize(),
+                                 config.addressCapacity(),
+                                 config.addressRefillInterval(),
+                                 true) :
+            null;
+        // Never shared, one user's failures must not lock another
+        this.failureBuckets = new TokenBucketTable(config.tableSize(),
+                                                   config.lockAfterFailures(),
+                                                   config.failureWindow().dividedBy(config.lockAfterFailures()),
+                                                   false);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-login-lock-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMillis = config.lockFlushInterval().toMillis();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes one attempt from the client address and the email budgets.
+     *
+     * @param clientAddress may be null, then only the email is throttled, as
+     *                      it is when the address throttle is disabled
+     * @return false if either budget is used up
+     */
+    public boolean tryAcquire(String email, String clientAddress)
+    {
+        long now = System.currentTimeMillis();
+
+        if (addressBuckets != null &&
+            clientAddress != null &&
+            addressBuckets.acquire(hash(clientAddress, false), now) < 0) {
+            return false;
+        }
+
+        // MySQL compares emails case insensitively, so does the throttle
+        return emailBuckets.acquire(hash(email, true), now) >= 0;
+    }
+
+    public void recordFailure(User user)
+    {
+        if (failureBuckets.acquire(mix(seed ^ user.getId()), System.currentTimeMillis()) <= 0 &&
+            pendingLocks.add(user.getId())) {
+            LOG.info("Locking user {} after repeated failed logins", user.getId());
+        }
+    }
+
+    public void recordSuccess(User user)
+    {
+        failureBuckets.reset(mix(seed ^ user.getId()), System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if the user has been locked but the status is not written yet
+     */
+    public boolean isLockPending(User user)
+    {
+        return pendingLocks.contains(user.getId());
+    }
+
+    private void flushQuietly()
+    {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Locks stay pending and are retried on the next flush
+            LOG.warn("Failed to write user locks", e);
+        }
+    }
+
+    public void flush()
+    {
+        List<Integer> snapshot = new ArrayList<>(pendingLocks);
+
+        if (snapshot.isEmpty()) {
+            return;
+        }
+
+        SqlParameterSource[] batch = new SqlParameterSource[snapshot.size()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new MapSqlParameterSource()
+                .addValue("locked_status", UserStatus.LOCKED.id(), Types.INTEGER)
+                .addValue("id", snapshot.get(i), Types.INTEGER)
+                .addValue("active_status", UserStatus.ACTIVE.id(), Types.INTEGER);
+        }
+
+        // User ids are unique across shards, the lock only changes a row on the user's shard
+        for (ShardRouter.Shard shard : repo.shards()) {
+            shard.template().batchUpdate(LOCK_SQL, batch);
+        }
+
+        snapshot.forEach(pendingLocks::remove);
+    }
+
+    private long hash(String value, boolean ignoreCase)
+    {
+        long hash = seed;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (ignoreCase ? Character.toLowerCase(c) : c)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // MurmurHash3 finalizer, zero is reserved for empty slots
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    @PreDestroy
+    public void shutdown()
+        throws InterruptedException
+    {
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+}
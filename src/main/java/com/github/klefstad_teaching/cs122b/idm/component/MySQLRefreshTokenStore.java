@@ -0,0 +1,171 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.ConditionalOnRefreshTokenStore;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenStoreConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import java.sql.Types;
+import java.time.Instant;
+
+/**
+ * Refresh tokens in idm.refresh_token, the default store. Expire time
+ * extensions are written behind by the {@link RefreshTokenExpiryBuffer}
+ * and merged back in on every read.
+ */
+@Component
+@ConditionalOnRefreshTokenStore(IDMRefreshTokenStoreConfig.Type.MYSQL)
+public class MySQLRefreshTokenStore implements RefreshTokenStore
+{
+    private static final String SELECT_PRIMARY_STATUS_SQL_PREFIX =
+        "select rt.token_status_id, u.user_status_id " +
+        "from idm.refresh_token rt " +
+        "join idm.user u on u.id = rt.user_id " +
+        "where ";
+
+    private final IDMRepo                  repo;
+    private final CredentialStorage        storage;
+    private final RefreshTokenExpiryBuffer expiryBuffer;
+
+    @Autowired
+    public MySQLRefreshTokenStore(IDMRepo repo,
+                                  CredentialStorage storage,
+                                  RefreshTokenExpiryBuffer expiryBuffer)
+    {
+        this.repo = repo;
+        this.storage = storage;
+        this.expiryBuffer = expiryBuffer;
+    }
+
+    /**
+     * @return the bucket of the token's user, where the token is stored.
+     * Only tokens issued since sharding carry it in their first bits.
+     */
+    private static int bucketOf(RefreshToken refreshToken)
+    {
+        return ShardRouter.bucketForEmail(refreshToken.getUser().getEmail());
+    }
+
+    // New tokens carry their user's bucket, see ShardRouter#newToken
+    @Override
+    public void insert(RefreshToken refreshToken)
+    {
+        repo.forBucket(ShardRouter.bucketOfToken(refreshToken.getToken()))
+            .update(storage.insertRefreshToken(), storage.refreshTokenParameters(refreshToken));
+        repo.wrote(refreshToken.getToken());
+    }
+
+    /**
+     * Loads the token together with its user and the user's roles in one
+     * query, joined through the unique token index and the primary keys.
+     * A token that is not on its bucket's shard is looked for on the
+     * others, tokens issued before sharding went by their user's bucket.
+     */
+    @Override
+    public RefreshToken find(String token)
+    {
+        String sql = storage.selectRefreshToken();
+        MapSqlParameterSource source = storage.addToken(new MapSqlParameterSource(), token);
+
+        // One row per role, or a single row with a null role_id
+        ResultSetExtractor<RefreshToken> extractor = rs -> {
+            RefreshToken found = null;
+            while (rs.next()) {
+                if (found == null) {
+                    found = new RefreshToken()
+                            .setId(rs.getInt("id"))
+                            .setToken(CredentialStorage.tokenString(rs.getBytes("token")))
+                            .setUserId(rs.getInt("user_id"))
+                            .setTokenStatus(TokenStatus.fromId(rs.getInt("token_status_id")))
+                            .setExpireTime(rs.getTimestamp("expire_time").toInstant())
+                            .setMaxLifeTime(rs.getTimestamp("max_life_time").toInstant())
+                            .setUser(new User()
+                                    .setId(rs.getInt("user_id"))
+                                    .setEmail(rs.getString("email"))
+                                    .setUserStatus(UserStatus.fromId(rs.getInt("user_status_id"))));
+                }
+                int roleId = rs.getInt("role_id");
+                if (!rs.wasNull()) {
+                    found.getUser().setRole(Role.fromId(roleId));
+                }
+            }
+            return found;
+        };
+
+        int bucket = ShardRouter.bucketOfToken(token);
+        RefreshToken retoken = repo.read(bucket, token, sql, source, extractor);
+
+        if (retoken == null) {
+            retoken = repo.readOffBucket(bucket, sql, source, extractor, MySQLRefreshTokenStore::bucketOf);
+        }
+        if (retoken == null) {
+            return null;
+        }
+
+        // A replica may not have seen the token revoked or its user locked or banned yet
+        if (repo.readsReplica(token) && !recheckOnPrimary(bucket, retoken, source)) {
+            return null;
+        }
+
+        // The stored expire time may lag behind an extension that is still buffered
+        Instant pendingExpireTime = expiryBuffer.pendingExpireTime(retoken.getToken());
+        if (pendingExpireTime != null && pendingExpireTime.isAfter(retoken.getExpireTime())) {
+            retoken.setExpireTime(pendingExpireTime);
+        }
+
+        return retoken;
+    }
+
+    // Both statuses by the unique token index, false if the token is gone from the primary
+    private boolean recheckOnPrimary(int bucket, RefreshToken retoken, MapSqlParameterSource source)
+    {
+        return Boolean.TRUE.equals(repo.readPrimary(
+            bucket,
+            SELECT_PRIMARY_STATUS_SQL_PREFIX + storage.tokenMatches("rt"),
+            source,
+            rs -> {
+                if (!rs.next()) {
+                    return false;
+                }
+                retoken.setTokenStatus(TokenStatus.fromId(rs.getInt("token_status_id")));
+                retoken.getUser().setUserStatus(UserStatus.fromId(rs.getInt("user_status_id")));
+                return true;
+            }));
+    }
+
+    // Written behind, see RefreshTokenExpiryBuffer
+    @Override
+    public void extendExpireTime(RefreshToken refreshToken)
+    {
+        expiryBuffer.extend(refreshToken.getToken(), bucketOf(refreshToken), refreshToken.getExpireTime());
+    }
+
+    // By token rather than id, a token the ShardRebalancer moved has a new id
+    @Override
+    public boolean updateActiveStatus(RefreshToken refreshToken, TokenStatus tokenStatus)
+    {
+        String sql = "update idm.refresh_token " +
+                     "set token_status_id = :token_status " +
+                     "where " + storage.tokenMatches(null) + " and token_status_id = :active_status";
+
+        MapSqlParameterSource source =
+                storage.addToken(new MapSqlParameterSource(), refreshToken.getToken())
+                        .addValue("token_status", tokenStatus.id(), Types.INTEGER)
+                        .addValue("active_status", TokenStatus.ACTIVE.id(), Types.INTEGER);
+        boolean updated = repo.forBucket(bucketOf(refreshToken))
+                              .update(sql, source) == 1;
+
+        // A replica would still show the token active
+        repo.wrote(refreshToken.getToken());
+        return updated;
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A small bounded pool of objects that are costly to set up but cheap to
+ * reuse, such as an initialised {@link java.security.Signature}.
+ * <p>
+ * Stands in for a ThreadLocal where requests may run on virtual threads,
+ * each of which lives for one request, so a per thread instance would be
+ * set up again for every request and never reused. Only as many objects
+ * are in use at once as requests run on a CPU, so the pool keeps twice
+ * the processor count. Taking never blocks, an empty pool makes a new
+ * object, and one given back to a full pool is dropped.
+ */
+final class ObjectPool<T>
+{
+    private static final int CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final Supplier<T>           factory;
+    private final ArrayBlockingQueue<T> idle = new ArrayBlockingQueue<>(CAPACITY);
+
+    ObjectPool(Supplier<T> factory)
+    {
+        this.factory = factory;
+    }
+
+    T take()
+    {
+        T object = idle.poll();
+        return object != null ? object : factory.get();
+    }
+
+    /**
+     * Only give back an object that is ready for the next caller, one left
+     * halfway through a use by an exception should be dropped instead.
+     */
+    void give(T object)
+    {
+        idle.offer(object);
+    }
+}
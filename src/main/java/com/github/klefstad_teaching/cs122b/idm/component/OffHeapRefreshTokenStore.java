@@ -0,0 +1,247 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.ConditionalOnRefreshTokenStore;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenReaperConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenStoreConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refresh tokens in an {@link OffHeapTokenTable} instead of MySQL, for
+ * when /refresh traffic outgrows idm.refresh_token.
+ * <p>
+ * A token costs {@value OffHeapTokenTable#ENTRY_BYTES} bytes of direct
+ * memory and no garbage. Only the user id is kept with it, the user's
+ * email, status and roles are read by primary key on /refresh so a
+ * changed role shows up in the next access token. A {@link TimingWheel}
+ * drops tokens past their max life time, and tokens no longer active
+ * once the reaper's grace period has passed since they expired, the same
+ * rule the {@link RefreshTokenReaper} applies to the table.
+ * <p>
+ * With idm.refresh-token-store.directory set, a {@link TokenJournal}
+ * keeps the tokens across restarts. Without it they live only as long
+ * as the process, and a restart logs every user out.
+ */
+@Component
+@ConditionalOnRefreshTokenStore(IDMRefreshTokenStoreConfig.Type.OFF_HEAP)
+public class OffHeapRefreshTokenStore implements RefreshTokenStore
+{
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapRefreshTokenStore.class);
+
+    private static final String SELECT_USER_SQL =
+        "select u.id, u.email, u.user_status_id, ur.role_id " +
+        "from idm.user u " +
+        "left join idm.user_role ur on ur.user_id = u.id " +
+        "where u.id = :id";
+
+    private final IDMRepo                  repo;
+    private final OffHeapTokenTable        table;
+    private final TimingWheel              wheel;
+    private final TokenJournal             journal;
+    private final long                     gracePeriodMillis;
+    private final ScheduledExecutorService scheduler;
+
+    @Autowired
+    public OffHeapRefreshTokenStore(IDMRepo repo,
+                                    IDMRefreshTokenStoreConfig config,
+                                    IDMRefreshTokenReaperConfig reaperConfig)
+    {
+        this.repo = repo;
+        this.table = new OffHeapTokenTable(config.capacity(), config.segments());
+        this.gracePeriodMillis = reaperConfig.gracePeriod().toMillis();
+
+        try {
+            this.journal = config.directory() == null ?
+                null :
+                new TokenJournal(config.directory(), config.fsyncInterval());
+            if (journal != null) {
+                journal.recover(table);
+                table.setListener(journal::append);
+                LOG.info("Recovered {} refresh tokens from {}", table.size(), config.directory());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover refresh tokens from " + config.directory(), e);
+        }
+
+        long now = System.currentTimeMillis();
+        this.wheel = new TimingWheel(config.wheelSlots(), config.wheelTick(), now);
+        table.forEach((msb, lsb, expireMillis, maxLifeMillis, userId, statusId) ->
+                          wheel.schedule(msb, lsb, deadline(expireMillis, maxLifeMillis, statusId)));
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-refresh-token-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long tickMillis = config.wheelTick().toMillis();
+        scheduler.scheduleWithFixedDelay(this::advanceQuietly, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+        // The journal's writer forces the log itself, every idm.refresh-token-store.fsync-interval
+        if (journal != null) {
+            long snapshotMillis = config.snapshotInterval().toMillis();
+
+            scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void insert(RefreshToken refreshToken)
+    {
+        UUID token         = UUID.fromString(refreshToken.getToken());
+        long expireMillis  = refreshToken.getExpireTime().toEpochMilli();
+        long maxLifeMillis = refreshToken.getMaxLifeTime().toEpochMilli();
+
+        if (!table.put(token.getMostSignificantBits(), token.getLeastSignificantBits(),
+                       expireMillis, maxLifeMillis,
+                       refreshToken.getUserId(), refreshToken.getTokenStatus().id())) {
+            throw new IllegalStateException("Refresh token store is full, raise idm.refresh-token-store.segments");
+        }
+
+        wheel.schedule(token.getMostSignificantBits(), token.getLeastSignificantBits(),
+                       deadline(expireMillis, maxLifeMillis, refreshToken.getTokenStatus().id()));
+    }
+
+    @Override
+    public RefreshToken find(String token)
+    {
+        UUID uuid = UUID.fromString(token);
+
+        OffHeapTokenTable.Entry entry = table.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (entry == null) {
+            return null;
+        }
+
+        User user = selectUser(ShardRouter.bucketOfToken(token), entry.userId);
+        if (user == null) {
+            return null;
+        }
+
+        return new RefreshToken()
+                .setToken(uuid.toString())
+                .setUserId(entry.userId)
+                .setTokenStatus(TokenStatus.fromId(entry.statusId))
+                .setExpireTime(Instant.ofEpochMilli(entry.expireMillis))
+                .setMaxLifeTime(Instant.ofEpochMilli(entry.maxLifeMillis))
+                .setUser(user);
+    }
+
+    @Override
+    public void extendExpireTime(RefreshToken refreshToken)
+    {
+        UUID token = UUID.fromString(refreshToken.getToken());
+
+        table.extend(token.getMostSignificantBits(), token.getLeastSignificantBits(),
+                     refreshToken.getExpireTime().toEpochMilli());
+    }
+
+    @Override
+    public boolean updateActiveStatus(RefreshToken refreshToken, TokenStatus tokenStatus)
+    {
+        UUID token = UUID.fromString(refreshToken.getToken());
+
+        if (!table.compareAndSetStatus(token.getMostSignificantBits(), token.getLeastSignificantBits(),
+                                       TokenStatus.ACTIVE.id(), tokenStatus.id())) {
+            return false;
+        }
+
+        // No longer active, so it may go before its max life time, and the wheel only ever runs late
+        wheel.schedule(token.getMostSignificantBits(), token.getLeastSignificantBits(),
+                       deadline(refreshToken.getExpireTime().toEpochMilli(),
+                                refreshToken.getMaxLifeTime().toEpochMilli(),
+                                tokenStatus.id()));
+        return true;
+    }
+
+    private User selectUser(int bucket, int userId)
+    {
+        MapSqlParameterSource source =
+                new MapSqlParameterSource()
+                        .addValue("id", userId, Types.INTEGER);
+
+        // One row per role, or a single row with a null role_id
+        ResultSetExtractor<User> extractor = rs -> {
+            User found = null;
+            while (rs.next()) {
+                if (found == null) {
+                    found = new User()
+                            .setId(rs.getInt("id"))
+                            .setEmail(rs.getString("email"))
+                            .setUserStatus(UserStatus.fromId(rs.getInt("user_status_id")));
+                }
+                int roleId = rs.getInt("role_id");
+                if (!rs.wasNull()) {
+                    found.setRole(Role.fromId(roleId));
+                }
+            }
+            return found;
+        };
+
+        User user = repo.read(bucket, null, SELECT_USER_SQL, source, extractor);
+
+        // The token's status lives here, but a replica may not have seen the user locked or banned yet
+        if (user != null && repo.readsReplica(null)) {
+            UserStatus status = repo.primaryUserStatus(bucket, userId);
+            user = status == null ? null : user.setUserStatus(status);
+        }
+        return user;
+    }
+
+    private long deadline(long expireMillis, long maxLifeMillis, int statusId)
+    {
+        return OffHeapTokenTable.removableAt(expireMillis, maxLifeMillis, statusId, gracePeriodMillis);
+    }
+
+    private void advanceQuietly()
+    {
+        try {
+            wheel.advance(System.currentTimeMillis(),
+                          (msb, lsb, nowMillis) -> table.removeIfDue(msb, lsb, nowMillis, gracePeriodMillis));
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to drop expired refresh tokens", e);
+        }
+    }
+
+    private void snapshotQuietly()
+    {
+        try {
+            journal.snapshot(table);
+        } catch (IOException | RuntimeException e) {
+            // The log keeps growing and the next snapshot tries again
+            LOG.warn("Failed to snapshot refresh tokens", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+        throws InterruptedException, IOException
+    {
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+
+        if (journal != null) {
+            journal.snapshot(table);
+            journal.close();
+        }
+    }
+}
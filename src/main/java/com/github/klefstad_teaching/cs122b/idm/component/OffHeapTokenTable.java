@@ -0,0 +1,444 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Open addressing hash table of refresh tokens in direct memory, keyed by
+ * the 128 bit token.
+ * <p>
+ * The table is split into segments, each a power of two of fixed size
+ * {@value #ENTRY_BYTES} byte slots probed linearly under its own lock.
+ * A slot holds the token, the expire and max life times in epoch millis,
+ * the user id and the token status id, or 0 for an empty slot and -1 for
+ * a deleted one. Segments start at their share of the capacity and double
+ * once three quarters full, up to {@value #MAX_SEGMENT_SLOTS} slots where
+ * inserts start to fail. Deleted slots are reused and swept out when they
+ * pile up.
+ * <p>
+ * Every write is reported to the {@link Listener} while the segment lock
+ * is held, so a journal sees the writes to one token in order.
+ */
+final class OffHeapTokenTable
+{
+    static final int ENTRY_BYTES = 40;
+
+    private static final int MSB       = 0;
+    private static final int LSB       = 8;
+    private static final int EXPIRE    = 16;
+    private static final int MAX_LIFE  = 24;
+    private static final int USER_ID   = 32;
+    private static final int STATUS    = 36;
+
+    private static final int EMPTY     = 0;
+    private static final int TOMBSTONE = -1;
+
+    // The most a ByteBuffer can index
+    static final int MAX_SEGMENT_SLOTS = 1 << 25;
+
+    interface Listener
+    {
+        void written(long msb, long lsb, long expireMillis, long maxLifeMillis, int userId, int statusId);
+    }
+
+    interface Visitor
+    {
+        void visit(long msb, long lsb, long expireMillis, long maxLifeMillis, int userId, int statusId);
+    }
+
+    static final class Entry
+    {
+        final long expireMillis;
+        final long maxLifeMillis;
+        final int  userId;
+        final int  statusId;
+
+        private Entry(long expireMillis, long maxLifeMillis, int userId, int statusId)
+        {
+            this.expireMillis = expireMillis;
+            this.maxLifeMillis = maxLifeMillis;
+            this.userId = userId;
+            this.statusId = statusId;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int       segmentShift;
+
+    private volatile Listener listener = (msb, lsb, expireMillis, maxLifeMillis, userId, statusId) -> { };
+
+    /**
+     * @param capacity     live tokens the table is sized for up front, memory is
+     *                     about capacity * 4 / 3 * {@value #ENTRY_BYTES} bytes, rounded up
+     * @param segmentCount rounded up to a power of two
+     */
+    OffHeapTokenTable(int capacity, int segmentCount)
+    {
+        int segmentsPow2    = powerOfTwo(segmentCount);
+        int slotsPerSegment = Math.min(MAX_SEGMENT_SLOTS,
+                                       powerOfTwo(Math.max(8, (int) Math.ceil(capacity * 4.0 / 3 / segmentsPow2))));
+
+        this.segments = new Segment[segmentsPow2];
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentsPow2);
+
+        for (int i = 0; i < segmentsPow2; i++) {
+            segments[i] = new Segment(slotsPerSegment);
+        }
+    }
+
+    void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Inserts or replaces the token.
+     *
+     * @return false if its segment is full and can not grow any further
+     */
+    boolean put(long msb, long lsb, long expireMillis, long maxLifeMillis, int userId, int statusId)
+    {
+        long    hash    = hash(msb, lsb);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int slot = segment.find(msb, lsb, hash);
+
+            if (slot < 0) {
+                slot = segment.claim(msb, lsb, hash);
+                if (slot < 0) {
+                    return false;
+                }
+            }
+
+            segment.write(slot, msb, lsb, expireMillis, maxLifeMillis, userId, statusId);
+            listener.written(msb, lsb, expireMillis, maxLifeMillis, userId, statusId);
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the entry, or null if the token is not in the table
+     */
+    Entry get(long msb, long lsb)
+    {
+        long    hash    = hash(msb, lsb);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int slot = segment.find(msb, lsb, hash);
+
+            if (slot < 0) {
+                return null;
+            }
+
+            ByteBuffer entries = segment.entries;
+            int        offset  = slot * ENTRY_BYTES;
+
+            return new Entry(entries.getLong(offset + EXPIRE),
+                             entries.getLong(offset + MAX_LIFE),
+                             entries.getInt(offset + USER_ID),
+                             entries.getInt(offset + STATUS));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the expire time forward, never backwards.
+     */
+    void extend(long msb, long lsb, long expireMillis)
+    {
+        long    hash    = hash(msb, lsb);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int slot = segment.find(msb, lsb, hash);
+
+            if (slot >= 0 && segment.entries.getLong(slot * ENTRY_BYTES + EXPIRE) < expireMillis) {
+                segment.entries.putLong(slot * ENTRY_BYTES + EXPIRE, expireMillis);
+                segment.report(slot, listener);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the token is missing or its status was not expectedStatusId
+     */
+    boolean compareAndSetStatus(long msb, long lsb, int expectedStatusId, int statusId)
+    {
+        long    hash    = hash(msb, lsb);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int slot = segment.find(msb, lsb, hash);
+
+            if (slot < 0 || segment.entries.getInt(slot * ENTRY_BYTES + STATUS) != expectedStatusId) {
+                return false;
+            }
+
+            segment.entries.putInt(slot * ENTRY_BYTES + STATUS, statusId);
+            segment.report(slot, listener);
+            return true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the token if {@link #removableAt} is not after nowMillis.
+     *
+     * @return -1 if the token is gone, otherwise the time it becomes removable
+     */
+    long removeIfDue(long msb, long lsb, long nowMillis, long graceMillis)
+    {
+        long    hash    = hash(msb, lsb);
+        Segment segment = segmentFor(hash);
+
+        segment.lock.lock();
+        try {
+            int slot = segment.find(msb, lsb, hash);
+
+            if (slot < 0) {
+                return -1;
+            }
+
+            int  offset   = slot * ENTRY_BYTES;
+            long deadline = removableAt(segment.entries.getLong(offset + EXPIRE),
+                                        segment.entries.getLong(offset + MAX_LIFE),
+                                        segment.entries.getInt(offset + STATUS),
+                                        graceMillis);
+
+            if (deadline > nowMillis) {
+                return deadline;
+            }
+
+            segment.remove(slot);
+            return -1;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * The reaper's rule: a token goes once it is past its max life time, or
+     * once it is no longer active and past its expire time by graceMillis.
+     * An active token past its expire time stays, the next /refresh has to
+     * answer EXPIRED for it.
+     *
+     * @return the first time in epoch millis the token may be removed
+     */
+    static long removableAt(long expireMillis, long maxLifeMillis, int statusId, long graceMillis)
+    {
+        long removableAt = maxLifeMillis + 1;
+
+        if (statusId != TokenStatus.ACTIVE.id()) {
+            removableAt = Math.min(removableAt, expireMillis + graceMillis + 1);
+        }
+        return removableAt;
+    }
+
+    /**
+     * Visits every token, one segment at a time under its lock.
+     */
+    void forEach(Visitor visitor)
+    {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.forEach(visitor);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    int size()
+    {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    private Segment segmentFor(long hash)
+    {
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    private static int powerOfTwo(int n)
+    {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    // MurmurHash3 finalizer over both halves
+    private static long hash(long msb, long lsb)
+    {
+        long hash = msb ^ Long.rotateLeft(lsb, 32);
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Segment
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private ByteBuffer entries;
+        private int        mask;
+        private int        maxFill;
+        private int        size;
+        private int        tombstones;
+
+        private Segment(int slots)
+        {
+            this.mask = slots - 1;
+            this.maxFill = slots / 4 * 3;
+            this.entries = ByteBuffer.allocateDirect(slots * ENTRY_BYTES);
+        }
+
+        private int status(int slot)
+        {
+            return entries.getInt(slot * ENTRY_BYTES + STATUS);
+        }
+
+        private int find(long msb, long lsb, long hash)
+        {
+            for (int slot = (int) hash & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+                int status = status(slot);
+
+                if (status == EMPTY) {
+                    return -1;
+                }
+
+                if (status != TOMBSTONE &&
+                    entries.getLong(slot * ENTRY_BYTES + MSB) == msb &&
+                    entries.getLong(slot * ENTRY_BYTES + LSB) == lsb) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        // Only called once find came back empty handed
+        private int claim(long msb, long lsb, long hash)
+        {
+            if (size >= maxFill) {
+                if (mask + 1 >= MAX_SEGMENT_SLOTS) {
+                    return -1;
+                }
+                rehash((mask + 1) * 2);
+            } else if (size + tombstones >= maxFill) {
+                rehash(mask + 1);
+            }
+
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int status = status(slot);
+
+                if (status == EMPTY || status == TOMBSTONE) {
+                    if (status == TOMBSTONE) {
+                        tombstones--;
+                    }
+                    size++;
+                    return slot;
+                }
+            }
+        }
+
+        private void write(int slot, long msb, long lsb, long expireMillis, long maxLifeMillis, int userId, int statusId)
+        {
+            int offset = slot * ENTRY_BYTES;
+
+            entries.putLong(offset + MSB, msb);
+            entries.putLong(offset + LSB, lsb);
+            entries.putLong(offset + EXPIRE, expireMillis);
+            entries.putLong(offset + MAX_LIFE, maxLifeMillis);
+            entries.putInt(offset + USER_ID, userId);
+            entries.putInt(offset + STATUS, statusId);
+        }
+
+        private void remove(int slot)
+        {
+            entries.putInt(slot * ENTRY_BYTES + STATUS, TOMBSTONE);
+            size--;
+            tombstones++;
+        }
+
+        private void report(int slot, Listener listener)
+        {
+            int offset = slot * ENTRY_BYTES;
+
+            listener.written(entries.getLong(offset + MSB),
+                             entries.getLong(offset + LSB),
+                             entries.getLong(offset + EXPIRE),
+                             entries.getLong(offset + MAX_LIFE),
+                             entries.getInt(offset + USER_ID),
+                             entries.getInt(offset + STATUS));
+        }
+
+        private void forEach(Visitor visitor)
+        {
+            for (int slot = 0; slot <= mask; slot++) {
+                int status = status(slot);
+
+                if (status != EMPTY && status != TOMBSTONE) {
+                    int offset = slot * ENTRY_BYTES;
+
+                    visitor.visit(entries.getLong(offset + MSB),
+                                  entries.getLong(offset + LSB),
+                                  entries.getLong(offset + EXPIRE),
+                                  entries.getLong(offset + MAX_LIFE),
+                                  entries.getInt(offset + USER_ID),
+                                  status);
+                }
+            }
+        }
+
+        // Rehashes the live entries into a fresh buffer of the given size, which drops every tombstone
+        private void rehash(int slots)
+        {
+            ByteBuffer old      = entries;
+            int        oldSlots = mask + 1;
+
+            entries = ByteBuffer.allocateDirect(slots * ENTRY_BYTES);
+            mask = slots - 1;
+            maxFill = slots / 4 * 3;
+            tombstones = 0;
+
+            for (int slot = 0; slot < oldSlots; slot++) {
+                int offset = slot * ENTRY_BYTES;
+                int status = old.getInt(offset + STATUS);
+
+                if (status != EMPTY && status != TOMBSTONE) {
+                    long msb    = old.getLong(offset + MSB);
+                    long lsb    = old.getLong(offset + LSB);
+                    int  target = (int) hash(msb, lsb) & mask;
+
+                    while (status(target) != EMPTY) {
+                        target = (target + 1) & mask;
+                    }
+
+                    write(target, msb, lsb,
+                          old.getLong(offset + EXPIRE),
+                          old.getLong(offset + MAX_LIFE),
+                          old.getInt(offset + USER_ID),
+                          status);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMPasswordHashConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Password hashing with versioned parameters.
+ * <p>
+ * Every row in idm.user names the version of idm.hash_parameters its hash
+ * was made with, the algorithm, iterations, salt length and key length,
+ * so the cost of new hashes can go up without invalidating old ones.
+ * Version 1 is what every hash used before versions existed: PBKDF2 with
+ * HMAC-SHA512, 10000 iterations and a 4 byte salt.
+ * <p>
+ * New hashes use the current version, which is settled at startup. Unless
+ * idm.password-hash.iterations fixes them, the iterations are calibrated
+ * to take the target latency on this machine, rounded to a multiple of
+ * {@value #ITERATION_STEP} so instances on the same hardware share a
+ * version, and kept within the configured bounds. The version is looked
+ * up, or added, in idm.hash_parameters on spring.datasource.
+ * <p>
+ * PBKDF2 with HMAC-SHA512 runs on a {@link Pbkdf2HmacSha512} per thread,
+ * other algorithms on the JDK's SecretKeyFactory.
+ */
+@Component
+public class PasswordHasher
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PasswordHasher.class);
+
+    public static final String PBKDF2_HMAC_SHA512 = "PBKDF2WithHmacSHA512";
+
+    private static final int KEY_BIT_LENGTH = 512;
+
+    private static final int CALIBRATION_ITERATIONS = 10000;
+    private static final int CALIBRATION_ROUNDS     = 5;
+    private static final int ITERATION_STEP         = 10000;
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Pbkdf2HmacSha512> ENGINES = ThreadLocal.withInitial(Pbkdf2HmacSha512::new);
+
+    private static final String SELECT_SQL =
+        "select id, algorithm, iterations, salt_length, key_bit_length " +
+        "from idm.hash_parameters " +
+        "where id = :id";
+
+    private static final String SELECT_VERSION_SQL =
+        "select id from idm.hash_parameters " +
+        "where algorithm = :algorithm and iterations = :iterations " +
+        "and salt_length = :salt_length and key_bit_length = :key_bit_length";
+
+    private static final String INSERT_SQL =
+        "insert ignore into idm.hash_parameters(algorithm, iterations, salt_length, key_bit_length) " +
+        "values (:algorithm, :iterations, :salt_length, :key_bit_length)";
+
+    public static final class Parameters
+    {
+        private final int    version;
+        private final String algorithm;
+        private final int    iterations;
+        private final int    saltLength;
+        private final int    keyBitLength;
+
+        private Parameters(int version, String algorithm, int iterations, int saltLength, int keyBitLength)
+        {
+            this.version = version;
+            this.algorithm = algorithm;
+            this.iterations = iterations;
+            this.saltLength = saltLength;
+            this.keyBitLength = keyBitLength;
+        }
+
+        public int version()
+        {
+            return version;
+        }
+
+        public String algorithm()
+        {
+            return algorithm;
+        }
+
+        public int iterations()
+        {
+            return iterations;
+        }
+
+        public int saltLength()
+        {
+            return saltLength;
+        }
+
+        public int keyBitLength()
+        {
+            return keyBitLength;
+        }
+    }
+
+    private final NamedParameterJdbcTemplate             template;
+    private final ConcurrentHashMap<Integer, Parameters> versions = new ConcurrentHashMap<>();
+    private final Parameters                             current;
+
+    @Autowired
+    public PasswordHasher(IDMRepo repo,
+                          IDMPasswordHashConfig config)
+    {
+        this.template = repo.getTemplate();
+
+        int iterations = config.iterations() > 0 ? config.iterations() : calibrate(config);
+
+        this.current = register(PBKDF2_HMAC_SHA512, iterations, config.saltLength(), KEY_BIT_LENGTH);
+
+        LOG.info("Hashing new passwords with version {}: {} iterations, {} byte salt",
+                 current.version(), current.iterations(), current.saltLength());
+    }
+
+    /**
+     * A hasher that knows only the given version of PBKDF2 with
+     * HMAC-SHA512, without reading idm.hash_parameters, for benchmarks.
+     */
+    public PasswordHasher(int version, int iterations, int saltLength)
+    {
+        this.template = null;
+        this.current = new Parameters(version, PBKDF2_HMAC_SHA512, iterations, saltLength, KEY_BIT_LENGTH);
+        this.versions.put(version, current);
+    }
+
+    /**
+     * @return the parameters new hashes are made with
+     */
+    public Parameters current()
+    {
+        return current;
+    }
+
+    /**
+     * @return the parameters of a version in idm.hash_parameters
+     */
+    public Parameters version(int version)
+    {
+        return versions.computeIfAbsent(version, this::load);
+    }
+
+    /**
+     * @return true if a hash made with the parameters is cheaper to attack
+     * than one made with the current parameters
+     */
+    public boolean isOutdated(Parameters parameters)
+    {
+        if (parameters.version == current.version) {
+            return false;
+        }
+
+        return !parameters.algorithm.equals(current.algorithm) ||
+               parameters.iterations < current.iterations ||
+               parameters.saltLength < current.saltLength ||
+               parameters.keyBitLength < current.keyBitLength;
+    }
+
+    public byte[] newSalt(Parameters parameters)
+    {
+        byte[] salt = new byte[parameters.saltLength];
+        SECURE_RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    // CPU heavy, callers should run this on the IDMHashingExecutor
+    public byte[] hash(char[] password, byte[] salt, Parameters parameters)
+    {
+        return pbkdf2(parameters.algorithm, password, salt, parameters.iterations, parameters.keyBitLength);
+    }
+
+    private static byte[] pbkdf2(String algorithm, char[] password, byte[] salt, int iterations, int keyBitLength)
+    {
+        if (PBKDF2_HMAC_SHA512.equals(algorithm) && keyBitLength % 8 == 0) {
+            return ENGINES.get().derive(password, salt, iterations, keyBitLength / 8);
+        }
+
+        try {
+            SecretKeyFactory skf = SecretKeyFactory.getInstance(algorithm);
+
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, keyBitLength);
+
+            try {
+                return skf.generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // The fastest of a few rounds, after as many to warm up, is the cost of the CPU alone
+    private static int calibrate(IDMPasswordHashConfig config)
+    {
+        char[] password = "calibration".toCharArray();
+        byte[] salt     = new byte[config.saltLength()];
+
+        long fastestNanos = Long.MAX_VALUE;
+
+        for (int round = 0; round < 2 * CALIBRATION_ROUNDS; round++) {
+            long start = System.nanoTime();
+            pbkdf2(PBKDF2_HMAC_SHA512, password, salt, CALIBRATION_ITERATIONS, KEY_BIT_LENGTH);
+            long nanos = System.nanoTime() - start;
+
+            if (round >= CALIBRATION_ROUNDS) {
+                fastestNanos = Math.min(fastestNanos, nanos);
+            }
+        }
+
+        double nanosPerIteration = (double) fastestNanos / CALIBRATION_ITERATIONS;
+        long   target            = (long) (config.targetLatency().toNanos() / nanosPerIteration);
+        long   rounded           = target / ITERATION_STEP * ITERATION_STEP;
+        int    iterations        = (int) Math.max(config.minIterations(), Math.min(config.maxIterations(), rounded));
+
+        LOG.info("Calibrated password hashing: {} ns per iteration, {} iterations for {} ms",
+                 Math.round(nanosPerIteration), iterations, config.targetLatency().toMillis());
+
+        return iterations;
+    }
+
+    // Looks the parameters up, adding them if no instance did yet
+    private Parameters register(String algorithm, int iterations, int saltLength, int keyBitLength)
+    {
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("algorithm", algorithm, Types.VARCHAR)
+                .addValue("iterations", iterations, Types.INTEGER)
+                .addValue("salt_length", saltLength, Types.INTEGER)
+                .addValue("key_bit_length", keyBitLength, Types.INTEGER);
+
+        template.update(INSERT_SQL, source);
+        Integer version = template.queryForObject(SELECT_VERSION_SQL, source, Integer.class);
+
+        Parameters parameters = new Parameters(version, algorithm, iterations, saltLength, keyBitLength);
+        versions.put(version, parameters);
+        return parameters;
+    }
+
+    private Parameters load(int version)
+    {
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("id", version, Types.INTEGER);
+
+        List<Parameters> found = template.query(SELECT_SQL, source, (rs, rowNum) -> new Parameters(
+            rs.getInt("id"),
+            rs.getString("algorithm"),
+            rs.getInt("iterations"),
+            rs.getInt("salt_length"),
+            rs.getInt("key_bit_length")));
+
+        if (found.isEmpty()) {
+            throw new IllegalStateException("idm.hash_parameters has no version " + version);
+        }
+        return found.get(0);
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordHasher.Parameters;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMPasswordHashConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves users to the current hash parameters as they log in, the only
+ * time their password is known.
+ * <p>
+ * A login whose hash was made with outdated parameters, see
+ * {@link PasswordHasher#isOutdated}, hashes the password again with the
+ * current ones in the same task, see
+ * {@link IDMAuthenticationManager#passwordMatches}, and hands the hash
+ * over here. Only the write waits: new hashes are written with JDBC batch
+ * updates every flush interval or as soon as the batch size is reached,
+ * only where the row still has the version it was read with.
+ */
+@Component
+public class PasswordRehasher
+{
+    private static final Logger LOG = LoggerFactory.getLogger(PasswordRehasher.class);
+
+    private static final class Rehashed
+    {
+        private final User user;
+        private final int  oldHashVersion;
+
+        private Rehashed(User user, int oldHashVersion)
+        {
+            this.user = user;
+            this.oldHashVersion = oldHashVersion;
+        }
+    }
+
+    private final IDMRepo                              repo;
+    private final CredentialStorage                    storage;
+    private final boolean                              enabled;
+    private final int                                  batchSize;
+    private final ConcurrentHashMap<Integer, Rehashed> pending     = new ConcurrentHashMap<>();
+    private final AtomicBoolean                        flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService             flusher;
+
+    @Autowired
+    public PasswordRehasher(IDMRepo repo,
+                            CredentialStorage storage,
+                            IDMPasswordHashConfig config)
+    {
+        this.repo = repo;
+        this.storage = storage;
+        this.enabled = config.rehash();
+        this.batchSize = config.rehashBatchSize();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-password-rehasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMillis = config.rehashFlushInterval().toMillis();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the user's new hash to be written. Call only once the password
+     * matched the user's hash, with a hash of it made with the parameters.
+     */
+    public void store(User user, byte[] salt, byte[] hashedPassword, Parameters parameters)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        User rehashedUser = new User()
+            .setId(user.getId())
+            .setEmail(user.getEmail())
+            .setSalt(salt)
+            .setHashedPassword(hashedPassword)
+            .setHashVersion(parameters.version());
+
+        pending.put(user.getId(), new Rehashed(rehashedUser, user.getHashVersion()));
+
+        if (pending.size() >= batchSize && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly()
+    {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Hashes stay pending and are retried on the next flush
+            LOG.warn("Failed to write rehashed passwords", e);
+        }
+    }
+
+    public void flush()
+    {
+        flushQueued.set(false);
+
+        List<Rehashed> snapshot = new ArrayList<>(pending.values());
+
+        for (int from = 0; from < snapshot.size(); from += batchSize) {
+            List<Rehashed> chunk = snapshot.subList(from, Math.min(from + batchSize, snapshot.size()));
+
+            SqlParameterSource[] batch = new SqlParameterSource[chunk.size()];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = storage.credentialParameters(chunk.get(i).user, chunk.get(i).oldHashVersion);
+            }
+
+            repo.batchUpdate(storage.updateCredentials(), batch,
+                             i -> ShardRouter.bucketForEmail(chunk.get(i).user.getEmail()));
+
+            for (Rehashed rehashed : chunk) {
+                pending.remove(rehashed.user.getId(), rehashed);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+        throws InterruptedException
+    {
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+}
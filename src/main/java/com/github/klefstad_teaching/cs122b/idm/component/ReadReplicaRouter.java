@@ -0,0 +1,245 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMReadReplicasConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends reads to MySQL replicas and everything else to the primary.
+ * <p>
+ * Each replica in idm.read-replicas.urls gets its own read only Hikari
+ * pool. Reads go round robin over the replicas that are in sync, and to
+ * the primary when none is. Being in sync is measured with a heartbeat:
+ * every heartbeat interval the current time is written to
+ * idm.replica_heartbeat on the primary and read back from each replica,
+ * and a replica whose copy is more than max lag (plus one interval)
+ * behind, or that cannot be reached, is skipped until it catches up. The
+ * lag is published as the idm.replica.lag gauge.
+ * <p>
+ * A replica may not have a row this instance just wrote. Keys passed to
+ * {@link #wrote(String)}, an email just registered or a refresh token
+ * just issued or rotated, read from the primary for the sticky window,
+ * and {@link com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo#read}
+ * asks the primary again whenever a replica finds nothing, which also
+ * covers rows written through another instance. A replica may also still
+ * show a user or token as active after the primary locked, banned or
+ * revoked it, so the statuses tokens are issued on are read again from
+ * the primary, see {@link com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo#readsReplica}.
+ * <p>
+ * Without replicas every read uses the primary's template.
+ */
+@Component
+public class ReadReplicaRouter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ReadReplicaRouter.class);
+
+    private static final String PRIMARY = "primary";
+
+    private static final int STICKY_MAXIMUM_SIZE = 100000;
+
+    private static final String WRITE_HEARTBEAT_SQL =
+        "insert into idm.replica_heartbeat(id, beat) values (1, :beat) " +
+        "on duplicate key update beat = :beat";
+
+    private static final String READ_HEARTBEAT_SQL =
+        "select beat from idm.replica_heartbeat where id = 1";
+
+    private final NamedParameterJdbcTemplate primary;
+    private final NamedParameterJdbcTemplate read;
+    private final List<Replica>              replicas = new ArrayList<>();
+    private final AtomicInteger              next     = new AtomicInteger();
+    private final long                       maxLagMillis;
+    private final Cache<String, Boolean>     recentWrites;
+    private final ScheduledExecutorService   heartbeat;
+
+    @Autowired
+    public ReadReplicaRouter(NamedParameterJdbcTemplate template,
+                             DataSourceProperties dataSourceProperties,
+                             MeterRegistry meterRegistry,
+                             IDMReadReplicasConfig config)
+    {
+        this.primary = template;
+        this.recentWrites = Caffeine.newBuilder()
+                                    .maximumSize(STICKY_MAXIMUM_SIZE)
+                                    .expireAfterWrite(config.stickyWindow())
+                                    .build();
+
+        long intervalMillis = config.heartbeatInterval().toMillis();
+        this.maxLagMillis = config.maxLag().toMillis() + intervalMillis;
+
+        if (config.urls().isEmpty()) {
+            this.read = template;
+            this.heartbeat = null;
+            return;
+        }
+
+        Map<Object, Object> targets = new HashMap<>();
+
+        for (String url : config.urls()) {
+            HikariDataSource dataSource = dataSourceProperties.initializeDataSourceBuilder()
+                                                              .type(HikariDataSource.class)
+                                                              .url(url)
+                                                              .build();
+            dataSource.setPoolName("idm-replica-" + replicas.size());
+            dataSource.setMaximumPoolSize(config.poolSize());
+            dataSource.setReadOnly(true);
+
+            Replica replica = new Replica(dataSource.getPoolName(), dataSource);
+            replicas.add(replica);
+            targets.put(replica.name, dataSource);
+
+            Gauge.builder("idm.replica.lag", replica, Replica::lag)
+                 .description("How far the replica's heartbeat is behind the primary")
+                 .baseUnit("milliseconds")
+                 .tag("replica", replica.name)
+                 .register(meterRegistry);
+        }
+
+        DataSource primaryDataSource = template.getJdbcTemplate().getDataSource();
+        targets.put(PRIMARY, primaryDataSource);
+
+        Routing routing = new Routing();
+        routing.setTargetDataSources(targets);
+        routing.setDefaultTargetDataSource(primaryDataSource);
+        routing.afterPropertiesSet();
+
+        this.read = new NamedParameterJdbcTemplate(routing);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Replicas start out skipped, the first beat decides
+        heartbeat.scheduleWithFixedDelay(this::beat, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param key what the read is for, or null
+     * @return the primary's template if key was written recently, otherwise the replicas'
+     */
+    public NamedParameterJdbcTemplate readTemplate(String key)
+    {
+        if (key != null && recentWrites.getIfPresent(key) != null) {
+            return primary;
+        }
+        return read;
+    }
+
+    public void wrote(String key)
+    {
+        if (heartbeat != null) {
+            recentWrites.put(key, Boolean.TRUE);
+        }
+    }
+
+    private Object chooseReplica()
+    {
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+
+            if (replica.inSync) {
+                return replica.name;
+            }
+        }
+        return PRIMARY;
+    }
+
+    private void beat()
+    {
+        try {
+            primary.update(WRITE_HEARTBEAT_SQL, new MapSqlParameterSource("beat", System.currentTimeMillis()));
+        } catch (RuntimeException e) {
+            // Replicas fall behind the last beat that made it and are skipped once past max lag
+            LOG.warn("Failed to write the replica heartbeat", e);
+        }
+
+        for (Replica replica : replicas) {
+            long lagMillis;
+            try {
+                Long beat = replica.template.queryForObject(READ_HEARTBEAT_SQL, new MapSqlParameterSource(), Long.class);
+                lagMillis = beat == null ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - beat);
+            } catch (RuntimeException e) {
+                lagMillis = Long.MAX_VALUE;
+            }
+
+            boolean inSync = lagMillis <= maxLagMillis;
+
+            if (inSync != replica.inSync) {
+                if (inSync) {
+                    LOG.info("Reading from {} again, {}ms behind", replica.name, lagMillis);
+                } else {
+                    LOG.warn("Skipping {}, {} behind", replica.name,
+                             lagMillis == Long.MAX_VALUE ? "unreachable or" : lagMillis + "ms");
+                }
+            }
+
+            replica.lagMillis = lagMillis;
+            replica.inSync = inSync;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private final class Routing extends AbstractRoutingDataSource
+    {
+        @Override
+        protected Object determineCurrentLookupKey()
+        {
+            return chooseReplica();
+        }
+    }
+
+    private static final class Replica
+    {
+        private final String                     name;
+        private final HikariDataSource           dataSource;
+        private final NamedParameterJdbcTemplate template;
+
+        private volatile long    lagMillis = Long.MAX_VALUE;
+        private volatile boolean inSync;
+
+        private Replica(String name, HikariDataSource dataSource)
+        {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.template = new NamedParameterJdbcTemplate(dataSource);
+        }
+
+        private double lag()
+        {
+            return lagMillis == Long.MAX_VALUE ? Double.NaN : lagMillis;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenWriteBehindConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind buffer for the sliding expire time of refresh tokens.
+ * <p>
+ * Extensions are merged per token in memory, keeping the latest expire
+ * time, and written with JDBC batch updates every flush interval or as
+ * soon as the flush threshold is reached, each to the shard of the
+ * token's user. Readers must go through
+ * {@link #pendingExpireTime(String)} to see values not yet written.
+ * Whatever is buffered is flushed on shutdown.
+ */
+@Component
+public class RefreshTokenExpiryBuffer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(RefreshTokenExpiryBuffer.class);
+
+    private final IDMRepo                            repo;
+    private final CredentialStorage                  storage;
+    private final String                             updateSql;
+    private final int                                flushThreshold;
+    private final int                                batchSize;
+    private final ConcurrentHashMap<String, Extension> pending     = new ConcurrentHashMap<>();
+    private final AtomicBoolean                        flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService             flusher;
+
+    private static final class Extension
+    {
+        private final int     bucket;
+        private final Instant expireTime;
+
+        private Extension(int bucket, Instant expireTime)
+        {
+            this.bucket = bucket;
+            this.expireTime = expireTime;
+        }
+    }
+
+    @Autowired
+    public RefreshTokenExpiryBuffer(IDMRepo repo,
+                                    CredentialStorage storage,
+                                    IDMRefreshTokenWriteBehindConfig config)
+    {
+        this.repo = repo;
+        this.storage = storage;
+        // The guard keeps an older flush from moving the expire time backwards
+        this.updateSql = "update idm.refresh_token " +
+                         "set expire_time = :expire_time " +
+                         "where " + storage.tokenMatches(null) + " and expire_time < :expire_time";
+        this.flushThreshold = config.flushThreshold();
+        this.batchSize = config.batchSize();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-refresh-token-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMillis = config.flushInterval().toMillis();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param bucket the bucket of the token's user, see {@link ShardRouter#bucketForEmail}
+     */
+    public void extend(String token, int bucket, Instant expireTime)
+    {
+        pending.merge(token, new Extension(bucket, expireTime),
+                      (current, next) -> next.expireTime.isAfter(current.expireTime) ? next : current);
+
+        if (pending.size() >= flushThreshold && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * @return the buffered expire time for the token, or null if nothing is pending
+     */
+    public Instant pendingExpireTime(String token)
+    {
+        Extension extension = pending.get(token);
+        return extension == null ? null : extension.expireTime;
+    }
+
+    private void flushQuietly()
+    {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Entries stay buffered and are retried on the next flush
+            LOG.warn("Failed to flush refresh token expire times", e);
+        }
+    }
+
+    public void flush()
+    {
+        flushQueued.set(false);
+
+        Map<String, Extension> snapshot = new HashMap<>(pending);
+        List<SqlParameterSource> batch   = new ArrayList<>(Math.min(snapshot.size(), batchSize));
+        List<Integer>            buckets = new ArrayList<>(Math.min(snapshot.size(), batchSize));
+
+        for (Map.Entry<String, Extension> entry : snapshot.entrySet()) {
+            batch.add(
+                storage.addToken(
+                    new MapSqlParameterSource()
+                        .addValue("expire_time", Timestamp.from(entry.getValue().expireTime), Types.TIMESTAMP),
+                    entry.getKey()
+                )
+            );
+            buckets.add(entry.getValue().bucket);
+
+            if (batch.size() == batchSize) {
+                write(batch, buckets);
+                batch.clear();
+                buckets.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            write(batch, buckets);
+        }
+
+        // Only drop what was written, a newer extension that arrived meanwhile stays pending
+        snapshot.forEach(pending::remove);
+    }
+
+    // Each token's update goes to the shard of its user's bucket
+    private void write(List<SqlParameterSource> batch, List<Integer> buckets)
+    {
+        repo.batchUpdate(updateSql, batch.toArray(new SqlParameterSource[0]), buckets::get);
+    }
+
+    @PreDestroy
+    public void shutdown()
+        throws InterruptedException
+    {
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter.Shard;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenReaperConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes, or moves to idm.refresh_token_archive, refresh tokens that can
+ * never be used again: any token past its max life time, and expired or
+ * revoked tokens whose expire time is more than the grace period ago. The
+ * grace period keeps a late /refresh answering REVOKED or EXPIRED rather
+ * than NOT_FOUND for a while.
+ * <p>
+ * Work is done in keyset paginated chunks over the primary key. Each chunk
+ * picks its ids with a plain read, then deletes exactly those ids with the
+ * condition checked again, so row locks are held for one short statement
+ * and a token that changed in between is left alone. The reaper sleeps
+ * between chunks to leave the database to the request path. Shards are
+ * reaped one after the other.
+ */
+@Component
+public class RefreshTokenReaper
+{
+    private static final Logger LOG = LoggerFactory.getLogger(RefreshTokenReaper.class);
+
+    private static final String REAPABLE =
+        "(max_life_time < :now or (token_status_id <> :active_status and expire_time < :grace_cutoff))";
+
+    private static final String SELECT_SQL =
+        "select id from idm.refresh_token " +
+        "where id > :after and " + REAPABLE + " " +
+        "order by id limit :chunk_size";
+
+    private static final String DELETE_SQL =
+        "delete from idm.refresh_token " +
+        "where id in (:ids) and " + REAPABLE;
+
+    private final IDMRepo                  repo;
+    private final String                   archiveSql;
+    private final long                     gracePeriodMillis;
+    private final int                      chunkSize;
+    private final long                     chunkPauseMillis;
+    private final boolean                  archive;
+    private final Counter                  reclaimed;
+    private final Timer                    chunkLatency;
+    private final ScheduledExecutorService scheduler;
+
+    @Autowired
+    public RefreshTokenReaper(IDMRepo repo,
+                              CredentialStorage storage,
+                              MeterRegistry meterRegistry,
+                              IDMRefreshTokenReaperConfig config)
+    {
+        this.repo = repo;
+        this.archiveSql = "insert into idm.refresh_token_archive(id, token, user_id, token_status_id, expire_time, max_life_time) " +
+                          "select id, " + storage.selectToken(null) + ", user_id, token_status_id, expire_time, max_life_time " +
+                          "from idm.refresh_token " +
+                          "where id in (:ids) and " + REAPABLE;
+        this.gracePeriodMillis = config.gracePeriod().toMillis();
+        this.chunkSize = config.chunkSize();
+        this.chunkPauseMillis = config.chunkPause().toMillis();
+        this.archive = config.archive();
+        this.reclaimed = Counter.builder("idm.refresh.tokens.reclaimed")
+                                .description("Refresh tokens deleted or archived by the reaper")
+                                .tag("mode", archive ? "archive" : "delete")
+                                .register(meterRegistry);
+        this.chunkLatency = Timer.builder("idm.refresh.token.reaper.chunk")
+                                 .description("Time to select and reclaim one chunk of refresh tokens")
+                                 .publishPercentiles(0.5, 0.99)
+                                 .register(meterRegistry);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-refresh-token-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (config.enabled()) {
+            long intervalMillis = config.interval().toMillis();
+            scheduler.scheduleWithFixedDelay(this::reapQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reapQuietly()
+    {
+        try {
+            long count = reap(Instant.now());
+
+            if (count > 0) {
+                LOG.info("Reclaimed {} refresh tokens", count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Whatever is left is picked up on the next run
+            LOG.warn("Failed to reap refresh tokens", e);
+        }
+    }
+
+    /**
+     * Runs one pass over the whole table, on every shard.
+     *
+     * @return the number of tokens reclaimed
+     */
+    public long reap(Instant now)
+        throws InterruptedException
+    {
+        long total = 0;
+        for (Shard shard : repo.shards()) {
+            total += reap(shard, now);
+        }
+        return total;
+    }
+
+    private long reap(Shard shard, Instant now)
+        throws InterruptedException
+    {
+        NamedParameterJdbcTemplate template = shard.template();
+
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("now", Timestamp.from(now), Types.TIMESTAMP)
+                .addValue("grace_cutoff", Timestamp.from(now.minusMillis(gracePeriodMillis)), Types.TIMESTAMP)
+                .addValue("active_status", TokenStatus.ACTIVE.id(), Types.INTEGER)
+                .addValue("chunk_size", chunkSize, Types.INTEGER)
+                .addValue("after", 0, Types.INTEGER);
+
+        long total = 0;
+
+        while (true) {
+            Timer.Sample sample = Timer.start();
+
+            List<Integer> ids = template.queryForList(SELECT_SQL, source, Integer.class);
+
+            if (ids.isEmpty()) {
+                return total;
+            }
+
+            source.addValue("ids", ids);
+            int count = archive ?
+                shard.transactionTemplate().execute(status -> archiveChunk(template, source)) :
+                template.update(DELETE_SQL, source);
+
+            sample.stop(chunkLatency);
+            reclaimed.increment(count);
+            total += count;
+
+            if (ids.size() < chunkSize) {
+                return total;
+            }
+
+            source.addValue("after", ids.get(ids.size() - 1), Types.INTEGER);
+            Thread.sleep(chunkPauseMillis);
+        }
+    }
+
+    private int archiveChunk(NamedParameterJdbcTemplate template, MapSqlParameterSource source)
+    {
+        template.update(archiveSql, source);
+        return template.update(DELETE_SQL, source);
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+
+/**
+ * Where refresh tokens live, chosen with idm.refresh-token-store.type.
+ * {@link IDMAuthenticationManager} is the only caller.
+ *
+ * @see MySQLRefreshTokenStore
+ * @see OffHeapRefreshTokenStore
+ */
+public interface RefreshTokenStore
+{
+    void insert(RefreshToken refreshToken);
+
+    /**
+     * @return the token with its user and the user's roles, null if there is no such token
+     */
+    RefreshToken find(String token);
+
+    /**
+     * Moves the stored expire time forward to the token's, never backwards.
+     */
+    void extendExpireTime(RefreshToken refreshToken);
+
+    /**
+     * @return false if the token was no longer active
+     */
+    boolean updateActiveStatus(RefreshToken refreshToken, TokenStatus tokenStatus);
+}
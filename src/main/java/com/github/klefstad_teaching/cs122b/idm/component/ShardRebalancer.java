@@ -0,0 +1,284 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter.Shard;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMCredentialStorageConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMShardingConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves buckets of users, with their roles and refresh tokens, to the
+ * shard they belong on once idm.sharding.urls has grown, bucket modulo
+ * the number of shards. Runs once at startup when idm.sharding.rebalance
+ * is on, which it should be on a single instance only.
+ * <p>
+ * The service keeps answering for a bucket while it moves, from both
+ * layouts:
+ * <ol>
+ * <li>copy the bucket from its shard to the target</li>
+ * <li>point the bucket at the target in the directory, and copy again for
+ * what was written in between</li>
+ * <li>wait two directory refresh intervals, so every instance routes to
+ * the target, and copy once more for what instances still on the old
+ * directory wrote to the old shard</li>
+ * <li>delete the bucket's users from the old shard, foreign keys take
+ * their roles and refresh tokens along</li>
+ * </ol>
+ * Copies are idempotent: users keep their ids, which are unique across
+ * shards, and a row already on the target keeps the later of the two
+ * statuses and expire times, and the credentials of the newer hash
+ * version. Until the last copy a refresh token made on the old shard is
+ * still found there, but an expiry extension or status change made
+ * meanwhile may land on the new shard before the token does and be lost.
+ * <p>
+ * Rows are copied in keyset paginated chunks over the user id, found
+ * through idm.user.email_bucket, with a pause between buckets. Only the
+ * binary credential storage mode is supported.
+ */
+@Component
+public class ShardRebalancer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ShardRebalancer.class);
+
+    private static final String SELECT_USERS_SQL =
+        "select id, email, user_status_id, salt, hashed_password, hash_version " +
+        "from idm.user " +
+        "where email_bucket = :bucket and id > :after " +
+        "order by id limit :batch_size";
+
+    private static final String SELECT_ROLES_SQL =
+        "select user_id, role_id from idm.user_role where user_id in (:ids)";
+
+    private static final String SELECT_TOKENS_SQL =
+        "select token, user_id, token_status_id, expire_time, max_life_time " +
+        "from idm.refresh_token " +
+        "where user_id in (:ids)";
+
+    // Status ids grow from active to locked to banned, a lock on either copy wins. A rehash
+    // on either copy wins too, hash_version is assigned last as the conditions read it
+    private static final String UPSERT_USER_SQL =
+        "insert into idm.user(id, email, user_status_id, salt, hashed_password, hash_version) " +
+        "values (:id, :email, :user_status_id, :salt, :hashed_password, :hash_version) " +
+        "on duplicate key update " +
+        "user_status_id = greatest(user_status_id, values(user_status_id)), " +
+        "salt = if(values(hash_version) > hash_version, values(salt), salt), " +
+        "hashed_password = if(values(hash_version) > hash_version, values(hashed_password), hashed_password), " +
+        "hash_version = greatest(hash_version, values(hash_version))";
+
+    private static final String INSERT_ROLE_SQL =
+        "insert ignore into idm.user_role(user_id, role_id) values (:user_id, :role_id)";
+
+    // Tokens get new ids on the target, only the token itself is unique across shards
+    private static final String UPSERT_TOKEN_SQL =
+        "insert into idm.refresh_token(token, user_id, token_status_id, expire_time, max_life_time) " +
+        "values (:token, :user_id, :token_status_id, :expire_time, :max_life_time) " +
+        "on duplicate key update " +
+        "token_status_id = greatest(token_status_id, values(token_status_id)), " +
+        "expire_time = greatest(expire_time, values(expire_time))";
+
+    private static final String SELECT_USER_IDS_SQL =
+        "select id from idm.user " +
+        "where email_bucket = :bucket and id > :after " +
+        "order by id limit :batch_size";
+
+    private static final String DELETE_USERS_SQL =
+        "delete from idm.user where email_bucket = :bucket and id in (:ids)";
+
+    private final ShardRouter     router;
+    private final int             batchSize;
+    private final long            movePauseMillis;
+    private final long            settleMillis;
+    private final ExecutorService worker;
+
+    @Autowired
+    public ShardRebalancer(ShardRouter router,
+                           IDMShardingConfig config,
+                           IDMCredentialStorageConfig storageConfig)
+    {
+        this.router = router;
+        this.batchSize = config.moveBatchSize();
+        this.movePauseMillis = config.movePause().toMillis();
+        this.settleMillis = 2 * config.directoryRefreshInterval().toMillis();
+
+        if (!config.rebalance() || !router.isSharded()) {
+            this.worker = null;
+            return;
+        }
+
+        if (storageConfig.mode() != IDMCredentialStorageConfig.Mode.BINARY) {
+            throw new IllegalStateException("idm.sharding.rebalance needs idm.credential-storage.mode: binary");
+        }
+
+        this.worker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-shard-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.execute(this::rebalanceQuietly);
+    }
+
+    private void rebalanceQuietly()
+    {
+        try {
+            int moved = rebalance();
+            LOG.info("Shard rebalance done, moved {} buckets", moved);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Copies are safe to repeat, the next run moves what is left. A bucket that was
+            // already pointed at its target keeps its old rows, unread, on the old shard
+            LOG.warn("Shard rebalance failed", e);
+        }
+    }
+
+    /**
+     * Moves every bucket that is not on its shard yet.
+     *
+     * @return the number of buckets moved
+     */
+    public int rebalance()
+        throws InterruptedException
+    {
+        List<Shard> shards = router.shards();
+        int         moved  = 0;
+
+        for (int bucket = 0; bucket < ShardRouter.BUCKETS; bucket++) {
+            Shard from = router.shardFor(bucket);
+            Shard to   = shards.get(bucket % shards.size());
+
+            if (from.index() == to.index()) {
+                continue;
+            }
+
+            move(bucket, from, to);
+            moved++;
+
+            Thread.sleep(movePauseMillis);
+        }
+        return moved;
+    }
+
+    private void move(int bucket, Shard from, Shard to)
+        throws InterruptedException
+    {
+        long start  = System.currentTimeMillis();
+        long copied = copy(bucket, from, to);
+
+        router.assign(bucket, to.index());
+        copy(bucket, from, to);
+
+        Thread.sleep(settleMillis);
+        copy(bucket, from, to);
+
+        long deleted = delete(bucket, from);
+
+        LOG.info("Moved bucket {} from shard {} to shard {}: {} users copied, {} deleted, in {} ms",
+                 bucket, from.index(), to.index(), copied, deleted, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return the number of users copied
+     */
+    private long copy(int bucket, Shard from, Shard to)
+    {
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("bucket", bucket, Types.INTEGER)
+                .addValue("batch_size", batchSize, Types.INTEGER)
+                .addValue("after", 0, Types.INTEGER);
+
+        long total = 0;
+
+        while (true) {
+            List<Map<String, Object>> users = from.template().queryForList(SELECT_USERS_SQL, source);
+
+            if (users.isEmpty()) {
+                return total;
+            }
+
+            List<Object> ids = new ArrayList<>(users.size());
+            for (Map<String, Object> user : users) {
+                ids.add(user.get("id"));
+            }
+
+            MapSqlParameterSource byIds = new MapSqlParameterSource("ids", ids);
+            List<Map<String, Object>> roles  = from.template().queryForList(SELECT_ROLES_SQL, byIds);
+            List<Map<String, Object>> tokens = from.template().queryForList(SELECT_TOKENS_SQL, byIds);
+
+            // A user's roles and tokens must never arrive without the user
+            to.transactionTemplate().executeWithoutResult(status -> {
+                to.template().batchUpdate(UPSERT_USER_SQL, batch(users));
+                to.template().batchUpdate(INSERT_ROLE_SQL, batch(roles));
+                to.template().batchUpdate(UPSERT_TOKEN_SQL, batch(tokens));
+            });
+
+            total += users.size();
+
+            if (users.size() < batchSize) {
+                return total;
+            }
+
+            source.addValue("after", ids.get(ids.size() - 1));
+        }
+    }
+
+    /**
+     * @return the number of users deleted
+     */
+    private long delete(int bucket, Shard from)
+    {
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("bucket", bucket, Types.INTEGER)
+                .addValue("batch_size", batchSize, Types.INTEGER)
+                .addValue("after", 0, Types.INTEGER);
+
+        long total = 0;
+
+        while (true) {
+            List<Integer> ids = from.template().queryForList(SELECT_USER_IDS_SQL, source, Integer.class);
+
+            if (ids.isEmpty()) {
+                return total;
+            }
+
+            source.addValue("ids", ids);
+            total += from.template().update(DELETE_USERS_SQL, source);
+
+            if (ids.size() < batchSize) {
+                return total;
+            }
+
+            source.addValue("after", ids.get(ids.size() - 1), Types.INTEGER);
+        }
+    }
+
+    private static SqlParameterSource[] batch(List<Map<String, Object>> rows)
+    {
+        SqlParameterSource[] batch = new SqlParameterSource[rows.size()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new MapSqlParameterSource(rows.get(i));
+        }
+        return batch;
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (worker != null) {
+            worker.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMShardingConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.CRC32;
+
+/**
+ * Splits idm.user, idm.user_role and idm.refresh_token across the
+ * databases in idm.sharding.urls.
+ * <p>
+ * A user belongs to one of {@value #BUCKETS} buckets, CRC32 of the lower
+ * cased email, the same value MySQL keeps in idm.user.email_bucket. The
+ * directory, idm.shard_bucket on the first shard, says which shard holds
+ * each bucket, a bucket without a row is on the first shard. A user's
+ * roles and refresh tokens live on the user's shard, so the joins on
+ * login and /refresh stay on one database, and every refresh token
+ * carries its user's bucket in its first bits, so /refresh goes straight
+ * to the right shard. Tokens issued before sharding have random first
+ * bits and are looked for on the other shards when their bucket's shard
+ * does not have them. The directory is reloaded every refresh interval
+ * to pick up buckets the {@link ShardRebalancer} moved.
+ * <p>
+ * User ids stay unique across shards, so rows can move with their ids:
+ * each shard's connections generate ids with an increment of
+ * {@value #MAX_SHARDS} and an offset of the shard's position, and a new,
+ * empty shard starts above every id already taken.
+ * <p>
+ * Without urls there is one shard, the spring.datasource, and the
+ * directory is not read.
+ */
+@Component
+public class ShardRouter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ShardRouter.class);
+
+    public static final int BUCKETS    = 1024;
+    public static final int MAX_SHARDS = 64;
+
+    private static final String SELECT_DIRECTORY_SQL =
+        "select bucket, shard from idm.shard_bucket";
+
+    private static final String ASSIGN_SQL =
+        "insert into idm.shard_bucket(bucket, shard) values (:bucket, :shard) " +
+        "on duplicate key update shard = :shard";
+
+    private static final String MAX_USER_ID_SQL =
+        "select coalesce(max(id), 0) from idm.user";
+
+    public static final class Shard
+    {
+        private final int                        index;
+        private final NamedParameterJdbcTemplate template;
+        private final TransactionTemplate        transactionTemplate;
+
+        private Shard(int index, NamedParameterJdbcTemplate template, TransactionTemplate transactionTemplate)
+        {
+            this.index = index;
+            this.template = template;
+            this.transactionTemplate = transactionTemplate;
+        }
+
+        public int index()
+        {
+            return index;
+        }
+
+        public NamedParameterJdbcTemplate template()
+        {
+            return template;
+        }
+
+        public TransactionTemplate transactionTemplate()
+        {
+            return transactionTemplate;
+        }
+    }
+
+    private final List<Shard>              shards;
+    private final List<HikariDataSource>   pools     = new ArrayList<>();
+    private final AtomicIntegerArray       directory = new AtomicIntegerArray(BUCKETS);
+    private final ScheduledExecutorService refresher;
+
+    @Autowired
+    public ShardRouter(NamedParameterJdbcTemplate template,
+                       TransactionTemplate transactionTemplate,
+                       DataSourceProperties dataSourceProperties,
+                       IDMShardingConfig config)
+    {
+        if (config.urls().isEmpty()) {
+            this.shards = Collections.singletonList(new Shard(0, template, transactionTemplate));
+            this.refresher = null;
+            return;
+        }
+
+        if (config.urls().size() > MAX_SHARDS) {
+            throw new IllegalStateException("idm.sharding.urls holds more than " + MAX_SHARDS + " shards");
+        }
+
+        List<Shard> configured = new ArrayList<>();
+
+        for (String url : config.urls()) {
+            int index = configured.size();
+
+            HikariDataSource dataSource = dataSourceProperties.initializeDataSourceBuilder()
+                                                              .type(HikariDataSource.class)
+                                                              .url(url)
+                                                              .build();
+            dataSource.setPoolName("idm-shard-" + index);
+            dataSource.setMaximumPoolSize(config.poolSize());
+            dataSource.setConnectionInitSql("set session auto_increment_increment = " + MAX_SHARDS +
+                                            ", auto_increment_offset = " + (index + 1));
+            pools.add(dataSource);
+
+            configured.add(new Shard(index,
+                                     new NamedParameterJdbcTemplate(dataSource),
+                                     new TransactionTemplate(new DataSourceTransactionManager(dataSource))));
+        }
+
+        this.shards = Collections.unmodifiableList(configured);
+
+        startNewShardsAboveTakenIds();
+        loadDirectory();
+
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idm-shard-directory");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMillis = config.directoryRefreshInterval().toMillis();
+        refresher.scheduleWithFixedDelay(this::loadDirectoryQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static int bucketForEmail(String email)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(email.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % BUCKETS);
+    }
+
+    /**
+     * @return a random refresh token whose first bits hold the bucket,
+     * 112 of its bits stay random
+     */
+    public static String newToken(int bucket)
+    {
+        UUID random = UUID.randomUUID();
+        long msb    = (random.getMostSignificantBits() & ~((BUCKETS - 1L) << 48)) | ((long) bucket << 48);
+
+        return new UUID(msb, random.getLeastSignificantBits()).toString();
+    }
+
+    /**
+     * @param token a refresh token that passed Validate
+     * @return the bucket of the token's user, or a random one for a token
+     * issued before sharding
+     */
+    public static int bucketOfToken(String token)
+    {
+        return Integer.parseInt(token, 0, 4, 16) & (BUCKETS - 1);
+    }
+
+    public boolean isSharded()
+    {
+        return refresher != null;
+    }
+
+    public List<Shard> shards()
+    {
+        return shards;
+    }
+
+    public Shard shardFor(int bucket)
+    {
+        return shards.get(directory.get(bucket));
+    }
+
+    /**
+     * Points the bucket at another shard, here right away and on other
+     * instances once they reload the directory.
+     */
+    public void assign(int bucket, int shard)
+    {
+        shards.get(0).template().update(ASSIGN_SQL, new MapSqlParameterSource()
+            .addValue("bucket", bucket)
+            .addValue("shard", shard));
+        directory.set(bucket, shard);
+    }
+
+    private void loadDirectoryQuietly()
+    {
+        try {
+            loadDirectory();
+        } catch (RuntimeException e) {
+            // Keep routing with the directory we have
+            LOG.warn("Failed to reload the shard directory", e);
+        }
+    }
+
+    private void loadDirectory()
+    {
+        int[] loaded = new int[BUCKETS];
+
+        RowCallbackHandler handler = rs -> {
+            int shard = rs.getInt("shard");
+
+            if (shard >= shards.size()) {
+                throw new IllegalStateException("idm.shard_bucket puts bucket " + rs.getInt("bucket") +
+                                                " on shard " + shard + ", which is not in idm.sharding.urls");
+            }
+            loaded[rs.getInt("bucket")] = shard;
+        };
+
+        shards.get(0).template().query(SELECT_DIRECTORY_SQL, handler);
+
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            directory.set(bucket, loaded[bucket]);
+        }
+    }
+
+    // Rows moved onto a shard keep their ids, which its own ids must never run into
+    private void startNewShardsAboveTakenIds()
+    {
+        long maxId = 0;
+        for (Shard shard : shards) {
+            Long shardMax = shard.template().getJdbcTemplate().queryForObject(MAX_USER_ID_SQL, Long.class);
+            maxId = Math.max(maxId, shardMax == null ? 0 : shardMax);
+        }
+
+        for (Shard shard : shards.subList(1, shards.size())) {
+            Long shardMax = shard.template().getJdbcTemplate().queryForObject(MAX_USER_ID_SQL, Long.class);
+
+            if (shardMax == null || shardMax == 0) {
+                shard.template().getJdbcTemplate().execute("alter table idm.user auto_increment = " + (maxId + 1));
+                LOG.info("New shard {} starts user ids above {}", shard.index(), maxId);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        for (HikariDataSource pool : pools) {
+            pool.close();
+        }
+    }
+}
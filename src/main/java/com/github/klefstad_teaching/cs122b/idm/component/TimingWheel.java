@@ -0,0 +1,100 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel of 128 bit keys.
+ * <p>
+ * A key is filed under the tick of its deadline, modulo the number of
+ * slots. Advancing the wheel hands every key in the slots passed over to a
+ * {@link Handler}, which decides with the current state whether the key
+ * is done or gives a new deadline to file it under again. Keys due more
+ * than one revolution out are simply seen, and refiled, once per
+ * revolution, so a deadline that moved later needs no rescheduling.
+ * <p>
+ * Keys are only ever handled late, never early: one scheduled while the
+ * wheel is passing its slot waits for the next revolution.
+ */
+final class TimingWheel
+{
+    interface Handler
+    {
+        /**
+         * @return -1 if the key is done, otherwise its new deadline in epoch millis
+         */
+        long due(long msb, long lsb, long nowMillis);
+    }
+
+    private final Slot[] slots;
+    private final long   tickMillis;
+
+    private volatile long currentTick;
+
+    TimingWheel(int slotCount, Duration tick, long nowMillis)
+    {
+        this.slots = new Slot[slotCount];
+        this.tickMillis = Math.max(1, tick.toMillis());
+        this.currentTick = nowMillis / tickMillis;
+
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    void schedule(long msb, long lsb, long deadlineMillis)
+    {
+        long tick = Math.max(deadlineMillis / tickMillis, currentTick + 1);
+
+        slots[(int) (tick % slots.length)].add(msb, lsb);
+    }
+
+    /**
+     * Passes over every slot up to nowMillis. Only one thread may advance.
+     */
+    void advance(long nowMillis, Handler handler)
+    {
+        long nowTick = nowMillis / tickMillis;
+
+        // After a long stall every slot is visited once rather than once per missed tick
+        for (long tick = Math.max(currentTick + 1, nowTick - slots.length + 1); tick <= nowTick; tick++) {
+            currentTick = tick;
+
+            long[] keys = slots[(int) (tick % slots.length)].drain();
+
+            for (int i = 0; i < keys.length; i += 2) {
+                long deadline = handler.due(keys[i], keys[i + 1], nowMillis);
+
+                if (deadline >= 0) {
+                    schedule(keys[i], keys[i + 1], deadline);
+                }
+            }
+        }
+    }
+
+    private static final class Slot
+    {
+        private long[] keys = new long[16];
+        private int    length;
+
+        private synchronized void add(long msb, long lsb)
+        {
+            if (length == keys.length) {
+                keys = Arrays.copyOf(keys, length * 2);
+            }
+            keys[length++] = msb;
+            keys[length++] = lsb;
+        }
+
+        private synchronized long[] drain()
+        {
+            long[] drained = Arrays.copyOf(keys, length);
+
+            length = 0;
+            if (keys.length > 1024) {
+                keys = new long[16];
+            }
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size table of token buckets keyed by a 64 bit hash, updated with
+ * compare-and-set only.
+ * <p>
+ * A key lives in one of {@value #PROBE_LENGTH} slots starting at its hash.
+ * A bucket that has been idle long enough to refill completely is as good
+ * as new, so its slot is handed to the next key that needs one and the
+ * table never grows. When every slot in the window is still in use the key
+ * is either charged to the least recently touched of them, which can only
+ * make throttling stricter, or, if the table does not share buckets, let
+ * through as if its bucket were full.
+ * <p>
+ * Each bucket is one long: the time of the last take in milliseconds
+ * above {@value #UNIT_FIELD_BITS} bits of tokens in 1/1024 units.
+ */
+public final class TokenBucketTable
+{
+    private static final int  PROBE_LENGTH = 8;
+    private static final long EMPTY        = 0;
+
+    private static final int  UNIT_FIELD_BITS = 24;
+    private static final long UNIT_FIELD_MASK = (1L << UNIT_FIELD_BITS) - 1;
+    private static final long ONE_TOKEN       = 1024;
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray buckets;
+    private final int             mask;
+    private final long            capacityUnits;
+    private final long            refillMillis;
+    private final long            fullRefillMillis;
+    private final long            epochMillis;
+    private final boolean         shareWhenFull;
+
+    /**
+     * @param size           number of slots, rounded up to a power of two
+     * @param capacity       tokens a full bucket holds
+     * @param refillInterval time to put one token back
+     * @param shareWhenFull  charge keys that find no slot to the oldest bucket
+     *                       in their window instead of letting them through
+     */
+    public TokenBucketTable(int size, int capacity, Duration refillInterval, boolean shareWhenFull)
+    {
+        if (capacity < 1 || capacity * ONE_TOKEN > UNIT_FIELD_MASK) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + UNIT_FIELD_MASK / ONE_TOKEN);
+        }
+
+        int slots = Integer.highestOneBit(Math.max(PROBE_LENGTH, size - 1) << 1);
+
+        this.keys = new AtomicLongArray(slots);
+        this.buckets = new AtomicLongArray(slots);
+        this.mask = slots - 1;
+        this.capacityUnits = capacity * ONE_TOKEN;
+        this.refillMillis = Math.max(1, refillInterval.toMillis());
+        this.fullRefillMillis = refillMillis * capacity;
+        // A zeroed bucket then reads as idle for a full refill, i.e. full
+        this.epochMillis = System.currentTimeMillis() - fullRefillMillis;
+        this.shareWhenFull = shareWhenFull;
+    }
+
+    /**
+     * Takes one token from the key's bucket.
+     *
+     * @param key any non-zero, well mixed hash
+     * @return whole tokens left after taking one, or -1 if the bucket was empty
+     */
+    public int acquire(long key, long nowMillis)
+    {
+        int slot = slotFor(key, nowMillis);
+
+        if (slot < 0) {
+            return (int) (capacityUnits / ONE_TOKEN) - 1;
+        }
+
+        while (true) {
+            long bucket = buckets.get(slot);
+            long units  = refilled(bucket, nowMillis);
+
+            if (units < ONE_TOKEN) {
+                return -1;
+            }
+
+            if (buckets.compareAndSet(slot, bucket, pack(nowMillis, units - ONE_TOKEN))) {
+                return (int) ((units - ONE_TOKEN) / ONE_TOKEN);
+            }
+        }
+    }
+
+    /**
+     * Fills the key's bucket back up, if the key is tracked.
+     */
+    public void reset(long key, long nowMillis)
+    {
+        int start = start(key);
+
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int slot = (start + i) & mask;
+
+            if (keys.get(slot) == key) {
+                buckets.set(slot, pack(nowMillis, capacityUnits));
+                return;
+            }
+        }
+    }
+
+    private int slotFor(long key, long nowMillis)
+    {
+        int start = start(key);
+
+        // Look for the key first so it never ends up in two slots
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int slot = (start + i) & mask;
+
+            if (keys.get(slot) == key) {
+                return slot;
+            }
+        }
+
+        int  oldest     = -1;
+        long oldestTime = Long.MAX_VALUE;
+
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            int  slot     = (start + i) & mask;
+            long current  = keys.get(slot);
+            long bucket   = buckets.get(slot);
+            long lastTake = bucket >>> UNIT_FIELD_BITS;
+
+            if (current == key) {
+                return slot;
+            }
+
+            if (current == EMPTY || nowMillis - epochMillis - lastTake >= fullRefillMillis) {
+                if (keys.compareAndSet(slot, current, key)) {
+                    // Lost only if the new key already took from the bucket
+                    buckets.compareAndSet(slot, bucket, pack(nowMillis, capacityUnits));
+                    return slot;
+                }
+
+                if (keys.get(slot) == key) {
+                    return slot;
+                }
+                continue;
+            }
+
+            if (lastTake < oldestTime) {
+                oldest = slot;
+                oldestTime = lastTake;
+            }
+        }
+
+        return shareWhenFull ? oldest : -1;
+    }
+
+    private long refilled(long bucket, long nowMillis)
+    {
+        long elapsed = Math.min(fullRefillMillis, Math.max(0, nowMillis - epochMillis - (bucket >>> UNIT_FIELD_BITS)));
+        long units   = (bucket & UNIT_FIELD_MASK) + elapsed * ONE_TOKEN / refillMillis;
+
+        return Math.min(capacityUnits, units);
+    }
+
+    private long pack(long nowMillis, long units)
+    {
+        return (nowMillis - epochMillis) << UNIT_FIELD_BITS | units;
+    }
+
+    private int start(long key)
+    {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+}
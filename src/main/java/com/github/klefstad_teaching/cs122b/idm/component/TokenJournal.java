@@ -0,0 +1,400 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Snapshot plus append log that makes an {@link OffHeapTokenTable} survive
+ * restarts.
+ * <p>
+ * Every write to the table is appended to the current log as a full
+ * {@value OffHeapTokenTable#ENTRY_BYTES} byte entry, so replaying a log
+ * in order ends on the latest state of each token however much of it a
+ * snapshot already holds. Removals are not logged, tokens the wheel
+ * dropped come back on recovery and are dropped again on its first pass.
+ * <p>
+ * Files are numbered by generation. A snapshot first switches writes over
+ * to the log of the next generation, then writes the table to a temporary
+ * file that is renamed into place once it is on disk, and only then
+ * deletes the files of older generations. Recovery loads the newest
+ * snapshot, replays every log from its generation on and ignores a torn
+ * last entry, then starts a new generation with a fresh snapshot.
+ * <p>
+ * {@link #append} takes no lock and does no I/O, it is called under the
+ * table's segment lock on request threads, virtual ones included. Entries
+ * go into a ring of {@value #RING_ENTRIES} slots claimed with a single
+ * atomic increment, and one writer thread hands every run of published
+ * slots to the OS in a single write, forcing the log to disk every fsync
+ * interval. Appends only wait when the writer is a full ring behind. A
+ * crash of the process loses what the writer had not picked up yet, a
+ * crash of the host what was written since the last force.
+ */
+final class TokenJournal
+{
+    private static final Logger LOG = LoggerFactory.getLogger(TokenJournal.class);
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String LOG_SUFFIX      = ".log";
+    private static final String TEMP_SUFFIX     = ".tmp";
+
+    private static final int SNAPSHOT_BUFFER_ENTRIES = 1024;
+
+    private static final int  RING_ENTRIES    = 1 << 16;
+    private static final int  RING_MASK       = RING_ENTRIES - 1;
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Path directory;
+    private final long fsyncNanos;
+
+    // Slot i holds the entry of the sequence published[i] - 1
+    private final ByteBuffer      ring      = ByteBuffer.allocateDirect(OffHeapTokenTable.ENTRY_BYTES * RING_ENTRIES);
+    private final AtomicLongArray published = new AtomicLongArray(RING_ENTRIES);
+    private final AtomicLong      claimed   = new AtomicLong();
+
+    // Only the writer reads the ring through these
+    private final ByteBuffer head = ring.duplicate();
+    private final ByteBuffer wrap = ring.duplicate();
+
+    // Guards the log between the writer, snapshots and close
+    private final ReentrantLock fileLock = new ReentrantLock();
+
+    private volatile long    drained;
+    private volatile boolean writerParked;
+    private volatile boolean running;
+
+    private Thread      writer;
+    private FileChannel log;
+    private long        generation;
+    private boolean     dirty;
+
+    TokenJournal(Path directory, Duration fsyncInterval)
+        throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.fsyncNanos = Math.max(1, fsyncInterval.toNanos());
+    }
+
+    /**
+     * Loads the table from disk, starts a new generation and the writer.
+     * Must be called before the journal is set as the table's listener.
+     */
+    void recover(OffHeapTokenTable table)
+        throws IOException
+    {
+        List<Long> snapshots = generations(SNAPSHOT_SUFFIX);
+        List<Long> logs      = generations(LOG_SUFFIX);
+
+        long snapshotGeneration = snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+
+        if (snapshotGeneration >= 0) {
+            load(path(snapshotGeneration, SNAPSHOT_SUFFIX), table);
+        }
+
+        for (long logGeneration : logs) {
+            if (logGeneration >= snapshotGeneration) {
+                load(path(logGeneration, LOG_SUFFIX), table);
+            }
+        }
+
+        fileLock.lock();
+        try {
+            generation = Math.max(snapshotGeneration, logs.isEmpty() ? -1 : logs.get(logs.size() - 1));
+        } finally {
+            fileLock.unlock();
+        }
+
+        // A torn entry would misalign anything appended after it, so never append to a recovered log
+        snapshot(table);
+
+        running = true;
+        writer = new Thread(this::write, "idm-refresh-token-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Hands the entry to the writer. Entries appended in order, as the
+     * table does for one token under its segment lock, are written in order.
+     */
+    void append(long msb, long lsb, long expireMillis, long maxLifeMillis, int userId, int statusId)
+    {
+        long sequence = claimed.getAndIncrement();
+
+        while (sequence - drained >= RING_ENTRIES) {
+            if (!running) {
+                throw new IllegalStateException("Refresh token log is closed");
+            }
+            LockSupport.parkNanos(FULL_WAIT_NANOS);
+        }
+
+        int offset = (int) (sequence & RING_MASK) * OffHeapTokenTable.ENTRY_BYTES;
+
+        ring.putLong(offset, msb)
+            .putLong(offset + 8, lsb)
+            .putLong(offset + 16, expireMillis)
+            .putLong(offset + 24, maxLifeMillis)
+            .putInt(offset + 32, userId)
+            .putInt(offset + 36, statusId);
+
+        // Publishes the entry, the writer reads the slot only after it sees this
+        published.set((int) (sequence & RING_MASK), sequence + 1);
+
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Forces what has been written so far to disk.
+     */
+    void force()
+        throws IOException
+    {
+        fileLock.lock();
+        try {
+            if (dirty && log != null) {
+                log.force(false);
+                dirty = false;
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // Runs until close, then writes what was published before it
+    private void write()
+    {
+        long lastForce = System.nanoTime();
+
+        while (true) {
+            boolean stopping = !running;
+            long    from     = drained;
+            long    to       = from;
+
+            while (to - from < RING_ENTRIES && published.get((int) (to & RING_MASK)) == to + 1) {
+                to++;
+            }
+
+            if (to > from) {
+                writeBatch(from, to);
+                drained = to;
+            } else if (stopping) {
+                return;
+            }
+
+            long sinceForce = System.nanoTime() - lastForce;
+            if (sinceForce >= fsyncNanos) {
+                forceQuietly();
+                lastForce = System.nanoTime();
+                continue;
+            }
+
+            if (to == from) {
+                writerParked = true;
+                // Checked again after the flag, an append that missed it is seen here
+                if (running && published.get((int) (from & RING_MASK)) != from + 1) {
+                    LockSupport.parkNanos(this, fsyncNanos - sinceForce);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    private void writeBatch(long from, long to)
+    {
+        int start = (int) (from & RING_MASK);
+        int count = (int) (to - from);
+        int first = Math.min(count, RING_ENTRIES - start);
+
+        head.limit((start + first) * OffHeapTokenTable.ENTRY_BYTES);
+        head.position(start * OffHeapTokenTable.ENTRY_BYTES);
+        wrap.limit((count - first) * OffHeapTokenTable.ENTRY_BYTES);
+        wrap.position(0);
+
+        ByteBuffer[] batch = {head, wrap};
+
+        fileLock.lock();
+        try {
+            while (head.hasRemaining() || wrap.hasRemaining()) {
+                log.write(batch);
+            }
+            dirty = true;
+        } catch (IOException e) {
+            // The next snapshot writes these tokens out again
+            LOG.warn("Failed to append {} entries to the refresh token log", count, e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private void forceQuietly()
+    {
+        try {
+            force();
+        } catch (IOException e) {
+            LOG.warn("Failed to force the refresh token log to disk", e);
+        }
+    }
+
+    /**
+     * Writes the table to a new snapshot and drops the files it replaces.
+     * Only one thread may take snapshots.
+     */
+    void snapshot(OffHeapTokenTable table)
+        throws IOException
+    {
+        long snapshotGeneration;
+
+        // Entries still in the ring go to the new log, which is replayed over this snapshot
+        fileLock.lock();
+        try {
+            if (log != null) {
+                log.force(false);
+                log.close();
+            }
+            snapshotGeneration = ++generation;
+            log = FileChannel.open(path(snapshotGeneration, LOG_SUFFIX),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.APPEND);
+            dirty = false;
+        } finally {
+            fileLock.unlock();
+        }
+
+        Path snapshot = path(snapshotGeneration, SNAPSHOT_SUFFIX);
+        Path temp     = path(snapshotGeneration, SNAPSHOT_SUFFIX + TEMP_SUFFIX);
+
+        try (FileChannel out = FileChannel.open(temp,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(OffHeapTokenTable.ENTRY_BYTES * SNAPSHOT_BUFFER_ENTRIES);
+
+            try {
+                table.forEach((msb, lsb, expireMillis, maxLifeMillis, userId, statusId) -> {
+                    if (!buffer.hasRemaining()) {
+                        writeFully(out, buffer);
+                    }
+                    buffer.putLong(msb)
+                          .putLong(lsb)
+                          .putLong(expireMillis)
+                          .putLong(maxLifeMillis)
+                          .putInt(userId)
+                          .putInt(statusId);
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            writeFully(out, buffer);
+            out.force(true);
+        }
+
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        for (String suffix : new String[]{SNAPSHOT_SUFFIX, SNAPSHOT_SUFFIX + TEMP_SUFFIX, LOG_SUFFIX}) {
+            for (long older : generations(suffix)) {
+                if (older < snapshotGeneration) {
+                    Files.deleteIfExists(path(older, suffix));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the writer once it has written everything appended so far, then
+     * forces and closes the log.
+     */
+    void close()
+        throws IOException, InterruptedException
+    {
+        running = false;
+
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            writer.join();
+        }
+
+        fileLock.lock();
+        try {
+            if (log != null) {
+                log.force(false);
+                log.close();
+                log = null;
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer)
+    {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    private static void load(Path file, OffHeapTokenTable table)
+        throws IOException
+    {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(OffHeapTokenTable.ENTRY_BYTES * SNAPSHOT_BUFFER_ENTRIES);
+
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= OffHeapTokenTable.ENTRY_BYTES) {
+                    if (!table.put(buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                                   buffer.getLong(), buffer.getInt(), buffer.getInt())) {
+                        throw new IllegalStateException("Refresh token store segment is full loading " + file);
+                    }
+                }
+                // A torn last entry stays behind and is dropped at the end of the file
+                buffer.compact();
+            }
+        }
+    }
+
+    private List<Long> generations(String suffix)
+        throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                        .filter(name -> name.endsWith(suffix) && name.length() > suffix.length())
+                        .map(name -> name.substring(0, name.length() - suffix.length()))
+                        .filter(name -> name.chars().allMatch(Character::isDigit))
+                        .map(Long::valueOf)
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private Path path(long fileGeneration, String suffix)
+    {
+        return directory.resolve(String.format("%019d", fileGeneration) + suffix);
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMImportConfig;
+import com.github.klefstad_teaching.cs122b.idm.model.admin.ImportProgressModel;
+import com.github.klefstad_teaching.cs122b.idm.model.admin.ImportRowModel;
+import com.github.klefstad_teaching.cs122b.idm.model.register.RegisterRequest;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.util.Validate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registers users from an NDJSON stream of {"email": ..., "password": [...]}
+ * lines, the same shape /register takes.
+ * <p>
+ * Lines are read and validated one at a time and collected into batches.
+ * Each batch is hashed across a fork-join pool and written with one JDBC
+ * batch of INSERT IGNORE, whose per-row update count tells registered rows
+ * from duplicates. Only one batch is held at a time, so memory does not
+ * depend on the size of the stream. The pool never grows past its
+ * parallelism, concurrent imports share it and queue behind each other
+ * instead of taking cores from the {@link IDMHashingExecutor}.
+ * <p>
+ * The output is NDJSON as well: one line per rejected or duplicate row as
+ * soon as it is known, one progress line per batch and a final progress
+ * line with done set. Per-row counts need the driver to report them, which
+ * Connector/J does unless rewriteBatchedStatements is on.
+ */
+@Component
+public class UserImporter
+{
+    private final IDMAuthenticationManager authManager;
+    private final IDMRepo                  repo;
+    private final CredentialStorage        storage;
+    private final Validate                 validate;
+    private final EmailBloomFilter         emailFilter;
+    private final ObjectReader             requestReader;
+    private final ObjectWriter             lineWriter;
+    private final int                      batchSize;
+    private final ForkJoinPool             hashingPool;
+
+    @Autowired
+    public UserImporter(IDMAuthenticationManager authManager,
+                        IDMRepo repo,
+                        CredentialStorage storage,
+                        Validate validate,
+                        EmailBloomFilter emailFilter,
+                        ObjectMapper objectMapper,
+                        IDMImportConfig config)
+    {
+        this.authManager = authManager;
+        this.repo = repo;
+        this.storage = storage;
+        this.validate = validate;
+        this.emailFilter = emailFilter;
+        this.requestReader = objectMapper.readerFor(RegisterRequest.class);
+        this.lineWriter = objectMapper.writer();
+        this.batchSize = config.batchSize();
+        // No compensation threads past parallelism, a saturated pool just waits
+        this.hashingPool = new ForkJoinPool(
+            config.parallelism(),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("idm-import-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            },
+            null,
+            false,
+            0,
+            config.parallelism(),
+            1,
+            pool -> true,
+            60, TimeUnit.SECONDS
+        );
+    }
+
+    public void importUsers(InputStream in, OutputStream out)
+        throws IOException
+    {
+        BufferedReader      reader   = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        ImportProgressModel progress = new ImportProgressModel();
+        List<Row>           batch    = new ArrayList<>(batchSize);
+
+        long   lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+
+            if (line.isBlank()) {
+                continue;
+            }
+
+            RegisterRequest request;
+            try {
+                request = requestReader.readValue(line);
+            } catch (JsonProcessingException e) {
+                reject(out, progress, lineNumber, null, null, "Malformed JSON");
+                continue;
+            }
+
+            if (request.getEmail() == null || request.getPassword() == null) {
+                reject(out, progress, lineNumber, request.getEmail(), null, "Missing email or password");
+                continue;
+            }
+
+            Result invalid = validate.credentials(request.getEmail(), request.getPassword());
+            if (invalid != null) {
+                reject(out, progress, lineNumber, request.getEmail(), invalid, null);
+                continue;
+            }
+
+            batch.add(new Row(lineNumber, request));
+
+            if (batch.size() == batchSize) {
+                insertBatch(out, progress, batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            insertBatch(out, progress, batch);
+        }
+
+        progress.setDone(true);
+        writeLine(out, progress);
+        out.flush();
+    }
+
+    private void insertBatch(OutputStream out, ImportProgressModel progress, List<Row> batch)
+        throws IOException
+    {
+        List<ForkJoinTask<User>> hashing = new ArrayList<>(batch.size());
+        for (Row row : batch) {
+            hashing.add(hashingPool.submit(() -> {
+                User user = authManager.createUser(row.request.getEmail(), row.request.getPassword());
+                Arrays.fill(row.request.getPassword(), '\0');
+                return user;
+            }));
+        }
+
+        SqlParameterSource[] inserts = new SqlParameterSource[batch.size()];
+        for (int i = 0; i < inserts.length; i++) {
+            inserts[i] = storage.userParameters(hashing.get(i).join());
+        }
+
+        int[] counts = repo.batchUpdate(storage.insertUser(true), inserts,
+                                        i -> ShardRouter.bucketForEmail(batch.get(i).request.getEmail()));
+
+        for (int i = 0; i < counts.length; i++) {
+            Row row = batch.get(i);
+
+            // INSERT IGNORE reports 0 rows for an email that is already taken
+            if (counts[i] == 0) {
+                progress.setDuplicates(progress.getDuplicates() + 1);
+                writeLine(out, rowModel(row.line, row.request.getEmail(), IDMResults.USER_ALREADY_EXISTS, null));
+            } else {
+                progress.setRegistered(progress.getRegistered() + 1);
+                emailFilter.add(row.request.getEmail());
+            }
+        }
+
+        progress.setProcessed(progress.getProcessed() + batch.size());
+        writeLine(out, progress);
+        out.flush();
+    }
+
+    private void reject(OutputStream out, ImportProgressModel progress, long line, String email, Result result, String error)
+        throws IOException
+    {
+        progress.setRejected(progress.getRejected() + 1);
+        progress.setProcessed(progress.getProcessed() + 1);
+        writeLine(out, rowModel(line, email, result, error));
+    }
+
+    private static ImportRowModel rowModel(long line, String email, Result result, String error)
+    {
+        ImportRowModel row = new ImportRowModel();
+        row.setLine(line);
+        row.setEmail(email);
+        row.setResult(result);
+        row.setError(error);
+        return row;
+    }
+
+    // writeValue(OutputStream) would close the response
+    private void writeLine(OutputStream out, Object value)
+        throws IOException
+    {
+        out.write(lineWriter.writeValueAsBytes(value));
+        out.write('\n');
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        hashingPool.shutdown();
+    }
+
+    private static final class Row
+    {
+        private final long            line;
+        private final RegisterRequest request;
+
+        private Row(long line, RegisterRequest request)
+        {
+            this.line = line;
+            this.request = request;
+        }
+    }
+}
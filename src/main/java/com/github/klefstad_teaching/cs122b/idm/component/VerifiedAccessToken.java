@@ -0,0 +1,55 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.nimbusds.jwt.JWTClaimsSet;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * An access token whose signature and claims have already been checked,
+ * only the expire time has to be looked at again on later calls.
+ */
+public class VerifiedAccessToken
+{
+    private final JWTClaimsSet claims;
+    private final Instant      expireTime;
+
+    public VerifiedAccessToken(JWTClaimsSet claims, Instant expireTime)
+    {
+        this.claims = claims;
+        this.expireTime = expireTime;
+    }
+
+    public JWTClaimsSet getClaims()
+    {
+        return claims;
+    }
+
+    public Instant getExpireTime()
+    {
+        return expireTime;
+    }
+
+    public boolean hasExpired(Instant now)
+    {
+        return now.isAfter(expireTime);
+    }
+
+    // Roles are written by enum name, compared loosely to also accept the display name
+    public boolean hasRole(Role role)
+    {
+        Object roles = claims.getClaim(JWTManager.CLAIM_ROLES);
+
+        if (roles instanceof List) {
+            for (Object granted : (List<?>) roles) {
+                if (role.name().equalsIgnoreCase(String.valueOf(granted))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMVirtualThreadsConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs Tomcat request handling on one virtual thread per request when
+ * idm.virtual-threads.enabled is set, so a request waiting on MySQL does
+ * not hold a platform thread. PBKDF2 still runs on the
+ * {@link IDMHashingExecutor}, it is CPU bound and gains nothing from it.
+ * <p>
+ * The service is built for Java 17, so the JDK 21 API is looked up
+ * reflectively and enabling this on an older JVM fails startup.
+ * <p>
+ * Pinning: Connector/J does its socket I/O inside synchronized blocks, so
+ * a virtual thread in a JDBC call pins its carrier until MySQL answers.
+ * At most the Hikari pool size of them can be in JDBC at once, the rest
+ * park in Hikari without pinning. The other monitors on the request path
+ * (Caffeine and ConcurrentHashMap bins, the KeyRing lock, which is only
+ * taken on key rotation, the TimingWheel slots of the off-heap store) are
+ * never held across I/O. The off-heap store's own file I/O never runs on
+ * a request thread: TokenJournal.append only fills a lock-free ring under
+ * the table's segment ReentrantLock, which parks rather than pins, and
+ * its writer thread does the writes and forces. A warning is logged at
+ * startup when the pool could pin every carrier.
+ */
+@Component
+public class VirtualThreadRequestExecutor
+    implements WebServerFactoryCustomizer<TomcatServletWebServerFactory>
+{
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadRequestExecutor.class);
+
+    private final boolean                    enabled;
+    private final ObjectProvider<DataSource> dataSource;
+
+    private volatile ExecutorService executor;
+
+    @Autowired
+    public VirtualThreadRequestExecutor(IDMVirtualThreadsConfig config,
+                                        ObjectProvider<DataSource> dataSource)
+    {
+        this.enabled = config.enabled();
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public void customize(TomcatServletWebServerFactory factory)
+    {
+        if (!enabled) {
+            return;
+        }
+
+        ExecutorService requestExecutor = newVirtualThreadPerTaskExecutor("idm-request-");
+        this.executor = requestExecutor;
+
+        factory.addProtocolHandlerCustomizers(protocolHandler -> protocolHandler.setExecutor(requestExecutor));
+        LOG.info("Handling requests on virtual threads");
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void checkPinning()
+    {
+        if (!enabled) {
+            return;
+        }
+
+        DataSource available = dataSource.getIfAvailable();
+        if (!(available instanceof HikariDataSource)) {
+            return;
+        }
+
+        int poolSize = ((HikariDataSource) available).getMaximumPoolSize();
+        int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                                          Runtime.getRuntime().availableProcessors());
+
+        if (poolSize >= carriers) {
+            LOG.warn("spring.datasource.hikari.maximum-pool-size ({}) is not below the virtual thread carrier count ({}), " +
+                     "requests blocked in JDBC can pin every carrier. " +
+                     "Raise -Djdk.virtualThreadScheduler.parallelism above the pool size.",
+                     poolSize, carriers);
+        }
+    }
+
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix)
+    {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object   builder      = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("idm.virtual-threads.enabled needs Java 21 or newer, running on " +
+                                            Runtime.version(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        // Tomcat does not shut down an executor it was handed
+        ExecutorService requestExecutor = executor;
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+        }
+    }
+}
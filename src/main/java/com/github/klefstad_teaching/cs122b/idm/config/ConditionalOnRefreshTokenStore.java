@@ -0,0 +1,25 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.context.annotation.Conditional;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Matches when idm.refresh-token-store.type binds to the given
+ * {@link IDMRefreshTokenStoreConfig.Type}, mysql when it is not set. The
+ * value goes through the same binder as {@link IDMRefreshTokenStoreConfig},
+ * so off-heap, OFF_HEAP and offHeap all select the same store, where
+ * ConditionalOnProperty would compare the raw string.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Conditional(OnRefreshTokenStoreCondition.class)
+public @interface ConditionalOnRefreshTokenStore
+{
+    IDMRefreshTokenStoreConfig.Type value();
+}
@@ -0,0 +1,22 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.access-token-cache")
+public class IDMAccessTokenCacheConfig
+{
+    private final long maximumSize;
+
+    public IDMAccessTokenCacheConfig(@DefaultValue("100000") long maximumSize)
+    {
+        this.maximumSize = maximumSize;
+    }
+
+    public long maximumSize()
+    {
+        return maximumSize;
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.authenticate")
+public class IDMAuthenticateConfig
+{
+    private final int maxBatchSize;
+
+    public IDMAuthenticateConfig(@DefaultValue("256") int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int maxBatchSize()
+    {
+        return maxBatchSize;
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.credential-storage")
+public class IDMCredentialStorageConfig
+{
+    public enum Mode
+    {
+        // Raw BINARY columns only, the schema in db.sql
+        BINARY,
+        // Cutover, see db/migrate-binary-credentials.sql
+        DUAL
+    }
+
+    private final Mode mode;
+
+    public IDMCredentialStorageConfig(@DefaultValue("binary") Mode mode)
+    {
+        this.mode = mode;
+    }
+
+    public Mode mode()
+    {
+        return mode;
+    }
+}
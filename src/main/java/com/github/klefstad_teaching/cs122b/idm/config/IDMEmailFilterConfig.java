@@ -0,0 +1,56 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.email-filter")
+public class IDMEmailFilterConfig
+{
+    private final boolean  enabled;
+    private final int      expectedInsertions;
+    private final double   falsePositiveRate;
+    private final Duration refreshInterval;
+    private final Duration rebuildInterval;
+
+    public IDMEmailFilterConfig(@DefaultValue("true") boolean enabled,
+                                @DefaultValue("1000000") int expectedInsertions,
+                                @DefaultValue("0.01") double falsePositiveRate,
+                                @DefaultValue("5s") Duration refreshInterval,
+                                @DefaultValue("1h") Duration rebuildInterval)
+    {
+        this.enabled = enabled;
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.refreshInterval = refreshInterval;
+        this.rebuildInterval = rebuildInterval;
+    }
+
+    public boolean enabled()
+    {
+        return enabled;
+    }
+
+    public int expectedInsertions()
+    {
+        return expectedInsertions;
+    }
+
+    public double falsePositiveRate()
+    {
+        return falsePositiveRate;
+    }
+
+    public Duration refreshInterval()
+    {
+        return refreshInterval;
+    }
+
+    public Duration rebuildInterval()
+    {
+        return rebuildInterval;
+    }
+}
@@ -0,0 +1,31 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.hashing")
+public class IDMHashingConfig
+{
+    // 0 means one thread per available core
+    private final int threads;
+    private final int queueCapacity;
+
+    public IDMHashingConfig(@DefaultValue("0") int threads,
+                            @DefaultValue("64") int queueCapacity)
+    {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int threads()
+    {
+        return threads;
+    }
+
+    public int queueCapacity()
+    {
+        return queueCapacity;
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.import")
+public class IDMImportConfig
+{
+    private final int      batchSize;
+    // 0 means half the available cores, the other half stays with /login and /register
+    private final int      parallelism;
+    private final Duration timeout;
+
+    public IDMImportConfig(@DefaultValue("500") int batchSize,
+                           @DefaultValue("0") int parallelism,
+                           @DefaultValue("10m") Duration timeout)
+    {
+        this.batchSize = batchSize;
+        this.parallelism = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.timeout = timeout;
+    }
+
+    public int batchSize()
+    {
+        return batchSize;
+    }
+
+    public int parallelism()
+    {
+        return parallelism;
+    }
+
+    public Duration timeout()
+    {
+        return timeout;
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.jwks")
+public class IDMJwksConfig
+{
+    private final Duration maxAge;
+
+    public IDMJwksConfig(@DefaultValue("5m") Duration maxAge)
+    {
+        this.maxAge = maxAge;
+    }
+
+    public Duration maxAge()
+    {
+        return maxAge;
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.keys")
+public class IDMKeysConfig
+{
+    // Optional, when set *.json JWK files in it are hot loaded into the key ring
+    private final String directory;
+
+    public IDMKeysConfig(String directory)
+    {
+        this.directory = directory;
+    }
+
+    public String directory()
+    {
+        return directory;
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.login-throttle")
+public class IDMLoginThrottleConfig
+{
+    private final int      tableSize;
+    private final int      emailCapacity;
+    private final Duration emailRefillInterval;
+    private final boolean  addressEnabled;
+    private final int      addressCapacity;
+    private final Duration addressRefillInterval;
+    private final int      lockAfterFailures;
+    private final Duration failureWindow;
+    private final Duration lockFlushInterval;
+
+    public IDMLoginThrottleConfig(@DefaultValue("65536") int tableSize,
+                                  @DefaultValue("5") int emailCapacity,
+                                  @DefaultValue("12s") Duration emailRefillInterval,
+                                  @DefaultValue("false") boolean addressEnabled,
+                                  @DefaultValue("50") int addressCapacity,
+                                  @DefaultValue("1s") Duration addressRefillInterval,
+                                  @DefaultValue("10") int lockAfterFailures,
+                                  @DefaultValue("15m") Duration failureWindow,
+                                  @DefaultValue("1s") Duration lockFlushInterval)
+    {
+        this.tableSize = tableSize;
+        this.emailCapacity = emailCapacity;
+        this.emailRefillInterval = emailRefillInterval;
+        this.addressEnabled = addressEnabled;
+        this.addressCapacity = addressCapacity;
+        this.addressRefillInterval = addressRefillInterval;
+        this.lockAfterFailures = lockAfterFailures;
+        this.failureWindow = failureWindow;
+        this.lockFlushInterval = lockFlushInterval;
+    }
+
+    public int tableSize()
+    {
+        return tableSize;
+    }
+
+    public int emailCapacity()
+    {
+        return emailCapacity;
+    }
+
+    public Duration emailRefillInterval()
+    {
+        return emailRefillInterval;
+    }
+
+    public boolean addressEnabled()
+    {
+        return addressEnabled;
+    }
+
+    public int addressCapacity()
+    {
+        return addressCapacity;
+    }
+
+    public Duration addressRefillInterval()
+    {
+        return addressRefillInterval;
+    }
+
+    public int lockAfterFailures()
+    {
+        return lockAfterFailures;
+    }
+
+    public Duration failureWindow()
+    {
+        return failureWindow;
+    }
+
+    public Duration lockFlushInterval()
+    {
+        return lockFlushInterval;
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.password-hash")
+public class IDMPasswordHashConfig
+{
+    private final Duration targetLatency;
+    private final int      iterations;
+    private final int      minIterations;
+    private final int      maxIterations;
+    private final int      saltLength;
+    private final boolean  rehash;
+    private final int      rehashBatchSize;
+    private final Duration rehashFlushInterval;
+
+    public IDMPasswordHashConfig(@DefaultValue("50ms") Duration targetLatency,
+                                 @DefaultValue("0") int iterations,
+                                 @DefaultValue("10000") int minIterations,
+                                 @DefaultValue("1000000") int maxIterations,
+                                 @DefaultValue("16") int saltLength,
+                                 @DefaultValue("true") boolean rehash,
+                                 @DefaultValue("100") int rehashBatchSize,
+                                 @DefaultValue("1s") Duration rehashFlushInterval)
+    {
+        this.targetLatency = targetLatency;
+        this.iterations = iterations;
+        this.minIterations = minIterations;
+        this.maxIterations = maxIterations;
+        this.saltLength = saltLength;
+        this.rehash = rehash;
+        this.rehashBatchSize = rehashBatchSize;
+        this.rehashFlushInterval = rehashFlushInterval;
+    }
+
+    /**
+     * @return how long one hash should take on this machine, what the
+     * iterations are calibrated to at startup
+     */
+    public Duration targetLatency()
+    {
+        return targetLatency;
+    }
+
+    /**
+     * @return iterations for new hashes, 0 to calibrate them to the target latency
+     */
+    public int iterations()
+    {
+        return iterations;
+    }
+
+    public int minIterations()
+    {
+        return minIterations;
+    }
+
+    public int maxIterations()
+    {
+        return maxIterations;
+    }
+
+    public int saltLength()
+    {
+        return saltLength;
+    }
+
+    /**
+     * @return whether a login with a hash made with weaker parameters
+     * stores a new hash
+     */
+    public boolean rehash()
+    {
+        return rehash;
+    }
+
+    public int rehashBatchSize()
+    {
+        return rehashBatchSize;
+    }
+
+    public Duration rehashFlushInterval()
+    {
+        return rehashFlushInterval;
+    }
+}
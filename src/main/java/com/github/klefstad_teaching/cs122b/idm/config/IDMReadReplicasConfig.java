@@ -0,0 +1,61 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.read-replicas")
+public class IDMReadReplicasConfig
+{
+    private final List<String> urls;
+    private final int          poolSize;
+    private final Duration     maxLag;
+    private final Duration     heartbeatInterval;
+    private final Duration     stickyWindow;
+
+    public IDMReadReplicasConfig(@DefaultValue List<String> urls,
+                                 @DefaultValue("10") int poolSize,
+                                 @DefaultValue("2s") Duration maxLag,
+                                 @DefaultValue("500ms") Duration heartbeatInterval,
+                                 @DefaultValue("5s") Duration stickyWindow)
+    {
+        this.urls = urls;
+        this.poolSize = poolSize;
+        this.maxLag = maxLag;
+        this.heartbeatInterval = heartbeatInterval;
+        this.stickyWindow = stickyWindow;
+    }
+
+    /**
+     * @return JDBC urls of the replicas, connected to with the
+     * spring.datasource credentials, none to read from the primary
+     */
+    public List<String> urls()
+    {
+        return urls;
+    }
+
+    public int poolSize()
+    {
+        return poolSize;
+    }
+
+    public Duration maxLag()
+    {
+        return maxLag;
+    }
+
+    public Duration heartbeatInterval()
+    {
+        return heartbeatInterval;
+    }
+
+    public Duration stickyWindow()
+    {
+        return stickyWindow;
+    }
+}
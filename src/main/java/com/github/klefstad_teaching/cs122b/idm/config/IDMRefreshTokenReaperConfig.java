@@ -0,0 +1,64 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.refresh-token-reaper")
+public class IDMRefreshTokenReaperConfig
+{
+    private final boolean  enabled;
+    private final Duration interval;
+    private final Duration gracePeriod;
+    private final int      chunkSize;
+    private final Duration chunkPause;
+    private final boolean  archive;
+
+    public IDMRefreshTokenReaperConfig(@DefaultValue("true") boolean enabled,
+                                       @DefaultValue("10m") Duration interval,
+                                       @DefaultValue("1d") Duration gracePeriod,
+                                       @DefaultValue("500") int chunkSize,
+                                       @DefaultValue("100ms") Duration chunkPause,
+                                       @DefaultValue("false") boolean archive)
+    {
+        this.enabled = enabled;
+        this.interval = interval;
+        this.gracePeriod = gracePeriod;
+        this.chunkSize = chunkSize;
+        this.chunkPause = chunkPause;
+        this.archive = archive;
+    }
+
+    public boolean enabled()
+    {
+        return enabled;
+    }
+
+    public Duration interval()
+    {
+        return interval;
+    }
+
+    public Duration gracePeriod()
+    {
+        return gracePeriod;
+    }
+
+    public int chunkSize()
+    {
+        return chunkSize;
+    }
+
+    public Duration chunkPause()
+    {
+        return chunkPause;
+    }
+
+    public boolean archive()
+    {
+        return archive;
+    }
+}
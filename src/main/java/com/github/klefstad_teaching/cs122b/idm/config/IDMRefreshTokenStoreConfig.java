@@ -0,0 +1,93 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.refresh-token-store")
+public class IDMRefreshTokenStoreConfig
+{
+    public enum Type
+    {
+        // idm.refresh_token, see MySQLRefreshTokenStore
+        MYSQL,
+        // Direct memory, see OffHeapRefreshTokenStore
+        OFF_HEAP
+    }
+
+    private final Type     type;
+    private final int      capacity;
+    private final int      segments;
+    private final Path     directory;
+    private final Duration snapshotInterval;
+    private final Duration fsyncInterval;
+    private final Duration wheelTick;
+    private final int      wheelSlots;
+
+    public IDMRefreshTokenStoreConfig(@DefaultValue("mysql") Type type,
+                                      @DefaultValue("1000000") int capacity,
+                                      @DefaultValue("64") int segments,
+                                      Path directory,
+                                      @DefaultValue("10m") Duration snapshotInterval,
+                                      @DefaultValue("1s") Duration fsyncInterval,
+                                      @DefaultValue("1s") Duration wheelTick,
+                                      @DefaultValue("3600") int wheelSlots)
+    {
+        this.type = type;
+        this.capacity = capacity;
+        this.segments = segments;
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.fsyncInterval = fsyncInterval;
+        this.wheelTick = wheelTick;
+        this.wheelSlots = wheelSlots;
+    }
+
+    public Type type()
+    {
+        return type;
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    public int segments()
+    {
+        return segments;
+    }
+
+    /**
+     * @return where the off-heap store keeps its snapshot and log, or null
+     * to keep tokens in memory only
+     */
+    public Path directory()
+    {
+        return directory;
+    }
+
+    public Duration snapshotInterval()
+    {
+        return snapshotInterval;
+    }
+
+    public Duration fsyncInterval()
+    {
+        return fsyncInterval;
+    }
+
+    public Duration wheelTick()
+    {
+        return wheelTick;
+    }
+
+    public int wheelSlots()
+    {
+        return wheelSlots;
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.refresh-token-write-behind")
+public class IDMRefreshTokenWriteBehindConfig
+{
+    private final Duration flushInterval;
+    private final int      flushThreshold;
+    private final int      batchSize;
+
+    public IDMRefreshTokenWriteBehindConfig(@DefaultValue("1s") Duration flushInterval,
+                                            @DefaultValue("1000") int flushThreshold,
+                                            @DefaultValue("500") int batchSize)
+    {
+        this.flushInterval = flushInterval;
+        this.flushThreshold = flushThreshold;
+        this.batchSize = batchSize;
+    }
+
+    public Duration flushInterval()
+    {
+        return flushInterval;
+    }
+
+    public int flushThreshold()
+    {
+        return flushThreshold;
+    }
+
+    public int batchSize()
+    {
+        return batchSize;
+    }
+}
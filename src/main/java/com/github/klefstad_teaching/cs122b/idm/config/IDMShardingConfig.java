@@ -0,0 +1,69 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.sharding")
+public class IDMShardingConfig
+{
+    private final List<String> urls;
+    private final int          poolSize;
+    private final Duration     directoryRefreshInterval;
+    private final boolean      rebalance;
+    private final int          moveBatchSize;
+    private final Duration     movePause;
+
+    public IDMShardingConfig(@DefaultValue List<String> urls,
+                             @DefaultValue("10") int poolSize,
+                             @DefaultValue("5s") Duration directoryRefreshInterval,
+                             @DefaultValue("false") boolean rebalance,
+                             @DefaultValue("500") int moveBatchSize,
+                             @DefaultValue("100ms") Duration movePause)
+    {
+        this.urls = urls;
+        this.poolSize = poolSize;
+        this.directoryRefreshInterval = directoryRefreshInterval;
+        this.rebalance = rebalance;
+        this.moveBatchSize = moveBatchSize;
+        this.movePause = movePause;
+    }
+
+    /**
+     * @return JDBC urls of every shard, the first being the database the
+     * service ran on before it was sharded, none to not shard
+     */
+    public List<String> urls()
+    {
+        return urls;
+    }
+
+    public int poolSize()
+    {
+        return poolSize;
+    }
+
+    public Duration directoryRefreshInterval()
+    {
+        return directoryRefreshInterval;
+    }
+
+    public boolean rebalance()
+    {
+        return rebalance;
+    }
+
+    public int moveBatchSize()
+    {
+        return moveBatchSize;
+    }
+
+    public Duration movePause()
+    {
+        return movePause;
+    }
+}
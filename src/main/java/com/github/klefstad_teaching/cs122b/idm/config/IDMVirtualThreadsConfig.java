@@ -0,0 +1,23 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConstructorBinding
+@ConfigurationProperties(prefix = "idm.virtual-threads")
+public class IDMVirtualThreadsConfig
+{
+    // Needs Java 21, startup fails on anything older
+    private final boolean enabled;
+
+    public IDMVirtualThreadsConfig(@DefaultValue("false") boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean enabled()
+    {
+        return enabled;
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionOutcome;
+import org.springframework.boot.autoconfigure.condition.SpringBootCondition;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+import java.util.Map;
+
+/**
+ * See {@link ConditionalOnRefreshTokenStore}. A value that is not a
+ * {@link IDMRefreshTokenStoreConfig.Type} fails the startup instead of
+ * leaving the service without a store.
+ */
+class OnRefreshTokenStoreCondition extends SpringBootCondition
+{
+    private static final String PROPERTY = "idm.refresh-token-store.type";
+
+    @Override
+    public ConditionOutcome getMatchOutcome(ConditionContext context, AnnotatedTypeMetadata metadata)
+    {
+        Map<String, Object> attributes =
+            metadata.getAnnotationAttributes(ConditionalOnRefreshTokenStore.class.getName());
+
+        IDMRefreshTokenStoreConfig.Type expected = (IDMRefreshTokenStoreConfig.Type) attributes.get("value");
+        IDMRefreshTokenStoreConfig.Type type =
+            Binder.get(context.getEnvironment())
+                  .bind(PROPERTY, IDMRefreshTokenStoreConfig.Type.class)
+                  .orElse(IDMRefreshTokenStoreConfig.Type.MYSQL);
+
+        ConditionMessage.Builder message =
+            ConditionMessage.forCondition(ConditionalOnRefreshTokenStore.class, "(" + expected + ")");
+
+        return type == expected ?
+            ConditionOutcome.match(message.because(PROPERTY + " is " + type)) :
+            ConditionOutcome.noMatch(message.because(PROPERTY + " is " + type));
+    }
+}
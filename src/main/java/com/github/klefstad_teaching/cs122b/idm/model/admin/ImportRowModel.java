@@ -0,0 +1,44 @@
+package com.github.klefstad_teaching.cs122b.idm.model.admin;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImportRowModel {
+    private long line;
+    private String email;
+    private Result result;
+    private String error;
+
+    public long getLine() {
+        return line;
+    }
+
+    public void setLine(long line) {
+        this.line = line;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    public void setResult(Result result) {
+        this.result = result;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.klefstad_teaching.cs122b.idm.model.authenticate;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AuthBatchModel {
+    private List<Result> results;
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public void setResults(List<Result> results) {
+        this.results = results;
+    }
+}
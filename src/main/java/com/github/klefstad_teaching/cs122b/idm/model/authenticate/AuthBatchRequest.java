@@ -0,0 +1,18 @@
+package com.github.klefstad_teaching.cs122b.idm.model.authenticate;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class AuthBatchRequest {
+    private List<String> accessTokens;
+
+    public List<String> getAccessTokens() {
+        return accessTokens;
+    }
+
+    public void setAccessTokens(List<String> accessTokens) {
+        this.accessTokens = accessTokens;
+    }
+}
@@ -0,0 +1,216 @@
+package com.github.klefstad_teaching.cs122b.idm.repo;
+
+import com.github.klefstad_teaching.cs122b.idm.config.IDMCredentialStorageConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMCredentialStorageConfig.Mode;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * SQL fragments and parameters for the salt, hashed password and refresh
+ * token columns, which are raw VARBINARY(16), BINARY(64) and BINARY(16).
+ * <p>
+ * In {@link Mode#DUAL}, while db/migrate-binary-credentials.sql is rolled
+ * out, the binary values live in salt_bin, hashed_password_bin and
+ * token_bin next to the old Base64 and UUID text columns. Reads prefer
+ * the binary column and decode the text column in SQL for rows not yet
+ * backfilled, writes fill both so instances still on the old code keep
+ * working.
+ */
+@Component
+public class CredentialStorage
+{
+    private final Mode mode;
+
+    @Autowired
+    public CredentialStorage(IDMCredentialStorageConfig config)
+    {
+        this.mode = config.mode();
+    }
+
+    /**
+     * @return the select list for the salt and hashed_password columns, as raw bytes
+     */
+    public String selectCredentials(String alias)
+    {
+        if (mode == Mode.DUAL) {
+            return "coalesce(" + alias + ".salt_bin, from_base64(" + alias + ".salt)) as salt, " +
+                   "coalesce(" + alias + ".hashed_password_bin, from_base64(" + alias + ".hashed_password)) as hashed_password";
+        }
+        return alias + ".salt, " + alias + ".hashed_password";
+    }
+
+    /**
+     * @return the user with email :email and their roles, one row per role
+     * or a single row with a null role_id
+     */
+    public String selectUser()
+    {
+        return "select u.id, u.email, u.user_status_id, " + selectCredentials("u") + ", u.hash_version, ur.role_id " +
+               "from idm.user u " +
+               "left join idm.user_role ur on ur.user_id = u.id " +
+               "where u.email = :email";
+    }
+
+    public String insertUser(boolean ignoreDuplicates)
+    {
+        String insert = ignoreDuplicates ? "insert ignore" : "insert";
+
+        if (mode == Mode.DUAL) {
+            return insert + " into idm.user(email, user_status_id, salt_bin, hashed_password_bin, salt, hashed_password, hash_version) " +
+                   "values (:email, :user_status_id, :salt, :hashed_password, :salt_text, :hashed_password_text, :hash_version)";
+        }
+        return insert + " into idm.user(email, user_status_id, salt, hashed_password, hash_version) " +
+               "values (:email, :user_status_id, :salt, :hashed_password, :hash_version)";
+    }
+
+    public MapSqlParameterSource userParameters(User user)
+    {
+        return addCredentials(
+            new MapSqlParameterSource()
+                .addValue("email", user.getEmail(), Types.VARCHAR)
+                .addValue("user_status_id", user.getUserStatus().id(), Types.INTEGER),
+            user
+        );
+    }
+
+    /**
+     * @return an update of the user's salt, hashed password and hash
+     * version that only applies while the hash is still :old_hash_version
+     */
+    public String updateCredentials()
+    {
+        if (mode == Mode.DUAL) {
+            return "update idm.user " +
+                   "set salt_bin = :salt, hashed_password_bin = :hashed_password, " +
+                   "salt = :salt_text, hashed_password = :hashed_password_text, hash_version = :hash_version " +
+                   "where id = :id and hash_version = :old_hash_version";
+        }
+        return "update idm.user " +
+               "set salt = :salt, hashed_password = :hashed_password, hash_version = :hash_version " +
+               "where id = :id and hash_version = :old_hash_version";
+    }
+
+    public MapSqlParameterSource credentialParameters(User user, int oldHashVersion)
+    {
+        return addCredentials(
+            new MapSqlParameterSource()
+                .addValue("id", user.getId(), Types.INTEGER)
+                .addValue("old_hash_version", oldHashVersion, Types.INTEGER),
+            user
+        );
+    }
+
+    private MapSqlParameterSource addCredentials(MapSqlParameterSource source, User user)
+    {
+        source.addValue("salt", user.getSalt(), Types.BINARY)
+              .addValue("hashed_password", user.getHashedPassword(), Types.BINARY)
+              .addValue("hash_version", user.getHashVersion(), Types.INTEGER);
+
+        if (mode == Mode.DUAL) {
+            source.addValue("salt_text", Base64.getEncoder().encodeToString(user.getSalt()), Types.CHAR)
+                  .addValue("hashed_password_text", Base64.getEncoder().encodeToString(user.getHashedPassword()), Types.CHAR);
+        }
+        return source;
+    }
+
+    /**
+     * @param alias table alias, or null when the statement has none
+     * @return the token column as raw bytes, named token
+     */
+    public String selectToken(String alias)
+    {
+        String prefix = alias == null ? "" : alias + ".";
+
+        if (mode == Mode.DUAL) {
+            return "coalesce(" + prefix + "token_bin, unhex(replace(" + prefix + "token, '-', ''))) as token";
+        }
+        return prefix + "token";
+    }
+
+    /**
+     * @param alias table alias, or null when the statement has none
+     * @return a condition matching the token added with {@link #addToken}
+     */
+    public String tokenMatches(String alias)
+    {
+        String prefix = alias == null ? "" : alias + ".";
+
+        if (mode == Mode.DUAL) {
+            return "(" + prefix + "token_bin = :token or (" + prefix + "token_bin is null and " + prefix + "token = :token_text))";
+        }
+        return prefix + "token = :token";
+    }
+
+    public MapSqlParameterSource addToken(MapSqlParameterSource source, String token)
+    {
+        source.addValue("token", tokenBytes(token), Types.BINARY);
+
+        if (mode == Mode.DUAL) {
+            source.addValue("token_text", token, Types.CHAR);
+        }
+        return source;
+    }
+
+    /**
+     * @return the token added with {@link #addToken}, its user and the
+     * user's roles, joined through the unique token index and the primary
+     * keys, one row per role or a single row with a null role_id
+     */
+    public String selectRefreshToken()
+    {
+        return "select rt.id, " + selectToken("rt") + ", rt.user_id, rt.token_status_id, rt.expire_time, rt.max_life_time, " +
+               "u.email, u.user_status_id, ur.role_id " +
+               "from idm.refresh_token rt " +
+               "join idm.user u on u.id = rt.user_id " +
+               "left join idm.user_role ur on ur.user_id = u.id " +
+               "where " + tokenMatches("rt");
+    }
+
+    public String insertRefreshToken()
+    {
+        if (mode == Mode.DUAL) {
+            return "insert into idm.refresh_token(token_bin, token, user_id, token_status_id, expire_time, max_life_time) " +
+                   "values (:token, :token_text, :user_id, :token_status_id, :expire_time, :max_life_time)";
+        }
+        return "insert into idm.refresh_token(token, user_id, token_status_id, expire_time, max_life_time) " +
+               "values (:token, :user_id, :token_status_id, :expire_time, :max_life_time)";
+    }
+
+    public MapSqlParameterSource refreshTokenParameters(RefreshToken refreshToken)
+    {
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("user_id", refreshToken.getUserId(), Types.INTEGER)
+                .addValue("token_status_id", refreshToken.getTokenStatus().id(), Types.INTEGER)
+                .addValue("expire_time", Timestamp.from(refreshToken.getExpireTime()), Types.TIMESTAMP)
+                .addValue("max_life_time", Timestamp.from(refreshToken.getMaxLifeTime()), Types.TIMESTAMP);
+
+        return addToken(source, refreshToken.getToken());
+    }
+
+    // The 16 bytes of the UUID, most significant first, same as unhex(replace(token, '-', ''))
+    public static byte[] tokenBytes(String token)
+    {
+        UUID uuid = UUID.fromString(token);
+
+        return ByteBuffer.allocate(16)
+                         .putLong(uuid.getMostSignificantBits())
+                         .putLong(uuid.getLeastSignificantBits())
+                         .array();
+    }
+
+    public static String tokenString(byte[] bytes)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+}
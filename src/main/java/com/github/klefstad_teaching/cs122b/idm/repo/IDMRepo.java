@@ -1,68 +1,201 @@
 package com.github.klefstad_teaching.cs122b.idm.repo;
 
-import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.component.ReadReplicaRouter;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter.Shard;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Component;
 
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
 
 @Component
 public class IDMRepo
 {
+    private static final String USER_STATUS_SQL =
+        "select user_status_id from idm.user where id = :id";
+
     private final NamedParameterJdbcTemplate template;
+    private final ReadReplicaRouter          router;
+    private final ShardRouter                shards;
+
     @Autowired
-    public IDMRepo(NamedParameterJdbcTemplate template)
+    public IDMRepo(NamedParameterJdbcTemplate template,
+                   ReadReplicaRouter router,
+                   ShardRouter shards)
     {
         this.template = template;
+        this.router = router;
+        this.shards = shards;
     }
 
+    // spring.datasource, for tables that are not sharded
     public NamedParameterJdbcTemplate getTemplate() {
         return template;
     }
 
-    public User InsertUser(String email, String salt, String hashedpsd){
-        try {
-            this.template.update(
-                    "insert into idm.user(email, user_status_id,salt, hashed_password)" +
-                            "values (:email, :user_status_id,:salt, :hashed_password)",
-                    new MapSqlParameterSource()
-                            .addValue("email", email, Types.VARCHAR)
-                            .addValue("user_status_id", UserStatus.ACTIVE, Types.INTEGER)
-                            .addValue("salt", salt, Types.CHAR)
-                            .addValue("hashed_password", hashedpsd, Types.CHAR)
-            );
-        } catch (Exception e){
-            e.printStackTrace();
+    /**
+     * @param bucket see {@link ShardRouter#bucketForEmail} and {@link ShardRouter#bucketOfToken}
+     * @return the shard holding users, roles and refresh tokens of the bucket
+     */
+    public NamedParameterJdbcTemplate forBucket(int bucket)
+    {
+        return shards.shardFor(bucket).template();
+    }
+
+    public List<Shard> shards()
+    {
+        return shards.shards();
+    }
+
+    /**
+     * Runs a read on the bucket's shard. When not sharded it goes to a
+     * replica, see {@link ReadReplicaRouter}, and again to the primary if
+     * the replica found nothing, so a row a lagging replica does not have
+     * yet still shows up.
+     *
+     * @param key the email or token the read is for, or null
+     * @return what extractor made of the rows, null if nothing was found
+     */
+    public <T> T read(int bucket, String key, String sql, SqlParameterSource source, ResultSetExtractor<T> extractor)
+    {
+        if (shards.isSharded()) {
+            return forBucket(bucket).query(sql, source, extractor);
         }
-        return null;
+
+        NamedParameterJdbcTemplate readTemplate = router.readTemplate(key);
+
+        T found = readTemplate.query(sql, source, extractor);
+
+        if (found == null && readTemplate != template) {
+            found = template.query(sql, source, extractor);
+        }
+        return found;
     }
 
-    public User SelectUser1(String email){
-        try {
-            User result = this.template.queryForObject(
-                    "select id, email, user_status_id, salt, hashed_password from idm.user " +
-                            "where email = :email",
-                    new MapSqlParameterSource()
-                            .addValue("email", email, Types.VARCHAR),
-                    (rs, rowNum) ->
-                            new User()
-                                    .setId(rs.getInt("id"))
-            );
-            return result;
-        }catch(Exception e){
-            e.printStackTrace();
+    /**
+     * Runs a read on every shard but the bucket's, for a row that is not
+     * where its key says: a refresh token issued before sharding, whose
+     * first bits are random rather than its user's bucket, or one whose
+     * bucket is being moved. Without sharding there is nothing to ask.
+     *
+     * @param ownerBucket the bucket of what was found, the shard it is on wins
+     * @return what extractor made of the rows, null if no other shard found anything
+     */
+    public <T> T readOffBucket(int bucket, String sql, SqlParameterSource source,
+                               ResultSetExtractor<T> extractor, ToIntFunction<T> ownerBucket)
+    {
+        Shard tried = shards.shardFor(bucket);
+        T     other = null;
+
+        for (Shard shard : shards.shards()) {
+            if (shard == tried) {
+                continue;
+            }
+
+            T found = shard.template().query(sql, source, extractor);
+
+            if (found == null) {
+                continue;
+            }
+            // Mid move a row is on both shards, the one the directory points at is current
+            if (shards.shardFor(ownerBucket.applyAsInt(found)) == shard) {
+                return found;
+            }
+            if (other == null) {
+                other = found;
+            }
         }
-        return null;
+        return other;
     }
 
+    /**
+     * @return whether {@link #read} for key may be answered by a replica,
+     * which can still show a user or token as active after the primary
+     * locked, banned or revoked it
+     */
+    public boolean readsReplica(String key)
+    {
+        return !shards.isSharded() && router.readTemplate(key) != template;
+    }
 
+    /**
+     * Runs a read on the bucket's shard, never on a replica, for state a
+     * lagging replica must not decide on.
+     *
+     * @return what extractor made of the rows, null if nothing was found
+     */
+    public <T> T readPrimary(int bucket, String sql, SqlParameterSource source, ResultSetExtractor<T> extractor)
+    {
+        return forBucket(bucket).query(sql, source, extractor);
+    }
 
+    /**
+     * @return the user's status on the primary, null if the user is gone
+     */
+    public UserStatus primaryUserStatus(int bucket, int userId)
+    {
+        return readPrimary(bucket,
+                           USER_STATUS_SQL,
+                           new MapSqlParameterSource().addValue("id", userId, Types.INTEGER),
+                           rs -> rs.next() ? UserStatus.fromId(rs.getInt("user_status_id")) : null);
+    }
 
+    /**
+     * Reads for key go to the primary for a while, call after writing it.
+     */
+    public void wrote(String key)
+    {
+        router.wrote(key);
+    }
 
+    /**
+     * Runs one JDBC batch per shard.
+     *
+     * @param bucketOf the bucket of the i-th statement
+     * @return the update counts, in the order of batch
+     */
+    public int[] batchUpdate(String sql, SqlParameterSource[] batch, IntUnaryOperator bucketOf)
+    {
+        if (!shards.isSharded()) {
+            return template.batchUpdate(sql, batch);
+        }
+
+        List<List<Integer>> positions = new ArrayList<>();
+        for (int i = 0; i < shards.shards().size(); i++) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < batch.length; i++) {
+            positions.get(shards.shardFor(bucketOf.applyAsInt(i)).index()).add(i);
+        }
 
+        int[] counts = new int[batch.length];
 
+        for (Shard shard : shards.shards()) {
+            List<Integer> onShard = positions.get(shard.index());
 
+            if (onShard.isEmpty()) {
+                continue;
+            }
+
+            SqlParameterSource[] shardBatch = new SqlParameterSource[onShard.size()];
+            for (int i = 0; i < shardBatch.length; i++) {
+                shardBatch[i] = batch[onShard.get(i)];
+            }
+
+            int[] shardCounts = shard.template().batchUpdate(sql, shardBatch);
+            for (int i = 0; i < shardCounts.length; i++) {
+                counts[onShard.get(i)] = shardCounts[i];
+            }
+        }
+        return counts;
+    }
 }
@@ -15,6 +15,7 @@ public class RefreshToken
     private TokenStatus tokenStatus;
     private Instant     expireTime;
     private Instant     maxLifeTime;
+    private User        user;
 
     public Integer getId()
     {
@@ -81,4 +82,15 @@ public class RefreshToken
         this.maxLifeTime = maxLifeTime;
         return this;
     }
+
+    public User getUser()
+    {
+        return user;
+    }
+
+    public RefreshToken setUser(User user)
+    {
+        this.user = user;
+        return this;
+    }
 }
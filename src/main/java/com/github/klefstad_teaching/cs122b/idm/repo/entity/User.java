@@ -17,8 +17,9 @@ public class User
     private Integer    id;
     private String     email;
     private UserStatus userStatus;
-    private String     salt;
-    private String     hashedPassword;
+    private byte[]     salt;
+    private byte[]     hashedPassword;
+    private Integer    hashVersion;
 
     private List<Role> roles;
 
@@ -55,28 +56,42 @@ public class User
         return this;
     }
 
-    public String getSalt()
+    public byte[] getSalt()
     {
         return salt;
     }
 
-    public User setSalt(String salt)
+    public User setSalt(byte[] salt)
     {
         this.salt = salt;
         return this;
     }
 
-    public String getHashedPassword()
+    public byte[] getHashedPassword()
     {
         return hashedPassword;
     }
 
-    public User setHashedPassword(String hashedPassword)
+    public User setHashedPassword(byte[] hashedPassword)
     {
         this.hashedPassword = hashedPassword;
         return this;
     }
 
+    /**
+     * @return the idm.hash_parameters version hashedPassword was made with
+     */
+    public Integer getHashVersion()
+    {
+        return hashVersion;
+    }
+
+    public User setHashVersion(Integer hashVersion)
+    {
+        this.hashVersion = hashVersion;
+        return this;
+    }
+
     public List<Role> getRoles()
     {
         if (roles == null) {
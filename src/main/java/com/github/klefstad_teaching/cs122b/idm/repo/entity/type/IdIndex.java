@@ -0,0 +1,44 @@
+package com.github.klefstad_teaching.cs122b.idm.repo.entity.type;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Lookup of the type enums by their database id. Ids are small and
+ * dense, indexing beats scanning values() on every row.
+ */
+final class IdIndex
+{
+    private IdIndex()
+    {
+    }
+
+    /**
+     * @return the values at the position of their id, null where no value has that id
+     */
+    static <E extends Enum<E>> E[] of(E[] values, ToIntFunction<E> idOf)
+    {
+        int maxId = 0;
+        for (E type : values) {
+            maxId = Math.max(maxId, idOf.applyAsInt(type));
+        }
+
+        // Copied for an array of the enum's own type, then cleared
+        E[] byId = Arrays.copyOf(values, maxId + 1);
+        Arrays.fill(byId, null);
+        for (E type : values) {
+            byId[idOf.applyAsInt(type)] = type;
+        }
+
+        return byId;
+    }
+
+    static <E> E lookup(E[] byId, int id)
+    {
+        if (id >= 0 && id < byId.length && byId[id] != null) {
+            return byId[id];
+        }
+
+        throw new IllegalArgumentException("Id not found");
+    }
+}
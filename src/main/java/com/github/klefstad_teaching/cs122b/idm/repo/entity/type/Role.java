@@ -14,6 +14,8 @@ public enum Role
     private final String description;
     private final int    precedence;
 
+    private static final Role[] BY_ID = IdIndex.of(values(), Role::getId);
+
     Role(int id, String name, String description, int precedence)
     {
         this.id = id;
@@ -44,12 +46,6 @@ public enum Role
 
     public static Role fromId(int id)
     {
-        for (Role type : values()) {
-            if (type.id == id) {
-                return type;
-            }
-        }
-
-        throw new IllegalArgumentException("Id not found");
+        return IdIndex.lookup(BY_ID, id);
     }
 }
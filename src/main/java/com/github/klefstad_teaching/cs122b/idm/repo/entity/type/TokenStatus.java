@@ -11,6 +11,8 @@ public enum TokenStatus
     private final int    id;
     private final String value;
 
+    private static final TokenStatus[] BY_ID = IdIndex.of(values(), TokenStatus::id);
+
     TokenStatus(int id, String value)
     {
         this.id = id;
@@ -23,12 +25,6 @@ public enum TokenStatus
 
     public static TokenStatus fromId(int id)
     {
-        for (TokenStatus type : values()) {
-            if (type.id == id) {
-                return type;
-            }
-        }
-
-        throw new IllegalArgumentException("Id not found");
+        return IdIndex.lookup(BY_ID, id);
     }
 }
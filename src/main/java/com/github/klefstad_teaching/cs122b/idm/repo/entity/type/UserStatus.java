@@ -11,6 +11,8 @@ public enum UserStatus
     private final int    id;
     private final String value;
 
+    private static final UserStatus[] BY_ID = IdIndex.of(values(), UserStatus::id);
+
     UserStatus(int id, String value)
     {
         this.id = id;
@@ -23,12 +25,6 @@ public enum UserStatus
 
     public static UserStatus fromId(int id)
     {
-        for (UserStatus type : values()) {
-            if (type.id == id) {
-                return type;
-            }
-        }
-
-        throw new IllegalArgumentException("Id not found");
+        return IdIndex.lookup(BY_ID, id);
     }
 }
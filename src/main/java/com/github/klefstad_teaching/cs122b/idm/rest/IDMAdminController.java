@@ -0,0 +1,88 @@
+package com.github.klefstad_teaching.cs122b.idm.rest;
+
+import com.github.klefstad_teaching.cs122b.idm.component.AccessTokenVerification;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMJwtManager;
+import com.github.klefstad_teaching.cs122b.idm.component.UserImporter;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMImportConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Endpoints for users holding the ADMIN role, authorized by the access
+ * token in the Authorization header.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class IDMAdminController
+{
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final IDMJwtManager jwtManager;
+    private final UserImporter  userImporter;
+    private final long          importTimeoutMillis;
+
+    @Autowired
+    public IDMAdminController(IDMJwtManager jwtManager,
+                              UserImporter userImporter,
+                              IDMImportConfig importConfig)
+    {
+        this.jwtManager = jwtManager;
+        this.userImporter = userImporter;
+        this.importTimeoutMillis = importConfig.timeout().toMillis();
+    }
+
+    /**
+     * Streams the NDJSON request body through the UserImporter and its
+     * NDJSON report back while the import runs. The import gets its own
+     * async timeout, idm.import.timeout, every other endpoint keeps the default.
+     */
+    @PostMapping(value = "/admin/users/import",
+                 consumes = MediaType.APPLICATION_NDJSON_VALUE,
+                 produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public WebAsyncTask<Void> importUsers(
+        @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+        HttpServletRequest request,
+        HttpServletResponse response)
+    {
+        requireAdmin(authorization);
+
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+
+        return new WebAsyncTask<>(importTimeoutMillis, () -> {
+            userImporter.importUsers(request.getInputStream(), response.getOutputStream());
+            return null;
+        });
+    }
+
+    private void requireAdmin(String authorization)
+    {
+        if (authorization == null || !authorization.startsWith(BEARER_PREFIX)) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Missing bearer access token");
+        }
+
+        AccessTokenVerification verification =
+            jwtManager.verifyAccessToken(authorization.substring(BEARER_PREFIX.length()));
+
+        if (!verification.isValid()) {
+            throw new ResponseStatusException(verification.getResult().status(),
+                                              verification.getResult().message());
+        }
+
+        if (!verification.getToken().hasRole(Role.ADMIN)) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Admin role required");
+        }
+    }
+}
@@ -1,8 +1,17 @@
 package com.github.klefstad_teaching.cs122b.idm.rest;
 
 import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.component.AccessTokenVerification;
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
 import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMHashingExecutor;
 import com.github.klefstad_teaching.cs122b.idm.component.IDMJwtManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics;
+import com.github.klefstad_teaching.cs122b.idm.component.LoginThrottle;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMAuthenticateConfig;
+import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthBatchModel;
+import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthBatchRequest;
 import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthModel;
 import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthRequest;
 import com.github.klefstad_teaching.cs122b.idm.model.login.LoginModel;
@@ -17,130 +26,167 @@ import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
 import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
 import com.github.klefstad_teaching.cs122b.idm.util.Validate;
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.proc.BadJOSEException;
 import com.nimbusds.jose.shaded.json.JSONObject;
 import com.nimbusds.jwt.SignedJWT;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
-
-import java.text.ParseException;
+import javax.servlet.http.HttpServletRequest;
 import java.time.Instant;
-import java.util.regex.Pattern;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class IDMController
 {
     private final IDMAuthenticationManager authManager;
     private final IDMJwtManager            jwtManager;
     private final Validate                 validate;
+    private final IDMHashingExecutor       hashingExecutor;
+    private final Executor                 asyncExecutor;
+    private final IDMAuthenticateConfig    authenticateConfig;
+    private final LoginThrottle            loginThrottle;
+    private final EmailBloomFilter         emailFilter;
+    private final IDMMetrics               metrics;
 
     @Autowired
     public IDMController(IDMAuthenticationManager authManager,
                          IDMJwtManager jwtManager,
-                         Validate validate)
+                         Validate validate,
+                         IDMHashingExecutor hashingExecutor,
+                         @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+                         Executor asyncExecutor,
+                         IDMAuthenticateConfig authenticateConfig,
+                         LoginThrottle loginThrottle,
+                         EmailBloomFilter emailFilter,
+                         IDMMetrics metrics)
     {
         this.authManager = authManager;
         this.jwtManager = jwtManager;
         this.validate = validate;
+        this.hashingExecutor = hashingExecutor;
+        this.asyncExecutor = asyncExecutor;
+        this.authenticateConfig = authenticateConfig;
+        this.loginThrottle = loginThrottle;
+        this.emailFilter = emailFilter;
+        this.metrics = metrics;
     }
 
     @PostMapping("/register")
-    public ResponseEntity<RegisterModel> register(@RequestBody RegisterRequest req){
+    public CompletableFuture<ResponseEntity<RegisterModel>> register(@RequestBody RegisterRequest req){
         RegisterModel reg = new RegisterModel();
-        if (req.getEmail().length()<6 || req.getEmail().length()>32){
-            reg.setResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(reg);
-        }
-        boolean email = Pattern.compile("^([a-zA-Z0-9]+)@([a-zA-Z0-9]+).([a-zA-Z0-9]+)$")
-                .matcher(req.getEmail())
-                .matches();
-        if (!email){
-            reg.setResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(reg);
+        Result invalid = validate.credentials(req.getEmail(), req.getPassword());
+        if (invalid != null){
+            reg.setResult(metrics.count(invalid));
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(reg));
         }
 
-        if (req.getPassword().length<10 || req.getPassword().length>20){
-            reg.setResult(IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(reg);
-        }
-        String p = new String(req.getPassword());
-        boolean psd = Pattern.compile("^(?=.*?[A-Z])(?=.*?[a-z])(?=.*?[0-9]).{10,20}$")
-                .matcher(p)
-                .matches();
-        if (!psd){
-            reg.setResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(reg);
+        // Skips the hash for emails known to be taken, the unique key catches the ones the filter missed
+        if (emailFilter.mightContain(req.getEmail()) && authManager.emailExists(req.getEmail())){
+            reg.setResult(metrics.count(IDMResults.USER_ALREADY_EXISTS));
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(reg));
         }
 
-        try{
-            authManager.createAndInsertUser(req.getEmail(), req.getPassword());
-        }catch (DuplicateKeyException e){
-            e.printStackTrace();
-            reg.setResult(IDMResults.USER_ALREADY_EXISTS);
-            return ResponseEntity.status(HttpStatus.CONFLICT)
-                    .body(reg);
-        }
-        reg.setResult(IDMResults.USER_REGISTERED_SUCCESSFULLY);
-        return ResponseEntity.status(HttpStatus.OK)
-                .body(reg);
+        return offloadHashing(() -> authManager.createUser(req.getEmail(), req.getPassword()))
+                .thenApplyAsync(user -> {
+                    try{
+                        authManager.insertUser(user);
+                    }catch (DuplicateKeyException e){
+                        // Lost a race with a concurrent register for the same email
+                        reg.setResult(metrics.count(IDMResults.USER_ALREADY_EXISTS));
+                        return ResponseEntity.status(HttpStatus.CONFLICT)
+                                .body(reg);
+                    }
+                    emailFilter.add(user.getEmail());
+                    reg.setResult(metrics.count(IDMResults.USER_REGISTERED_SUCCESSFULLY));
+                    return ResponseEntity.status(HttpStatus.OK)
+                            .body(reg);
+                }, asyncExecutor);
     }
 
     @PostMapping("/login")
-    public ResponseEntity<LoginModel> login(@RequestBody LoginRequest logreq){
+    public CompletableFuture<ResponseEntity<LoginModel>> login(@RequestBody LoginRequest logreq,
+                                                               HttpServletRequest request){
+        return login(logreq, request.getRemoteAddr());
+    }
+
+    public CompletableFuture<ResponseEntity<LoginModel>> login(LoginRequest logreq, String clientAddress){
         LoginModel log = new LoginModel();
-        if (logreq.getEmail().length()<6 || logreq.getEmail().length()>32){
-            log.setResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(log);
-        }
-        boolean email = Pattern.compile("^([a-zA-Z0-9]+)@([a-zA-Z0-9]+).([a-zA-Z0-9]+)$")
-                .matcher(logreq.getEmail())
-                .matches();
-        if (!email){
-            log.setResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(log);
+        Result invalid = validate.credentials(logreq.getEmail(), logreq.getPassword());
+        if (invalid != null){
+            log.setResult(metrics.count(invalid));
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(log));
         }
 
-        if (logreq.getPassword().length<10 || logreq.getPassword().length>20){
-            log.setResult(IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(log);
+        // Before the lookup and the hash, that is what a guessing client costs us
+        if (!loginThrottle.tryAcquire(logreq.getEmail(), clientAddress)){
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many login attempts");
         }
-        String p = new String(logreq.getPassword());
-        boolean psd = Pattern.compile("^(?=.*?[A-Z])(?=.*?[a-z])(?=.*?[0-9]).{10,20}$")
-                .matcher(p)
-                .matches();
-        if (!psd){
-            log.setResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(log);
+
+        // Not the email filter, a user registered on another instance may not be in it yet
+        User user;
+        try{
+            user = authManager.selectUser(logreq.getEmail());
+        }catch (IllegalAccessException e){
+            return userNotFound(log, logreq.getPassword());
         }
 
+        return offloadHashing(() -> authManager.passwordMatches(user, logreq.getPassword()))
+                .thenApplyAsync(matches -> {
+                    if (matches){
+                        loginThrottle.recordSuccess(user);
+                    }else{
+                        loginThrottle.recordFailure(user);
+                    }
+                    return loginResponse(log, matches ? user : null);
+                }, asyncExecutor);
+    }
+
+    // Hashes anyway, an unknown email must take as long as a wrong password
+    private CompletableFuture<ResponseEntity<LoginModel>> userNotFound(LoginModel log, char[] password){
+        return offloadHashing(() -> {
+                    authManager.hashForTiming(password);
+                    return log;
+                })
+                .thenApplyAsync(model -> {
+                    model.setResult(metrics.count(IDMResults.USER_NOT_FOUND));
+                    return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                            .body(model);
+                }, asyncExecutor);
+    }
+
+    private ResponseEntity<LoginModel> loginResponse(LoginModel log, User succ){
         try{
-            User succ = authManager.selectAndAuthenticateUser(logreq.getEmail(), logreq.getPassword());
             if (succ == null){
-                log.setResult(IDMResults.INVALID_CREDENTIALS);
+                log.setResult(metrics.count(IDMResults.INVALID_CREDENTIALS));
                 return ResponseEntity.status(HttpStatus.FORBIDDEN)
                         .body(log);
             }
-            else if(succ.getUserStatus() == UserStatus.LOCKED){
-                log.setResult(IDMResults.USER_IS_LOCKED);
+            else if(succ.getUserStatus() == UserStatus.LOCKED || loginThrottle.isLockPending(succ)){
+                log.setResult(metrics.count(IDMResults.USER_IS_LOCKED));
                 return ResponseEntity.status(HttpStatus.FORBIDDEN)
                         .body(log);
             }
             else if(succ.getUserStatus() == UserStatus.BANNED){
-                log.setResult(IDMResults.USER_IS_BANNED);
+                log.setResult(metrics.count(IDMResults.USER_IS_BANNED));
                 return ResponseEntity.status(HttpStatus.FORBIDDEN)
                         .body(log);
             }
@@ -149,35 +195,38 @@ public class IDMController
                 RefreshToken refresh = jwtManager.buildRefreshToken(succ);
                 authManager.insertRefreshToken(refresh);
                 log.setRefreshToken(refresh.getToken());
-                log.setResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY);
+                log.setResult(metrics.count(IDMResults.USER_LOGGED_IN_SUCCESSFULLY));
                 return ResponseEntity.status(HttpStatus.OK)
                         .body(log);
             }
             else {
                 throw new RuntimeException();
             }
-        }catch (IllegalAccessException | JOSEException e){
-            log.setResult(IDMResults.USER_NOT_FOUND);
+        }catch (JOSEException e){
+            log.setResult(metrics.count(IDMResults.USER_NOT_FOUND));
             return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                     .body(log);
         }
     }
 
+    // Rejects right away with a 503 instead of queueing behind a login burst. Only the hash
+    // runs on the hashing pool, continuations that touch MySQL or sign go to asyncExecutor
+    private <T> CompletableFuture<T> offloadHashing(Supplier<T> task){
+        try{
+            return hashingExecutor.supply(task);
+        }catch (RejectedExecutionException e){
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Hashing capacity exhausted");
+        }
+    }
+
 
     @PostMapping("/refresh")
     public ResponseEntity<RefreshModel> refresh(@RequestBody RefreshRequest refq) {
         RefreshModel refreshModel = new RefreshModel();
-        // UUID check
-        boolean UUID = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$")
-                .matcher(refq.getRefreshToken())
-                .matches();
-        if (refq.getRefreshToken().length() != 36) {
-            refreshModel.setResult(IDMResults.REFRESH_TOKEN_HAS_INVALID_LENGTH);
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
-                    .body(refreshModel);
-        }
-        if (!UUID) {
-            refreshModel.setResult(IDMResults.REFRESH_TOKEN_HAS_INVALID_FORMAT);
+        // Length then UUID format check
+        Result invalid = validate.refreshToken(refq.getRefreshToken());
+        if (invalid != null) {
+            refreshModel.setResult(metrics.count(invalid));
             return ResponseEntity.status(HttpStatus.BAD_REQUEST)
                     .body(refreshModel);
         }
@@ -186,12 +235,12 @@ public class IDMController
             RefreshToken retoken = authManager.verifyRefreshToken(refq.getRefreshToken());
 
             if(retoken.getTokenStatus().equals(TokenStatus.EXPIRED)) {
-                refreshModel.setResult(IDMResults.REFRESH_TOKEN_IS_EXPIRED);
+                refreshModel.setResult(metrics.count(IDMResults.REFRESH_TOKEN_IS_EXPIRED));
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                         .body(refreshModel);
             }
             else if (retoken.getTokenStatus().equals(TokenStatus.REVOKED)){
-                refreshModel.setResult(IDMResults.REFRESH_TOKEN_IS_REVOKED);
+                refreshModel.setResult(metrics.count(IDMResults.REFRESH_TOKEN_IS_REVOKED));
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                         .body(refreshModel);
             }
@@ -199,36 +248,38 @@ public class IDMController
                 Instant current_time = Instant.now();
                 if (current_time.isAfter(retoken.getExpireTime()) || current_time.isAfter(retoken.getMaxLifeTime())) {
                     authManager.expireRefreshToken(retoken);
-                    refreshModel.setResult(IDMResults.REFRESH_TOKEN_IS_EXPIRED);
+                    refreshModel.setResult(metrics.count(IDMResults.REFRESH_TOKEN_IS_EXPIRED));
                     return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                             .body(refreshModel);
                 }
                 else {
                     retoken = jwtManager.updateRefreshTokenExpireTime(retoken);
-                    authManager.updateRefreshTokenExpireTime(retoken);
 
                     if (retoken.getExpireTime().isAfter(retoken.getMaxLifeTime())) {
-                        authManager.revokeRefreshToken(retoken);
+                        if (!authManager.revokeRefreshToken(retoken)) {
+                            refreshModel.setResult(metrics.count(IDMResults.REFRESH_TOKEN_IS_REVOKED));
+                            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                                    .body(refreshModel);
+                        }
 
-                        User exex = authManager.getUserFromRefreshToken(retoken);
+                        User exex = retoken.getUser();
                         RefreshToken renew = jwtManager.buildRefreshToken(exex);
                         authManager.insertRefreshToken(renew);
                         refreshModel.setRefreshToken(renew.getToken());
 
                         refreshModel.setAccessToken(jwtManager.buildAccessToken(exex));
 
-                        refreshModel.setResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN);
+                        refreshModel.setResult(metrics.count(IDMResults.RENEWED_FROM_REFRESH_TOKEN));
                         return ResponseEntity.status(HttpStatus.OK)
                                 .body(refreshModel);
                     }
                     else {
-                        retoken = jwtManager.updateRefreshTokenExpireTime(retoken);
                         authManager.updateRefreshTokenExpireTime(retoken);
 
                         refreshModel.setRefreshToken(retoken.getToken());
-                        refreshModel.setAccessToken(jwtManager.buildAccessToken(authManager.getUserFromRefreshToken(retoken)));
+                        refreshModel.setAccessToken(jwtManager.buildAccessToken(retoken.getUser()));
 
-                        refreshModel.setResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN);
+                        refreshModel.setResult(metrics.count(IDMResults.RENEWED_FROM_REFRESH_TOKEN));
                         return ResponseEntity.status(HttpStatus.OK)
                                 .body(refreshModel);
                     }
@@ -237,7 +288,7 @@ public class IDMController
         }
         catch (IllegalAccessException e) {
             if (e.getMessage().equals("Refresh token not found")) {
-                refreshModel.setResult(IDMResults.REFRESH_TOKEN_NOT_FOUND);
+                refreshModel.setResult(metrics.count(IDMResults.REFRESH_TOKEN_NOT_FOUND));
                 return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
                         .body(refreshModel);
             }
@@ -250,26 +301,37 @@ public class IDMController
     @PostMapping("/authenticate")
     public ResponseEntity<AuthModel> authenticate(@RequestBody AuthRequest auth){
         AuthModel am = new AuthModel();
-        String accessToken = auth.getAccessToken();
 
-        try {
-            jwtManager.verifyAccessToken(accessToken);
-        } catch (ParseException | JOSEException | BadJOSEException e) {
-            am.setResult(IDMResults.ACCESS_TOKEN_IS_INVALID);
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
-                    .body(am);
-        }catch (RuntimeException e){
-            am.setResult(IDMResults.ACCESS_TOKEN_IS_EXPIRED);
-            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
-                    .body(am);
-        }
+        AccessTokenVerification verification = jwtManager.verifyAccessToken(auth.getAccessToken());
 
-        am.setResult(IDMResults.ACCESS_TOKEN_IS_VALID);
-        return ResponseEntity.status(HttpStatus.OK)
+        am.setResult(metrics.count(verification.getResult()));
+        return ResponseEntity.status(verification.getResult().status())
                 .body(am);
 
     }
 
+    @PostMapping("/authenticate/batch")
+    public ResponseEntity<AuthBatchModel> authenticateBatch(@RequestBody AuthBatchRequest auth){
+        List<String> accessTokens = auth.getAccessTokens() == null ?
+                Collections.emptyList() :
+                auth.getAccessTokens();
+
+        if (accessTokens.size() > authenticateConfig.maxBatchSize()){
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Batch is limited to " + authenticateConfig.maxBatchSize() + " access tokens");
+        }
+
+        // Ordered parallel stream, results line up with the tokens in the request
+        List<Result> results = accessTokens.parallelStream()
+                .map(accessToken -> metrics.count(jwtManager.verifyAccessToken(accessToken).getResult()))
+                .collect(Collectors.toList());
+
+        AuthBatchModel batch = new AuthBatchModel();
+        batch.setResults(results);
+        return ResponseEntity.status(HttpStatus.OK)
+                .body(batch);
+    }
+
 
 
 
@@ -0,0 +1,82 @@
+package com.github.klefstad_teaching.cs122b.idm.rest;
+
+import com.github.klefstad_teaching.cs122b.idm.component.IDMJwtManager;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMJwksConfig;
+import com.nimbusds.jose.jwk.JWKSet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Publishes the public signing key(s) so resource servers can verify
+ * access tokens locally instead of calling /authenticate.
+ */
+@RestController
+public class JWKSController
+{
+    private final IDMJwtManager jwtManager;
+    private final CacheControl  cacheControl;
+
+    // Re-serialized only when the key ring hands out a new JWKSet
+    private volatile PublishedJWKSet published;
+
+    @Autowired
+    public JWKSController(IDMJwtManager jwtManager,
+                          IDMJwksConfig jwksConfig)
+    {
+        this.jwtManager = jwtManager;
+        this.cacheControl = CacheControl.maxAge(jwksConfig.maxAge()).cachePublic();
+    }
+
+    private static String eTagOf(String body)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                                         .digest(body.getBytes(StandardCharsets.UTF_8));
+
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Spring answers 304 on its own when If-None-Match matches the ETag
+    @GetMapping(value = "/.well-known/jwks.json", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> jwks()
+    {
+        JWKSet          jwkSet  = jwtManager.getPublicJWKSet();
+        PublishedJWKSet current = published;
+
+        if (current == null || current.source != jwkSet) {
+            current = new PublishedJWKSet(jwkSet);
+            published = current;
+        }
+
+        return ResponseEntity.ok()
+                             .cacheControl(cacheControl)
+                             .eTag(current.eTag)
+                             .body(current.body);
+    }
+
+    private static final class PublishedJWKSet
+    {
+        private final JWKSet source;
+        private final String body;
+        private final String eTag;
+
+        private PublishedJWKSet(JWKSet source)
+        {
+            this.source = source;
+            this.body = source.toString();
+            this.eTag = eTagOf(body);
+        }
+    }
+}
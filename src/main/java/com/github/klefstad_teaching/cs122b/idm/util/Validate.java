@@ -1,9 +1,159 @@
 package com.github.klefstad_teaching.cs122b.idm.util;
 
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
 import org.springframework.stereotype.Component;
 
+/**
+ * Request validation for the IDM endpoints.
+ * <p>
+ * Every check is a single pass over the input that accepts exactly what
+ * the regexes the controller used to compile per request accepted:
+ * <pre>
+ * email         ^([a-zA-Z0-9]+)@([a-zA-Z0-9]+).([a-zA-Z0-9]+)$
+ * password      ^(?=.*?[A-Z])(?=.*?[a-z])(?=.*?[0-9]).{10,20}$
+ * refresh token ^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$
+ * </pre>
+ * The methods return the IDMResults failure, or null when the input is valid.
+ */
 @Component
 public final class Validate
 {
+    private static final int EMAIL_MIN_LENGTH     = 6;
+    private static final int EMAIL_MAX_LENGTH     = 32;
+    private static final int PASSWORD_MIN_LENGTH  = 10;
+    private static final int PASSWORD_MAX_LENGTH  = 20;
+    private static final int REFRESH_TOKEN_LENGTH = 36;
 
+    public Result credentials(String email, char[] password)
+    {
+        Result result = email(email);
+        return result != null ? result : password(password);
+    }
+
+    public Result email(String email)
+    {
+        int length = email.length();
+
+        if (length < EMAIL_MIN_LENGTH || length > EMAIL_MAX_LENGTH) {
+            return IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH;
+        }
+
+        // ([a-zA-Z0-9]+)@
+        int at = 0;
+        while (at < length && isAlphanumeric(email.charAt(at))) {
+            at++;
+        }
+
+        if (at == 0 || at == length || email.charAt(at) != '@') {
+            return IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT;
+        }
+
+        return isDomain(email, at + 1, length) ? null : IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT;
+    }
+
+    public Result password(char[] password)
+    {
+        int length = password.length;
+
+        if (length < PASSWORD_MIN_LENGTH || length > PASSWORD_MAX_LENGTH) {
+            return IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS;
+        }
+
+        boolean upper      = false;
+        boolean lower      = false;
+        boolean digit      = false;
+        int     codePoints = length;
+
+        for (int i = 0; i < length; i++) {
+            char c = password[i];
+
+            if (c >= 'A' && c <= 'Z') {
+                upper = true;
+            } else if (c >= 'a' && c <= 'z') {
+                lower = true;
+            } else if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if (isLineTerminator(c)) {
+                return IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT;
+            } else if (Character.isHighSurrogate(c) &&
+                       i + 1 < length &&
+                       Character.isLowSurrogate(password[i + 1])) {
+                // '.' matches a whole surrogate pair, {10,20} counts code points
+                codePoints--;
+                i++;
+            }
+        }
+
+        return upper && lower && digit && codePoints >= PASSWORD_MIN_LENGTH ?
+            null :
+            IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT;
+    }
+
+    public Result refreshToken(String refreshToken)
+    {
+        if (refreshToken.length() != REFRESH_TOKEN_LENGTH) {
+            return IDMResults.REFRESH_TOKEN_HAS_INVALID_LENGTH;
+        }
+
+        for (int i = 0; i < REFRESH_TOKEN_LENGTH; i++) {
+            char c = refreshToken.charAt(i);
+
+            boolean valid = i == 8 || i == 13 || i == 18 || i == 23 ?
+                c == '-' :
+                (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+
+            if (!valid) {
+                return IDMResults.REFRESH_TOKEN_HAS_INVALID_FORMAT;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * ([a-zA-Z0-9]+).([a-zA-Z0-9]+)$ over email[from, to). The unescaped
+     * '.' takes any one code point but a line terminator, so the domain is
+     * either all alphanumeric (the '.' takes one of them) or has exactly one
+     * other code point with alphanumerics on both sides of it.
+     */
+    private static boolean isDomain(String email, int from, int to)
+    {
+        int other = from;
+        while (other < to && isAlphanumeric(email.charAt(other))) {
+            other++;
+        }
+
+        if (other == to) {
+            return to - from >= 3;
+        }
+
+        char c     = email.charAt(other);
+        int  width = Character.isHighSurrogate(c) &&
+                     other + 1 < to &&
+                     Character.isLowSurrogate(email.charAt(other + 1)) ? 2 : 1;
+
+        if (other == from || other + width >= to || isLineTerminator(c)) {
+            return false;
+        }
+
+        for (int i = other + width; i < to; i++) {
+            if (!isAlphanumeric(email.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isAlphanumeric(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    // What '.' refuses to match without DOTALL
+    private static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
 }
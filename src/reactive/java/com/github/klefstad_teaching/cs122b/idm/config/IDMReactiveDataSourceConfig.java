@@ -0,0 +1,28 @@
+package com.github.klefstad_teaching.cs122b.idm.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Spring Boot skips the JDBC DataSource once an R2DBC ConnectionFactory
+ * exists, but the background components (login locks, the email filter
+ * scan, the expiry write-behind, the reaper, the bulk import) still use
+ * JDBC in the reactive build. This puts the spring.datasource pool back.
+ */
+@Configuration
+@EnableConfigurationProperties(DataSourceProperties.class)
+public class IDMReactiveDataSourceConfig
+{
+    @Bean
+    @ConfigurationProperties(prefix = "spring.datasource.hikari")
+    public HikariDataSource dataSource(DataSourceProperties properties)
+    {
+        return properties.initializeDataSourceBuilder()
+                         .type(HikariDataSource.class)
+                         .build();
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.klefstad_teaching.cs122b.idm.repo;
+
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics.Stage;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * The statements the reactive controller needs, run over R2DBC instead of
+ * {@link IDMRepo}'s JDBC template. The SQL and parameters come from
+ * {@link CredentialStorage}, so both stacks read and write the same rows
+ * the same way, in either storage mode.
+ * <p>
+ * Timestamps go over the wire as local date times in the JVM's zone,
+ * which is what Connector/J does with java.sql.Timestamp.
+ */
+@Component
+public class ReactiveIDMRepo
+{
+    private static final String EMAIL_EXISTS_SQL =
+        "select exists(select 1 from idm.user where email = :email) as found";
+
+    private static final String UPDATE_ACTIVE_TOKEN_STATUS_SQL =
+        "update idm.refresh_token " +
+        "set token_status_id = :token_status " +
+        "where id = :id and token_status_id = :active_status";
+
+    private final DatabaseClient    client;
+    private final CredentialStorage storage;
+    private final IDMMetrics        metrics;
+
+    @Autowired
+    public ReactiveIDMRepo(DatabaseClient client,
+                           CredentialStorage storage,
+                           IDMMetrics metrics)
+    {
+        this.client = client;
+        this.storage = storage;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the user and their roles, empty if the email is not registered
+     */
+    public Mono<User> selectUser(String email)
+    {
+        Mono<User> user =
+            client.sql(storage.selectUser())
+                  .bind("email", email)
+                  .map((row, metadata) -> {
+                      User found = new User()
+                          .setId(row.get("id", Integer.class))
+                          .setEmail(row.get("email", String.class))
+                          .setUserStatus(UserStatus.fromId(row.get("user_status_id", Integer.class)))
+                          .setSalt(row.get("salt", byte[].class))
+                          .setHashedPassword(row.get("hashed_password", byte[].class))
+                          .setHashVersion(row.get("hash_version", Integer.class));
+
+                      Integer roleId = row.get("role_id", Integer.class);
+                      return roleId == null ? found : found.setRole(Role.fromId(roleId));
+                  })
+                  .all()
+                  // One row per role, or a single row with a null role_id
+                  .reduce((first, next) -> first.setRoles(next.getRoles()));
+
+        return timed(Stage.USER_SELECT, user);
+    }
+
+    public Mono<Boolean> emailExists(String email)
+    {
+        return client.sql(EMAIL_EXISTS_SQL)
+                     .bind("email", email)
+                     .map((row, metadata) -> row.get("found", Long.class) != 0)
+                     .one();
+    }
+
+    /**
+     * Fails with a DataIntegrityViolationException if the email is already taken,
+     * DatabaseClient does not translate R2DBC errors to DuplicateKeyException.
+     */
+    public Mono<Void> insertUser(User user)
+    {
+        return timed(Stage.USER_INSERT, execute(storage.insertUser(false), storage.userParameters(user)))
+            .then();
+    }
+
+    public Mono<Void> insertRefreshToken(RefreshToken refreshToken)
+    {
+        return timed(Stage.REFRESH_TOKEN_INSERT,
+                     execute(storage.insertRefreshToken(), storage.refreshTokenParameters(refreshToken)))
+            .then();
+    }
+
+    /**
+     * @return the token with its user and the user's roles, empty if there is no such token.
+     * The expire time is the stored one, extensions still in the write-behind buffer are not applied.
+     */
+    public Mono<RefreshToken> selectRefreshToken(String token)
+    {
+        Mono<RefreshToken> refreshToken =
+            bind(client.sql(storage.selectRefreshToken()), storage.addToken(new MapSqlParameterSource(), token))
+                .map((row, metadata) -> {
+                    RefreshToken found = new RefreshToken()
+                        .setId(row.get("id", Integer.class))
+                        .setToken(CredentialStorage.tokenString(row.get("token", byte[].class)))
+                        .setUserId(row.get("user_id", Integer.class))
+                        .setTokenStatus(TokenStatus.fromId(row.get("token_status_id", Integer.class)))
+                        .setExpireTime(toInstant(row.get("expire_time", LocalDateTime.class)))
+                        .setMaxLifeTime(toInstant(row.get("max_life_time", LocalDateTime.class)))
+                        .setUser(new User()
+                                     .setId(row.get("user_id", Integer.class))
+                                     .setEmail(row.get("email", String.class))
+                                     .setUserStatus(UserStatus.fromId(row.get("user_status_id", Integer.class))));
+
+                    Integer roleId = row.get("role_id", Integer.class);
+                    if (roleId != null) {
+                        found.getUser().setRole(Role.fromId(roleId));
+                    }
+                    return found;
+                })
+                .all()
+                .reduce((first, next) -> {
+                    first.getUser().setRoles(next.getUser().getRoles());
+                    return first;
+                });
+
+        return timed(Stage.REFRESH_TOKEN_SELECT, refreshToken);
+    }
+
+    /**
+     * @return false if the token was no longer active
+     */
+    public Mono<Boolean> updateActiveTokenStatus(RefreshToken token, TokenStatus tokenStatus)
+    {
+        MapSqlParameterSource source =
+            new MapSqlParameterSource()
+                .addValue("token_status", tokenStatus.id())
+                .addValue("id", token.getId())
+                .addValue("active_status", TokenStatus.ACTIVE.id());
+
+        return execute(UPDATE_ACTIVE_TOKEN_STATUS_SQL, source).map(updated -> updated == 1);
+    }
+
+    private Mono<Integer> execute(String sql, MapSqlParameterSource source)
+    {
+        return bind(client.sql(sql), source).fetch().rowsUpdated();
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec,
+                                                          MapSqlParameterSource source)
+    {
+        for (String name : source.getParameterNames()) {
+            Object value = source.getValue(name);
+
+            if (value instanceof Timestamp) {
+                value = ((Timestamp) value).toLocalDateTime();
+            }
+
+            spec = value == null ? spec.bindNull(name, Object.class) : spec.bind(name, value);
+        }
+        return spec;
+    }
+
+    private static Instant toInstant(LocalDateTime localDateTime)
+    {
+        return localDateTime.atZone(ZoneId.systemDefault()).toInstant();
+    }
+
+    private <T> Mono<T> timed(Stage stage, Mono<T> mono)
+    {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return mono.doFinally(signal -> metrics.record(stage, start));
+        });
+    }
+}
@@ -0,0 +1,402 @@
+package com.github.klefstad_teaching.cs122b.idm.rest;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMHashingExecutor;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMJwtManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics;
+import com.github.klefstad_teaching.cs122b.idm.component.LoginThrottle;
+import com.github.klefstad_teaching.cs122b.idm.component.RefreshTokenExpiryBuffer;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMAuthenticateConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenStoreConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMShardingConfig;
+import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthBatchModel;
+import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthBatchRequest;
+import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthModel;
+import com.github.klefstad_teaching.cs122b.idm.model.authenticate.AuthRequest;
+import com.github.klefstad_teaching.cs122b.idm.model.login.LoginModel;
+import com.github.klefstad_teaching.cs122b.idm.model.login.LoginRequest;
+import com.github.klefstad_teaching.cs122b.idm.model.refresh.RefreshModel;
+import com.github.klefstad_teaching.cs122b.idm.model.refresh.RefreshRequest;
+import com.github.klefstad_teaching.cs122b.idm.model.register.RegisterModel;
+import com.github.klefstad_teaching.cs122b.idm.model.register.RegisterRequest;
+import com.github.klefstad_teaching.cs122b.idm.repo.ReactiveIDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import com.github.klefstad_teaching.cs122b.idm.util.Validate;
+import com.nimbusds.jose.JOSEException;
+import io.r2dbc.spi.R2dbcDataIntegrityViolationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * The WebFlux build of {@link IDMController}, same paths, models, results
+ * and status codes, for the reactive profile.
+ * <p>
+ * Nothing here blocks an event loop thread. The database is reached
+ * through {@link ReactiveIDMRepo}, PBKDF2 runs on the bounded
+ * {@link IDMHashingExecutor} with the same 503 once it is full, and ES256
+ * signing and uncached verification run on a core sized parallel
+ * scheduler. Throttling, the email filter and the refresh token
+ * write-behind buffer are the in-memory components both stacks share.
+ * Refresh tokens are read and written over R2DBC, so only the mysql
+ * refresh token store is supported here, and only without idm.sharding.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveIDMController
+{
+    private final IDMAuthenticationManager authManager;
+    private final IDMJwtManager            jwtManager;
+    private final ReactiveIDMRepo          repo;
+    private final RefreshTokenExpiryBuffer expiryBuffer;
+    private final Validate                 validate;
+    private final IDMHashingExecutor       hashingExecutor;
+    private final IDMAuthenticateConfig    authenticateConfig;
+    private final LoginThrottle            loginThrottle;
+    private final EmailBloomFilter         emailFilter;
+    private final IDMMetrics               metrics;
+    private final Scheduler                tokenScheduler;
+
+    @Autowired
+    public ReactiveIDMController(IDMAuthenticationManager authManager,
+                                 IDMJwtManager jwtManager,
+                                 ReactiveIDMRepo repo,
+                                 RefreshTokenExpiryBuffer expiryBuffer,
+                                 Validate validate,
+                                 IDMHashingExecutor hashingExecutor,
+                                 IDMAuthenticateConfig authenticateConfig,
+                                 LoginThrottle loginThrottle,
+                                 EmailBloomFilter emailFilter,
+                                 IDMMetrics metrics,
+                                 IDMRefreshTokenStoreConfig refreshTokenStoreConfig,
+                                 IDMShardingConfig shardingConfig)
+    {
+        if (refreshTokenStoreConfig.type() != IDMRefreshTokenStoreConfig.Type.MYSQL) {
+            throw new IllegalStateException("The reactive build only supports idm.refresh-token-store.type: mysql");
+        }
+        if (!shardingConfig.urls().isEmpty()) {
+            throw new IllegalStateException("The reactive build does not support idm.sharding");
+        }
+
+        this.authManager = authManager;
+        this.jwtManager = jwtManager;
+        this.repo = repo;
+        this.expiryBuffer = expiryBuffer;
+        this.validate = validate;
+        this.hashingExecutor = hashingExecutor;
+        this.authenticateConfig = authenticateConfig;
+        this.loginThrottle = loginThrottle;
+        this.emailFilter = emailFilter;
+        this.metrics = metrics;
+        this.tokenScheduler = Schedulers.newParallel("idm-token", Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    @PostMapping("/register")
+    public Mono<ResponseEntity<RegisterModel>> register(@RequestBody RegisterRequest req)
+    {
+        RegisterModel reg     = new RegisterModel();
+        Result        invalid = validate.credentials(req.getEmail(), req.getPassword());
+
+        if (invalid != null) {
+            reg.setResult(metrics.count(invalid));
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(reg));
+        }
+
+        // Skips the hash for emails known to be taken, the unique key catches the ones the filter missed
+        Mono<Boolean> taken = emailFilter.mightContain(req.getEmail()) ?
+            repo.emailExists(req.getEmail()) :
+            Mono.just(false);
+
+        return taken.flatMap(exists -> {
+            if (exists) {
+                return Mono.just(userAlreadyExists(reg));
+            }
+
+            return offloadHashing(() -> authManager.createUser(req.getEmail(), req.getPassword()))
+                .flatMap(user -> repo.insertUser(user).thenReturn(user))
+                .map(user -> {
+                    emailFilter.add(user.getEmail());
+                    reg.setResult(metrics.count(IDMResults.USER_REGISTERED_SUCCESSFULLY));
+                    return ResponseEntity.status(HttpStatus.OK).body(reg);
+                })
+                // Lost a race with a concurrent register for the same email, DatabaseClient translates
+                // the unique key violation to a DataIntegrityViolationException, not a DuplicateKeyException
+                .onErrorResume(e -> e instanceof DataIntegrityViolationException ||
+                                    e instanceof R2dbcDataIntegrityViolationException,
+                               e -> Mono.just(userAlreadyExists(reg)));
+        });
+    }
+
+    private ResponseEntity<RegisterModel> userAlreadyExists(RegisterModel reg)
+    {
+        reg.setResult(metrics.count(IDMResults.USER_ALREADY_EXISTS));
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(reg);
+    }
+
+    @PostMapping("/login")
+    public Mono<ResponseEntity<LoginModel>> login(@RequestBody LoginRequest logreq,
+                                                  ServerHttpRequest request)
+    {
+        LoginModel log     = new LoginModel();
+        Result     invalid = validate.credentials(logreq.getEmail(), logreq.getPassword());
+
+        if (invalid != null) {
+            log.setResult(metrics.count(invalid));
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(log));
+        }
+
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        String            clientAddress = remoteAddress == null || remoteAddress.getAddress() == null ?
+            null :
+            remoteAddress.getAddress().getHostAddress();
+
+        // Before the lookup and the hash, that is what a guessing client costs us
+        if (!loginThrottle.tryAcquire(logreq.getEmail(), clientAddress)) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many login attempts");
+        }
+
+        // Not the email filter, a user registered on another instance may not be in it yet
+        return repo.selectUser(logreq.getEmail())
+                   .map(Optional::of)
+                   .defaultIfEmpty(Optional.empty())
+                   .flatMap(found -> {
+                       if (!found.isPresent()) {
+                           return userNotFound(log, logreq.getPassword());
+                       }
+
+                       User user = found.get();
+                       return offloadHashing(() -> authManager.passwordMatches(user, logreq.getPassword()))
+                           .flatMap(matches -> {
+                               if (matches) {
+                                   loginThrottle.recordSuccess(user);
+                               } else {
+                                   loginThrottle.recordFailure(user);
+                               }
+                               return loginResponse(log, matches ? user : null);
+                           });
+                   });
+    }
+
+    // Hashes anyway, an unknown email must take as long as a wrong password
+    private Mono<ResponseEntity<LoginModel>> userNotFound(LoginModel log, char[] password)
+    {
+        return offloadHashing(() -> {
+                authManager.hashForTiming(password);
+                return log;
+            })
+            .map(model -> {
+                model.setResult(metrics.count(IDMResults.USER_NOT_FOUND));
+                return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(model);
+            });
+    }
+
+    private Mono<ResponseEntity<LoginModel>> loginResponse(LoginModel log, User succ)
+    {
+        if (succ == null) {
+            log.setResult(metrics.count(IDMResults.INVALID_CREDENTIALS));
+            return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).body(log));
+        }
+
+        if (succ.getUserStatus() == UserStatus.LOCKED || loginThrottle.isLockPending(succ)) {
+            log.setResult(metrics.count(IDMResults.USER_IS_LOCKED));
+            return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).body(log));
+        }
+
+        if (succ.getUserStatus() == UserStatus.BANNED) {
+            log.setResult(metrics.count(IDMResults.USER_IS_BANNED));
+            return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).body(log));
+        }
+
+        if (succ.getUserStatus() != UserStatus.ACTIVE) {
+            return Mono.error(new IllegalStateException("Unknown user status " + succ.getUserStatus()));
+        }
+
+        RefreshToken refresh = jwtManager.buildRefreshToken(succ);
+
+        return signAccessToken(succ)
+            .flatMap(accessToken -> repo.insertRefreshToken(refresh).thenReturn(accessToken))
+            .map(accessToken -> {
+                log.setAccessToken(accessToken);
+                log.setRefreshToken(refresh.getToken());
+                log.setResult(metrics.count(IDMResults.USER_LOGGED_IN_SUCCESSFULLY));
+                return ResponseEntity.status(HttpStatus.OK).body(log);
+            })
+            .onErrorResume(JOSEException.class, e -> {
+                log.setResult(metrics.count(IDMResults.USER_NOT_FOUND));
+                return Mono.just(ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(log));
+            });
+    }
+
+    @PostMapping("/refresh")
+    public Mono<ResponseEntity<RefreshModel>> refresh(@RequestBody RefreshRequest refq)
+    {
+        RefreshModel refreshModel = new RefreshModel();
+        // Length then UUID format check
+        Result invalid = validate.refreshToken(refq.getRefreshToken());
+
+        if (invalid != null) {
+            refreshModel.setResult(metrics.count(invalid));
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(refreshModel));
+        }
+
+        return repo.selectRefreshToken(refq.getRefreshToken())
+                   .map(Optional::of)
+                   .defaultIfEmpty(Optional.empty())
+                   .flatMap(found -> {
+                       if (!found.isPresent()) {
+                           return Mono.just(refreshUnauthorized(refreshModel, IDMResults.REFRESH_TOKEN_NOT_FOUND));
+                       }
+                       return refreshResponse(refreshModel, found.get());
+                   })
+                   // IDMController answers an empty 200 when signing fails
+                   .onErrorResume(JOSEException.class, e -> Mono.just(ResponseEntity.ok().build()));
+    }
+
+    private Mono<ResponseEntity<RefreshModel>> refreshResponse(RefreshModel refreshModel, RefreshToken retoken)
+    {
+        // The stored expire time may lag behind an extension that is still buffered
+        Instant pendingExpireTime = expiryBuffer.pendingExpireTime(retoken.getToken());
+        if (pendingExpireTime != null && pendingExpireTime.isAfter(retoken.getExpireTime())) {
+            retoken.setExpireTime(pendingExpireTime);
+        }
+
+        if (retoken.getTokenStatus() == TokenStatus.EXPIRED) {
+            return Mono.just(refreshUnauthorized(refreshModel, IDMResults.REFRESH_TOKEN_IS_EXPIRED));
+        }
+
+        if (retoken.getTokenStatus() == TokenStatus.REVOKED) {
+            return Mono.just(refreshUnauthorized(refreshModel, IDMResults.REFRESH_TOKEN_IS_REVOKED));
+        }
+
+        Instant now = Instant.now();
+        if (now.isAfter(retoken.getExpireTime()) || now.isAfter(retoken.getMaxLifeTime())) {
+            return repo.updateActiveTokenStatus(retoken, TokenStatus.EXPIRED)
+                       .thenReturn(refreshUnauthorized(refreshModel, IDMResults.REFRESH_TOKEN_IS_EXPIRED));
+        }
+
+        jwtManager.updateRefreshTokenExpireTime(retoken);
+
+        if (retoken.getExpireTime().isAfter(retoken.getMaxLifeTime())) {
+            return repo.updateActiveTokenStatus(retoken, TokenStatus.REVOKED)
+                       .flatMap(revoked -> {
+                           if (!revoked) {
+                               return Mono.just(refreshUnauthorized(refreshModel, IDMResults.REFRESH_TOKEN_IS_REVOKED));
+                           }
+
+                           User         user  = retoken.getUser();
+                           RefreshToken renew = jwtManager.buildRefreshToken(user);
+
+                           return repo.insertRefreshToken(renew)
+                                      .then(signAccessToken(user))
+                                      .map(accessToken -> renewed(refreshModel, renew.getToken(), accessToken));
+                       });
+        }
+
+        // Written behind, see RefreshTokenExpiryBuffer
+        authManager.updateRefreshTokenExpireTime(retoken);
+
+        return signAccessToken(retoken.getUser())
+            .map(accessToken -> renewed(refreshModel, retoken.getToken(), accessToken));
+    }
+
+    private ResponseEntity<RefreshModel> refreshUnauthorized(RefreshModel refreshModel, Result result)
+    {
+        refreshModel.setResult(metrics.count(result));
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).body(refreshModel);
+    }
+
+    private ResponseEntity<RefreshModel> renewed(RefreshModel refreshModel, String refreshToken, String accessToken)
+    {
+        refreshModel.setRefreshToken(refreshToken);
+        refreshModel.setAccessToken(accessToken);
+        refreshModel.setResult(metrics.count(IDMResults.RENEWED_FROM_REFRESH_TOKEN));
+        return ResponseEntity.status(HttpStatus.OK).body(refreshModel);
+    }
+
+    @PostMapping("/authenticate")
+    public Mono<ResponseEntity<AuthModel>> authenticate(@RequestBody AuthRequest auth)
+    {
+        return verifyAccessToken(auth.getAccessToken())
+            .map(result -> {
+                AuthModel am = new AuthModel();
+                am.setResult(metrics.count(result));
+                return ResponseEntity.status(result.status()).body(am);
+            });
+    }
+
+    @PostMapping("/authenticate/batch")
+    public Mono<ResponseEntity<AuthBatchModel>> authenticateBatch(@RequestBody AuthBatchRequest auth)
+    {
+        List<String> accessTokens = auth.getAccessTokens() == null ?
+            Collections.emptyList() :
+            auth.getAccessTokens();
+
+        if (accessTokens.size() > authenticateConfig.maxBatchSize()) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                                              "Batch is limited to " + authenticateConfig.maxBatchSize() + " access tokens");
+        }
+
+        // Sequential merge, results line up with the tokens in the request
+        return Flux.fromIterable(accessTokens)
+                   .flatMapSequential(this::verifyAccessToken)
+                   .map(metrics::count)
+                   .collectList()
+                   .map(results -> {
+                       AuthBatchModel batch = new AuthBatchModel();
+                       batch.setResults(results);
+                       return ResponseEntity.status(HttpStatus.OK).body(batch);
+                   });
+    }
+
+    private Mono<Result> verifyAccessToken(String accessToken)
+    {
+        return Mono.fromSupplier(() -> jwtManager.verifyAccessToken(accessToken).getResult())
+                   .subscribeOn(tokenScheduler);
+    }
+
+    private Mono<String> signAccessToken(User user)
+    {
+        return Mono.fromCallable(() -> jwtManager.buildAccessToken(user))
+                   .subscribeOn(tokenScheduler);
+    }
+
+    // Rejects right away with a 503 instead of queueing behind a login burst
+    private <T> Mono<T> offloadHashing(Supplier<T> task)
+    {
+        return Mono.defer(() -> Mono.fromFuture(hashingExecutor.supply(task)))
+                   .onErrorMap(RejectedExecutionException.class,
+                               e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Hashing capacity exhausted"));
+    }
+
+    @PreDestroy
+    public void shutdown()
+    {
+        tokenScheduler.dispose();
+    }
+}
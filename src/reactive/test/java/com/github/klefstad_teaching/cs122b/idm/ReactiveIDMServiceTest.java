@@ -0,0 +1,37 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.time.Duration;
+
+/**
+ * The {@link AbstractIDMServiceTest} cases against ReactiveIDMController,
+ * over HTTP to a running server. Only built and run with -Preactive.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("reactive")
+@Sql("/idm-test-data.sql")
+@AutoConfigureWebTestClient
+public class ReactiveIDMServiceTest extends AbstractIDMServiceTest
+{
+    @Autowired
+    public ReactiveIDMServiceTest(WebTestClient client,
+                                  EmailBloomFilter emailFilter,
+                                  IDMAuthenticationManager authManager,
+                                  @Value("${idm.key-file-name}") String keyFileName,
+                                  @Value("${idm.access-token-expire}") Duration accessTokenExpire,
+                                  @Value("${idm.max-refresh-token-life-time}") Duration maxRefreshTokenLifeTime,
+                                  @Value("${idm.refresh-token-expire}") Duration refreshTokenExpire)
+    {
+        super(client, emailFilter, authManager,
+              keyFileName, accessTokenExpire, maxRefreshTokenLifeTime, refreshTokenExpire);
+    }
+}
@@ -0,0 +1,614 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The service cases both stacks answer with the same result codes, messages
+ * and status codes. {@link IDMServiceTest} runs them against IDMController
+ * through MockMvc, ReactiveIDMServiceTest against ReactiveIDMController on a
+ * running server under -Preactive.
+ */
+public abstract class AbstractIDMServiceTest
+{
+    protected static final String REGISTER_PATH           = "/register";
+    protected static final String LOGIN_PATH              = "/login";
+    protected static final String REFRESH_PATH            = "/refresh";
+    protected static final String AUTHENTICATE_PATH       = "/authenticate";
+    protected static final String AUTHENTICATE_BATCH_PATH = "/authenticate/batch";
+
+    protected static final JSONObject ADMIN  = makeUser("Admin@example.com",
+                                                        "AdminPassWord0");
+    protected static final JSONObject ACTIVE = makeUser("Active@example.com",
+                                                        "ActivePassWord0");
+    protected static final JSONObject LOCKED = makeUser("Locked@example.com",
+                                                        "LockedPassWord0");
+    protected static final JSONObject BANNED = makeUser("Banned@example.com",
+                                                        "BannedPassWord0");
+
+    private static final JSONObject LOGIN_MIN_PASS = makeUser("LoginMinPass@example.com",
+                                                              "ValidPass0");
+    private static final JSONObject LOGIN_MAX_PASS = makeUser("LoginMaxPass@example.com",
+                                                              "ValidPass01234567890");
+
+    private static final JSONObject LOGIN_MIN_EMAIL = makeUser("a@a.io",
+                                                               "MinEmailPassWord0");
+    private static final JSONObject LOGIN_MAX_EMAIL = makeUser("LoginIsRightAtMaxLen@example.com",
+                                                               "MaxEmailPassWord0");
+
+    protected static final String EXPIRED_TOKEN = "c46fc3c2-9791-44d6-a86e-2922ad655284";
+    protected static final String REVOKED_TOKEN = "399cd90d-e715-484a-bb4d-a8ff35506ef9";
+
+    protected final WebTestClient            client;
+    protected final JWTManager               jwtManager;
+    protected final IDMAuthenticationManager authManager;
+
+    private final EmailBloomFilter emailFilter;
+
+    protected AbstractIDMServiceTest(WebTestClient client,
+                                     EmailBloomFilter emailFilter,
+                                     IDMAuthenticationManager authManager,
+                                     String keyFileName,
+                                     Duration accessTokenExpire,
+                                     Duration maxRefreshTokenLifeTime,
+                                     Duration refreshTokenExpire)
+    {
+        this.client = client;
+        this.emailFilter = emailFilter;
+        this.authManager = authManager;
+        this.jwtManager =
+            new JWTManager.Builder()
+                .keyFileName(keyFileName)
+                .accessTokenExpire(accessTokenExpire)
+                .maxRefreshTokenLifeTime(maxRefreshTokenLifeTime)
+                .refreshTokenExpire(refreshTokenExpire)
+                .build();
+    }
+
+    // @Sql reloads idm.user behind the service's back, with the same ids
+    @BeforeEach
+    public void rebuildEmailFilter()
+    {
+        emailFilter.rebuild();
+    }
+
+    protected static JSONObject makeUser(String email, String password)
+    {
+        JSONArray jsonArray = new JSONArray();
+        password.chars().forEach(digit -> jsonArray.add(String.valueOf((char) digit)));
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("email", email);
+        jsonObject.put("password", jsonArray);
+
+        return jsonObject;
+    }
+
+    protected static JSONObject refreshRequest(String refreshToken)
+    {
+        JSONObject request = new JSONObject();
+        request.put("refreshToken", refreshToken);
+        return request;
+    }
+
+    protected static JSONObject authenticateRequest(String accessToken)
+    {
+        JSONObject request = new JSONObject();
+        request.put("accessToken", accessToken);
+        return request;
+    }
+
+    protected WebTestClient.ResponseSpec postJson(String path, JSONObject request)
+    {
+        return this.client.post()
+                          .uri(path)
+                          .contentType(MediaType.APPLICATION_JSON)
+                          .bodyValue(request.toJSONString())
+                          .exchange();
+    }
+
+    protected WebTestClient.BodyContentSpec isResult(WebTestClient.ResponseSpec response, Result result)
+    {
+        return response.expectStatus().isEqualTo(result.status().value())
+                       .expectBody()
+                       .jsonPath("result.code").isEqualTo(result.code())
+                       .jsonPath("result.message").isEqualTo(result.message());
+    }
+
+    // Failed logins and refreshes carry no tokens
+    protected void isRejected(WebTestClient.ResponseSpec response, Result result)
+    {
+        isResult(response, result)
+            .jsonPath("accessToken").doesNotExist()
+            .jsonPath("refreshToken").doesNotExist();
+    }
+
+    protected static JSONObject parse(WebTestClient.BodyContentSpec body)
+    {
+        byte[] content = body.returnResult().getResponseBody();
+        return (JSONObject) JSONValue.parse(new String(content, StandardCharsets.UTF_8));
+    }
+
+    protected JSONObject login(JSONObject user)
+    {
+        return parse(isResult(postJson(LOGIN_PATH, user), IDMResults.USER_LOGGED_IN_SUCCESSFULLY)
+                         .jsonPath("accessToken").isNotEmpty()
+                         .jsonPath("refreshToken").isNotEmpty());
+    }
+
+    @Test
+    public void applicationLoads()
+    {
+    }
+
+    // Register Tests
+
+    @Test
+    public void registerSuccessMinPassword()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterMin@example.com", "ValidPass0")),
+                 IDMResults.USER_REGISTERED_SUCCESSFULLY);
+    }
+
+    @Test
+    public void registerSuccessMaxPassword()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterMax@example.com", "ValidPass01234567890")),
+                 IDMResults.USER_REGISTERED_SUCCESSFULLY);
+    }
+
+    @Test
+    public void registerSuccessMinEmail()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("b@b.io", "ValidPassWord0")),
+                 IDMResults.USER_REGISTERED_SUCCESSFULLY);
+    }
+
+    @Test
+    public void registerSuccessMaxEmail()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("EmailIsRightAtMaxLen@example.com", "ValidPassWord0")),
+                 IDMResults.USER_REGISTERED_SUCCESSFULLY);
+    }
+
+    @Test
+    public void registerPasswordTooShort()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterFail1@example.com", "TooShort0")),
+                 IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS);
+    }
+
+    @Test
+    public void registerPasswordTooLong()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterFail2@example.com", "WayTooLongPassword012")),
+                 IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS);
+    }
+
+    @Test
+    public void registerPasswordMissingNumber()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterFail3@example.com", "NoNumberPassword")),
+                 IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
+    }
+
+    @Test
+    public void registerPasswordMissingUpperCase()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterFail4@example.com", "nouppercase0")),
+                 IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
+    }
+
+    @Test
+    public void registerPasswordMissingLowerCase()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("RegisterFail5@example.com", "NOLOWERCASE0")),
+                 IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
+    }
+
+    @Test
+    public void registerEmailTooShort()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("a@a.a", "ValidPassWord0")),
+                 IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH);
+    }
+
+    @Test
+    public void registerEmailTooLong()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("EmailTooLongToSucceed@example.com", "ValidPassWord0")),
+                 IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH);
+    }
+
+    @Test
+    public void registerEmailNotValid()
+    {
+        isResult(postJson(REGISTER_PATH, makeUser("NotValidEmail", "ValidPassWord0")),
+                 IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT);
+    }
+
+    @Test
+    public void registerAlreadyExists()
+    {
+        isResult(postJson(REGISTER_PATH, ACTIVE), IDMResults.USER_ALREADY_EXISTS);
+    }
+
+    @Test
+    public void registerAlreadyExistsBehindEmailFilter()
+    {
+        // Registered behind the filter's back, so only the unique key catches the second one
+        authManager.insertUser(authManager.createUser("Elsewhere@example.com", "ElsewherePassWord0".toCharArray()));
+
+        isResult(postJson(REGISTER_PATH, makeUser("Elsewhere@example.com", "ValidPassWord0")),
+                 IDMResults.USER_ALREADY_EXISTS);
+    }
+
+    // Login Tests
+
+    @Test
+    public void loginSuccessMinPassword()
+    {
+        login(LOGIN_MIN_PASS);
+    }
+
+    @Test
+    public void loginSuccessMaxPassword()
+    {
+        login(LOGIN_MAX_PASS);
+    }
+
+    @Test
+    public void loginSuccessMinEmail()
+    {
+        login(LOGIN_MIN_EMAIL);
+    }
+
+    @Test
+    public void loginSuccessMaxEmail()
+    {
+        login(LOGIN_MAX_EMAIL);
+    }
+
+    @Test
+    public void loginPasswordTooShort()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("LoginFail1@example.com", "TooShort0")),
+                   IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS);
+    }
+
+    @Test
+    public void loginPasswordTooLong()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("LoginFail2@example.com", "WayTooLongPassword012")),
+                   IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS);
+    }
+
+    @Test
+    public void loginPasswordMissingNumber()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("LoginFail3@example.com", "NoNumberPassword")),
+                   IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
+    }
+
+    @Test
+    public void loginPasswordMissingUpperCase()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("LoginFail4@example.com", "nouppercase0")),
+                   IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
+    }
+
+    @Test
+    public void loginPasswordMissingLowerCase()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("LoginFail5@example.com", "NOLOWERCASE0")),
+                   IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT);
+    }
+
+    @Test
+    public void loginEmailTooShort()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("a@a.a", "ValidPass01234567890")),
+                   IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH);
+    }
+
+    @Test
+    public void loginEmailTooLong()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("EmailTooLongToSucceed@example.com", "ValidPass01234567890")),
+                   IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH);
+    }
+
+    @Test
+    public void loginEmailNotValid()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("NotValidEmail", "ValidPass01234567890")),
+                   IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT);
+    }
+
+    @Test
+    public void loginDoesntExist()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser("DoesntExist@example.com", "ValidPass0")),
+                   IDMResults.USER_NOT_FOUND);
+    }
+
+    @Test
+    public void loginBannedAccount()
+    {
+        isRejected(postJson(LOGIN_PATH, BANNED), IDMResults.USER_IS_BANNED);
+    }
+
+    @Test
+    public void loginLockedAccount()
+    {
+        isRejected(postJson(LOGIN_PATH, LOCKED), IDMResults.USER_IS_LOCKED);
+    }
+
+    @Test
+    public void loginWrongPassword()
+    {
+        isRejected(postJson(LOGIN_PATH, makeUser(ACTIVE.getAsString("email"), "WrongPass0")),
+                   IDMResults.INVALID_CREDENTIALS);
+    }
+
+    @Test
+    public void loginAccessTokenCarriesRoles()
+        throws Exception
+    {
+        List<String> roles =
+            SignedJWT.parse(login(ADMIN).getAsString("accessToken"))
+                     .getJWTClaimsSet()
+                     .getStringListClaim(JWTManager.CLAIM_ROLES);
+
+        assertEquals(1, roles.size());
+        assertTrue(roles.get(0).equalsIgnoreCase("admin"));
+    }
+
+    @Test
+    public void loginAfterRegister()
+    {
+        JSONObject request = makeUser("JustRegistered@example.com", "ValidPass0");
+
+        isResult(postJson(REGISTER_PATH, request), IDMResults.USER_REGISTERED_SUCCESSFULLY);
+
+        login(request);
+    }
+
+    @Test
+    public void loginThrottledPerEmail()
+    {
+        JSONObject request = makeUser("Throttled@example.com", "ValidPass0");
+
+        // idm.login-throttle.email-capacity in the test application.yml
+        for (int i = 0; i < 20; i++) {
+            isResult(postJson(LOGIN_PATH, request), IDMResults.USER_NOT_FOUND);
+        }
+
+        postJson(LOGIN_PATH, request).expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    // Refresh Tests
+
+    @Test
+    public void refreshActiveToken()
+    {
+        String refreshToken = login(ACTIVE).getAsString("refreshToken");
+
+        isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("accessToken").isNotEmpty()
+            .jsonPath("refreshToken").isEqualTo(refreshToken);
+    }
+
+    @Test
+    public void refreshExpiredToken()
+    {
+        isRejected(postJson(REFRESH_PATH, refreshRequest(EXPIRED_TOKEN)), IDMResults.REFRESH_TOKEN_IS_EXPIRED);
+    }
+
+    @Test
+    public void refreshRevokedToken()
+    {
+        isRejected(postJson(REFRESH_PATH, refreshRequest(REVOKED_TOKEN)), IDMResults.REFRESH_TOKEN_IS_REVOKED);
+    }
+
+    @Test
+    public void refreshTokenNotFound()
+    {
+        isRejected(postJson(REFRESH_PATH, refreshRequest(UUID.randomUUID().toString())),
+                   IDMResults.REFRESH_TOKEN_NOT_FOUND);
+    }
+
+    @Test
+    public void refreshBeforeExpire()
+        throws Exception
+    {
+        String refreshToken = login(ACTIVE).getAsString("refreshToken");
+
+        Thread.sleep(jwtManager.getRefreshTokenExpire().minus(Duration.ofSeconds(1)).toMillis());
+
+        isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("accessToken").isNotEmpty()
+            .jsonPath("refreshToken").isEqualTo(refreshToken);
+    }
+
+    @Test
+    public void refreshAfterExpire()
+        throws Exception
+    {
+        String refreshToken = login(ACTIVE).getAsString("refreshToken");
+
+        Thread.sleep(jwtManager.getRefreshTokenExpire().plus(Duration.ofSeconds(1)).toMillis());
+
+        isRejected(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.REFRESH_TOKEN_IS_EXPIRED);
+    }
+
+    @Test
+    public void refreshAfterExpireIsExtended()
+        throws Exception
+    {
+        String refreshToken = login(ACTIVE).getAsString("refreshToken");
+
+        Thread.sleep(jwtManager.getRefreshTokenExpire().minus(Duration.ofSeconds(1)).toMillis());
+
+        isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("refreshToken").isEqualTo(refreshToken)
+            .jsonPath("accessToken").isNotEmpty();
+
+        Thread.sleep(jwtManager.getRefreshTokenExpire().minus(Duration.ofSeconds(1)).toMillis());
+
+        String newRefreshToken =
+            parse(isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+                      .jsonPath("accessToken").isNotEmpty())
+                .getAsString("refreshToken");
+
+        assertNotEquals(refreshToken, newRefreshToken);
+
+        isRejected(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.REFRESH_TOKEN_IS_REVOKED);
+
+        isResult(postJson(REFRESH_PATH, refreshRequest(newRefreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("accessToken").isNotEmpty()
+            .jsonPath("refreshToken").isEqualTo(newRefreshToken);
+    }
+
+    @Test
+    public void refreshAfterMaxExpire()
+        throws Exception
+    {
+        String refreshToken = login(ACTIVE).getAsString("refreshToken");
+
+        Thread.sleep(jwtManager.getMaxRefreshTokenLifeTime().toMillis());
+
+        isRejected(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.REFRESH_TOKEN_IS_EXPIRED);
+    }
+
+    @Test
+    public void refreshTokenInvalidLength()
+    {
+        isRejected(postJson(REFRESH_PATH, refreshRequest("invalidToken")), IDMResults.REFRESH_TOKEN_HAS_INVALID_LENGTH);
+    }
+
+    @Test
+    public void refreshTokenInvalidFormat()
+    {
+        isRejected(postJson(REFRESH_PATH, refreshRequest(UUID.randomUUID().toString().replace("-", "."))),
+                   IDMResults.REFRESH_TOKEN_HAS_INVALID_FORMAT);
+    }
+
+    // Authenticate Tests
+
+    @Test
+    public void authenticateActiveToken()
+    {
+        String accessToken = login(ACTIVE).getAsString("accessToken");
+
+        isResult(postJson(AUTHENTICATE_PATH, authenticateRequest(accessToken)), IDMResults.ACCESS_TOKEN_IS_VALID);
+    }
+
+    @Test
+    public void authenticateExpiredToken()
+        throws Exception
+    {
+        String accessToken = login(ACTIVE).getAsString("accessToken");
+
+        Thread.sleep(jwtManager.getAccessTokenExpire().toMillis());
+
+        isResult(postJson(AUTHENTICATE_PATH, authenticateRequest(accessToken)), IDMResults.ACCESS_TOKEN_IS_EXPIRED);
+    }
+
+    @Test
+    public void authenticateInvalidTokenKey()
+        throws Exception
+    {
+        ECKey ecJWK = new ECKeyGenerator(Curve.P_521)
+            .keyUse(KeyUse.SIGNATURE)
+            .keyID(UUID.randomUUID().toString())
+            .generate();
+
+        JWSSigner signer = new ECDSASigner(ecJWK);
+
+        SignedJWT jws = new SignedJWT(
+            new JWSHeader(JWSAlgorithm.ES512),
+            new JWTClaimsSet.Builder()
+                .subject("Subject")
+                .expirationTime(Date.from(Instant.now().plus(Duration.ofHours(1))))
+                .claim("roles", new ArrayList<String>())
+                .build());
+
+        jws.sign(signer);
+
+        isResult(postJson(AUTHENTICATE_PATH, authenticateRequest(jws.serialize())), IDMResults.ACCESS_TOKEN_IS_INVALID);
+    }
+
+    @Test
+    public void authenticateInvalidClaims()
+        throws Exception
+    {
+        JWTClaimsSet claimsSet =
+            new JWTClaimsSet.Builder()
+                .subject("Email")
+                .expirationTime(Date.from(Instant.now().plus(Duration.ofHours(1))))
+                .build();
+
+        JWSHeader header =
+            new JWSHeader.Builder(JWTManager.JWS_ALGORITHM)
+                .keyID(jwtManager.getEcKey().getKeyID())
+                .type(JWTManager.JWS_TYPE)
+                .build();
+
+        SignedJWT signedJWT = new SignedJWT(header, claimsSet);
+        signedJWT.sign(jwtManager.getSigner());
+
+        isResult(postJson(AUTHENTICATE_PATH, authenticateRequest(signedJWT.serialize())),
+                 IDMResults.ACCESS_TOKEN_IS_INVALID);
+    }
+
+    @Test
+    public void authenticateBatchKeepsOrder()
+    {
+        JSONArray accessTokens = new JSONArray();
+        accessTokens.add("NotAToken");
+        accessTokens.add(login(ACTIVE).getAsString("accessToken"));
+
+        JSONObject request = new JSONObject();
+        request.put("accessTokens", accessTokens);
+
+        postJson(AUTHENTICATE_BATCH_PATH, request)
+            .expectStatus().isOk()
+            .expectBody()
+            .jsonPath("results[0].code").isEqualTo(IDMResults.ACCESS_TOKEN_IS_INVALID.code())
+            .jsonPath("results[1].code").isEqualTo(IDMResults.ACCESS_TOKEN_IS_VALID.code());
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordRehasher;
+import com.github.klefstad_teaching.cs122b.idm.component.RefreshTokenExpiryBuffer;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Login, register and refresh with idm.credential-storage.mode: dual
+ * against a schema halfway through db/migrate-binary-credentials.sql,
+ * where some rows only have the old text columns.
+ */
+@SpringBootTest(properties = "idm.credential-storage.mode=dual")
+@Sql("/idm-dual-test-data.sql")
+@AutoConfigureMockMvc
+@Testcontainers(disabledWithoutDocker = true)
+public class DualCredentialStorageTest
+{
+    private static final String REGISTER_PATH = "/register";
+    private static final String LOGIN_PATH    = "/login";
+    private static final String REFRESH_PATH  = "/refresh";
+
+    private static final JSONObject LEGACY     = makeUser("Active@example.com", "ActivePassWord0");
+    private static final JSONObject BACKFILLED = makeUser("Premium@example.com", "PremiumPassWord0");
+
+    private static final String LEGACY_TOKEN = "5a4c0c1e-8b1f-4b43-9d3e-2f6f7f0f1a01";
+    private static final int    LEGACY_ID    = 1;
+
+    @Container
+    private static final MySQLContainer<?> MYSQL = TestDatabases.idm("idm-dual-schema.sql");
+
+    private final MockMvc                  mockMvc;
+    private final IDMRepo                  repo;
+    private final EmailBloomFilter         emailFilter;
+    private final PasswordRehasher         passwordRehasher;
+    private final RefreshTokenExpiryBuffer expiryBuffer;
+
+    @Autowired
+    public DualCredentialStorageTest(MockMvc mockMvc,
+                                     IDMRepo repo,
+                                     EmailBloomFilter emailFilter,
+                                     PasswordRehasher passwordRehasher,
+                                     RefreshTokenExpiryBuffer expiryBuffer)
+    {
+        this.mockMvc = mockMvc;
+        this.repo = repo;
+        this.emailFilter = emailFilter;
+        this.passwordRehasher = passwordRehasher;
+        this.expiryBuffer = expiryBuffer;
+    }
+
+    @DynamicPropertySource
+    static void database(DynamicPropertyRegistry registry)
+    {
+        registry.add("spring.datasource.url", () -> TestDatabases.url(MYSQL));
+        registry.add("spring.datasource.username", MYSQL::getUsername);
+        registry.add("spring.datasource.password", MYSQL::getPassword);
+        registry.add("idm.read-replicas.urls[0]", () -> TestDatabases.url(MYSQL));
+    }
+
+    // @Sql reloads idm.user behind the service's back, with the same ids
+    @BeforeEach
+    public void rebuildEmailFilter()
+    {
+        emailFilter.rebuild();
+    }
+
+    private static JSONObject makeUser(String email, String password)
+    {
+        JSONArray jsonArray = new JSONArray();
+        password.chars().forEach(digit -> jsonArray.add(String.valueOf((char) digit)));
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("email", email);
+        jsonObject.put("password", jsonArray);
+
+        return jsonObject;
+    }
+
+    private ResultActions performAsync(MockHttpServletRequestBuilder builder)
+        throws Exception
+    {
+        MvcResult result = this.mockMvc.perform(builder)
+                                       .andExpect(request().asyncStarted())
+                                       .andReturn();
+
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+
+    private ResultMatcher[] isResult(Result result)
+    {
+        return new ResultMatcher[]{
+            status().is(result.status().value()),
+            jsonPath("result.code").value(result.code()),
+            jsonPath("result.message").value(result.message())
+        };
+    }
+
+    private JSONObject refresh(String refreshToken)
+        throws Exception
+    {
+        JSONObject request = new JSONObject();
+        request.put("refreshToken", refreshToken);
+
+        return (JSONObject) JSONValue.parse(
+            this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
+                                                   .content(request.toJSONString()))
+                        .andDo(print())
+                        .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
+                        .andExpect(jsonPath("accessToken").isNotEmpty())
+                        .andReturn()
+                        .getResponse()
+                        .getContentAsString());
+    }
+
+    // As an instance still on the old code writes it, without token_bin
+    private void insertTextToken(String token, Instant expireTime, Instant maxLifeTime)
+    {
+        repo.getTemplate().update(
+            "insert into idm.refresh_token (token, user_id, token_status_id, expire_time, max_life_time) " +
+            "values (:token, :user_id, 1, :expire_time, :max_life_time)",
+            new MapSqlParameterSource()
+                .addValue("token", token)
+                .addValue("user_id", LEGACY_ID)
+                .addValue("expire_time", Timestamp.from(expireTime))
+                .addValue("max_life_time", Timestamp.from(maxLifeTime)));
+    }
+
+    private void assertBothCredentialColumns(String email)
+    {
+        Integer consistent = repo.getTemplate().queryForObject(
+            "select from_base64(salt) = salt_bin and from_base64(hashed_password) = hashed_password_bin " +
+            "from idm.user where email = :email",
+            new MapSqlParameterSource("email", email),
+            Integer.class);
+
+        assertEquals(1, consistent, email + " has differing text and binary credentials");
+    }
+
+    private void assertBothTokenColumns(String token)
+    {
+        Integer consistent = repo.getTemplate().queryForObject(
+            "select token_bin = unhex(replace(token, '-', '')) from idm.refresh_token where token = :token",
+            new MapSqlParameterSource("token", token),
+            Integer.class);
+
+        assertEquals(1, consistent, token + " has differing text and binary columns");
+    }
+
+    private int tokenStatus(String token)
+    {
+        return repo.getTemplate().queryForObject(
+            "select token_status_id from idm.refresh_token where token = :token",
+            new MapSqlParameterSource("token", token),
+            Integer.class);
+    }
+
+    private Instant expireTime(String token)
+    {
+        return repo.getTemplate().queryForObject(
+            "select expire_time from idm.refresh_token where token = :token",
+            new MapSqlParameterSource("token", token),
+            Timestamp.class).toInstant();
+    }
+
+    @Test
+    public void loginReadsRowNotBackfilled()
+        throws Exception
+    {
+        JSONObject loginResponse =
+            (JSONObject) JSONValue.parse(
+                this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                                  .content(LEGACY.toJSONString()))
+                    .andDo(print())
+                    .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
+                    .andReturn()
+                    .getResponse()
+                    .getContentAsString());
+
+        assertBothTokenColumns(loginResponse.getAsString("refreshToken"));
+
+        // The version 1 hash is replaced, in both columns so the old code can still log in
+        passwordRehasher.flush();
+
+        assertBothCredentialColumns(LEGACY.getAsString("email"));
+
+        this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                          .content(LEGACY.toJSONString()))
+            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY));
+    }
+
+    @Test
+    public void loginReadsBackfilledRow()
+        throws Exception
+    {
+        this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                          .content(BACKFILLED.toJSONString()))
+            .andDo(print())
+            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY));
+    }
+
+    @Test
+    public void registerWritesBothColumns()
+        throws Exception
+    {
+        JSONObject user = makeUser("Registered@example.com", "RegisteredPassWord0");
+
+        this.performAsync(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
+                                             .content(user.toJSONString()))
+            .andDo(print())
+            .andExpectAll(isResult(IDMResults.USER_REGISTERED_SUCCESSFULLY));
+
+        assertBothCredentialColumns(user.getAsString("email"));
+
+        this.performAsync(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
+                                             .content(user.toJSONString()))
+            .andExpectAll(isResult(IDMResults.USER_ALREADY_EXISTS));
+
+        this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                          .content(user.toJSONString()))
+            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY));
+    }
+
+    @Test
+    public void refreshExtendsTextOnlyToken()
+        throws Exception
+    {
+        Instant expireTime = Instant.now().plusSeconds(2);
+        insertTextToken(LEGACY_TOKEN, expireTime, Instant.now().plus(Duration.ofHours(1)));
+
+        assertEquals(LEGACY_TOKEN, refresh(LEGACY_TOKEN).getAsString("refreshToken"));
+
+        expiryBuffer.flush();
+
+        assertTrue(expireTime(LEGACY_TOKEN).isAfter(expireTime.plusSeconds(1)));
+    }
+
+    @Test
+    public void refreshRotatesTextOnlyToken()
+        throws Exception
+    {
+        // Extending it would pass its max life time, so it is revoked and replaced
+        insertTextToken(LEGACY_TOKEN, Instant.now().plusSeconds(2), Instant.now().plusSeconds(3));
+
+        String renewed = refresh(LEGACY_TOKEN).getAsString("refreshToken");
+
+        assertNotEquals(LEGACY_TOKEN, renewed);
+        assertEquals(3, tokenStatus(LEGACY_TOKEN));
+        assertBothTokenColumns(renewed);
+
+        assertEquals(renewed, refresh(renewed).getAsString("refreshToken"));
+    }
+}
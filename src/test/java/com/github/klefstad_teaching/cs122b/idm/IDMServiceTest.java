@@ -1,19 +1,21 @@
 package com.github.klefstad_teaching.cs122b.idm;
 
 import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
-import com.github.klefstad_teaching.cs122b.core.result.Result;
-import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
-import com.nimbusds.jose.JWSAlgorithm;
-import com.nimbusds.jose.JWSHeader;
-import com.nimbusds.jose.JWSSigner;
-import com.nimbusds.jose.crypto.ECDSASigner;
-import com.nimbusds.jose.jwk.Curve;
-import com.nimbusds.jose.jwk.ECKey;
-import com.nimbusds.jose.jwk.KeyUse;
-import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
-import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.jwt.SignedJWT;
-import net.minidev.json.JSONArray;
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMMetrics;
+import com.github.klefstad_teaching.cs122b.idm.component.LoginThrottle;
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordHasher;
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordHasher.Parameters;
+import com.github.klefstad_teaching.cs122b.idm.component.PasswordRehasher;
+import com.github.klefstad_teaching.cs122b.idm.component.RefreshTokenExpiryBuffer;
+import com.github.klefstad_teaching.cs122b.idm.component.RefreshTokenReaper;
+import com.github.klefstad_teaching.cs122b.idm.component.RefreshTokenStore;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMPasswordHashConfig;
+import com.github.klefstad_teaching.cs122b.idm.config.IDMRefreshTokenWriteBehindConfig;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
 import net.minidev.json.JSONObject;
 import net.minidev.json.JSONValue;
 import org.junit.jupiter.api.Test;
@@ -22,824 +24,387 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.test.context.jdbc.Sql;
 import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.client.MockMvcWebTestClient;
 
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.UUID;
-
-import static org.hamcrest.core.IsNot.not;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
-import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
-
+import java.util.List;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The {@link AbstractIDMServiceTest} cases against IDMController through
+ * MockMvc, which also waits out the async dispatch of /login and /register,
+ * and the cases only the servlet stack has.
+ */
 @SpringBootTest
 @Sql("/idm-test-data.sql")
 @AutoConfigureMockMvc
-public class IDMServiceTest
+public class IDMServiceTest extends AbstractIDMServiceTest
 {
-    private static final String REGISTER_PATH     = "/register";
-    private static final String LOGIN_PATH        = "/login";
-    private static final String REFRESH_PATH      = "/refresh";
-    private static final String AUTHENTICATE_PATH = "/authenticate";
+    private static final String JWKS_PATH    = "/.well-known/jwks.json";
+    private static final String IMPORT_PATH  = "/admin/users/import";
+    private static final String METRICS_PATH = "/actuator/metrics/";
 
-    private static final JSONObject ADMIN    = makeUser("Admin@example.com",
-                                                        "AdminPassWord0");
     private static final JSONObject EMPLOYEE = makeUser("Employee@example.com",
                                                         "EmployeePassWord0");
     private static final JSONObject PREMIUM  = makeUser("Premium@example.com",
                                                         "PremiumPassWord0");
 
-    private static final JSONObject ACTIVE = makeUser("Active@example.com",
-                                                      "ActivePassWord0");
-    private static final JSONObject LOCKED = makeUser("Locked@example.com",
-                                                      "LockedPassWord0");
-    private static final JSONObject BANNED = makeUser("Banned@example.com",
-                                                      "BannedPassWord0");
-
-    private static final JSONObject LOGIN_MIN_PASS = makeUser("LoginMinPass@example.com",
-                                                              "ValidPass0");
-    private static final JSONObject LOGIN_MAX_PASS = makeUser("LoginMaxPass@example.com",
-                                                              "ValidPass01234567890");
-
-    private static final JSONObject LOGIN_MIN_EMAIL = makeUser("a@a.io",
-                                                               "MinEmailPassWord0");
-    private static final JSONObject LOGIN_MAX_EMAIL = makeUser("LoginIsRightAtMaxLen@example.com",
-                                                               "MaxEmailPassWord0");
-
-    private static final String EXPIRED_TOKEN = "c46fc3c2-9791-44d6-a86e-2922ad655284";
-    private static final String REVOKED_TOKEN = "399cd90d-e715-484a-bb4d-a8ff35506ef9";
-
-    private final MockMvc    mockMvc;
-    private final JWTManager jwtManager;
+    private final LoginThrottle            loginThrottle;
+    private final RefreshTokenReaper       refreshTokenReaper;
+    private final PasswordHasher           passwordHasher;
+    private final PasswordRehasher         passwordRehasher;
+    private final IDMPasswordHashConfig    passwordHashConfig;
+    private final RefreshTokenExpiryBuffer expiryBuffer;
+    private final RefreshTokenStore        refreshTokenStore;
+    private final IDMMetrics               metrics;
+    private final IDMRepo                  repo;
+    private final CredentialStorage        storage;
 
     @Autowired
     public IDMServiceTest(MockMvc mockMvc,
+                          LoginThrottle loginThrottle,
+                          EmailBloomFilter emailFilter,
+                          RefreshTokenReaper refreshTokenReaper,
+                          IDMAuthenticationManager authManager,
+                          PasswordHasher passwordHasher,
+                          PasswordRehasher passwordRehasher,
+                          IDMPasswordHashConfig passwordHashConfig,
+                          RefreshTokenExpiryBuffer expiryBuffer,
+                          RefreshTokenStore refreshTokenStore,
+                          IDMMetrics metrics,
+                          IDMRepo repo,
+                          CredentialStorage storage,
                           @Value("${idm.key-file-name}") String keyFileName,
                           @Value("${idm.access-token-expire}") Duration accessTokenExpire,
                           @Value("${idm.max-refresh-token-life-time}") Duration maxRefreshTokenLifeTime,
                           @Value("${idm.refresh-token-expire}") Duration refreshTokenExpire)
     {
-        this.mockMvc = mockMvc;
-        this.jwtManager =
-            new JWTManager.Builder()
-                .keyFileName(keyFileName)
-                .accessTokenExpire(accessTokenExpire)
-                .maxRefreshTokenLifeTime(maxRefreshTokenLifeTime)
-                .refreshTokenExpire(refreshTokenExpire)
-                .build();
+        super(MockMvcWebTestClient.bindTo(mockMvc).build(), emailFilter, authManager,
+              keyFileName, accessTokenExpire, maxRefreshTokenLifeTime, refreshTokenExpire);
 
+        this.loginThrottle = loginThrottle;
+        this.refreshTokenReaper = refreshTokenReaper;
+        this.passwordHasher = passwordHasher;
+        this.passwordRehasher = passwordRehasher;
+        this.passwordHashConfig = passwordHashConfig;
+        this.expiryBuffer = expiryBuffer;
+        this.refreshTokenStore = refreshTokenStore;
+        this.metrics = metrics;
+        this.repo = repo;
+        this.storage = storage;
     }
 
-    private static JSONObject makeUser(String email, String password)
+    // Reads past the expiry buffer, straight from MySQL
+    private Instant storedExpireTime(String refreshToken)
     {
-        JSONArray jsonArray = new JSONArray();
-        password.chars().forEach(digit -> jsonArray.add(String.valueOf((char) digit)));
-
-        JSONObject jsonObject = new JSONObject();
-        jsonObject.put("email", email);
-        jsonObject.put("password", jsonArray);
-
-        return jsonObject;
+        return repo.getTemplate()
+                   .queryForObject("select expire_time from idm.refresh_token where " + storage.tokenMatches(null),
+                                   storage.addToken(new MapSqlParameterSource(), refreshToken),
+                                   Timestamp.class)
+                   .toInstant();
     }
 
-    private ResultMatcher[] isResult(Result result)
+    // expire_time is a TIMESTAMP, MySQL rounds it to the second
+    private static void assertSameSecond(Instant expected, Instant actual)
     {
-        return new ResultMatcher[]{
-            status().is(result.status().value()),
-            jsonPath("result.code").value(result.code()),
-            jsonPath("result.message").value(result.message())
-        };
+        assertTrue(Duration.between(expected, actual).abs().compareTo(Duration.ofSeconds(1)) <= 0,
+                   "expected " + expected + " but was " + actual);
     }
 
     @Test
-    public void applicationLoads()
+    public void loginLocksAfterRepeatedFailures()
     {
-    }
+        JSONObject request = makeUser(EMPLOYEE.getAsString("email"), "WrongPass0");
 
-    // Register Tests
+        // idm.login-throttle.lock-after-failures in the test application.yml
+        for (int i = 0; i < 5; i++) {
+            isResult(postJson(LOGIN_PATH, request), IDMResults.INVALID_CREDENTIALS);
+        }
 
-    @Test
-    public void registerSuccessMinPassword()
-        throws Exception
-    {
-        JSONObject request = makeUser("RegisterMin@example.com", "ValidPass0");
+        loginThrottle.flush();
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_REGISTERED_SUCCESSFULLY));
+        isRejected(postJson(LOGIN_PATH, EMPLOYEE), IDMResults.USER_IS_LOCKED);
     }
 
     @Test
-    public void registerSuccessMaxPassword()
-        throws Exception
+    public void importUsersReportsEachRow()
     {
-        JSONObject request = makeUser("RegisterMax@example.com", "ValidPass01234567890");
+        String body = makeUser("Imported@example.com", "ValidPass0").toJSONString() + "\n" +
+                      ACTIVE.toJSONString() + "\n" +
+                      makeUser("NotValidEmail", "ValidPass0").toJSONString() + "\n" +
+                      "not json\n";
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_REGISTERED_SUCCESSFULLY));
-    }
-
-    @Test
-    public void registerSuccessMinEmail()
-        throws Exception
-    {
-        JSONObject request = makeUser("b@b.io", "ValidPassWord0");
+        String[] lines =
+            this.client.post()
+                       .uri(IMPORT_PATH)
+                       .header("Authorization", "Bearer " + login(ADMIN).getAsString("accessToken"))
+                       .contentType(MediaType.APPLICATION_NDJSON)
+                       .bodyValue(body)
+                       .exchange()
+                       .expectStatus().isOk()
+                       .expectBody(String.class)
+                       .returnResult()
+                       .getResponseBody()
+                       .split("\n");
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_REGISTERED_SUCCESSFULLY));
-    }
+        JSONObject duplicate = (JSONObject) JSONValue.parse(lines[0]);
+        assertEquals(2, ((Number) duplicate.get("line")).intValue());
+        assertEquals(IDMResults.USER_ALREADY_EXISTS.code(),
+                     ((Number) ((JSONObject) duplicate.get("result")).get("code")).intValue());
 
-    @Test
-    public void registerSuccessMaxEmail()
-        throws Exception
-    {
-        JSONObject request = makeUser("EmailIsRightAtMaxLen@example.com", "ValidPassWord0");
+        JSONObject summary = (JSONObject) JSONValue.parse(lines[lines.length - 1]);
+        assertEquals(true, summary.get("done"));
+        assertEquals(4, ((Number) summary.get("processed")).intValue());
+        assertEquals(1, ((Number) summary.get("registered")).intValue());
+        assertEquals(1, ((Number) summary.get("duplicates")).intValue());
+        assertEquals(2, ((Number) summary.get("rejected")).intValue());
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_REGISTERED_SUCCESSFULLY));
+        login(makeUser("Imported@example.com", "ValidPass0"));
     }
 
     @Test
-    public void registerPasswordTooShort()
-        throws Exception
+    public void importUsersRequiresAdmin()
     {
-        JSONObject request = makeUser("RegisterFail1@example.com", "TooShort0");
-
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS));
+        this.client.post()
+                   .uri(IMPORT_PATH)
+                   .header("Authorization", "Bearer " + login(PREMIUM).getAsString("accessToken"))
+                   .contentType(MediaType.APPLICATION_NDJSON)
+                   .bodyValue(ACTIVE.toJSONString())
+                   .exchange()
+                   .expectStatus().isForbidden();
     }
 
     @Test
-    public void registerPasswordTooLong()
-        throws Exception
+    public void reaperReclaimsDeadTokens()
     {
-        JSONObject request = makeUser("RegisterFail2@example.com", "WayTooLongPassword012");
+        // Both test tokens are past their max life time a minute from now
+        assertEquals(2, refreshTokenReaper.reap(Instant.now().plusSeconds(60)));
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS));
+        isResult(postJson(REFRESH_PATH, refreshRequest(EXPIRED_TOKEN)), IDMResults.REFRESH_TOKEN_NOT_FOUND);
     }
 
-    @Test
-    public void registerPasswordMissingNumber()
-        throws Exception
-    {
-        JSONObject request = makeUser("RegisterFail3@example.com", "NoNumberPassword");
-
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT));
-    }
+    // JWKS Tests
 
     @Test
-    public void registerPasswordMissingUpperCase()
-        throws Exception
+    public void jwksPublishesPublicKeyOnly()
     {
-        JSONObject request = makeUser("RegisterFail4@example.com", "nouppercase0");
+        String eTag =
+            this.client.get()
+                       .uri(JWKS_PATH)
+                       .exchange()
+                       .expectStatus().isOk()
+                       .expectHeader().exists("ETag")
+                       .expectHeader().valueEquals("Cache-Control", "max-age=300, public")
+                       .expectBody()
+                       .jsonPath("keys[0].kid").isEqualTo(jwtManager.getEcKey().getKeyID())
+                       .jsonPath("keys[0].d").doesNotExist()
+                       .returnResult()
+                       .getResponseHeaders()
+                       .getFirst("ETag");
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT));
+        this.client.get()
+                   .uri(JWKS_PATH)
+                   .header("If-None-Match", eTag)
+                   .exchange()
+                   .expectStatus().isNotModified();
     }
 
-    @Test
-    public void registerPasswordMissingLowerCase()
-        throws Exception
-    {
-        JSONObject request = makeUser("RegisterFail5@example.com", "NOLOWERCASE0");
-
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT));
-    }
+    // Metrics Tests
 
     @Test
-    public void registerEmailTooShort()
-        throws Exception
+    public void loginRecordsStagesAndResult()
     {
-        JSONObject request = makeUser("a@a.a", "ValidPassWord0");
+        login(ADMIN);
 
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH));
-    }
+        this.client.get()
+                   .uri(METRICS_PATH + "idm.results?tag={tag}", "result:user_logged_in_successfully")
+                   .exchange()
+                   .expectStatus().isOk()
+                   .expectBody()
+                   .jsonPath("measurements[0].value").value(greaterThan(0.0));
 
-    @Test
-    public void registerEmailTooLong()
-        throws Exception
-    {
-        JSONObject request = makeUser("EmailTooLongToSucceed@example.com", "ValidPassWord0");
-
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH));
+        for (String stage : new String[]{"password_hash", "user_select", "access_token_sign", "refresh_token_insert"}) {
+            this.client.get()
+                       .uri(METRICS_PATH + "idm.stage?tag={tag}", "stage:" + stage)
+                       .exchange()
+                       .expectStatus().isOk()
+                       .expectBody()
+                       .jsonPath("measurements[?(@.statistic == 'COUNT')].value").value(hasItem(greaterThan(0.0)));
+        }
     }
 
     @Test
-    public void registerEmailNotValid()
-        throws Exception
+    public void emailFilterIsMeasured()
     {
-        JSONObject request = makeUser("NotValidEmail", "ValidPassWord0");
-
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT));
-    }
+        this.client.get()
+                   .uri(METRICS_PATH + "idm.email.filter.size")
+                   .exchange()
+                   .expectStatus().isOk()
+                   .expectBody()
+                   .jsonPath("measurements[0].value").value(greaterThan(0.0));
 
-    @Test
-    public void registerAlreadyExists()
-        throws Exception
-    {
-        this.mockMvc.perform(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                .content(ACTIVE.toString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_ALREADY_EXISTS));
+        this.client.get()
+                   .uri(METRICS_PATH + "idm.email.filter.false.positive.rate")
+                   .exchange()
+                   .expectStatus().isOk()
+                   .expectBody()
+                   .jsonPath("measurements[0].value").value(lessThan(0.01));
     }
 
     @Test
-    public void loginSuccessMinPassword()
-        throws Exception
+    public void loginIgnoresStaleEmailFilter()
     {
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(LOGIN_MIN_PASS.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                    .andExpect(jsonPath("accessToken").isNotEmpty())
-                    .andExpect(jsonPath("refreshToken").isNotEmpty());
-    }
+        // Registered behind the filter's back, as by another instance between two refreshes
+        authManager.insertUser(authManager.createUser("Elsewhere@example.com", "ElsewherePassWord0".toCharArray()));
 
-    @Test
-    public void loginSuccessMaxPassword()
-        throws Exception
-    {
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(LOGIN_MAX_PASS.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                    .andExpect(jsonPath("accessToken").isNotEmpty())
-                    .andExpect(jsonPath("refreshToken").isNotEmpty());
+        login(makeUser("Elsewhere@example.com", "ElsewherePassWord0"));
     }
 
-    @Test
-    public void loginSuccessMinEmail()
-        throws Exception
-    {
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(LOGIN_MIN_EMAIL.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                    .andExpect(jsonPath("accessToken").isNotEmpty())
-                    .andExpect(jsonPath("refreshToken").isNotEmpty());
-    }
+    // Read Replica Tests
 
     @Test
-    public void loginSuccessMaxEmail()
+    public void replicaLagIsMeasured()
         throws Exception
     {
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(LOGIN_MAX_EMAIL.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                    .andExpect(jsonPath("accessToken").isNotEmpty())
-                    .andExpect(jsonPath("refreshToken").isNotEmpty());
-    }
+        // The test replica is the primary itself, in sync from the first beat on
+        Thread.sleep(500);
 
-    @Test
-    public void loginPasswordTooShort()
-        throws Exception
-    {
-        JSONObject request = makeUser("LoginFail1@example.com", "TooShort0");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        this.client.get()
+                   .uri(METRICS_PATH + "idm.replica.lag")
+                   .exchange()
+                   .expectStatus().isOk()
+                   .expectBody()
+                   .jsonPath("measurements[0].value").value(lessThan(1000.0));
 
-    @Test
-    public void loginPasswordTooLong()
-        throws Exception
-    {
-        JSONObject request = makeUser("LoginFail2@example.com", "WayTooLongPassword012");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
+        login(ADMIN);
     }
 
-    @Test
-    public void loginPasswordMissingNumber()
-        throws Exception
-    {
-        JSONObject request = makeUser("LoginFail3@example.com", "NoNumberPassword");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+    // Write Behind Tests
 
     @Test
-    public void loginPasswordMissingUpperCase()
+    public void refreshExtensionIsFlushed()
         throws Exception
     {
-        JSONObject request = makeUser("LoginFail4@example.com", "nouppercase0");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        String  refreshToken = login(ACTIVE).getAsString("refreshToken");
+        Instant loginExpire  = storedExpireTime(refreshToken);
 
-    @Test
-    public void loginPasswordMissingLowerCase()
-        throws Exception
-    {
-        JSONObject request = makeUser("LoginFail5@example.com", "NOLOWERCASE0");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        Thread.sleep(Duration.ofSeconds(1).toMillis());
 
-    @Test
-    public void loginEmailTooShort()
-        throws Exception
-    {
-        JSONObject request = makeUser("a@a.a", "ValidPass01234567890");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN);
 
-    @Test
-    public void loginEmailTooLong()
-        throws Exception
-    {
-        JSONObject request = makeUser("EmailTooLongToSucceed@example.com", "ValidPass01234567890");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        // The store merges whatever is still buffered
+        Instant extended = authManager.verifyRefreshToken(refreshToken).getExpireTime();
+        assertTrue(extended.isAfter(loginExpire));
 
-    @Test
-    public void loginEmailNotValid()
-        throws Exception
-    {
-        JSONObject request = makeUser("NotValidEmail", "ValidPass01234567890");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        expiryBuffer.flush();
 
-    @Test
-    public void loginDoesntExist()
-        throws Exception
-    {
-        JSONObject request = makeUser("DoesntExist@example.com", "ValidPass0");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_NOT_FOUND))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
+        assertNull(expiryBuffer.pendingExpireTime(refreshToken));
+        assertSameSecond(extended, storedExpireTime(refreshToken));
     }
 
     @Test
-    public void loginBannedAccount()
+    public void bufferedExtensionSurvivesShutdown()
         throws Exception
     {
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(BANNED.toString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_IS_BANNED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        String refreshToken = login(ACTIVE).getAsString("refreshToken");
 
-    @Test
-    public void loginLockedAccount()
-        throws Exception
-    {
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(LOCKED.toString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.USER_IS_LOCKED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        // A second instance that never flushes on its own, standing in for one that is stopped
+        RefreshTokenExpiryBuffer stopping =
+            new RefreshTokenExpiryBuffer(repo, storage,
+                                         new IDMRefreshTokenWriteBehindConfig(Duration.ofHours(1), 1000, 500));
 
-    @Test
-    public void loginWrongPassword()
-        throws Exception
-    {
-        JSONObject request = makeUser(ACTIVE.getAsString("email"), "WrongPass0");
-
-        this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                             .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.INVALID_CREDENTIALS))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        Instant extended = Instant.now().plus(jwtManager.getRefreshTokenExpire().multipliedBy(2));
+        stopping.extend(refreshToken, ShardRouter.bucketOfToken(refreshToken), extended);
+        stopping.shutdown();
 
-    @Test
-    public void refreshActiveToken()
-        throws Exception
-    {
-        JSONObject responseObject =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        String refreshToken = responseObject.getAsString("refreshToken");
-
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", responseObject.getAsString("refreshToken"));
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
-                    .andExpect(jsonPath("accessToken").hasJsonPath())
-                    .andExpect(jsonPath("refreshToken").value(refreshToken));
-    }
+        assertNull(stopping.pendingExpireTime(refreshToken));
+        assertSameSecond(extended, storedExpireTime(refreshToken));
 
-    @Test
-    public void refreshExpiredToken()
-        throws Exception
-    {
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", EXPIRED_TOKEN);
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_IS_EXPIRED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        // Past the expire time set by /login, only the flushed extension keeps the token alive
+        Thread.sleep(jwtManager.getRefreshTokenExpire().plus(Duration.ofSeconds(1)).toMillis());
 
-    @Test
-    public void refreshRevokedToken()
-        throws Exception
-    {
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", REVOKED_TOKEN);
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_IS_REVOKED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
+        isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("accessToken").isNotEmpty();
     }
 
-    @Test
-    public void refreshBeforeExpire()
-        throws Exception
-    {
-        JSONObject loginResponse =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        Thread.sleep(jwtManager.getRefreshTokenExpire().minus(Duration.ofSeconds(1)).toMillis());
-
-        String refreshToken = loginResponse.getAsString("refreshToken");
-
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", refreshToken);
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
-                    .andExpect(jsonPath("accessToken").isNotEmpty())
-                    .andExpect(jsonPath("refreshToken").value(refreshToken));
-    }
+    // Sharding Tests
 
     @Test
-    public void refreshAfterExpire()
-        throws Exception
+    public void refreshTokenCarriesUsersBucket()
     {
-        JSONObject loginResponse =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        Thread.sleep(jwtManager.getRefreshTokenExpire().plus(Duration.ofSeconds(1)).toMillis());
-
-        String refreshToken = loginResponse.getAsString("refreshToken");
+        String refreshToken = login(ADMIN).getAsString("refreshToken");
 
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", refreshToken);
+        assertEquals(ShardRouter.bucketForEmail(ADMIN.getAsString("email")), ShardRouter.bucketOfToken(refreshToken));
 
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_IS_EXPIRED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
+        isResult(postJson(REFRESH_PATH, refreshRequest(refreshToken)), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("refreshToken").isEqualTo(refreshToken);
     }
 
-    @Test
-    public void refreshAfterExpireIsExtended()
-        throws Exception
-    {
-        JSONObject loginResponse =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        Thread.sleep(jwtManager.getRefreshTokenExpire().minus(Duration.ofSeconds(1)).toMillis());
-
-        String refreshToken = loginResponse.getAsString("refreshToken");
-
-        JSONObject firstRequest = new JSONObject();
-        firstRequest.put("refreshToken", refreshToken);
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(firstRequest.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
-                    .andExpect(jsonPath("refreshToken").value(refreshToken))
-                    .andExpect(jsonPath("accessToken").isNotEmpty());
-
-        Thread.sleep(jwtManager.getRefreshTokenExpire().minus(Duration.ofSeconds(1)).toMillis());
-
-        JSONObject secondRequest = new JSONObject();
-        secondRequest.put("refreshToken", refreshToken);
-
-        JSONObject refreshResponse =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                       .content(secondRequest.toJSONString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
-                            .andExpect(jsonPath("accessToken").isNotEmpty())
-                            .andExpect(jsonPath("refreshToken").value(not(refreshToken)))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString()
-            );
-
-        JSONObject thirdRequest = new JSONObject();
-        thirdRequest.put("refreshToken", refreshToken);
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(thirdRequest.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_IS_REVOKED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-
-        String     newRefreshToken  = refreshResponse.getAsString("refreshToken");
-
-        JSONObject fourthRequest = new JSONObject();
-        fourthRequest.put("refreshToken", newRefreshToken);
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(fourthRequest.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
-                    .andExpect(jsonPath("accessToken").isNotEmpty())
-                    .andExpect(jsonPath("refreshToken").value(newRefreshToken));
-    }
+    // Password Hash Tests
 
     @Test
-    public void refreshAfterMaxExpire()
+    public void loginRehashesOutdatedHash()
         throws Exception
     {
-        JSONObject loginResponse =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", loginResponse.getAsString("refreshToken"));
-
-        Thread.sleep(jwtManager.getMaxRefreshTokenLifeTime().toMillis());
-
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_IS_EXPIRED))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        // Test users are stored with version 1, a 4 byte salt where 16 are configured
+        assertTrue(passwordHasher.isOutdated(passwordHasher.version(1)));
 
-    @Test
-    public void refreshTokenInvalidLength()
-        throws Exception
-    {
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", "invalidToken");
+        // The new hash is made before the response, only its write is batched
+        login(ACTIVE);
+        passwordRehasher.flush();
 
-        Thread.sleep(jwtManager.getMaxRefreshTokenLifeTime().toMillis());
+        assertEquals(passwordHasher.current().version(),
+                     authManager.selectUser(ACTIVE.getAsString("email")).getHashVersion());
 
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_HAS_INVALID_LENGTH))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
+        login(ACTIVE);
     }
 
     @Test
-    public void refreshTokenInvalidFormat()
+    public void unknownEmailIsHashedLikeNewUsers()
         throws Exception
     {
-        JSONObject request = new JSONObject();
-        request.put("refreshToken", UUID.randomUUID().toString().replace("-", "."));
+        List<Parameters> hashedWith = new ArrayList<>();
 
-        Thread.sleep(jwtManager.getMaxRefreshTokenLifeTime().toMillis());
+        PasswordHasher recording = new PasswordHasher(repo, passwordHashConfig)
+        {
+            @Override
+            public byte[] hash(char[] password, byte[] salt, Parameters parameters)
+            {
+                hashedWith.add(parameters);
+                return super.hash(password, salt, parameters);
+            }
+        };
 
-        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
-                                               .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_HAS_INVALID_FORMAT))
-                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath())
-                    .andExpect(jsonPath("refreshToken").doesNotHaveJsonPath());
-    }
+        IDMAuthenticationManager recorded =
+            new IDMAuthenticationManager(repo, storage, refreshTokenStore, recording, passwordRehasher, metrics);
 
-    // Authenticate Tests
+        recorded.hashForTiming("ValidPass0".toCharArray());
+        Parameters unknown = hashedWith.get(hashedWith.size() - 1);
 
-    @Test
-    public void authenticateActiveToken()
-        throws Exception
-    {
-        JSONObject responseObject =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        JSONObject request = new JSONObject();
-        request.put("accessToken", responseObject.getAsString("accessToken"));
-
-        this.mockMvc.perform(post(AUTHENTICATE_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                    .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.ACCESS_TOKEN_IS_VALID));
-    }
+        recorded.createUser("NewlyRegistered@example.com", "ValidPass0".toCharArray());
+        Parameters registered = hashedWith.get(hashedWith.size() - 1);
 
-    @Test
-    public void authenticateExpiredToken()
-        throws Exception
-    {
-        JSONObject response =
-            (JSONObject) JSONValue.parse(
-                this.mockMvc.perform(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                     .content(ACTIVE.toString()))
-                            .andDo(print())
-                            .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
-                            .andReturn()
-                            .getResponse()
-                            .getContentAsString());
-
-        Thread.sleep(jwtManager.getAccessTokenExpire().toMillis());
-
-        JSONObject request = new JSONObject();
-        request.put("accessToken", response.getAsString("accessToken"));
-
-        this.mockMvc.perform(post(AUTHENTICATE_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                    .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.ACCESS_TOKEN_IS_EXPIRED));
-    }
+        assertEquals(registered.version(), unknown.version());
+        assertEquals(registered.iterations(), unknown.iterations());
+        assertEquals(registered.saltLength(), unknown.saltLength());
 
-    @Test
-    public void authenticateInvalidTokenKey()
-        throws Exception
-    {
-        ECKey ecJWK = new ECKeyGenerator(Curve.P_521)
-            .keyUse(KeyUse.SIGNATURE)
-            .keyID(UUID.randomUUID().toString())
-            .generate();
-
-        JWSSigner signer = new ECDSASigner(ecJWK);
-
-        SignedJWT jws = new SignedJWT(
-            new JWSHeader(JWSAlgorithm.ES512),
-            new JWTClaimsSet.Builder()
-                .subject("Subject")
-                .expirationTime(Date.from(Instant.now().plus(Duration.ofHours(1))))
-                .claim("roles", new ArrayList<String>())
-                .build());
-
-        jws.sign(signer);
-
-        JSONObject request = new JSONObject();
-        request.put("accessToken", jws.serialize());
-
-        this.mockMvc.perform(post(AUTHENTICATE_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                    .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.ACCESS_TOKEN_IS_INVALID));
-    }
+        // A user on version 1 pays for the current version as well, whether the password matches or not
+        hashedWith.clear();
+        recorded.passwordMatches(recorded.selectUser(ACTIVE.getAsString("email")), "WrongPass0".toCharArray());
 
-    @Test
-    public void authenticateInvalidClaims()
-        throws Exception
-    {
-        JWTClaimsSet claimsSet =
-            new JWTClaimsSet.Builder()
-                .subject("Email")
-                .expirationTime(Date.from(Instant.now().plus(Duration.ofHours(1))))
-                .build();
-
-        JWSHeader header =
-            new JWSHeader.Builder(JWTManager.JWS_ALGORITHM)
-                .keyID(jwtManager.getEcKey().getKeyID())
-                .type(JWTManager.JWS_TYPE)
-                .build();
-
-        SignedJWT signedJWT = new SignedJWT(header, claimsSet);
-        signedJWT.sign(jwtManager.getSigner());
-
-        JSONObject request = new JSONObject();
-        request.put("accessToken", signedJWT.serialize());
-
-        this.mockMvc.perform(post(AUTHENTICATE_PATH).contentType(MediaType.APPLICATION_JSON)
-                                                    .content(request.toJSONString()))
-                    .andDo(print())
-                    .andExpectAll(isResult(IDMResults.ACCESS_TOKEN_IS_INVALID));
+        assertEquals(2, hashedWith.size());
+        assertEquals(unknown.version(), hashedWith.get(1).version());
     }
 }
@@ -0,0 +1,163 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.component.EmailBloomFilter;
+import com.github.klefstad_teaching.cs122b.idm.component.OffHeapRefreshTokenStore;
+import com.github.klefstad_teaching.cs122b.idm.component.RefreshTokenStore;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * /login and /refresh against the off-heap refresh token store, selected
+ * with the enum's own spelling of idm.refresh-token-store.type.
+ */
+@SpringBootTest(properties = "idm.refresh-token-store.type=OFF_HEAP")
+@Sql("/idm-test-data.sql")
+@AutoConfigureMockMvc
+public class OffHeapRefreshTokenStoreTest
+{
+    private static final String LOGIN_PATH   = "/login";
+    private static final String REFRESH_PATH = "/refresh";
+
+    private static final JSONObject ACTIVE = makeUser("Active@example.com", "ActivePassWord0");
+
+    private final MockMvc           mockMvc;
+    private final RefreshTokenStore store;
+    private final IDMRepo           repo;
+    private final EmailBloomFilter  emailFilter;
+
+    @Autowired
+    public OffHeapRefreshTokenStoreTest(MockMvc mockMvc,
+                                        RefreshTokenStore store,
+                                        IDMRepo repo,
+                                        EmailBloomFilter emailFilter)
+    {
+        this.mockMvc = mockMvc;
+        this.store = store;
+        this.repo = repo;
+        this.emailFilter = emailFilter;
+    }
+
+    @DynamicPropertySource
+    static void journalDirectory(DynamicPropertyRegistry registry)
+        throws Exception
+    {
+        Path directory = Files.createTempDirectory("idm-refresh-tokens");
+        registry.add("idm.refresh-token-store.directory", directory::toString);
+    }
+
+    // @Sql reloads idm.user behind the service's back, with the same ids
+    @BeforeEach
+    public void rebuildEmailFilter()
+    {
+        emailFilter.rebuild();
+    }
+
+    private static JSONObject makeUser(String email, String password)
+    {
+        JSONArray jsonArray = new JSONArray();
+        password.chars().forEach(digit -> jsonArray.add(String.valueOf((char) digit)));
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("email", email);
+        jsonObject.put("password", jsonArray);
+
+        return jsonObject;
+    }
+
+    private ResultActions performAsync(MockHttpServletRequestBuilder builder)
+        throws Exception
+    {
+        MvcResult result = this.mockMvc.perform(builder)
+                                       .andExpect(request().asyncStarted())
+                                       .andReturn();
+
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+
+    private ResultMatcher[] isResult(Result result)
+    {
+        return new ResultMatcher[]{
+            status().is(result.status().value()),
+            jsonPath("result.code").value(result.code()),
+            jsonPath("result.message").value(result.message())
+        };
+    }
+
+    @Test
+    public void offHeapStoreIsSelected()
+    {
+        assertTrue(store instanceof OffHeapRefreshTokenStore);
+    }
+
+    @Test
+    public void refreshRoundTrip()
+        throws Exception
+    {
+        JSONObject loginResponse =
+            (JSONObject) JSONValue.parse(
+                this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                                  .content(ACTIVE.toJSONString()))
+                    .andDo(print())
+                    .andExpectAll(isResult(IDMResults.USER_LOGGED_IN_SUCCESSFULLY))
+                    .andReturn()
+                    .getResponse()
+                    .getContentAsString());
+
+        String refreshToken = loginResponse.getAsString("refreshToken");
+
+        // Never written to idm.refresh_token, the test data's two tokens are all it holds
+        assertEquals(2, repo.getTemplate().queryForObject("select count(*) from idm.refresh_token",
+                                                          new MapSqlParameterSource(),
+                                                          Integer.class));
+
+        JSONObject request = new JSONObject();
+        request.put("refreshToken", refreshToken);
+
+        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
+                                               .content(request.toJSONString()))
+                    .andDo(print())
+                    .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
+                    .andExpect(jsonPath("accessToken").isNotEmpty())
+                    .andExpect(jsonPath("refreshToken").value(refreshToken));
+
+        assertTrue(store.updateActiveStatus(store.find(refreshToken), TokenStatus.REVOKED));
+
+        this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
+                                               .content(request.toJSONString()))
+                    .andDo(print())
+                    .andExpectAll(isResult(IDMResults.REFRESH_TOKEN_IS_REVOKED))
+                    .andExpect(jsonPath("accessToken").doesNotHaveJsonPath());
+    }
+}
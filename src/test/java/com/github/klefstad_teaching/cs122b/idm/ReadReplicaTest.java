@@ -0,0 +1,346 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.component.IDMAuthenticationManager;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.client.MockMvcWebTestClient;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Logins and refreshes with idm.read-replicas.urls pointing at a second
+ * MySQL instance that nothing replicates to. The tests copy the rows a
+ * replica would have themselves, and hold its heartbeat back or keep it
+ * current, so what the replica is missing or has stale is known.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@Testcontainers(disabledWithoutDocker = true)
+public class ReadReplicaTest
+{
+    private static final String LOGIN_PATH   = "/login";
+    private static final String REFRESH_PATH = "/refresh";
+
+    private static final String PASSWORD = "ReplicaPassWord0";
+
+    // Heartbeats are read well within this, it only bounds a broken test
+    private static final long ROUTING_TIMEOUT_MILLIS = 10_000;
+
+    private static final String WRITE_HEARTBEAT_SQL =
+        "insert into idm.replica_heartbeat(id, beat) values (1, :beat) " +
+        "on duplicate key update beat = :beat";
+
+    private static final String SELECT_EMAIL_SQL =
+        "select email from idm.user where email = :email";
+
+    private static final String SELECT_USER_SQL =
+        "select id, email, user_status_id, salt, hashed_password, hash_version from idm.user where email = :email";
+
+    private static final String COPY_USER_SQL =
+        "insert into idm.user(id, email, user_status_id, salt, hashed_password, hash_version) " +
+        "values (:id, :email, :user_status_id, :salt, :hashed_password, :hash_version)";
+
+    private static final String UPDATE_USER_STATUS_SQL =
+        "update idm.user set user_status_id = :user_status_id where email = :email";
+
+    private static final AtomicInteger REPLICA_ONLY_IDS = new AtomicInteger(1_000_000);
+
+    @Container
+    private static final MySQLContainer<?> PRIMARY = TestDatabases.idm();
+
+    @Container
+    private static final MySQLContainer<?> REPLICA = TestDatabases.idm();
+
+    private final WebTestClient              client;
+    private final IDMAuthenticationManager   authManager;
+    private final IDMRepo                    repo;
+    private final CredentialStorage          storage;
+    private final MeterRegistry              meterRegistry;
+    private final NamedParameterJdbcTemplate primary;
+    private final NamedParameterJdbcTemplate replica;
+
+    @Autowired
+    public ReadReplicaTest(MockMvc mockMvc,
+                           IDMAuthenticationManager authManager,
+                           IDMRepo repo,
+                           CredentialStorage storage,
+                           MeterRegistry meterRegistry)
+    {
+        this.client = MockMvcWebTestClient.bindTo(mockMvc).build();
+        this.authManager = authManager;
+        this.repo = repo;
+        this.storage = storage;
+        this.meterRegistry = meterRegistry;
+        this.primary = repo.getTemplate();
+        this.replica = new NamedParameterJdbcTemplate(
+            new DriverManagerDataSource(TestDatabases.url(REPLICA), REPLICA.getUsername(), REPLICA.getPassword()));
+    }
+
+    @DynamicPropertySource
+    static void database(DynamicPropertyRegistry registry)
+    {
+        registry.add("spring.datasource.url", () -> TestDatabases.url(PRIMARY));
+        registry.add("spring.datasource.username", PRIMARY::getUsername);
+        registry.add("spring.datasource.password", PRIMARY::getPassword);
+        registry.add("idm.read-replicas.urls[0]", () -> TestDatabases.url(REPLICA));
+    }
+
+    private static JSONObject makeUser(String email, String password)
+    {
+        JSONArray jsonArray = new JSONArray();
+        password.chars().forEach(digit -> jsonArray.add(String.valueOf((char) digit)));
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("email", email);
+        jsonObject.put("password", jsonArray);
+
+        return jsonObject;
+    }
+
+    private static String newEmail()
+    {
+        return "Replica" + UUID.randomUUID().toString().substring(0, 8) + "@example.com";
+    }
+
+    private WebTestClient.BodyContentSpec post(String path, JSONObject request, Result result)
+    {
+        return this.client.post()
+                          .uri(path)
+                          .contentType(MediaType.APPLICATION_JSON)
+                          .bodyValue(request.toJSONString())
+                          .exchange()
+                          .expectStatus().isEqualTo(result.status().value())
+                          .expectBody()
+                          .jsonPath("result.code").isEqualTo(result.code())
+                          .jsonPath("result.message").isEqualTo(result.message());
+    }
+
+    private WebTestClient.BodyContentSpec login(String email, Result result)
+    {
+        return post(LOGIN_PATH, makeUser(email, PASSWORD), result);
+    }
+
+    private WebTestClient.BodyContentSpec refresh(String refreshToken, Result result)
+    {
+        JSONObject request = new JSONObject();
+        request.put("refreshToken", refreshToken);
+
+        return post(REFRESH_PATH, request, result);
+    }
+
+    private static String refreshToken(WebTestClient.BodyContentSpec login)
+    {
+        String body = new String(login.returnResult().getResponseBody(), StandardCharsets.UTF_8);
+        return ((JSONObject) JSONValue.parse(body)).getAsString("refreshToken");
+    }
+
+    /**
+     * Writes the user to the primary only, as another instance would,
+     * so no read of the email sticks to the primary.
+     */
+    private void insertUser(String email)
+    {
+        User user = authManager.createUser(email, PASSWORD.toCharArray());
+        primary.update(storage.insertUser(false), storage.userParameters(user));
+    }
+
+    // What replication does to the user's row, with the primary's id
+    private void replicateUser(String email)
+    {
+        MapSqlParameterSource source = new MapSqlParameterSource("email", email);
+        replica.update(COPY_USER_SQL, new MapSqlParameterSource(primary.queryForMap(SELECT_USER_SQL, source)));
+    }
+
+    private int userId(String email)
+    {
+        return primary.queryForObject("select id from idm.user where email = :email",
+                                      new MapSqlParameterSource("email", email), Integer.class);
+    }
+
+    // An active token in the user's bucket, like one from /login
+    private RefreshToken newToken(String email)
+    {
+        return new RefreshToken()
+            .setToken(ShardRouter.newToken(ShardRouter.bucketForEmail(email)))
+            .setUserId(userId(email))
+            .setTokenStatus(TokenStatus.ACTIVE)
+            .setExpireTime(Instant.now().plus(Duration.ofMinutes(1)))
+            .setMaxLifeTime(Instant.now().plus(Duration.ofMinutes(2)));
+    }
+
+    private void insertToken(NamedParameterJdbcTemplate template, RefreshToken refreshToken)
+    {
+        template.update(storage.insertRefreshToken(), storage.refreshTokenParameters(refreshToken));
+    }
+
+    /**
+     * A beat from the future reads as no lag at all, one from an hour ago
+     * as far past idm.read-replicas.max-lag. The primary's own beats are
+     * never copied over, so whichever is written stays.
+     */
+    private void replicaInSync(boolean inSync)
+    {
+        Instant beat = inSync ? Instant.now().plus(Duration.ofHours(1)) : Instant.now().minus(Duration.ofHours(1));
+        replica.update(WRITE_HEARTBEAT_SQL, new MapSqlParameterSource("beat", beat.toEpochMilli()));
+    }
+
+    // Only the replica has the email, so finding it means the read went there
+    private boolean readsReplica(String replicaOnlyEmail)
+    {
+        String found = repo.read(ShardRouter.bucketForEmail(replicaOnlyEmail),
+                                 null,
+                                 SELECT_EMAIL_SQL,
+                                 new MapSqlParameterSource("email", replicaOnlyEmail),
+                                 rs -> rs.next() ? rs.getString("email") : null);
+        return found != null;
+    }
+
+    private static void await(BooleanSupplier condition, String description)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + ROUTING_TIMEOUT_MILLIS;
+
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertTrue(condition.getAsBoolean(), description);
+    }
+
+    /**
+     * @return an email only the replica has, once reads go to the replica
+     */
+    private String awaitReplicaReads()
+        throws InterruptedException
+    {
+        String replicaOnly = newEmail();
+        User   user        = authManager.createUser(replicaOnly, PASSWORD.toCharArray());
+
+        // An id the primary never handed out, as for a row deleted there
+        replica.update(COPY_USER_SQL,
+                       storage.userParameters(user).addValue("id", REPLICA_ONLY_IDS.getAndIncrement()));
+
+        replicaInSync(true);
+        await(() -> readsReplica(replicaOnly), "reads never went to the replica");
+
+        return replicaOnly;
+    }
+
+    @Test
+    public void readsMoveToPrimaryWhileReplicaIsBehind()
+        throws Exception
+    {
+        String replicaOnly = awaitReplicaReads();
+
+        String email = newEmail();
+        insertUser(email);
+
+        replicaInSync(false);
+        await(() -> !readsReplica(replicaOnly), "reads stayed on the replica");
+
+        double lag = meterRegistry.get("idm.replica.lag").gauge().value();
+        assertTrue(lag > Duration.ofMinutes(59).toMillis(), "lag was " + lag);
+
+        // Only the primary has this user, and it is asked first now
+        refresh(refreshToken(login(email, IDMResults.USER_LOGGED_IN_SUCCESSFULLY)),
+                IDMResults.RENEWED_FROM_REFRESH_TOKEN);
+
+        // And back to the replica once it catches up
+        replicaInSync(true);
+        await(() -> readsReplica(replicaOnly), "reads never went back to the replica");
+    }
+
+    @Test
+    public void justIssuedTokenIsFound()
+        throws Exception
+    {
+        awaitReplicaReads();
+
+        String email = newEmail();
+        insertUser(email);
+        replicateUser(email);
+
+        // Issued through this instance, so reads of it stick to the primary for a while
+        String issued = refreshToken(login(email, IDMResults.USER_LOGGED_IN_SUCCESSFULLY));
+        refresh(issued, IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("refreshToken").isEqualTo(issued);
+
+        // Issued through another instance, the replica misses it and the primary is asked again
+        RefreshToken elsewhere = newToken(email);
+        insertToken(primary, elsewhere);
+
+        refresh(elsewhere.getToken(), IDMResults.RENEWED_FROM_REFRESH_TOKEN)
+            .jsonPath("refreshToken").isEqualTo(elsewhere.getToken());
+    }
+
+    @Test
+    public void statusesAreRecheckedOnPrimary()
+        throws Exception
+    {
+        String replicaOnly = awaitReplicaReads();
+
+        String locked = newEmail();
+        insertUser(locked);
+        replicateUser(locked);
+
+        String revoking = newEmail();
+        insertUser(revoking);
+        replicateUser(revoking);
+
+        RefreshToken token = newToken(revoking);
+        insertToken(primary, token);
+        insertToken(replica, token);
+
+        // Locked and revoked on the primary, the replica still has both active
+        primary.update(UPDATE_USER_STATUS_SQL,
+                       new MapSqlParameterSource()
+                           .addValue("email", locked)
+                           .addValue("user_status_id", UserStatus.LOCKED.id()));
+        primary.update("update idm.refresh_token set token_status_id = :token_status_id where " +
+                       storage.tokenMatches(null),
+                       storage.addToken(new MapSqlParameterSource("token_status_id", TokenStatus.REVOKED.id()),
+                                        token.getToken()));
+
+        assertTrue(readsReplica(replicaOnly));
+
+        login(locked, IDMResults.USER_IS_LOCKED)
+            .jsonPath("refreshToken").doesNotExist();
+        refresh(token.getToken(), IDMResults.REFRESH_TOKEN_IS_REVOKED);
+
+        // Gone from the primary, the replica's row does not count
+        login(replicaOnly, IDMResults.USER_NOT_FOUND);
+    }
+}
@@ -0,0 +1,415 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRebalancer;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter;
+import com.github.klefstad_teaching.cs122b.idm.component.ShardRouter.Shard;
+import com.github.klefstad_teaching.cs122b.idm.repo.CredentialStorage;
+import com.github.klefstad_teaching.cs122b.idm.repo.IDMRepo;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.RefreshToken;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.UserStatus;
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.ResultMatcher;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Register, login and refresh with idm.sharding.urls listing two MySQL
+ * instances, and a rebalance between them while users keep logging in.
+ * <p>
+ * Every bucket starts out on the first shard. Tests share the instances,
+ * so each registers its own users, in buckets no other user is in when a
+ * test points them at a shard itself.
+ */
+@SpringBootTest(properties = {
+    "idm.sharding.directory-refresh-interval=10ms",
+    "idm.sharding.move-pause=0ms",
+    "idm.login-throttle.email-capacity=1000",
+    // Tokens from before the rebalance have to outlive it
+    "idm.refresh-token-expire=10m",
+    "idm.max-refresh-token-life-time=1h"
+})
+@AutoConfigureMockMvc
+@Testcontainers(disabledWithoutDocker = true)
+public class ShardingTest
+{
+    private static final String REGISTER_PATH = "/register";
+    private static final String LOGIN_PATH    = "/login";
+    private static final String REFRESH_PATH  = "/refresh";
+
+    private static final String PASSWORD = "ShardPassWord0";
+
+    private static final String COUNT_USERS_SQL =
+        "select count(*) from idm.user where email = :email";
+
+    private static final String COUNT_BUCKET_SQL =
+        "select count(*) from idm.user where email_bucket = :bucket";
+
+    private static final String SELECT_ID_SQL =
+        "select id from idm.user where email = :email";
+
+    @Container
+    private static final MySQLContainer<?> SHARD_0 = TestDatabases.idm();
+
+    @Container
+    private static final MySQLContainer<?> SHARD_1 = TestDatabases.idm();
+
+    private final MockMvc           mockMvc;
+    private final IDMRepo           repo;
+    private final ShardRouter       router;
+    private final ShardRebalancer   rebalancer;
+    private final CredentialStorage storage;
+
+    @Autowired
+    public ShardingTest(MockMvc mockMvc,
+                        IDMRepo repo,
+                        ShardRouter router,
+                        ShardRebalancer rebalancer,
+                        CredentialStorage storage)
+    {
+        this.mockMvc = mockMvc;
+        this.repo = repo;
+        this.router = router;
+        this.rebalancer = rebalancer;
+        this.storage = storage;
+    }
+
+    @DynamicPropertySource
+    static void database(DynamicPropertyRegistry registry)
+    {
+        registry.add("spring.datasource.url", () -> TestDatabases.url(SHARD_0));
+        registry.add("spring.datasource.username", SHARD_0::getUsername);
+        registry.add("spring.datasource.password", SHARD_0::getPassword);
+        registry.add("idm.sharding.urls[0]", () -> TestDatabases.url(SHARD_0));
+        registry.add("idm.sharding.urls[1]", () -> TestDatabases.url(SHARD_1));
+        // Replicas are only used when not sharded
+        registry.add("idm.read-replicas.urls", () -> "");
+    }
+
+    private static JSONObject makeUser(String email, String password)
+    {
+        JSONArray jsonArray = new JSONArray();
+        password.chars().forEach(digit -> jsonArray.add(String.valueOf((char) digit)));
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("email", email);
+        jsonObject.put("password", jsonArray);
+
+        return jsonObject;
+    }
+
+    private static String newEmail()
+    {
+        return "Shard" + UUID.randomUUID().toString().substring(0, 8) + "@example.com";
+    }
+
+    private ResultActions performAsync(MockHttpServletRequestBuilder builder)
+        throws Exception
+    {
+        MvcResult result = this.mockMvc.perform(builder)
+                                       .andExpect(request().asyncStarted())
+                                       .andReturn();
+
+        return this.mockMvc.perform(asyncDispatch(result));
+    }
+
+    private ResultMatcher[] isResult(Result result)
+    {
+        return new ResultMatcher[]{
+            status().is(result.status().value()),
+            jsonPath("result.code").value(result.code()),
+            jsonPath("result.message").value(result.message())
+        };
+    }
+
+    private static int resultCode(MvcResult result)
+        throws Exception
+    {
+        JSONObject response = (JSONObject) JSONValue.parse(result.getResponse().getContentAsString());
+        return ((Number) ((JSONObject) response.get("result")).get("code")).intValue();
+    }
+
+    private void register(String email)
+        throws Exception
+    {
+        this.performAsync(post(REGISTER_PATH).contentType(MediaType.APPLICATION_JSON)
+                                             .content(makeUser(email, PASSWORD).toJSONString()))
+                    .andDo(print())
+                    .andExpectAll(isResult(IDMResults.USER_REGISTERED_SUCCESSFULLY));
+    }
+
+    private MvcResult login(String email)
+        throws Exception
+    {
+        return this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                                 .content(makeUser(email, PASSWORD).toJSONString()))
+                   .andReturn();
+    }
+
+    private String refreshToken(MvcResult login)
+        throws Exception
+    {
+        return ((JSONObject) JSONValue.parse(login.getResponse().getContentAsString())).getAsString("refreshToken");
+    }
+
+    private ResultActions refresh(String refreshToken)
+        throws Exception
+    {
+        JSONObject request = new JSONObject();
+        request.put("refreshToken", refreshToken);
+
+        return this.mockMvc.perform(post(REFRESH_PATH).contentType(MediaType.APPLICATION_JSON)
+                                                      .content(request.toJSONString()));
+    }
+
+    private static int count(Shard shard, String sql, MapSqlParameterSource source)
+    {
+        return shard.template().queryForObject(sql, source, Integer.class);
+    }
+
+    private int usersWithEmail(Shard shard, String email)
+    {
+        return count(shard, COUNT_USERS_SQL, new MapSqlParameterSource("email", email));
+    }
+
+    /**
+     * @return an email of a bucket no user is in yet, pointed at the shard
+     */
+    private String emailOnShard(int shard)
+    {
+        while (true) {
+            String                email  = newEmail();
+            int                   bucket = ShardRouter.bucketForEmail(email);
+            MapSqlParameterSource source = new MapSqlParameterSource("bucket", bucket);
+
+            if (router.shards().stream().allMatch(s -> count(s, COUNT_BUCKET_SQL, source) == 0)) {
+                router.assign(bucket, shard);
+                return email;
+            }
+        }
+    }
+
+    @Test
+    public void usersAndTokensStayOnTheirShard()
+        throws Exception
+    {
+        for (Shard shard : router.shards()) {
+            String email = emailOnShard(shard.index());
+            register(email);
+
+            MvcResult login = login(email);
+            assertEquals(IDMResults.USER_LOGGED_IN_SUCCESSFULLY.code(), resultCode(login));
+
+            String refreshToken = refreshToken(login);
+            assertEquals(ShardRouter.bucketForEmail(email), ShardRouter.bucketOfToken(refreshToken));
+
+            for (Shard other : router.shards()) {
+                assertEquals(other == shard ? 1 : 0, usersWithEmail(other, email));
+            }
+
+            refresh(refreshToken).andDo(print())
+                                 .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN));
+        }
+    }
+
+    @Test
+    public void userIdsAreOffsetPerShard()
+        throws Exception
+    {
+        List<Integer> ids = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            for (Shard shard : router.shards()) {
+                String email = emailOnShard(shard.index());
+                register(email);
+
+                int id = shard.template().queryForObject(SELECT_ID_SQL, new MapSqlParameterSource("email", email),
+                                                         Integer.class);
+
+                // auto_increment_offset counts from one
+                assertEquals(shard.index() + 1, id % ShardRouter.MAX_SHARDS);
+                ids.add(id);
+            }
+        }
+
+        assertEquals(ids.size(), ids.stream().distinct().count());
+    }
+
+    @Test
+    public void batchUpdateIsSplitByShard()
+        throws Exception
+    {
+        String onFirst  = emailOnShard(0);
+        String onSecond = emailOnShard(1);
+        register(onFirst);
+        register(onSecond);
+
+        List<String> emails = List.of(onSecond, onFirst);
+
+        SqlParameterSource[] batch = new SqlParameterSource[emails.size()];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new MapSqlParameterSource()
+                .addValue("email", emails.get(i))
+                .addValue("user_status_id", UserStatus.LOCKED.id());
+        }
+
+        int[] counts = repo.batchUpdate("update idm.user set user_status_id = :user_status_id where email = :email",
+                                        batch,
+                                        i -> ShardRouter.bucketForEmail(emails.get(i)));
+
+        // In the order of the batch, though each shard ran its own
+        assertArrayEquals(new int[]{1, 1}, counts);
+
+        for (String email : emails) {
+            this.performAsync(post(LOGIN_PATH).contentType(MediaType.APPLICATION_JSON)
+                                              .content(makeUser(email, PASSWORD).toJSONString()))
+                        .andDo(print())
+                        .andExpectAll(isResult(IDMResults.USER_IS_LOCKED));
+        }
+    }
+
+    @Test
+    public void tokenIssuedBeforeShardingIsFound()
+        throws Exception
+    {
+        String email = emailOnShard(1);
+        register(email);
+
+        Shard userShard = router.shards().get(1);
+        int   userId    = userShard.template().queryForObject(SELECT_ID_SQL, new MapSqlParameterSource("email", email),
+                                                              Integer.class);
+
+        // Random first bits, like every token before sharding, here ones routed to the other shard
+        String legacyToken;
+        do {
+            legacyToken = UUID.randomUUID().toString();
+        } while (router.shardFor(ShardRouter.bucketOfToken(legacyToken)) == userShard);
+
+        RefreshToken refreshToken =
+            new RefreshToken()
+                .setToken(legacyToken)
+                .setUserId(userId)
+                .setTokenStatus(TokenStatus.ACTIVE)
+                .setExpireTime(Instant.now().plus(Duration.ofHours(1)))
+                .setMaxLifeTime(Instant.now().plus(Duration.ofHours(2)));
+
+        userShard.template().update(storage.insertRefreshToken(), storage.refreshTokenParameters(refreshToken));
+
+        refresh(legacyToken).andDo(print())
+                            .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN))
+                            .andExpect(jsonPath("refreshToken").value(legacyToken));
+    }
+
+    @Test
+    public void rebalanceKeepsServingLoginsAndRefreshes()
+        throws Exception
+    {
+        List<String> emails = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            String email = emailOnShard(0);
+            register(email);
+            emails.add(email);
+
+            MvcResult login = login(email);
+            assertEquals(IDMResults.USER_LOGGED_IN_SUCCESSFULLY.code(), resultCode(login));
+            tokens.add(refreshToken(login));
+        }
+
+        AtomicBoolean stop     = new AtomicBoolean();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        List<Thread>  clients  = new ArrayList<>();
+
+        for (int i = 0; i < emails.size(); i++) {
+            String email = emails.get(i);
+            String token = tokens.get(i);
+
+            Thread client = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        MvcResult login = login(email);
+                        if (resultCode(login) != IDMResults.USER_LOGGED_IN_SUCCESSFULLY.code()) {
+                            failures.add("login " + email + ": " + login.getResponse().getContentAsString());
+                            continue;
+                        }
+
+                        for (String refreshToken : List.of(token, refreshToken(login))) {
+                            MvcResult refresh = refresh(refreshToken).andReturn();
+                            if (resultCode(refresh) != IDMResults.RENEWED_FROM_REFRESH_TOKEN.code()) {
+                                failures.add("refresh " + refreshToken + ": " + refresh.getResponse().getContentAsString());
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.add(email + ": " + e);
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+
+        int moved = rebalancer.rebalance();
+
+        stop.set(true);
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        assertTrue(moved > 0);
+        assertTrue(failures.isEmpty(), () -> String.join("\n", failures));
+
+        for (int i = 0; i < emails.size(); i++) {
+            String email  = emails.get(i);
+            Shard  target = router.shards().get(ShardRouter.bucketForEmail(email) % router.shards().size());
+
+            assertEquals(target, router.shardFor(ShardRouter.bucketForEmail(email)));
+            for (Shard shard : router.shards()) {
+                assertEquals(shard == target ? 1 : 0, usersWithEmail(shard, email));
+            }
+
+            refresh(tokens.get(i)).andDo(print())
+                                  .andExpectAll(isResult(IDMResults.RENEWED_FROM_REFRESH_TOKEN));
+        }
+
+        // Nothing is left to move
+        assertEquals(0, rebalancer.rebalance());
+    }
+}
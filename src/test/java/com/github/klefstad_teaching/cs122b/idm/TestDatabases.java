@@ -0,0 +1,47 @@
+package com.github.klefstad_teaching.cs122b.idm;
+
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.utility.DockerImageName;
+import org.testcontainers.utility.MountableFile;
+
+/**
+ * Throwaway MySQL instances for tests that need a schema, or a second
+ * database, the shared test database can not provide. Every container
+ * starts from db.sql and db/idm.sql, then runs the given classpath
+ * scripts in order. The schema is always idm, like the service expects.
+ */
+public final class TestDatabases
+{
+    private static final DockerImageName IMAGE     = DockerImageName.parse("mysql:8.0");
+    private static final String          INIT_PATH = "/docker-entrypoint-initdb.d/";
+
+    private TestDatabases()
+    {
+    }
+
+    public static MySQLContainer<?> idm(String... classpathScripts)
+    {
+        MySQLContainer<?> container =
+            new MySQLContainer<>(IMAGE)
+                .withUsername("root")
+                .withPassword("root")
+                .withCopyFileToContainer(MountableFile.forHostPath("db.sql"), INIT_PATH + "0-db.sql")
+                .withCopyFileToContainer(MountableFile.forHostPath("db/idm.sql"), INIT_PATH + "1-idm.sql");
+
+        // The entrypoint runs them in file name order
+        for (int i = 0; i < classpathScripts.length; i++) {
+            container.withCopyFileToContainer(MountableFile.forClasspathResource(classpathScripts[i]),
+                                              INIT_PATH + (i + 2) + "-" + classpathScripts[i].replace('/', '-'));
+        }
+
+        return container;
+    }
+
+    /**
+     * @return the URL without a database, like spring.datasource.url
+     */
+    public static String url(MySQLContainer<?> container)
+    {
+        return "jdbc:mysql://" + container.getHost() + ":" + container.getMappedPort(MySQLContainer.MYSQL_PORT);
+    }
+}
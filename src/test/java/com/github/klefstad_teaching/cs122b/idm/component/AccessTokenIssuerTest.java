@@ -0,0 +1,62 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.core.security.JWTManager;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.User;
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.Role;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AccessTokenIssuerTest
+{
+    private static final Duration ACCESS_TOKEN_EXPIRE = Duration.ofMinutes(30);
+
+    @Test
+    public void issuedTokenVerifies()
+        throws Exception
+    {
+        ECKey ecKey = new ECKeyGenerator(Curve.P_256)
+            .keyUse(KeyUse.SIGNATURE)
+            .keyID("issuer-test")
+            .generate();
+
+        AccessTokenIssuer issuer = new AccessTokenIssuer(ACCESS_TOKEN_EXPIRE);
+
+        // Characters JSON escapes, and characters taking two to four bytes in UTF-8
+        User user = new User()
+            .setId(Integer.MAX_VALUE)
+            .setEmail("Quo\"te\\d\u0001P\u00e4ss\u20ac\ud83d\udd11@example.com")
+            .setRoles(Role.ADMIN, Role.PREMIUM);
+
+        try (KeyRing keyRing = new KeyRing(ecKey, ACCESS_TOKEN_EXPIRE)) {
+            SignedJWT signedJWT = SignedJWT.parse(issuer.issue(keyRing.signingKey(), user));
+
+            assertEquals(ecKey.getKeyID(), signedJWT.getHeader().getKeyID());
+            assertTrue(signedJWT.verify(new ECDSAVerifier(ecKey.toPublicJWK())));
+            assertTrue(keyRing.verifierFor(signedJWT.getHeader().getKeyID())
+                              .verify(signedJWT, Instant.now())
+                              .isValid());
+
+            JWTClaimsSet claimsSet = signedJWT.getJWTClaimsSet();
+
+            assertEquals(user.getEmail(), claimsSet.getSubject());
+            assertEquals(user.getId(), claimsSet.getIntegerClaim(JWTManager.CLAIM_ID));
+            assertEquals(List.of("ADMIN", "PREMIUM"), claimsSet.getStringListClaim(JWTManager.CLAIM_ROLES));
+            assertEquals(ACCESS_TOKEN_EXPIRE,
+                         Duration.between(claimsSet.getIssueTime().toInstant(),
+                                          claimsSet.getExpirationTime().toInstant()));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class KeyRingTest
+{
+    private static final Duration RETIRED_KEY_LIFETIME = Duration.ofDays(1);
+    private static final Duration ACTIVATION_DELAY     = Duration.ofHours(1);
+
+    // Inotify is quick, this only bounds a broken test
+    private static final long WATCH_TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    Path directory;
+
+    private static ECKey newKey(String keyID)
+        throws Exception
+    {
+        return new ECKeyGenerator(Curve.P_256)
+            .keyUse(KeyUse.SIGNATURE)
+            .keyID(keyID)
+            .generate();
+    }
+
+    private Path write(String keyID, ECKey ecKey)
+        throws Exception
+    {
+        return Files.writeString(directory.resolve(keyID + ".json"), ecKey.toJSONString());
+    }
+
+    private static String signingKeyID(KeyRing keyRing)
+    {
+        return keyRing.signingKey().getEcKey().getKeyID();
+    }
+
+    private static void awaitPublished(KeyRing keyRing, String keyID)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + WATCH_TIMEOUT_MILLIS;
+
+        while (keyRing.publicJWKSet().getKeyByKeyId(keyID) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        assertNotNull(keyRing.publicJWKSet().getKeyByKeyId(keyID), keyID + " was never published");
+    }
+
+    @Test
+    public void newKeyIsPublishedBeforeItSigns()
+        throws Exception
+    {
+        try (KeyRing keyRing = new KeyRing(newKey("initial"), RETIRED_KEY_LIFETIME, ACTIVATION_DELAY)) {
+            keyRing.watch(directory);
+
+            write("next", newKey("next"));
+            awaitPublished(keyRing, "next");
+
+            // Published and verifying, but verifiers caching the old JWKS would reject its tokens
+            assertEquals("initial", signingKeyID(keyRing));
+            assertNotNull(keyRing.verifierFor("next"));
+
+            Instant activated = Instant.now().plus(ACTIVATION_DELAY).plusSeconds(1);
+            keyRing.advance(activated);
+
+            assertEquals("next", signingKeyID(keyRing));
+            assertNotNull(keyRing.verifierFor("initial"));
+
+            keyRing.advance(activated.plus(RETIRED_KEY_LIFETIME).plusSeconds(1));
+
+            assertNull(keyRing.verifierFor("initial"));
+            assertNull(keyRing.publicJWKSet().getKeyByKeyId("initial"));
+            assertEquals("next", signingKeyID(keyRing));
+        }
+    }
+
+    @Test
+    public void keysPublishedBeforeStartupSignAtOnce()
+        throws Exception
+    {
+        Path old = write("old", newKey("old"));
+        Files.setLastModifiedTime(old, FileTime.from(Instant.now().minus(ACTIVATION_DELAY).minusSeconds(60)));
+
+        write("recent", newKey("recent"));
+
+        try (KeyRing keyRing = new KeyRing(newKey("initial"), RETIRED_KEY_LIFETIME, ACTIVATION_DELAY)) {
+            keyRing.watch(directory);
+
+            assertEquals("old", signingKeyID(keyRing));
+            assertNotNull(keyRing.publicJWKSet().getKeyByKeyId("recent"));
+            assertNotNull(keyRing.verifierFor("initial"));
+        }
+    }
+
+    @Test
+    public void retiredKeyIsNeverReactivated()
+        throws Exception
+    {
+        try (KeyRing keyRing = new KeyRing(newKey("initial"), RETIRED_KEY_LIFETIME, ACTIVATION_DELAY)) {
+            keyRing.watch(directory);
+
+            ECKey next = newKey("next");
+            write("next", next);
+            awaitPublished(keyRing, "next");
+            keyRing.advance(Instant.now().plus(ACTIVATION_DELAY).plusSeconds(1));
+
+            write("third", newKey("third"));
+            awaitPublished(keyRing, "third");
+            keyRing.advance(Instant.now().plus(ACTIVATION_DELAY.multipliedBy(2)).plusSeconds(1));
+
+            assertEquals("third", signingKeyID(keyRing));
+
+            // A modify event on the retired key's file, then one more file to know it was seen
+            write("next", next);
+            write("marker", newKey("marker").toPublicJWK());
+            awaitPublished(keyRing, "marker");
+
+            keyRing.advance(Instant.now().plus(ACTIVATION_DELAY.multipliedBy(3)).plusSeconds(1));
+
+            assertEquals("third", signingKeyID(keyRing));
+            assertNotNull(keyRing.verifierFor("next"));
+        }
+    }
+
+    @Test
+    public void deletingAPendingKeyCancelsIt()
+        throws Exception
+    {
+        try (KeyRing keyRing = new KeyRing(newKey("initial"), RETIRED_KEY_LIFETIME, ACTIVATION_DELAY)) {
+            keyRing.watch(directory);
+
+            Path next = write("next", newKey("next"));
+            awaitPublished(keyRing, "next");
+
+            Files.delete(next);
+            write("marker", newKey("marker").toPublicJWK());
+            awaitPublished(keyRing, "marker");
+
+            keyRing.advance(Instant.now().plus(ACTIVATION_DELAY).plusSeconds(1));
+
+            assertEquals("initial", signingKeyID(keyRing));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ObjectPoolTest
+{
+    @Test
+    public void givenBackObjectIsReused()
+    {
+        AtomicInteger      created = new AtomicInteger();
+        ObjectPool<Object> pool    = new ObjectPool<>(() -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+
+        Object first = pool.take();
+        pool.give(first);
+
+        assertSame(first, pool.take());
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void keepsABoundedNumber()
+    {
+        AtomicInteger      created = new AtomicInteger();
+        ObjectPool<Object> pool    = new ObjectPool<>(() -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+
+        // Far more taken at once than the pool keeps, as with a burst of virtual threads
+        List<Object> taken = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            taken.add(pool.take());
+        }
+        taken.forEach(pool::give);
+
+        created.set(0);
+        for (int i = 0; i < 10_000; i++) {
+            pool.take();
+        }
+
+        int kept = 10_000 - created.get();
+        assertTrue(kept > 0 && kept <= 2 * Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapTokenTableTest
+{
+    private static final int ACTIVE  = TokenStatus.ACTIVE.id();
+    private static final int REVOKED = TokenStatus.REVOKED.id();
+
+    private static final long NOW   = 1_000_000L;
+    private static final long GRACE = 1_000L;
+
+    // One segment of 16 slots, twelve of them usable before it has to grow
+    private static OffHeapTokenTable smallTable()
+    {
+        return new OffHeapTokenTable(8, 1);
+    }
+
+    @Test
+    public void putGetAndUpdate()
+    {
+        OffHeapTokenTable table = smallTable();
+
+        assertTrue(table.put(1, 2, NOW + 10, NOW + 100, 7, ACTIVE));
+
+        OffHeapTokenTable.Entry entry = table.get(1, 2);
+        assertNotNull(entry);
+        assertEquals(NOW + 10, entry.expireMillis);
+        assertEquals(NOW + 100, entry.maxLifeMillis);
+        assertEquals(7, entry.userId);
+        assertEquals(ACTIVE, entry.statusId);
+        assertNull(table.get(2, 1));
+
+        // Extensions only ever move forward
+        table.extend(1, 2, NOW + 20);
+        table.extend(1, 2, NOW + 15);
+        assertEquals(NOW + 20, table.get(1, 2).expireMillis);
+
+        assertTrue(table.compareAndSetStatus(1, 2, ACTIVE, REVOKED));
+        assertFalse(table.compareAndSetStatus(1, 2, ACTIVE, REVOKED));
+        assertEquals(REVOKED, table.get(1, 2).statusId);
+
+        // A put replaces the token in place
+        assertTrue(table.put(1, 2, NOW + 30, NOW + 100, 7, ACTIVE));
+        assertEquals(1, table.size());
+        assertEquals(ACTIVE, table.get(1, 2).statusId);
+    }
+
+    @Test
+    public void writesAreReportedInOrder()
+    {
+        OffHeapTokenTable table   = smallTable();
+        List<Long>        expires = new ArrayList<>();
+
+        table.setListener((msb, lsb, expireMillis, maxLifeMillis, userId, statusId) -> expires.add(expireMillis));
+
+        table.put(1, 2, NOW + 10, NOW + 100, 7, ACTIVE);
+        table.extend(1, 2, NOW + 20);
+        table.extend(1, 2, NOW + 5);
+        table.compareAndSetStatus(1, 2, ACTIVE, REVOKED);
+
+        assertEquals(List.of(NOW + 10, NOW + 20, NOW + 20), expires);
+    }
+
+    @Test
+    public void activeTokenStaysUntilMaxLife()
+    {
+        OffHeapTokenTable table = smallTable();
+
+        table.put(1, 2, NOW - 10 * GRACE, NOW + 100, 7, ACTIVE);
+
+        // Past expiry and the grace period, but a /refresh still has to answer EXPIRED for it
+        assertEquals(NOW + 101, table.removeIfDue(1, 2, NOW, GRACE));
+        assertNotNull(table.get(1, 2));
+
+        assertEquals(-1, table.removeIfDue(1, 2, NOW + 101, GRACE));
+        assertNull(table.get(1, 2));
+    }
+
+    @Test
+    public void revokedTokenGoesAfterGracePeriod()
+    {
+        OffHeapTokenTable table = smallTable();
+
+        table.put(1, 2, NOW, NOW + 100_000, 7, REVOKED);
+
+        assertEquals(NOW + GRACE + 1, table.removeIfDue(1, 2, NOW, GRACE));
+        assertEquals(-1, table.removeIfDue(1, 2, NOW + GRACE + 1, GRACE));
+        assertNull(table.get(1, 2));
+    }
+
+    @Test
+    public void tombstonesAreReused()
+    {
+        OffHeapTokenTable table = smallTable();
+
+        // Far more inserts than slots, each removed again, never grows past one live token
+        for (long i = 1; i <= 1000; i++) {
+            assertTrue(table.put(i, i, NOW, NOW, 7, REVOKED));
+            assertEquals(-1, table.removeIfDue(i, i, NOW + GRACE + 1, GRACE));
+            assertEquals(0, table.size());
+        }
+
+        // Still found past the deleted slots they probed over
+        for (long i = 1; i <= 10; i++) {
+            assertTrue(table.put(i, -i, NOW, NOW + 100, 7, ACTIVE));
+        }
+        for (long i = 1; i <= 10; i++) {
+            assertNotNull(table.get(i, -i));
+        }
+        assertEquals(10, table.size());
+    }
+
+    @Test
+    public void segmentGrowsWhenFull()
+    {
+        OffHeapTokenTable table = smallTable();
+
+        for (long i = 1; i <= 1000; i++) {
+            assertTrue(table.put(i, i * 31, NOW + i, NOW + 100_000, (int) i, ACTIVE));
+        }
+
+        assertEquals(1000, table.size());
+
+        for (long i = 1; i <= 1000; i++) {
+            OffHeapTokenTable.Entry entry = table.get(i, i * 31);
+            assertNotNull(entry, "lost token " + i);
+            assertEquals(NOW + i, entry.expireMillis);
+            assertEquals((int) i, entry.userId);
+        }
+
+        int[] visited = {0};
+        table.forEach((msb, lsb, expireMillis, maxLifeMillis, userId, statusId) -> visited[0]++);
+        assertEquals(1000, visited[0]);
+    }
+}
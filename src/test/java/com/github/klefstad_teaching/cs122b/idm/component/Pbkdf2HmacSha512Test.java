@@ -0,0 +1,68 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class Pbkdf2HmacSha512Test
+{
+    private static final int ITERATIONS = 1000;
+
+    // ASCII, non-ASCII and a password longer than the 128 byte HMAC block
+    private static final String[] PASSWORDS = {
+        "ActivePassWord0", "P\u00e4ssw\u00f6rd\ud83d\udd11Word0", "Long".repeat(40) + "PassWord0"
+    };
+
+    private static final byte[][] SALTS = {
+        {1, 2, 3, 4}, new byte[16], "a salt longer than one sha512 block".repeat(5).getBytes()
+    };
+
+    private static void assertMatchesJdk(int keyLength)
+        throws Exception
+    {
+        SecretKeyFactory skf    = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+        Pbkdf2HmacSha512 engine = new Pbkdf2HmacSha512();
+
+        for (String password : PASSWORDS) {
+            for (byte[] salt : SALTS) {
+                PBEKeySpec spec     = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, keyLength * 8);
+                byte[]     expected = skf.generateSecret(spec).getEncoded();
+
+                assertArrayEquals(expected, engine.derive(password.toCharArray(), salt, ITERATIONS, keyLength),
+                                  keyLength + " bytes of " + password);
+            }
+        }
+    }
+
+    @Test
+    public void partOfOneBlockMatchesJdk()
+        throws Exception
+    {
+        assertMatchesJdk(16);
+    }
+
+    @Test
+    public void oneBlockMatchesJdk()
+        throws Exception
+    {
+        assertMatchesJdk(64);
+    }
+
+    // Blocks after the first start over from the salt with a higher index
+    @Test
+    public void partOfSecondBlockMatchesJdk()
+        throws Exception
+    {
+        assertMatchesJdk(100);
+    }
+
+    @Test
+    public void twoBlocksMatchJdk()
+        throws Exception
+    {
+        assertMatchesJdk(128);
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TimingWheelTest
+{
+    private static final Duration TICK  = Duration.ofMillis(100);
+    private static final int      SLOTS = 10;
+    private static final long     START = 1_000_000L;
+
+    @Test
+    public void keyIsHandledOnceDue()
+    {
+        TimingWheel wheel   = new TimingWheel(SLOTS, TICK, START);
+        List<Long>  handled = new ArrayList<>();
+
+        wheel.schedule(1, 2, START + 300);
+
+        wheel.advance(START + 299, (msb, lsb, nowMillis) -> {
+            handled.add(nowMillis);
+            return -1;
+        });
+        assertTrue(handled.isEmpty());
+
+        wheel.advance(START + 300, (msb, lsb, nowMillis) -> {
+            handled.add(nowMillis);
+            return -1;
+        });
+        assertEquals(List.of(START + 300), handled);
+
+        // Done, so never handled again
+        wheel.advance(START + 5_000, (msb, lsb, nowMillis) -> {
+            handled.add(nowMillis);
+            return -1;
+        });
+        assertEquals(1, handled.size());
+    }
+
+    @Test
+    public void extendedDeadlineIsRescheduled()
+    {
+        TimingWheel wheel    = new TimingWheel(SLOTS, TICK, START);
+        long[]      deadline = {START + 300};
+        List<Long>  handled  = new ArrayList<>();
+
+        TimingWheel.Handler handler = (msb, lsb, nowMillis) -> {
+            handled.add(nowMillis);
+            return nowMillis >= deadline[0] ? -1 : deadline[0];
+        };
+
+        wheel.schedule(1, 2, deadline[0]);
+
+        // Extended after it was filed, the wheel still finds it at the old slot and refiles it
+        deadline[0] = START + 700;
+
+        wheel.advance(START + 300, handler);
+        assertEquals(List.of(START + 300), handled);
+
+        wheel.advance(START + 699, handler);
+        assertEquals(1, handled.size());
+
+        wheel.advance(START + 700, handler);
+        assertEquals(List.of(START + 300, START + 700), handled);
+
+        wheel.advance(START + 5_000, handler);
+        assertEquals(2, handled.size());
+    }
+
+    @Test
+    public void deadlineBeyondOneRevolutionIsRefiled()
+    {
+        TimingWheel wheel    = new TimingWheel(SLOTS, TICK, START);
+        long        deadline = START + 2_500;
+        List<Long>  handled  = new ArrayList<>();
+
+        wheel.schedule(1, 2, deadline);
+
+        for (long now = START; now <= START + 3_000; now += 50) {
+            wheel.advance(now, (msb, lsb, nowMillis) -> {
+                handled.add(nowMillis);
+                return nowMillis >= deadline ? -1 : deadline;
+            });
+        }
+
+        // Seen once per revolution on the way, and done the tick it was due
+        assertTrue(handled.size() > 1);
+        assertEquals(deadline, (long) handled.get(handled.size() - 1));
+        assertEquals(1, handled.stream().filter(now -> now >= deadline).count());
+    }
+
+    @Test
+    public void pastDeadlineWaitsForNextTick()
+    {
+        TimingWheel wheel   = new TimingWheel(SLOTS, TICK, START);
+        List<Long>  handled = new ArrayList<>();
+
+        wheel.schedule(1, 2, START - 1_000);
+
+        wheel.advance(START + 100, (msb, lsb, nowMillis) -> {
+            handled.add(nowMillis);
+            return -1;
+        });
+        assertEquals(List.of(START + 100), handled);
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.klefstad_teaching.cs122b.idm.component;
+
+import com.github.klefstad_teaching.cs122b.idm.repo.entity.type.TokenStatus;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class TokenJournalTest
+{
+    private static final Duration FSYNC_INTERVAL = Duration.ofMillis(50);
+
+    private static final int ACTIVE  = TokenStatus.ACTIVE.id();
+    private static final int REVOKED = TokenStatus.REVOKED.id();
+
+    private static final long NOW = 1_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private TokenJournal open(OffHeapTokenTable table)
+        throws Exception
+    {
+        TokenJournal journal = new TokenJournal(directory, FSYNC_INTERVAL);
+        journal.recover(table);
+        table.setListener(journal::append);
+        return journal;
+    }
+
+    private Path newestLog()
+        throws Exception
+    {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log"))
+                        .max(Comparator.comparing(file -> file.getFileName().toString()))
+                        .orElseThrow();
+        }
+    }
+
+    @Test
+    public void replaysLogAfterSnapshot()
+        throws Exception
+    {
+        OffHeapTokenTable table   = new OffHeapTokenTable(64, 4);
+        TokenJournal      journal = open(table);
+
+        table.put(1, 1, NOW + 10, NOW + 100, 7, ACTIVE);
+        table.put(2, 2, NOW + 10, NOW + 100, 8, ACTIVE);
+
+        journal.snapshot(table);
+
+        // Only in the log of the snapshot's generation
+        table.extend(1, 1, NOW + 50);
+        table.compareAndSetStatus(2, 2, ACTIVE, REVOKED);
+        table.put(3, 3, NOW + 10, NOW + 100, 9, ACTIVE);
+
+        journal.close();
+
+        OffHeapTokenTable recovered = new OffHeapTokenTable(64, 4);
+        open(recovered).close();
+
+        assertEquals(3, recovered.size());
+        assertEquals(NOW + 50, recovered.get(1, 1).expireMillis);
+        assertEquals(REVOKED, recovered.get(2, 2).statusId);
+        assertEquals(9, recovered.get(3, 3).userId);
+    }
+
+    @Test
+    public void ignoresTornTrailingEntry()
+        throws Exception
+    {
+        OffHeapTokenTable table   = new OffHeapTokenTable(64, 4);
+        TokenJournal      journal = open(table);
+
+        table.put(1, 1, NOW + 10, NOW + 100, 7, ACTIVE);
+        table.put(2, 2, NOW + 10, NOW + 100, 8, ACTIVE);
+        table.extend(2, 2, NOW + 60);
+
+        journal.close();
+
+        // A crash in the middle of writing the next entry
+        Files.write(newestLog(), new byte[OffHeapTokenTable.ENTRY_BYTES / 2 + 3], StandardOpenOption.APPEND);
+
+        OffHeapTokenTable recovered        = new OffHeapTokenTable(64, 4);
+        TokenJournal      recoveredJournal = open(recovered);
+
+        assertEquals(2, recovered.size());
+        assertEquals(NOW + 60, recovered.get(2, 2).expireMillis);
+
+        // Appends after recovery stay aligned, they go to a new log
+        recovered.put(3, 3, NOW + 10, NOW + 100, 9, ACTIVE);
+        recoveredJournal.close();
+
+        OffHeapTokenTable again = new OffHeapTokenTable(64, 4);
+        open(again).close();
+
+        assertEquals(3, again.size());
+        assertNotNull(again.get(3, 3));
+        assertNull(again.get(4, 4));
+    }
+
+    @Test
+    public void keepsConcurrentAppends()
+        throws Exception
+    {
+        int threads   = 8;
+        int perThread = 20_000;
+
+        OffHeapTokenTable table   = new OffHeapTokenTable(threads * perThread, 16);
+        TokenJournal      journal = open(table);
+
+        // Together well past one lap of the ring
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long msb = t + 1;
+            Thread writer = new Thread(() -> {
+                for (long lsb = 0; lsb < perThread; lsb++) {
+                    table.put(msb, lsb, NOW, NOW + 100, (int) msb, ACTIVE);
+                    table.extend(msb, lsb, NOW + lsb);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        journal.close();
+
+        OffHeapTokenTable recovered = new OffHeapTokenTable(threads * perThread, 16);
+        open(recovered).close();
+
+        assertEquals(threads * perThread, recovered.size());
+        for (long msb = 1; msb <= threads; msb++) {
+            for (long lsb = 1; lsb < perThread; lsb += 997) {
+                assertEquals(NOW + lsb, recovered.get(msb, lsb).expireMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.klefstad_teaching.cs122b.idm.util;
+
+import com.github.klefstad_teaching.cs122b.core.result.IDMResults;
+import com.github.klefstad_teaching.cs122b.core.result.Result;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The scanners against the regexes IDMController compiled per request,
+ * with the same length checks in front of them.
+ */
+public class ValidateTest
+{
+    private static final Pattern EMAIL         = Pattern.compile("^([a-zA-Z0-9]+)@([a-zA-Z0-9]+).([a-zA-Z0-9]+)$");
+    private static final Pattern PASSWORD      = Pattern.compile("^(?=.*?[A-Z])(?=.*?[a-z])(?=.*?[0-9]).{10,20}$");
+    private static final Pattern REFRESH_TOKEN = Pattern.compile("^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$");
+
+    // Alphanumerics, the separators, a non-ASCII letter, line terminators and both surrogate halves
+    private static final String ALPHABET = "aZ0@.-é\n 🔑";
+
+    private static final int FUZZ_ROUNDS = 20_000;
+
+    private final Validate validate = new Validate();
+
+    private static Result legacyEmail(String email)
+    {
+        if (email.length() < 6 || email.length() > 32) {
+            return IDMResults.EMAIL_ADDRESS_HAS_INVALID_LENGTH;
+        }
+        return EMAIL.matcher(email).matches() ? null : IDMResults.EMAIL_ADDRESS_HAS_INVALID_FORMAT;
+    }
+
+    private static Result legacyPassword(char[] password)
+    {
+        if (password.length < 10 || password.length > 20) {
+            return IDMResults.PASSWORD_DOES_NOT_MEET_LENGTH_REQUIREMENTS;
+        }
+        return PASSWORD.matcher(new String(password)).matches() ?
+            null :
+            IDMResults.PASSWORD_DOES_NOT_MEET_CHARACTER_REQUIREMENT;
+    }
+
+    private static Result legacyRefreshToken(String refreshToken)
+    {
+        if (refreshToken.length() != 36) {
+            return IDMResults.REFRESH_TOKEN_HAS_INVALID_LENGTH;
+        }
+        return REFRESH_TOKEN.matcher(refreshToken).matches() ? null : IDMResults.REFRESH_TOKEN_HAS_INVALID_FORMAT;
+    }
+
+    private static String random(Random random, int minLength, int maxLength)
+    {
+        int           length  = minLength + random.nextInt(maxLength - minLength + 1);
+        StringBuilder builder = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+
+        return builder.toString();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "a@a.io",
+        "a@b.c",
+        "ab@c.d",
+        "a@bcd",
+        "a@bc",
+        "abcdefghijklmnopqrstuvwxy@ab.cde",
+        "abcdefghijklmnopqrstuvwxyz@ab.cde",
+        "@abc.de",
+        "abc@.de",
+        "abc@de.",
+        "abc@de..fg",
+        "abc@de.fg.hi",
+        "abc@de-fg.hi",
+        "abc@def@gh.ij",
+        "a.b@cd.ef",
+        "ABC@DEF.GHI",
+        " abc@def.gh",
+        "abc@def.gh ",
+        "abc@de\tf.gh",
+        "abc@de\nfgh",
+        "abc@de\rfgh",
+        "abc@de\u0085fgh",
+        "abc@de fgh",
+        "abc@deéfgh",
+        "ébc@def.gh",
+        "abc@def.gé",
+        "abc@de🔑fgh",
+        "abc@de\ud83dfgh",
+        "abc@de\udd11fgh",
+        "abc@de🔑",
+        "abc@🔑fgh",
+        "abc@de٠fg",
+        "abc@de０fg"
+    })
+    public void emailMatchesRegex(String email)
+    {
+        assertEquals(legacyEmail(email), validate.email(email), email);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "ValidPass0",
+        "ValidPass01234567890",
+        "ValidPas0",
+        "ValidPass012345678901",
+        "validpass0",
+        "VALIDPASS0",
+        "ValidPassWord",
+        "0123456789",
+        "ValidPass\n0",
+        "ValidPass\r0",
+        "ValidPass\u0085X0",
+        "ValidPass X0",
+        "ValidPäss0",
+        "Valid🔑Pass0",
+        "Va0🔑🔑🔑🔑",
+        "Va0🔑🔑🔑🔑abcd",
+        "ValidPass\ud83d0",
+        "ValidPass\udd110",
+        "Valid🔑Pass01234567",
+        "ValidPass٠١٢",
+        "ＡａValidPass0"
+    })
+    public void passwordMatchesRegex(String password)
+    {
+        assertEquals(legacyPassword(password.toCharArray()), validate.password(password.toCharArray()), password);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "c46fc3c2-9791-44d6-a86e-2922ad655284",
+        "C46FC3C2-9791-44D6-A86E-2922AD655284",
+        "c46fc3c2-9791-44d6-a86e-2922ad65528",
+        "c46fc3c2-9791-44d6-a86e-2922ad6552845",
+        "c46fc3c2097910044d60a86e02922ad655284",
+        "c46fc3c2-9791-44d6-a86e2922ad655284-",
+        "c46fc3c29-791-44d6-a86e-2922ad655284",
+        "g46fc3c2-9791-44d6-a86e-2922ad655284",
+        "c46fc3c2-9791-44d6-a86e-2922ad65528٤",
+        "c46fc3c2-9791-44d6-a86e-2922ad65528é",
+        "c46fc3c2-9791-44d6-a86e-2922ad6552🔑",
+        "c46fc3c2-9791-44d6-a86e-2922ad655284\n",
+        ""
+    })
+    public void refreshTokenMatchesRegex(String refreshToken)
+    {
+        assertEquals(legacyRefreshToken(refreshToken), validate.refreshToken(refreshToken), refreshToken);
+    }
+
+    @Test
+    public void randomEmailsMatchRegex()
+    {
+        Random random = new Random(122);
+
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            String email = random(random, 4, 34);
+            assertEquals(legacyEmail(email), validate.email(email), email);
+        }
+    }
+
+    @Test
+    public void randomPasswordsMatchRegex()
+    {
+        Random random = new Random(122);
+
+        for (int i = 0; i < FUZZ_ROUNDS; i++) {
+            char[] password = random(random, 8, 22).toCharArray();
+            assertEquals(legacyPassword(password), validate.password(password), new String(password));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+-- Turns the schema of db.sql back into the one phase 1 of
+-- db/migrate-binary-credentials.sql leaves behind: the old Base64 and UUID
+-- text columns next to the binary ones, both nullable.
+
+ALTER TABLE idm.user
+    CHANGE COLUMN salt salt_bin varbinary(16) NULL,
+    CHANGE COLUMN hashed_password hashed_password_bin binary(64) NULL;
+
+ALTER TABLE idm.user
+    ADD COLUMN salt varchar(24) NULL AFTER salt_bin,
+    ADD COLUMN hashed_password char(88) NULL AFTER hashed_password_bin;
+
+ALTER TABLE idm.refresh_token
+    CHANGE COLUMN token token_bin BINARY(16) NULL;
+
+ALTER TABLE idm.refresh_token
+    ADD COLUMN token CHAR(36) NULL UNIQUE AFTER token_bin;
+
+ALTER TABLE idm.refresh_token_archive
+    MODIFY token VARBINARY(36) NOT NULL;
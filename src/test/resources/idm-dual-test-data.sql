@@ -0,0 +1,22 @@
+DELETE FROM idm.refresh_token WHERE id > 0;
+DELETE FROM idm.user WHERE id > 0;
+
+ALTER TABLE idm.user AUTO_INCREMENT = 1;
+ALTER TABLE idm.refresh_token AUTO_INCREMENT = 1;
+
+SET @legacy_id = 1;
+SET @backfilled_id = 2;
+
+SET @active_status_id = (SELECT id
+                         FROM idm.user_status
+                         WHERE value = 'Active');
+
+-- Written by an instance still on the text columns, not backfilled yet
+INSERT INTO idm.user (id, email, user_status_id, salt, hashed_password)
+VALUES (@legacy_id, 'Active@example.com', @active_status_id, 'BXVDsQ==', '3906lItAtnDxDK5i85TKsdhfMNJgHYcK6quOR6FegjmPB6ppS6NH7j3ie83kjwotLlVZZVklclRKnyXTSVoEJw==');
+
+-- Backfilled by phase 2
+INSERT INTO idm.user (id, email, user_status_id, salt_bin, hashed_password_bin, salt, hashed_password)
+VALUES (@backfilled_id, 'Premium@example.com', @active_status_id, FROM_BASE64('/97ajQ=='), FROM_BASE64('O1VbNL2bAlns/ujxP1BupI9PK7suXSVPJpkkMnHhiRX9YuNOT3+j4R/7JmyQbXgsMr3+Dh4qPt98kH/0+cHqVw=='),
+        '/97ajQ==', 'O1VbNL2bAlns/ujxP1BupI9PK7suXSVPJpkkMnHhiRX9YuNOT3+j4R/7JmyQbXgsMr3+Dh4qPt98kH/0+cHqVw==');
+